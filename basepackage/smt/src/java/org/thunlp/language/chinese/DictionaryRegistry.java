@@ -0,0 +1,68 @@
+package org.thunlp.language.chinese;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide registry of segmentation dictionaries, so that every
+ * ForwardMaxWordSegment in the JVM that uses the same automaton file shares a
+ * single immutable DoubleArrayTrie.
+ *
+ * If a compiled trie (the automaton file name plus COMPILED_SUFFIX, written
+ * by DoubleArrayTrie.save) exists and is not older than the automaton, it is
+ * memory mapped; otherwise the automaton is read and the trie built on the
+ * heap. A dictionary is dropped when no segmenter holds it any more.
+ */
+public class DictionaryRegistry {
+	private static Logger LOG = Logger.getAnonymousLogger();
+
+	public static String COMPILED_SUFFIX = ".trie";
+	private static String DEFAULT_MODEL = "org/thunlp/language/chinese/lexicon.model";
+
+	// Held weakly, so a dictionary is dropped once no segmenter uses it.
+	private static Map<String, WeakReference<DoubleArrayTrie>> tries =
+			new HashMap<String, WeakReference<DoubleArrayTrie>>();
+
+	/**
+	 * Get the dictionary of an automaton file, loading it if no segmenter
+	 * holds it any more. A null file means the lexicon bundled with this
+	 * package.
+	 */
+	public static synchronized DoubleArrayTrie get(String automataFile)
+			throws IOException {
+		String key = automataFile == null ? DEFAULT_MODEL : new File(
+				automataFile).getCanonicalPath();
+		WeakReference<DoubleArrayTrie> loaded = tries.get(key);
+		DoubleArrayTrie trie = loaded == null ? null : loaded.get();
+		if (trie == null) {
+			trie = load(automataFile);
+			tries.put(key, new WeakReference<DoubleArrayTrie>(trie));
+		}
+		return trie;
+	}
+
+	private static DoubleArrayTrie load(String automataFile) throws IOException {
+		if (automataFile == null) {
+			InputStream input = DictionaryRegistry.class.getClassLoader()
+					.getResourceAsStream(DEFAULT_MODEL);
+			if (input == null) {
+				throw new IOException("cannot find " + DEFAULT_MODEL);
+			}
+			return DoubleArrayTrie.load(input);
+		}
+		File automata = new File(automataFile);
+		File compiled = new File(automataFile + COMPILED_SUFFIX);
+		if (compiled.exists() && compiled.lastModified() >= automata.lastModified()) {
+			LOG.info("map compiled dictionary " + compiled);
+			return DoubleArrayTrie.map(compiled);
+		}
+		LOG.info("build dictionary from " + automata);
+		return DoubleArrayTrie.load(new FileInputStream(automata));
+	}
+}
@@ -0,0 +1,379 @@
+package org.thunlp.language.chinese;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A read-only character trie stored as a double array. A node lives at a
+ * slot of the unit array, and the child of node s on character c is at slot
+ * t = base(s) + code[c], provided that check(t) == s + 1. A lookup is thus
+ * three array reads, with no hashing and no boxing.
+ *
+ * Characters are renumbered from 1 by how many jumps use them, so the
+ * children of a node fall in a narrow range of codes even when their
+ * characters are far apart, and the arrays pack densely. Code 0 means the
+ * character is in no word.
+ *
+ * Slot t takes two ints: base(t) shifted left by one with the final flag in
+ * the lowest bit, then check(t). The arrays are int buffers, so a trie can be
+ * built on the heap from the automaton ForwardMaxWordSegment loads, or mapped
+ * from a file written by save(). A mapped trie costs no heap and is shared
+ * through the page cache by every JVM that maps it.
+ *
+ * File layout (little-endian): magic, version, number of codes, number of
+ * slots, then the code table and the units.
+ *
+ * @see ForwardMaxWordSegment
+ * @see DictionaryRegistry
+ */
+public class DoubleArrayTrie {
+	public static final int ROOT = 0;
+
+	private static int MAGIC = 0x44415431; // "DAT1"
+	private static int VERSION = 1;
+	private static int HEADER_SIZE = 16;
+
+	private IntBuffer code;
+	private IntBuffer units;
+	private int numSlots;
+
+	private DoubleArrayTrie(IntBuffer code, IntBuffer units) {
+		this.code = code;
+		this.units = units;
+		this.numSlots = units.limit() / 2;
+	}
+
+	/**
+	 * @return the node reached from node on c, or -1 if there is none.
+	 */
+	public int next(int node, char c) {
+		int t = (units.get(2 * node) >> 1) + code.get(c);
+		if (t < numSlots && units.get(2 * t + 1) == node + 1) {
+			return t;
+		}
+		return -1;
+	}
+
+	public boolean isFinal(int node) {
+		return (units.get(2 * node) & 1) != 0;
+	}
+
+	/**
+	 * The number of slots, used or not.
+	 */
+	public int capacity() {
+		return numSlots;
+	}
+
+	/**
+	 * Read an automaton in the format of ForwardMaxWordSegment.buildAutomata
+	 * and build its trie on the heap.
+	 */
+	public static DoubleArrayTrie load(InputStream automataStream)
+			throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(
+				automataStream));
+		int numStates = input.readInt();
+		boolean[] finals = new boolean[numStates];
+		int[] jumpStart = new int[numStates + 1];
+		char[] keys = new char[numStates];
+		int[] targets = new int[numStates];
+		int numJumps = 0;
+		for (int i = 0; i < numStates; i++) {
+			finals[i] = input.readBoolean();
+			int n = input.readInt();
+			if (numJumps + n > keys.length) {
+				keys = Arrays.copyOf(keys, Math.max(numJumps + n, keys.length * 2));
+				targets = Arrays.copyOf(targets, keys.length);
+			}
+			for (int j = 0; j < n; j++) {
+				keys[numJumps] = input.readChar();
+				targets[numJumps] = input.readInt();
+				numJumps++;
+			}
+			jumpStart[i + 1] = numJumps;
+		}
+		input.close();
+		return build(finals, jumpStart, keys, targets);
+	}
+
+	/**
+	 * Map a trie written by save(). The mapping stays valid after the file is
+	 * closed.
+	 */
+	public static DoubleArrayTrie map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (channel.size() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+					|| buffer.getInt(4) != VERSION) {
+				throw new IOException(file + " is not a compiled dictionary");
+			}
+			int numCodes = buffer.getInt(8);
+			int numSlots = buffer.getInt(12);
+			if (channel.size() != HEADER_SIZE + 4L * numCodes + 8L * numSlots) {
+				throw new IOException(file + " is truncated");
+			}
+			buffer.position(HEADER_SIZE);
+			IntBuffer ints = buffer.slice().order(ByteOrder.LITTLE_ENDIAN)
+					.asIntBuffer();
+			ints.limit(numCodes);
+			IntBuffer code = ints.slice();
+			ints.limit(numCodes + 2 * numSlots).position(numCodes);
+			IntBuffer units = ints.slice();
+			return new DoubleArrayTrie(code, units);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Write the trie in the format map() reads.
+	 */
+	public void save(File file) throws IOException {
+		FileChannel channel = new FileOutputStream(file).getChannel();
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+					ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(code.limit())
+					.putInt(numSlots).flip();
+			write(channel, header);
+			writeInts(channel, code);
+			writeInts(channel, units);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static void writeInts(FileChannel channel, IntBuffer ints)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(
+				ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < ints.limit(); i++) {
+			if (buffer.remaining() < 4) {
+				buffer.flip();
+				write(channel, buffer);
+				buffer.clear();
+			}
+			buffer.putInt(ints.get(i));
+		}
+		buffer.flip();
+		write(channel, buffer);
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if a state is reachable twice, so the
+	 *           automaton is not a tree.
+	 */
+	public static DoubleArrayTrie build(boolean[] finalStates, int[] jumpStart,
+			char[] keys, int[] targets) {
+		int numStates = finalStates.length;
+		int[] code = codeByFrequency(keys, jumpStart[numStates]);
+		Builder b = new Builder(numStates + 1024);
+		b.take(ROOT, -1); // no node has -1 as parent.
+
+		// The slots a state's children take only depend on the offset, not on
+		// where the state itself is, so first find an offset for every state
+		// with children. Large fan-outs go first, while the arrays are still
+		// empty, and the many small ones fill the gaps they leave.
+		long[] order = new long[numStates];
+		int numParents = 0;
+		for (int state = 0; state < numStates; state++) {
+			int n = jumpStart[state + 1] - jumpStart[state];
+			if (n > 0) {
+				order[numParents++] = ((long) (Integer.MAX_VALUE - n) << 32) | state;
+			}
+		}
+		Arrays.sort(order, 0, numParents);
+		int[] offsets = new int[numStates];
+		int[] codes = new int[16];
+		for (int i = 0; i < numParents; i++) {
+			int state = (int) order[i];
+			int start = jumpStart[state];
+			int n = jumpStart[state + 1] - start;
+			if (codes.length < n) {
+				codes = new int[n];
+			}
+			for (int j = 0; j < n; j++) {
+				codes[j] = code[keys[start + j]];
+			}
+			Arrays.sort(codes, 0, n);
+			int offset = b.findBase(codes, n);
+			for (int j = 0; j < n; j++) {
+				b.take(offset + codes[j], -1);
+			}
+			offsets[state] = offset;
+		}
+
+		// Then walk down from the root to give every state its slot.
+		int[] position = new int[numStates];
+		Arrays.fill(position, -1);
+		position[ROOT] = ROOT;
+		b.finals[ROOT] = finalStates[ROOT];
+		int[] queue = new int[numStates];
+		int head = 0, tail = 0;
+		queue[tail++] = ROOT;
+		while (head < tail) {
+			int state = queue[head++];
+			int parent = position[state];
+			b.base[parent] = offsets[state];
+			for (int j = jumpStart[state]; j < jumpStart[state + 1]; j++) {
+				int child = targets[j];
+				if (position[child] != -1) {
+					throw new IllegalArgumentException("state " + child
+							+ " is reachable twice, the automaton is not a tree");
+				}
+				int t = offsets[state] + code[keys[j]];
+				b.check[t] = parent + 1;
+				b.finals[t] = finalStates[child];
+				position[child] = t;
+				queue[tail++] = child;
+			}
+		}
+		return b.finish(code);
+	}
+
+	private static int[] codeByFrequency(char[] keys, int numKeys) {
+		final int[] count = new int[Character.MAX_VALUE + 1];
+		for (int i = 0; i < numKeys; i++) {
+			count[keys[i]]++;
+		}
+		Integer[] chars = new Integer[count.length];
+		for (int c = 0; c < count.length; c++) {
+			chars[c] = c;
+		}
+		Arrays.sort(chars, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				return count[o2] != count[o1] ? count[o2] - count[o1] : o1 - o2;
+			}
+		});
+		int[] code = new int[count.length];
+		for (int i = 0; i < chars.length && count[chars[i]] > 0; i++) {
+			code[chars[i]] = i + 1;
+		}
+		return code;
+	}
+
+	private static class Builder {
+		int[] base;
+		int[] check;
+		boolean[] finals;
+		// One bit per slot, set when the slot is taken, so that findBase can
+		// try 64 offsets at once.
+		long[] taken;
+		// nextFree[i] leads to the first free slot at or after i, with path
+		// halving.
+		int[] nextFree;
+		int used = 0;
+
+		Builder(int capacity) {
+			base = new int[capacity];
+			check = new int[capacity];
+			finals = new boolean[capacity];
+			taken = new long[capacity / 64 + 2];
+			nextFree = new int[capacity];
+			for (int i = 0; i < capacity; i++) {
+				nextFree[i] = i;
+			}
+		}
+
+		/**
+		 * Find the smallest offset, at least the one that puts the first child
+		 * on the first free slot, whose slots for all codes are free. Codes are
+		 * sorted and at least 1.
+		 */
+		int findBase(int[] codes, int n) {
+			int offset = free(codes[0]) - codes[0];
+			while (true) {
+				ensure(offset + codes[n - 1] + 64);
+				// Bit k of fits is set if offset + k works for every child.
+				long fits = -1L;
+				for (int i = 0; i < n && fits != 0; i++) {
+					fits &= ~takenBits(offset + codes[i]);
+				}
+				if (fits != 0) {
+					offset += Long.numberOfTrailingZeros(fits);
+					used = Math.max(used, offset + codes[n - 1] + 1);
+					return offset;
+				}
+				offset += 64;
+			}
+		}
+
+		/**
+		 * The taken bits of the 64 slots starting at slot, lowest bit first.
+		 */
+		private long takenBits(int slot) {
+			int word = slot >>> 6;
+			int shift = slot & 63;
+			if (shift == 0) {
+				return taken[word];
+			}
+			return (taken[word] >>> shift) | (taken[word + 1] << (64 - shift));
+		}
+
+		void take(int slot, int parent) {
+			check[slot] = parent;
+			taken[slot >>> 6] |= 1L << (slot & 63);
+			nextFree[slot] = slot + 1;
+		}
+
+		private int free(int slot) {
+			ensure(slot + 1);
+			while (nextFree[slot] != slot) {
+				int next = nextFree[slot];
+				ensure(next + 1);
+				nextFree[slot] = nextFree[next];
+				slot = next;
+			}
+			return slot;
+		}
+
+		void ensure(int size) {
+			if (size <= check.length) {
+				return;
+			}
+			int capacity = Math.max(size, check.length * 2);
+			int old = check.length;
+			base = Arrays.copyOf(base, capacity);
+			check = Arrays.copyOf(check, capacity);
+			finals = Arrays.copyOf(finals, capacity);
+			taken = Arrays.copyOf(taken, capacity / 64 + 2);
+			nextFree = Arrays.copyOf(nextFree, capacity);
+			for (int i = old; i < capacity; i++) {
+				nextFree[i] = i;
+			}
+		}
+
+		DoubleArrayTrie finish(int[] code) {
+			int size = Math.max(used, 1);
+			int[] units = new int[2 * size];
+			for (int t = 0; t < size; t++) {
+				units[2 * t] = (base[t] << 1) | (finals[t] ? 1 : 0);
+				units[2 * t + 1] = check[t];
+			}
+			return new DoubleArrayTrie(IntBuffer.wrap(code), IntBuffer.wrap(units));
+		}
+	}
+}
@@ -29,6 +29,12 @@ import org.thunlp.io.TextFileReader;
  * ignored safely if your task is not heavily relied on finer accuracy of
  * segmentation.
  * 
+ * The dictionary automaton is kept in a DoubleArrayTrie, which is shared by
+ * all segmenters of the same automaton file (see DictionaryRegistry). Setting
+ * the system property 'wordsegment.automata.backend' to 'hashtable' keeps it
+ * in one Hashtable per state instead, which is how it used to be stored; both
+ * give the same segmentation.
+ * 
  * Example usage: WordSegment ws = new ForwardMaxWordSegment(); // The default
  * dictionary will // be loaded automatically. String text = "一些中文数据"; String []
  * words = ws.segment(text); for (String word : words) { // word should be "一些",
@@ -41,12 +47,31 @@ public class ForwardMaxWordSegment implements WordSegment {
 	private static Logger LOG = Logger.getAnonymousLogger();
 	private Hashtable<Character, Integer>[] automata;
 	private boolean[] finalStates;
+	private DoubleArrayTrie trie;
 
 	public ForwardMaxWordSegment() throws IOException {
-		String automataFile = System.getProperty("wordsegment.automata.file", "lib/lexicon-automata");
-		InputStream automataStream = null;
+		this(System.getProperty("wordsegment.automata.file"));
 		if (!System.getProperties().containsKey("wordsegment.automata.file")) {
 			LOG.warning("Property 'wordsegment.automata.file' is not set, " + "will use default model instead");
+		}
+	}
+
+	/**
+	 * Use the automaton in automataFile, or the default model if it is null.
+	 * The double-array dictionary is shared through DictionaryRegistry with
+	 * every other segmenter of the same file.
+	 */
+	public ForwardMaxWordSegment(String automataFile) throws IOException {
+		if (!"hashtable".equals(System.getProperty("wordsegment.automata.backend", "doublearray"))) {
+			try {
+				trie = DictionaryRegistry.get(automataFile);
+				return;
+			} catch (IllegalArgumentException e) {
+				LOG.warning("cannot use a double-array trie: " + e.getMessage());
+			}
+		}
+		InputStream automataStream = null;
+		if (automataFile == null) {
 			automataStream = this.getClass().getClassLoader()
 					.getResourceAsStream("org/thunlp/language/chinese/lexicon.model");
 		} else {
@@ -166,13 +191,11 @@ public class ForwardMaxWordSegment implements WordSegment {
 		int current_state = 0, match_length = 0;
 		int start_pos = 0, end_pos = 0;
 		for (int i = 0; i < text.length(); i++) {
-			Hashtable<Character, Integer> jump_table = automata[current_state];
-			assert(jump_table != null);
-			Integer jump = jump_table.get(text.charAt(i));
-			if (jump != null) {
+			int jump = jump(current_state, text.charAt(i));
+			if (jump >= 0) {
 				current_state = jump;
 				match_length++;
-				if (finalStates[current_state]) {
+				if (isFinal(current_state)) {
 					end_pos = i + 1;
 				}
 			} else {
@@ -218,6 +241,18 @@ public class ForwardMaxWordSegment implements WordSegment {
 		return segments.toArray(new String[segments.size()]);
 	}
 
+	private int jump(int state, char c) {
+		if (trie != null) {
+			return trie.next(state, c);
+		}
+		Integer jump = automata[state].get(c);
+		return jump == null ? -1 : jump;
+	}
+
+	private boolean isFinal(int state) {
+		return trie != null ? trie.isFinal(state) : finalStates[state];
+	}
+
 	private boolean isLetterOrDigit(char c) {
 		return ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || (c >= '０' && c <= '９'));
 	}
@@ -0,0 +1,214 @@
+package org.thunlp.matrix;
+
+import java.util.Arrays;
+
+/**
+ * An immutable weighted directed graph in compressed sparse row form. The
+ * out-edges of vertex v are the entries [offset(v), offset(v + 1)) of the
+ * parallel target/weight arrays, sorted by target. Memory is linear in the
+ * number of edges, where an adjacency NormalMatrix takes the square of the
+ * number of vertices, so word graphs of long documents stay small.
+ *
+ * Graphs are made with a Builder, and ranked with
+ * org.thunlp.matrix.pagerank.PageRankSolver.
+ */
+public class CsrGraph {
+	private final int numVertices;
+	private final int[] offsets;
+	private final int[] targets;
+	private final double[] weights;
+
+	private CsrGraph(int numVertices, int[] offsets, int[] targets,
+			double[] weights) {
+		this.numVertices = numVertices;
+		this.offsets = offsets;
+		this.targets = targets;
+		this.weights = weights;
+	}
+
+	public int numVertices() {
+		return numVertices;
+	}
+
+	public int numEdges() {
+		return targets.length;
+	}
+
+	/**
+	 * The first out-edge of vertex v. offset(numVertices()) is numEdges().
+	 */
+	public int offset(int v) {
+		return offsets[v];
+	}
+
+	public int target(int edge) {
+		return targets[edge];
+	}
+
+	public double weight(int edge) {
+		return weights[edge];
+	}
+
+	/**
+	 * The weight of the edge from source to target, 0 if there is none.
+	 */
+	public double get(int source, int target) {
+		int e = Arrays.binarySearch(targets, offsets[source],
+				offsets[source + 1], target);
+		return e < 0 ? 0 : weights[e];
+	}
+
+	/**
+	 * Collects weighted edges in any order. Adding an edge that is already
+	 * there adds to its weight, in the order the edges were added, as repeated
+	 * MatrixInterface.add() calls do. Repeated edges are merged as they come,
+	 * through a hash table from (source, target) to the edge, so the builder
+	 * holds one entry per distinct edge.
+	 */
+	public static class Builder {
+		private int numVertices;
+		private int[] sources = new int[256];
+		private int[] targets = new int[256];
+		private double[] weights = new double[256];
+		private int n = 0;
+		// Edge index + 1 of each slot, 0 for an empty slot.
+		private int[] slots = new int[512];
+
+		public Builder(int numVertices) {
+			this.numVertices = numVertices;
+		}
+
+		public void addEdge(int source, int target, double weight) {
+			if (source < 0 || source >= numVertices || target < 0
+					|| target >= numVertices) {
+				throw new IndexOutOfBoundsException("edge " + source + " -> "
+						+ target + " in a graph of " + numVertices + " vertices");
+			}
+			int mask = slots.length - 1;
+			int slot = hash(source, target) & mask;
+			while (slots[slot] != 0) {
+				int edge = slots[slot] - 1;
+				if (sources[edge] == source && targets[edge] == target) {
+					weights[edge] += weight;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (n == sources.length) {
+				sources = Arrays.copyOf(sources, n * 2);
+				targets = Arrays.copyOf(targets, n * 2);
+				weights = Arrays.copyOf(weights, n * 2);
+			}
+			sources[n] = source;
+			targets[n] = target;
+			weights[n] = weight;
+			n++;
+			slots[slot] = n;
+			if (n * 2 > slots.length) {
+				rehash(slots.length * 2);
+			}
+		}
+
+		private static int hash(int source, int target) {
+			long h = (((long) source << 32) | (target & 0xffffffffL))
+					* 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+
+		private void rehash(int capacity) {
+			slots = new int[capacity];
+			int mask = capacity - 1;
+			for (int edge = 0; edge < n; edge++) {
+				int slot = hash(sources[edge], targets[edge]) & mask;
+				while (slots[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				slots[slot] = edge + 1;
+			}
+		}
+
+		/**
+		 * Link every two positions i < j of sequence[start..end] both ways.
+		 * The same vertex at two positions gets a self loop in each direction.
+		 */
+		public void addClique(int[] sequence, int start, int end, double weight) {
+			for (int i = start; i < end; i++) {
+				for (int j = i + 1; j <= end; j++) {
+					addEdge(sequence[i], sequence[j], weight);
+					addEdge(sequence[j], sequence[i], weight);
+				}
+			}
+		}
+
+		/**
+		 * The co-occurrence edges of the TextRank taggers: a clique over every
+		 * window of the given size, plus the windows growing from the first
+		 * position and shrinking to the last one. A sequence shorter than the
+		 * window gets all the windows that start at the first position or end
+		 * at the last one. Pairs are added once for each window they share.
+		 */
+		public void addSlidingWindows(int[] sequence, int window, double weight) {
+			int len = sequence.length;
+			if (len < window) {
+				for (int i = 1; i < len; i++) {
+					addClique(sequence, 0, i, weight);
+				}
+				for (int i = 1; i < len - 1; i++) {
+					addClique(sequence, i, len - 1, weight);
+				}
+			} else {
+				for (int i = 1; i < window - 1; i++) {
+					addClique(sequence, 0, i, weight);
+				}
+				for (int i = 0; i <= len - window; i++) {
+					addClique(sequence, i, i + window - 1, weight);
+				}
+				for (int i = len - window + 1; i < len - 1; i++) {
+					addClique(sequence, i, len - 1, weight);
+				}
+			}
+		}
+
+		public CsrGraph build() {
+			// Counting sort by source.
+			int[] offsets = new int[numVertices + 1];
+			for (int i = 0; i < n; i++) {
+				offsets[sources[i] + 1]++;
+			}
+			for (int v = 0; v < numVertices; v++) {
+				offsets[v + 1] += offsets[v];
+			}
+			int[] fill = Arrays.copyOf(offsets, numVertices);
+			int[] outTargets = new int[n];
+			double[] outWeights = new double[n];
+			for (int i = 0; i < n; i++) {
+				int e = fill[sources[i]]++;
+				outTargets[e] = targets[i];
+				outWeights[e] = weights[i];
+			}
+
+			// Sort each row by target. The edges are distinct, so the weight's
+			// position can ride in the low bits of the key.
+			long[] keys = new long[16];
+			double[] rowWeights = new double[16];
+			for (int v = 0; v < numVertices; v++) {
+				int start = offsets[v];
+				int len = offsets[v + 1] - start;
+				if (keys.length < len) {
+					keys = new long[len];
+					rowWeights = new double[len];
+				}
+				for (int i = 0; i < len; i++) {
+					keys[i] = ((long) outTargets[start + i] << 32) | i;
+					rowWeights[i] = outWeights[start + i];
+				}
+				Arrays.sort(keys, 0, len);
+				for (int i = 0; i < len; i++) {
+					outTargets[start + i] = (int) (keys[i] >>> 32);
+					outWeights[start + i] = rowWeights[(int) keys[i]];
+				}
+			}
+			return new CsrGraph(numVertices, offsets, outTargets, outWeights);
+		}
+	}
+}
@@ -0,0 +1,409 @@
+package org.thunlp.matrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A sparse matrix in compressed sparse row form. The non-zeros of row i are
+ * the entries [offset(i), offset(i + 1)) of the parallel column/value arrays,
+ * sorted by column. Unlike SparseMatrix there is no object per non-zero, get()
+ * is a binary search, and multiply() splits the rows of a large matrix over
+ * several threads.
+ *
+ * The non-zero pattern is fixed when the matrix is built by a Builder. set()
+ * and add() may change the value of an entry of the pattern, or set an entry
+ * outside it to 0, but anything else throws UnsupportedOperationException.
+ * inv() rebuilds the matrix as the rows of the transpose, that is, in
+ * compressed sparse column form of the original.
+ *
+ * A row whose non-zeros are all 0 may be filled with fillRow(): every entry of
+ * it then has the same value, without storing a non-zero per column. PageRank
+ * uses it for the uniform 1/n of a vertex without out-edges. After inv() a filled row is a
+ * filled column, and multiply() adds its share to every row.
+ */
+public class CsrMatrix implements MatrixInterface {
+	/**
+	 * multiply() runs on one thread below this many non-zeros.
+	 */
+	public static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	private static ExecutorService executor = null;
+
+	private int rows, cols;
+	private int[] offsets;
+	private int[] columns;
+	private double[] values;
+	// The value of every entry of a filled row or column, null if none is.
+	private double[] rowFill = null;
+	private double[] colFill = null;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	private CsrMatrix(int rows, int cols, int[] offsets, int[] columns,
+			double[] values) {
+		this.rows = rows;
+		this.cols = cols;
+		this.offsets = offsets;
+		this.columns = columns;
+		this.values = values;
+	}
+
+	@Override
+	public int getRowsCount() {
+		return rows;
+	}
+
+	@Override
+	public int getColsCount() {
+		return cols;
+	}
+
+	public int getNonZerosCount() {
+		return columns.length;
+	}
+
+	/**
+	 * The first entry of row. offset(getRowsCount()) is getNonZerosCount().
+	 */
+	public int offset(int row) {
+		return offsets[row];
+	}
+
+	public int column(int entry) {
+		return columns[entry];
+	}
+
+	public double value(int entry) {
+		return values[entry];
+	}
+
+	public void setValue(int entry, double value) {
+		values[entry] = value;
+	}
+
+	/**
+	 * Give every entry of a row of zeros the same value.
+	 */
+	public void fillRow(int row, double value) {
+		for (int k = offsets[row]; k < offsets[row + 1]; k++) {
+			if (values[k] != 0) {
+				throw new UnsupportedOperationException("row " + row
+						+ " has non-zeros");
+			}
+		}
+		if (rowFill == null) {
+			rowFill = new double[rows];
+		}
+		rowFill[row] = value;
+	}
+
+	/**
+	 * The value every entry of row has, 0 if it is not filled.
+	 */
+	public double rowFill(int row) {
+		return rowFill == null ? 0 : rowFill[row];
+	}
+
+	/**
+	 * The value every entry of col has, 0 if it is not filled.
+	 */
+	public double colFill(int col) {
+		return colFill == null ? 0 : colFill[col];
+	}
+
+	private double fill(int row, int col) {
+		return rowFill(row) + colFill(col);
+	}
+
+	/**
+	 * The number of threads multiply() uses for a large matrix, the number of
+	 * processors by default.
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	private int find(int row, int col) {
+		if (col < 0 || col >= cols) {
+			throw new IndexOutOfBoundsException("column " + col + " of " + cols);
+		}
+		return Arrays.binarySearch(columns, offsets[row], offsets[row + 1], col);
+	}
+
+	@Override
+	public double get(int row, int col) {
+		int entry = find(row, col);
+		return (entry < 0 ? 0 : values[entry]) + fill(row, col);
+	}
+
+	@Override
+	public void set(int row, int col, double value) {
+		int entry = find(row, col);
+		if (entry >= 0) {
+			values[entry] = value - fill(row, col);
+		} else if (value != fill(row, col)) {
+			throw new UnsupportedOperationException("(" + row + ", " + col
+					+ ") is not a non-zero of the matrix");
+		}
+	}
+
+	@Override
+	public void add(int row, int col, double value) {
+		int entry = find(row, col);
+		if (entry >= 0) {
+			values[entry] += value;
+		} else if (value != 0) {
+			throw new UnsupportedOperationException("(" + row + ", " + col
+					+ ") is not a non-zero of the matrix");
+		}
+	}
+
+	@Override
+	public void inv() {
+		int[] newOffsets = new int[cols + 1];
+		for (int i = 0; i < columns.length; i++) {
+			newOffsets[columns[i] + 1]++;
+		}
+		for (int j = 0; j < cols; j++) {
+			newOffsets[j + 1] += newOffsets[j];
+		}
+		// Rows are visited in order, so every new row is sorted.
+		int[] fill = Arrays.copyOf(newOffsets, cols);
+		int[] newColumns = new int[columns.length];
+		double[] newValues = new double[values.length];
+		for (int i = 0; i < rows; i++) {
+			for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+				int pos = fill[columns[k]]++;
+				newColumns[pos] = i;
+				newValues[pos] = values[k];
+			}
+		}
+		int tmp = rows;
+		rows = cols;
+		cols = tmp;
+		double[] fills = rowFill;
+		rowFill = colFill;
+		colFill = fills;
+		offsets = newOffsets;
+		columns = newColumns;
+		values = newValues;
+	}
+
+	/**
+	 * Each row is summed in column order on one thread, so the result does
+	 * not depend on the number of threads.
+	 */
+	@Override
+	public double[] multiply(double[] vector) {
+		final double[] result = new double[rows];
+		final double[] x = vector;
+		int numParts = Math.min(numThreads, rows);
+		if (columns.length < PARALLEL_THRESHOLD || numParts <= 1) {
+			multiplyRows(x, result, 0, rows);
+			addFills(x, result);
+			return result;
+		}
+		// Split the rows into parts of about the same number of non-zeros.
+		int[] bounds = new int[numParts + 1];
+		for (int p = 1; p < numParts; p++) {
+			long target = (long) columns.length * p / numParts;
+			int row = Arrays.binarySearch(offsets, 0, rows + 1, (int) target);
+			if (row < 0) {
+				row = -row - 1;
+			}
+			bounds[p] = Math.max(bounds[p - 1], Math.min(row, rows));
+		}
+		bounds[numParts] = rows;
+
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		ExecutorService executor = getExecutor();
+		for (int p = 1; p < numParts; p++) {
+			final int start = bounds[p];
+			final int end = bounds[p + 1];
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					multiplyRows(x, result, start, end);
+				}
+			}));
+		}
+		multiplyRows(x, result, bounds[0], bounds[1]);
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		addFills(x, result);
+		return result;
+	}
+
+	/**
+	 * Add the products of the filled rows and columns, which hold no
+	 * non-zeros.
+	 */
+	private void addFills(double[] vector, double[] result) {
+		if (rowFill != null) {
+			double sum = 0.0;
+			for (int j = 0; j < cols; j++) {
+				sum += vector[j];
+			}
+			for (int i = 0; i < rows; i++) {
+				result[i] += rowFill[i] * sum;
+			}
+		}
+		if (colFill != null) {
+			double share = 0.0;
+			for (int j = 0; j < cols; j++) {
+				share += colFill[j] * vector[j];
+			}
+			for (int i = 0; i < rows; i++) {
+				result[i] += share;
+			}
+		}
+	}
+
+	private void multiplyRows(double[] vector, double[] result, int start,
+			int end) {
+		for (int i = start; i < end; i++) {
+			double sum = 0.0;
+			for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+				sum += values[k] * vector[columns[k]];
+			}
+			result[i] = sum;
+		}
+	}
+
+	/**
+	 * The pool shared by all matrices. Its threads are daemons, so it never
+	 * keeps the program alive.
+	 */
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "CsrMatrix multiply");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(rows + "\t" + cols + "\n");
+		for (int i = 0; i != rows; i++) {
+			for (int k = offsets[i]; k < offsets[i + 1]; k++)
+				sb.append(i + "\t" + columns[k] + "\t" + values[k] + "\n");
+			if (rowFill(i) != 0)
+				sb.append(i + "\t*\t" + rowFill(i) + "\n");
+		}
+		for (int j = 0; j != cols; j++) {
+			if (colFill(j) != 0)
+				sb.append("*\t" + j + "\t" + colFill(j) + "\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Collects entries in any order. Entries added more than once are summed,
+	 * in the order they were added, when the matrix is built.
+	 */
+	public static class Builder {
+		private int rows, cols;
+		private int[] entryRows = new int[1024];
+		private int[] entryCols = new int[1024];
+		private double[] entryValues = new double[1024];
+		private int n = 0;
+
+		public Builder(int rows, int cols) {
+			this.rows = rows;
+			this.cols = cols;
+		}
+
+		public int getRowsCount() {
+			return rows;
+		}
+
+		public int getColsCount() {
+			return cols;
+		}
+
+		public void add(int row, int col, double value) {
+			if (row < 0 || row >= rows || col < 0 || col >= cols) {
+				throw new IndexOutOfBoundsException("(" + row + ", " + col
+						+ ") in a " + rows + " x " + cols + " matrix");
+			}
+			if (n == entryRows.length) {
+				entryRows = Arrays.copyOf(entryRows, n * 2);
+				entryCols = Arrays.copyOf(entryCols, n * 2);
+				entryValues = Arrays.copyOf(entryValues, n * 2);
+			}
+			entryRows[n] = row;
+			entryCols[n] = col;
+			entryValues[n] = value;
+			n++;
+		}
+
+		public CsrMatrix build() {
+			// Counting sort by row, keeping the insertion order.
+			int[] offsets = new int[rows + 1];
+			for (int i = 0; i < n; i++) {
+				offsets[entryRows[i] + 1]++;
+			}
+			for (int r = 0; r < rows; r++) {
+				offsets[r + 1] += offsets[r];
+			}
+			int[] fill = Arrays.copyOf(offsets, rows);
+			int[] order = new int[n];
+			for (int i = 0; i < n; i++) {
+				order[fill[entryRows[i]]++] = i;
+			}
+
+			// Sort each row by column and merge the duplicates. The position
+			// within the row goes into the low bits, so the sort is stable.
+			int[] columns = new int[n];
+			double[] values = new double[n];
+			int[] outOffsets = new int[rows + 1];
+			long[] keys = new long[16];
+			int out = 0;
+			for (int r = 0; r < rows; r++) {
+				int start = offsets[r];
+				int len = offsets[r + 1] - start;
+				if (keys.length < len)
+					keys = new long[len];
+				for (int i = 0; i < len; i++) {
+					keys[i] = ((long) entryCols[order[start + i]] << 32) | i;
+				}
+				Arrays.sort(keys, 0, len);
+				int last = -1;
+				for (int i = 0; i < len; i++) {
+					int entry = order[start + (int) keys[i]];
+					int col = (int) (keys[i] >>> 32);
+					if (col == last) {
+						values[out - 1] += entryValues[entry];
+					} else {
+						columns[out] = col;
+						values[out] = entryValues[entry];
+						out++;
+						last = col;
+					}
+				}
+				outOffsets[r + 1] = out;
+			}
+			return new CsrMatrix(rows, cols, outOffsets,
+					Arrays.copyOf(columns, out), Arrays.copyOf(values, out));
+		}
+	}
+}
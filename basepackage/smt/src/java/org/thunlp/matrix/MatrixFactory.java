@@ -5,6 +5,13 @@ public class MatrixFactory {
 
 	public final static String SPARSE_MATRIX = "sparse";
 
+	public final static String CSR_MATRIX = "csr";
+
+	/**
+	 * getMatrix(builder) keeps matrices of more cells than this in a CsrMatrix.
+	 */
+	public final static long DENSE_CELLS_LIMIT = 1 << 20;
+
 	public static MatrixInterface getMatrix(int rows, int cols, String matrixName) {
 		if (matrixName.equals(NORMAL_MATRIX))
 			return new NormalMatrix(rows, cols);
@@ -13,4 +20,35 @@ public class MatrixFactory {
 		else
 			return null;
 	}
+
+	/**
+	 * The matrix of the entries collected by builder: a NormalMatrix if it has
+	 * at most DENSE_CELLS_LIMIT cells, a CsrMatrix otherwise. PageRank and
+	 * DiffusionRank rank both the same way.
+	 */
+	public static MatrixInterface getMatrix(CsrMatrix.Builder builder) {
+		long cells = (long) builder.getRowsCount() * builder.getColsCount();
+		return getMatrix(builder, cells > DENSE_CELLS_LIMIT ? CSR_MATRIX
+				: NORMAL_MATRIX);
+	}
+
+	/**
+	 * The matrix of the entries collected by builder, in the representation
+	 * named by matrixName, or null for an unknown name.
+	 */
+	public static MatrixInterface getMatrix(CsrMatrix.Builder builder,
+			String matrixName) {
+		CsrMatrix csr = builder.build();
+		if (matrixName.equals(CSR_MATRIX))
+			return csr;
+		MatrixInterface matrix = getMatrix(csr.getRowsCount(),
+				csr.getColsCount(), matrixName);
+		if (matrix == null)
+			return null;
+		for (int i = 0; i != csr.getRowsCount(); i++) {
+			for (int k = csr.offset(i); k != csr.offset(i + 1); k++)
+				matrix.set(i, csr.column(k), csr.value(k));
+		}
+		return matrix;
+	}
 }
@@ -0,0 +1,188 @@
+package org.thunlp.matrix.pagerank;
+
+import java.util.Arrays;
+
+import org.thunlp.matrix.CsrGraph;
+
+/**
+ * PageRank and DiffusionRank over a CsrGraph. The iteration is the one of
+ * PageRank.pageRank() and DiffusionRank.diffusionRank() on a matrix prepared
+ * by prepareMatrix(): each vertex spreads its rank over its out-edges in
+ * proportion to their weights, and a vertex without out-edges spreads it
+ * evenly over all vertices. Each iteration costs O(edges) instead of
+ * O(vertices^2), and adds the terms in the same order as the dense product.
+ *
+ * The iteration stops after maxIteration steps, or once a step changes the
+ * ranks by at most tolerance times their L1 norm. A tolerance of 0 always
+ * runs maxIteration steps, and then the ranks equal those of the dense code.
+ *
+ * The work arrays are kept between calls, so one solver can rank many graphs
+ * without allocating. Not thread safe.
+ */
+public class PageRankSolver {
+	public static final int DEFAULT_MAX_ITERATION = 100;
+
+	public static final double DEFAULT_TOLERANCE = 1e-6;
+
+	private int maxIteration;
+	private double d;
+	private double tolerance;
+
+	private double[] rank = new double[0];
+	private double[] next = new double[0];
+	private double[] shares = new double[0];
+	private boolean[] dangling = new boolean[0];
+	private int numIterations = 0;
+
+	public PageRankSolver() {
+		this(DEFAULT_MAX_ITERATION, PageRank.DEFAULT_D, DEFAULT_TOLERANCE);
+	}
+
+	/**
+	 * @param d
+	 *            pageRank=d*A*pageRank+(1-d)*impact
+	 */
+	public PageRankSolver(int maxIteration, double d, double tolerance) {
+		this.maxIteration = maxIteration;
+		this.d = d;
+		this.tolerance = tolerance;
+	}
+
+	public int getMaxIteration() {
+		return maxIteration;
+	}
+
+	public double getD() {
+		return d;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * The number of steps the last call ran.
+	 */
+	public int getNumIterations() {
+		return numIterations;
+	}
+
+	/**
+	 * PageRank from all ones, with an impact of 1.0 for every vertex.
+	 */
+	public double[] pageRank(CsrGraph graph) {
+		return pageRank(graph, null, null);
+	}
+
+	/**
+	 * @param init
+	 *            initial value, all ones if null
+	 * @param impact
+	 *            the prior of each vertex, all PageRank.DEFAULT_I if null
+	 * @return a new array with the ranks
+	 */
+	public double[] pageRank(CsrGraph graph, double[] init, double[] impact) {
+		return solve(graph, init, impact, 1.0);
+	}
+
+	public double[] diffusionRank(CsrGraph graph, double gamma) {
+		return diffusionRank(graph, gamma, null, null);
+	}
+
+	/**
+	 * DiffusionRank, which moves only gamma / maxIteration of the way towards
+	 * each PageRank step.
+	 */
+	public double[] diffusionRank(CsrGraph graph, double gamma, double[] init,
+			double[] impact) {
+		return solve(graph, init, impact, gamma / maxIteration);
+	}
+
+	private double[] solve(CsrGraph graph, double[] init, double[] impact,
+			double step) {
+		int n = graph.numVertices();
+		prepare(graph);
+		if (init == null) {
+			Arrays.fill(rank, 0, n, 1.0);
+		} else {
+			System.arraycopy(init, 0, rank, 0, n);
+		}
+		numIterations = 0;
+		while (numIterations < maxIteration) {
+			numIterations++;
+			multiply(graph, rank, next);
+			double change = 0.0;
+			double norm = 0.0;
+			for (int i = 0; i != n; i++) {
+				double prior = impact == null ? PageRank.DEFAULT_I : impact[i];
+				double value = prior * (1.0 - d) + d * next[i];
+				if (step != 1.0) {
+					value = (1 - step) * rank[i] + step * value;
+				}
+				change += Math.abs(value - rank[i]);
+				norm += Math.abs(value);
+				next[i] = value;
+			}
+			double[] tmp = rank;
+			rank = next;
+			next = tmp;
+			if (change <= tolerance * norm) {
+				break;
+			}
+		}
+		return Arrays.copyOf(rank, n);
+	}
+
+	/**
+	 * Normalize the out-edge weights of every vertex.
+	 */
+	private void prepare(CsrGraph graph) {
+		int n = graph.numVertices();
+		if (rank.length < n) {
+			int size = Math.max(n, rank.length * 2);
+			rank = new double[size];
+			next = new double[size];
+			dangling = new boolean[size];
+		}
+		if (shares.length < graph.numEdges()) {
+			shares = new double[Math.max(graph.numEdges(), shares.length * 2)];
+		}
+		for (int v = 0; v != n; v++) {
+			int start = graph.offset(v);
+			int end = graph.offset(v + 1);
+			double sum = 0.0;
+			for (int e = start; e != end; e++) {
+				sum += graph.weight(e);
+			}
+			dangling[v] = sum == 0.0;
+			for (int e = start; e != end; e++) {
+				shares[e] = graph.weight(e) / sum;
+			}
+		}
+	}
+
+	/**
+	 * result = A * vector, with A the transposed, normalized adjacency matrix.
+	 * The sources are visited in increasing order, so every result[t] sums its
+	 * terms in the order the dense product does.
+	 */
+	private void multiply(CsrGraph graph, double[] vector, double[] result) {
+		int n = graph.numVertices();
+		Arrays.fill(result, 0, n, 0.0);
+		double uniform = 1.0 / n;
+		for (int s = 0; s != n; s++) {
+			double value = vector[s];
+			if (dangling[s]) {
+				double share = uniform * value;
+				for (int t = 0; t != n; t++) {
+					result[t] += share;
+				}
+				continue;
+			}
+			int end = graph.offset(s + 1);
+			for (int e = graph.offset(s); e != end; e++) {
+				result[graph.target(e)] += shares[e] * value;
+			}
+		}
+	}
+}
@@ -1,9 +1,23 @@
 package org.thunlp.misc;
 
+import java.util.Comparator;
+
 public class WeightString implements Comparable<WeightString> {
 	public String text = null;
 	public double weight = 0.0;
 
+	public static Comparator<WeightString> COMPARATOR = new Comparator<WeightString>() {
+		public int compare(WeightString o1, WeightString o2) {
+			return Double.compare(o1.weight, o2.weight);
+		}
+	};
+
+	public static Comparator<WeightString> REVERSE_COMPARATOR = new Comparator<WeightString>() {
+		public int compare(WeightString o1, WeightString o2) {
+			return Double.compare(o2.weight, o1.weight);
+		}
+	};
+
 	public WeightString() {
 		this.text = null;
 		this.weight = 0.0;
@@ -25,4 +39,20 @@ public class WeightString implements Comparable<WeightString> {
 	public String toString() {
 		return text + ":" + weight;
 	}
+
+	public String getText() {
+		return text;
+	}
+
+	public void setText(String text) {
+		this.text = text;
+	}
+
+	public double getWeight() {
+		return weight;
+	}
+
+	public void setWeight(double weight) {
+		this.weight = weight;
+	}
 }
@@ -0,0 +1,441 @@
+package org.thunlp.text;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+
+/**
+ * A read-only Lexicon for the suggest paths. Words are kept in parallel arrays
+ * indexed by id and found through an open-addressing table, so lookups take
+ * no lock and a lexicon of n words costs a few arrays instead of 2n hashtable
+ * entries and n Word objects. getWord() builds the Word it returns; hot loops
+ * can use getId() and the per-id getters instead.
+ *
+ * A frozen lexicon is made from a Lexicon with freeze(), or read with
+ * loadFromFile(), which takes both the text format of Lexicon.saveToFile()
+ * and the binary format of save(). The remove*() methods return frozen
+ * lexicons and renumber the kept words in the order of their old ids.
+ * addDocument() and mergeFrom() are not supported.
+ */
+public class FrozenLexicon extends Lexicon {
+	private static final long serialVersionUID = 1L;
+
+	private static int MAGIC = 0x4c455831;
+	private static int VERSION = 1;
+
+	// Indexed by id, a null name is an unused id.
+	private String[] names = new String[0];
+	private int[] tfs = new int[0];
+	private int[] dfs = new int[0];
+	private int size = 0;
+	// id + 1 of the word in each slot, 0 for an empty slot.
+	private int[] table = new int[1];
+
+	public FrozenLexicon() {
+		super(0);
+	}
+
+	public FrozenLexicon(File f) {
+		this();
+		loadFromFile(f);
+	}
+
+	public FrozenLexicon(Lexicon lex) {
+		this();
+		if (lex instanceof FrozenLexicon) {
+			// The arrays are never changed once built, so they can be shared.
+			FrozenLexicon other = (FrozenLexicon) lex;
+			names = other.names;
+			tfs = other.tfs;
+			dfs = other.dfs;
+			size = other.size;
+			table = other.table;
+		} else {
+			for (Word w : lex.nameHash.values()) {
+				put(w.id, w.name, w.tf, w.df);
+			}
+			index();
+		}
+		numDocs = lex.numDocs;
+	}
+
+	private void init(int numIds) {
+		names = new String[numIds];
+		tfs = new int[numIds];
+		dfs = new int[numIds];
+		size = 0;
+	}
+
+	private void put(int id, String name, int tf, int df) {
+		if (id >= names.length) {
+			resize(Math.max(id + 1, names.length * 2));
+		}
+		if (names[id] == null) {
+			size++;
+		}
+		names[id] = name;
+		tfs[id] = tf;
+		dfs[id] = df;
+	}
+
+	private void resize(int numIds) {
+		String[] newNames = new String[numIds];
+		int[] newTfs = new int[numIds];
+		int[] newDfs = new int[numIds];
+		int n = Math.min(numIds, names.length);
+		System.arraycopy(names, 0, newNames, 0, n);
+		System.arraycopy(tfs, 0, newTfs, 0, n);
+		System.arraycopy(dfs, 0, newDfs, 0, n);
+		names = newNames;
+		tfs = newTfs;
+		dfs = newDfs;
+	}
+
+	/**
+	 * Trim the arrays to the largest id and build the lookup table.
+	 */
+	private void index() {
+		int numIds = names.length;
+		while (numIds > 0 && names[numIds - 1] == null) {
+			numIds--;
+		}
+		if (numIds < names.length) {
+			resize(numIds);
+		}
+		int capacity = 1;
+		while (capacity < size * 2) {
+			capacity <<= 1;
+		}
+		table = new int[capacity];
+		int mask = capacity - 1;
+		for (int id = 0; id < names.length; id++) {
+			if (names[id] == null) {
+				continue;
+			}
+			int slot = hash(names[id]) & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id + 1;
+		}
+	}
+
+	private static int hash(String name) {
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	@Override
+	public FrozenLexicon freeze() {
+		return this;
+	}
+
+	/**
+	 * @return the id of name, or -1 if it is not in the lexicon.
+	 */
+	public int getId(String name) {
+		int mask = table.length - 1;
+		int slot = hash(name) & mask;
+		while (true) {
+			int entry = table[slot];
+			if (entry == 0) {
+				return -1;
+			}
+			if (names[entry - 1].equals(name)) {
+				return entry - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public String getName(int id) {
+		return id >= 0 && id < names.length ? names[id] : null;
+	}
+
+	public int getFrequency(int id) {
+		return tfs[id];
+	}
+
+	public int getDocumentFrequency(int id) {
+		return dfs[id];
+	}
+
+	@Override
+	public Word getWord(int id) {
+		if (id < 0 || id >= names.length || names[id] == null) {
+			return null;
+		}
+		return makeWord(id);
+	}
+
+	@Override
+	public Word getWord(String name) {
+		int id = getId(name);
+		return id < 0 ? null : makeWord(id);
+	}
+
+	private Word makeWord(int id) {
+		Word w = new Word(id, names[id]);
+		w.tf = tfs[id];
+		w.df = dfs[id];
+		return w;
+	}
+
+	@Override
+	public void addDocument(String[] doc) {
+		throw new UnsupportedOperationException("frozen lexicon");
+	}
+
+	/**
+	 * Words not in the lexicon are dropped, as Lexicon does when locked.
+	 */
+	@Override
+	public Word[] convertDocument(String[] doc) {
+		List<Word> terms = new ArrayList<Word>(doc.length);
+		for (String token : doc) {
+			Word w = getWord(token);
+			if (w != null) {
+				terms.add(w);
+			}
+		}
+		return terms.toArray(new Word[terms.size()]);
+	}
+
+	@Override
+	public void mergeFrom(Lexicon another) {
+		throw new UnsupportedOperationException("frozen lexicon");
+	}
+
+	@Override
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public boolean getLock() {
+		return true;
+	}
+
+	/**
+	 * Save in the text format of Lexicon, in id order.
+	 */
+	@Override
+	public boolean saveToFile(File f) {
+		try {
+			Writer out = new OutputStreamWriter(new BufferedOutputStream(
+					new FileOutputStream(f)), "UTF-8");
+			out.write(numDocs + "\n");
+			for (int id = 0; id < names.length; id++) {
+				if (names[id] != null) {
+					out.write(makeWord(id).toString());
+					out.write('\n');
+				}
+			}
+			out.close();
+		} catch (IOException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Save in the binary format, which loads without any text parsing.
+	 */
+	public void save(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(f), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(numDocs);
+		out.writeInt(names.length);
+		out.writeInt(size);
+		for (int id = 0; id < names.length; id++) {
+			if (names[id] != null) {
+				out.writeInt(id);
+				out.writeUTF(names[id]);
+				out.writeInt(tfs[id]);
+				out.writeInt(dfs[id]);
+			}
+		}
+		out.close();
+	}
+
+	/**
+	 * Read a lexicon in the binary format of save() or the text format of
+	 * Lexicon.saveToFile().
+	 */
+	@Override
+	public boolean loadFromInputStream(InputStream input) {
+		try {
+			BufferedInputStream in = new BufferedInputStream(input, 1 << 16);
+			in.mark(4);
+			int magic = 0;
+			int n = 0;
+			int b;
+			while (n < 4 && (b = in.read()) >= 0) {
+				magic = (magic << 8) | b;
+				n++;
+			}
+			in.reset();
+			if (n == 4 && magic == MAGIC) {
+				loadBinary(new DataInputStream(in));
+			} else {
+				loadText(in);
+			}
+			in.close();
+		} catch (IOException e) {
+			return false;
+		} catch (RuntimeException e) {
+			return false;
+		}
+		index();
+		return true;
+	}
+
+	private void loadBinary(DataInputStream in) throws IOException {
+		in.readInt();
+		if (in.readInt() != VERSION) {
+			throw new IOException("unknown lexicon version");
+		}
+		numDocs = in.readLong();
+		init(in.readInt());
+		int n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			int id = in.readInt();
+			String name = in.readUTF();
+			int tf = in.readInt();
+			int df = in.readInt();
+			put(id, name, tf, df);
+		}
+	}
+
+	/**
+	 * Parse "id:name:tf:df" lines by their colons instead of with split(),
+	 * skipping malformed lines as Lexicon does.
+	 */
+	private void loadText(InputStream input) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				input, "UTF-8"));
+		numDocs = Integer.parseInt(reader.readLine());
+		init(0);
+		String line;
+		while ((line = reader.readLine()) != null) {
+			int c1 = line.indexOf(':');
+			int c2 = line.indexOf(':', c1 + 1);
+			int c3 = c2 < 0 ? -1 : line.indexOf(':', c2 + 1);
+			if (c1 <= 0 || c3 < 0 || c3 == line.length() - 1
+					|| line.indexOf(':', c3 + 1) >= 0) {
+				continue;
+			}
+			String name = line.substring(c1 + 1, c2);
+			if (name.indexOf(COLON_REPLACER) >= 0) {
+				name = name.replace(COLON_REPLACER, ":");
+			}
+			put(Integer.parseInt(line.substring(0, c1)), name, Integer
+					.parseInt(line.substring(c2 + 1, c3)), Integer.parseInt(line
+					.substring(c3 + 1)));
+		}
+	}
+
+	@Override
+	public Lexicon map(Map<Integer, Integer> translation) {
+		FrozenLexicon newlex = new FrozenLexicon();
+		for (Entry<Integer, Integer> e : translation.entrySet()) {
+			int id = e.getKey();
+			newlex.put(e.getValue(), names[id], tfs[id], dfs[id]);
+		}
+		newlex.numDocs = numDocs;
+		newlex.index();
+		return newlex;
+	}
+
+	/**
+	 * Keep the words where keep[id] is set, renumbered in id order.
+	 */
+	private FrozenLexicon select(boolean[] keep) {
+		FrozenLexicon newlex = new FrozenLexicon();
+		int n = 0;
+		for (int id = 0; id < names.length; id++) {
+			if (keep[id]) {
+				n++;
+			}
+		}
+		newlex.init(n);
+		int newId = 0;
+		for (int id = 0; id < names.length; id++) {
+			if (keep[id]) {
+				newlex.put(newId++, names[id], tfs[id], dfs[id]);
+			}
+		}
+		newlex.numDocs = numDocs;
+		newlex.index();
+		return newlex;
+	}
+
+	@Override
+	public Lexicon removeLowDfWords(int minDf) {
+		boolean[] keep = new boolean[names.length];
+		for (int id = 0; id < names.length; id++) {
+			keep[id] = names[id] != null && dfs[id] >= minDf;
+		}
+		return select(keep);
+	}
+
+	@Override
+	public Lexicon removeLowFreqWords(int minFreq) {
+		boolean[] keep = new boolean[names.length];
+		for (int id = 0; id < names.length; id++) {
+			keep[id] = names[id] != null && tfs[id] >= minFreq;
+		}
+		return select(keep);
+	}
+
+	@Override
+	public Lexicon removeStopwords(Set<String> stopwords) {
+		boolean[] keep = new boolean[names.length];
+		for (int id = 0; id < names.length; id++) {
+			keep[id] = names[id] != null && !stopwords.contains(names[id]);
+		}
+		return select(keep);
+	}
+
+	@Override
+	public Lexicon reorderWordsByFreq() {
+		Integer[] order = new Integer[size];
+		int n = 0;
+		for (int id = 0; id < names.length; id++) {
+			if (names[id] != null) {
+				order[n++] = id;
+			}
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				return tfs[o2] - tfs[o1];
+			}
+		});
+		FrozenLexicon newlex = new FrozenLexicon();
+		newlex.init(size);
+		for (int i = 0; i < order.length; i++) {
+			newlex.put(i, names[order[i]], tfs[order[i]], dfs[order[i]]);
+		}
+		newlex.numDocs = numDocs;
+		newlex.index();
+		return newlex;
+	}
+}
@@ -25,6 +25,7 @@ public class FuzzyHash {
 	private Pattern anchorPattern;
 	private Map<String, Integer> features;
 	private MessageDigest hasher;
+	private int numUsedFeatures = 0;
 
 	/**
 	 * 
@@ -84,6 +85,7 @@ public class FuzzyHash {
 		});
 
 		int nused = (int) (n * (1 - fuzziness));
+		numUsedFeatures = nused;
 
 		for (int i = 0; i < nused; i++) {
 			hasher.update(entries[i].getKey().toString().getBytes());
@@ -97,4 +99,12 @@ public class FuzzyHash {
 		return result;
 	}
 
+	/**
+	 * The number of features the last getHash() hashed. Texts with no
+	 * features all get the same hash.
+	 */
+	public int getNumUsedFeatures() {
+		return numUsedFeatures;
+	}
+
 }
@@ -52,6 +52,16 @@ public class Lexicon implements Serializable {
 		numDocs = 0;
 	}
 
+	/**
+	 * For subclasses that keep their words elsewhere.
+	 */
+	protected Lexicon(int capacity) {
+		idHash = new Hashtable<Integer, Word>(capacity);
+		nameHash = new Hashtable<String, Word>(capacity);
+		locked = false;
+		numDocs = 0;
+	}
+
 	public Lexicon(File f) {
 		idHash = new Hashtable<Integer, Word>(50000);
 		nameHash = new Hashtable<String, Word>(50000);
@@ -68,6 +78,13 @@ public class Lexicon implements Serializable {
 		return this.locked;
 	}
 
+	/**
+	 * @return a read-only copy of this lexicon for lookups, see FrozenLexicon.
+	 */
+	public FrozenLexicon freeze() {
+		return new FrozenLexicon(this);
+	}
+
 	public Word getWord(int id) {
 		return idHash.get(id);
 	}
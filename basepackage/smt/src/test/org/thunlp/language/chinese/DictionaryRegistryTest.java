@@ -0,0 +1,52 @@
+package org.thunlp.language.chinese;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.thunlp.io.TextFileWriter;
+
+public class DictionaryRegistryTest extends TestCase {
+	File tmpWordlist;
+	File tmpAutomata;
+
+	public void setUp() throws IOException {
+		String[] words = { "我们", "是", "研究生", "研究", "数学", "的" };
+		tmpWordlist = File.createTempFile("tmp-", "wordlist");
+		tmpAutomata = File.createTempFile("tmp-", "automata");
+		TextFileWriter w = new TextFileWriter(tmpWordlist.getAbsolutePath(), "UTF-8");
+		for (String word : words) {
+			w.writeLine(word);
+		}
+		w.close();
+		ForwardMaxWordSegment.buildAutomata(tmpWordlist.getAbsolutePath(), tmpAutomata.getAbsolutePath());
+	}
+
+	public void tearDown() {
+		tmpWordlist.delete();
+		tmpAutomata.delete();
+		new File(tmpAutomata.getAbsolutePath() + DictionaryRegistry.COMPILED_SUFFIX).delete();
+	}
+
+	public void testShared() throws IOException {
+		String path = tmpAutomata.getAbsolutePath();
+		DoubleArrayTrie first = DictionaryRegistry.get(path);
+		DoubleArrayTrie second = DictionaryRegistry.get(path);
+		Assert.assertSame(first, second);
+	}
+
+	public void testSegmentersShareAndMapCompiled() throws IOException {
+		String path = tmpAutomata.getAbsolutePath();
+		String text = "我们是研究数学的研究生";
+		String[] expected = new ForwardMaxWordSegment(path).segment(text);
+
+		DoubleArrayTrie.load(new FileInputStream(path)).save(
+				new File(path + DictionaryRegistry.COMPILED_SUFFIX));
+		ForwardMaxWordSegment other = new ForwardMaxWordSegment(path);
+		Assert.assertEquals(Arrays.asList(expected), Arrays.asList(other.segment(text)));
+	}
+}
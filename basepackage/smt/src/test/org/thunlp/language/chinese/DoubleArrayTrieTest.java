@@ -0,0 +1,60 @@
+package org.thunlp.language.chinese;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class DoubleArrayTrieTest extends TestCase {
+	// The trie of "ab", "ac" and "b": 0 -a-> 1 -b-> 2, 1 -c-> 3, 0 -b-> 4.
+	private static boolean[] FINALS = { false, false, true, true, true };
+	private static int[] JUMP_START = { 0, 2, 4, 4, 4, 4 };
+	private static char[] KEYS = { 'b', 'a', 'c', 'b' };
+	private static int[] TARGETS = { 4, 1, 3, 2 };
+
+	public void testNext() {
+		DoubleArrayTrie trie = DoubleArrayTrie.build(FINALS, JUMP_START, KEYS,
+				TARGETS);
+		int a = trie.next(DoubleArrayTrie.ROOT, 'a');
+		Assert.assertTrue(a >= 0);
+		Assert.assertFalse(trie.isFinal(a));
+		int ab = trie.next(a, 'b');
+		Assert.assertTrue(ab >= 0);
+		Assert.assertTrue(trie.isFinal(ab));
+		Assert.assertTrue(trie.isFinal(trie.next(a, 'c')));
+		Assert.assertTrue(trie.isFinal(trie.next(DoubleArrayTrie.ROOT, 'b')));
+		Assert.assertEquals(-1, trie.next(a, 'a'));
+		Assert.assertEquals(-1, trie.next(ab, 'b'));
+		Assert.assertEquals(-1, trie.next(DoubleArrayTrie.ROOT, 'c'));
+		Assert.assertEquals(-1, trie.next(DoubleArrayTrie.ROOT, '\uffff'));
+	}
+
+	public void testRejectsSharedStates() {
+		int[] targets = { 4, 1, 3, 4 };
+		try {
+			DoubleArrayTrie.build(FINALS, JUMP_START, KEYS, targets);
+			Assert.fail("state 4 is reachable twice");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testSaveAndMap() throws IOException {
+		DoubleArrayTrie trie = DoubleArrayTrie.build(FINALS, JUMP_START, KEYS,
+				TARGETS);
+		File file = File.createTempFile("tmp-", "trie");
+		try {
+			trie.save(file);
+			DoubleArrayTrie mapped = DoubleArrayTrie.map(file);
+			Assert.assertEquals(trie.capacity(), mapped.capacity());
+			for (int node = 0; node < trie.capacity(); node++) {
+				Assert.assertEquals(trie.isFinal(node), mapped.isFinal(node));
+				for (char c = 'a'; c <= 'd'; c++) {
+					Assert.assertEquals(trie.next(node, c), mapped.next(node, c));
+				}
+			}
+		} finally {
+			file.delete();
+		}
+	}
+}
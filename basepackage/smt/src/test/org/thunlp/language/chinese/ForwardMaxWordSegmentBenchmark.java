@@ -0,0 +1,90 @@
+package org.thunlp.language.chinese;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.thunlp.io.TextFileReader;
+
+/**
+ * Compares the segmentation throughput of the two automaton backends of
+ * ForwardMaxWordSegment. Each backend segments the corpus for a number of
+ * warm-up rounds, then for the measured rounds; the best round is reported in
+ * MB/s of UTF-8 text. Without a corpus file, random text is generated.
+ *
+ * usage: ForwardMaxWordSegmentBenchmark [corpus.txt] [rounds]
+ */
+public class ForwardMaxWordSegmentBenchmark {
+	private static int WARMUP_ROUNDS = 5;
+
+	public static void main(String[] args) throws IOException {
+		List<String> corpus = args.length > 0 ? readCorpus(args[0])
+				: randomCorpus(20000, 200);
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		long bytes = 0;
+		for (String line : corpus) {
+			bytes += line.getBytes("UTF-8").length;
+		}
+		System.out.println("corpus: " + corpus.size() + " lines, " + bytes
+				+ " bytes");
+		for (String backend : new String[] { "hashtable", "doublearray" }) {
+			System.setProperty("wordsegment.automata.backend", backend);
+			long start = System.nanoTime();
+			ForwardMaxWordSegment ws = new ForwardMaxWordSegment();
+			long load = System.nanoTime() - start;
+			long words = 0;
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < WARMUP_ROUNDS + rounds; i++) {
+				start = System.nanoTime();
+				words = 0;
+				for (String line : corpus) {
+					words += ws.segment(line).length;
+				}
+				long elapsed = System.nanoTime() - start;
+				if (i >= WARMUP_ROUNDS && elapsed < best) {
+					best = elapsed;
+				}
+			}
+			System.out.printf("%-12s load %6.1f ms, %8.2f MB/s, %d words%n",
+					backend, load / 1e6, bytes / 1048576.0 / (best / 1e9), words);
+		}
+		System.clearProperty("wordsegment.automata.backend");
+	}
+
+	private static List<String> readCorpus(String file) throws IOException {
+		List<String> corpus = new ArrayList<String>();
+		TextFileReader reader = new TextFileReader(file, "UTF-8");
+		String line;
+		while ((line = reader.readLine()) != null) {
+			corpus.add(line);
+		}
+		reader.close();
+		return corpus;
+	}
+
+	/**
+	 * Lines of random characters from the CJK block, with some ASCII words and
+	 * punctuation mixed in.
+	 */
+	private static List<String> randomCorpus(int lines, int length) {
+		Random random = new Random(0);
+		List<String> corpus = new ArrayList<String>(lines);
+		for (int i = 0; i < lines; i++) {
+			StringBuilder line = new StringBuilder(length);
+			while (line.length() < length) {
+				int r = random.nextInt(20);
+				if (r == 0) {
+					line.append(" java2 ");
+				} else if (r == 1) {
+					line.append('，');
+				} else {
+					// Common characters are at the start of the block.
+					line.append((char) (0x4e00 + random.nextInt(3000)));
+				}
+			}
+			corpus.add(line.toString());
+		}
+		return corpus;
+	}
+}
@@ -2,6 +2,8 @@ package org.thunlp.language.chinese;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
@@ -62,4 +64,31 @@ public class ForwardMaxWordSegmentTest extends TestCase {
 			Assert.assertEquals(answer[i], result[i]);
 		}
 	}
+
+	public void testBackendsAgree() throws IOException {
+		String oldFile = System.getProperty("wordsegment.automata.file");
+		System.clearProperty("wordsegment.automata.file");
+		try {
+			System.setProperty("wordsegment.automata.backend", "hashtable");
+			ForwardMaxWordSegment hashtable = new ForwardMaxWordSegment();
+			System.setProperty("wordsegment.automata.backend", "doublearray");
+			ForwardMaxWordSegment doubleArray = new ForwardMaxWordSegment();
+
+			String alphabet = "我们是研究数学的生中国人民大学科技计算机软件 ab1９,!";
+			Random random = new Random(1);
+			for (int i = 0; i < 2000; i++) {
+				StringBuilder text = new StringBuilder();
+				int length = random.nextInt(40);
+				for (int j = 0; j < length; j++) {
+					text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+				}
+				Assert.assertEquals(Arrays.asList(hashtable.segment(text.toString())),
+						Arrays.asList(doubleArray.segment(text.toString())));
+			}
+		} finally {
+			System.clearProperty("wordsegment.automata.backend");
+			if (oldFile != null)
+				System.setProperty("wordsegment.automata.file", oldFile);
+		}
+	}
 }
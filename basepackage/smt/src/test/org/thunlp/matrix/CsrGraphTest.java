@@ -0,0 +1,100 @@
+package org.thunlp.matrix;
+
+import java.util.Random;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class CsrGraphTest extends TestCase {
+	public void testBuild() {
+		CsrGraph.Builder builder = new CsrGraph.Builder(4);
+		builder.addEdge(2, 3, 1.0);
+		builder.addEdge(0, 2, 0.5);
+		builder.addEdge(2, 0, 2.0);
+		builder.addEdge(0, 1, 1.0);
+		builder.addEdge(0, 2, 0.25);
+		CsrGraph graph = builder.build();
+
+		Assert.assertEquals(4, graph.numVertices());
+		Assert.assertEquals(4, graph.numEdges());
+		Assert.assertEquals(0, graph.offset(0));
+		Assert.assertEquals(2, graph.offset(1));
+		Assert.assertEquals(2, graph.offset(2));
+		Assert.assertEquals(4, graph.offset(3));
+		Assert.assertEquals(4, graph.offset(4));
+		Assert.assertEquals(1, graph.target(0));
+		Assert.assertEquals(2, graph.target(1));
+		Assert.assertEquals(0, graph.target(2));
+		Assert.assertEquals(3, graph.target(3));
+		Assert.assertEquals(0.75, graph.get(0, 2));
+		Assert.assertEquals(2.0, graph.get(2, 0));
+		Assert.assertEquals(0.0, graph.get(1, 0));
+		Assert.assertEquals(0.0, graph.get(3, 3));
+	}
+
+	public void testOutOfRange() {
+		CsrGraph.Builder builder = new CsrGraph.Builder(2);
+		try {
+			builder.addEdge(0, 2, 1.0);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+		}
+	}
+
+	public void testSlidingWindows() {
+		Random random = new Random(1);
+		int[] lengths = { 0, 1, 2, 5, 9, 10, 11, 40 };
+		for (int len : lengths) {
+			int[] sequence = new int[len];
+			for (int i = 0; i < len; i++) {
+				sequence[i] = random.nextInt(8);
+			}
+			CsrGraph.Builder builder = new CsrGraph.Builder(8);
+			builder.addSlidingWindows(sequence, 10, 0.5);
+			CsrGraph graph = builder.build();
+			NormalMatrix matrix = windowMatrix(sequence, 10, 0.5);
+			for (int s = 0; s < 8; s++) {
+				for (int t = 0; t < 8; t++) {
+					Assert.assertEquals(matrix.get(s, t), graph.get(s, t));
+				}
+			}
+		}
+	}
+
+	/**
+	 * The window loops of the TextRank taggers, on a dense matrix.
+	 */
+	private static NormalMatrix windowMatrix(int[] v, int window, double w) {
+		NormalMatrix matrix = new NormalMatrix(8, 8);
+		int len = v.length;
+		if (len < window) {
+			for (int i = 1; i < len; i++) {
+				addEdge(matrix, v, 0, i, w);
+			}
+			for (int i = 1; i < len - 1; i++) {
+				addEdge(matrix, v, i, len - 1, w);
+			}
+		} else {
+			for (int i = 1; i < window - 1; i++) {
+				addEdge(matrix, v, 0, i, w);
+			}
+			for (int i = 0; i <= len - window; i++) {
+				addEdge(matrix, v, i, i + window - 1, w);
+			}
+			for (int i = len - window + 1; i < len - 1; i++) {
+				addEdge(matrix, v, i, len - 1, w);
+			}
+		}
+		return matrix;
+	}
+
+	private static void addEdge(NormalMatrix matrix, int[] v, int start,
+			int end, double w) {
+		for (int i = start; i < end; i++) {
+			for (int j = i + 1; j <= end; j++) {
+				matrix.add(v[i], v[j], w);
+				matrix.add(v[j], v[i], w);
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package org.thunlp.matrix;
+
+import java.util.Random;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.thunlp.matrix.pagerank.DiffusionRank;
+import org.thunlp.matrix.pagerank.PageRank;
+
+public class CsrMatrixTest extends TestCase {
+	public void testBuild() {
+		CsrMatrix.Builder builder = new CsrMatrix.Builder(3, 4);
+		builder.add(2, 3, 1.0);
+		builder.add(0, 2, 0.5);
+		builder.add(0, 1, 1.0);
+		builder.add(0, 2, 0.25);
+		CsrMatrix matrix = builder.build();
+
+		Assert.assertEquals(3, matrix.getRowsCount());
+		Assert.assertEquals(4, matrix.getColsCount());
+		Assert.assertEquals(3, matrix.getNonZerosCount());
+		Assert.assertEquals(0, matrix.offset(0));
+		Assert.assertEquals(2, matrix.offset(1));
+		Assert.assertEquals(2, matrix.offset(2));
+		Assert.assertEquals(3, matrix.offset(3));
+		Assert.assertEquals(1, matrix.column(0));
+		Assert.assertEquals(2, matrix.column(1));
+		Assert.assertEquals(0.75, matrix.get(0, 2));
+		Assert.assertEquals(0.0, matrix.get(1, 2));
+	}
+
+	public void testSetAndAdd() {
+		CsrMatrix.Builder builder = new CsrMatrix.Builder(2, 2);
+		builder.add(0, 1, 1.0);
+		CsrMatrix matrix = builder.build();
+		matrix.set(0, 1, 3.0);
+		matrix.add(0, 1, 1.0);
+		matrix.set(1, 1, 0.0);
+		Assert.assertEquals(4.0, matrix.get(0, 1));
+		try {
+			matrix.add(1, 0, 1.0);
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+
+	public void testInvAndMultiply() {
+		Random random = new Random(1);
+		CsrMatrix.Builder builder = new CsrMatrix.Builder(20, 30);
+		SparseMatrix sparse = new SparseMatrix(20, 30);
+		NormalMatrix normal = new NormalMatrix(20, 30);
+		fill(random, 200, builder, sparse, normal);
+		CsrMatrix matrix = builder.build();
+		for (int i = 0; i < 20; i++) {
+			for (int j = 0; j < 30; j++) {
+				Assert.assertEquals(normal.get(i, j), matrix.get(i, j));
+			}
+		}
+
+		double[] vector = new double[30];
+		for (int j = 0; j < vector.length; j++) {
+			vector[j] = random.nextDouble();
+		}
+		double[] expected = sparse.multiply(vector);
+		double[] result = matrix.multiply(vector);
+		Assert.assertEquals(20, result.length);
+		for (int i = 0; i < 20; i++) {
+			Assert.assertEquals(expected[i], result[i], 1e-12);
+		}
+
+		matrix.inv();
+		Assert.assertEquals(30, matrix.getRowsCount());
+		Assert.assertEquals(20, matrix.getColsCount());
+		for (int i = 0; i < 20; i++) {
+			for (int j = 0; j < 30; j++) {
+				Assert.assertEquals(normal.get(i, j), matrix.get(j, i));
+			}
+		}
+	}
+
+	public void testParallelMultiply() {
+		Random random = new Random(2);
+		int n = 2000;
+		CsrMatrix.Builder builder = new CsrMatrix.Builder(n, n);
+		for (int i = 0; i < 4 * CsrMatrix.PARALLEL_THRESHOLD; i++) {
+			// Skewed rows, so that the parts differ in rows.
+			int row = (int) (n * Math.pow(random.nextDouble(), 3));
+			builder.add(row, random.nextInt(n), random.nextDouble());
+		}
+		CsrMatrix matrix = builder.build();
+		double[] vector = new double[n];
+		for (int j = 0; j < n; j++) {
+			vector[j] = random.nextDouble();
+		}
+		matrix.setNumThreads(1);
+		double[] expected = matrix.multiply(vector);
+		for (int threads = 2; threads <= 7; threads++) {
+			matrix.setNumThreads(threads);
+			double[] result = matrix.multiply(vector);
+			for (int i = 0; i < n; i++) {
+				Assert.assertEquals(expected[i], result[i], 0.0);
+			}
+		}
+	}
+
+	public void testPageRank() {
+		Random random = new Random(3);
+		CsrMatrix.Builder builder = new CsrMatrix.Builder(25, 25);
+		NormalMatrix normal = new NormalMatrix(25, 25);
+		fill(random, 100, builder, new SparseMatrix(25, 25), normal);
+		// Rows without out-edges get 1/n in both.
+		builder.add(3, 4, 0.0);
+		CsrMatrix matrix = builder.build();
+		for (int j = 0; j < 25; j++) {
+			matrix.set(0, j, 0.0);
+			matrix.set(3, j, 0.0);
+			normal.set(0, j, 0.0);
+			normal.set(3, j, 0.0);
+		}
+		PageRank.prepareMatrix(matrix);
+		PageRank.prepareMatrix(normal);
+		Assert.assertEquals(normal.get(4, 3), matrix.get(4, 3), 1e-15);
+		double[] expected = PageRank.pageRank(normal, 50);
+		double[] result = PageRank.pageRank(matrix, 50);
+		for (int i = 0; i < expected.length; i++) {
+			Assert.assertEquals(expected[i], result[i], 1e-12);
+		}
+	}
+
+	public void testDiffusionRankWithEmptyRows() {
+		CsrMatrix.Builder builder = new CsrMatrix.Builder(4, 4);
+		NormalMatrix normal = new NormalMatrix(4, 4);
+		builder.add(0, 1, 1.0);
+		builder.add(1, 2, 2.0);
+		builder.add(1, 0, 1.0);
+		normal.set(0, 1, 1.0);
+		normal.set(1, 2, 2.0);
+		normal.set(1, 0, 1.0);
+		CsrMatrix matrix = builder.build();
+		DiffusionRank.prepareMatrix(matrix);
+		DiffusionRank.prepareMatrix(normal);
+		double[] expected = DiffusionRank.diffusionRank(normal, 1.0, 20);
+		double[] result = DiffusionRank.diffusionRank(matrix, 1.0, 20);
+		for (int i = 0; i < expected.length; i++) {
+			Assert.assertEquals(expected[i], result[i], 1e-12);
+		}
+	}
+
+	public void testFactory() {
+		CsrMatrix.Builder small = new CsrMatrix.Builder(10, 10);
+		small.add(1, 2, 3.0);
+		MatrixInterface matrix = MatrixFactory.getMatrix(small);
+		Assert.assertTrue(matrix instanceof NormalMatrix);
+		Assert.assertEquals(3.0, matrix.get(1, 2));
+
+		matrix = MatrixFactory.getMatrix(small, MatrixFactory.SPARSE_MATRIX);
+		Assert.assertTrue(matrix instanceof SparseMatrix);
+		Assert.assertEquals(3.0, matrix.get(1, 2));
+
+		CsrMatrix.Builder large = new CsrMatrix.Builder(100000, 100000);
+		large.add(1, 2, 3.0);
+		matrix = MatrixFactory.getMatrix(large);
+		Assert.assertTrue(matrix instanceof CsrMatrix);
+		Assert.assertEquals(3.0, matrix.get(1, 2));
+	}
+
+	private static void fill(Random random, int n, CsrMatrix.Builder builder,
+			SparseMatrix sparse, NormalMatrix normal) {
+		for (int k = 0; k < n; k++) {
+			int i = random.nextInt(builder.getRowsCount());
+			int j = random.nextInt(builder.getColsCount());
+			double value = random.nextInt(3) + 1;
+			builder.add(i, j, value);
+			sparse.inc(i, j, value);
+			normal.add(i, j, value);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package org.thunlp.matrix.pagerank;
+
+import java.util.Random;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.thunlp.matrix.CsrGraph;
+import org.thunlp.matrix.NormalMatrix;
+
+public class PageRankSolverTest extends TestCase {
+	private static final int N = 30;
+
+	public void testSameAsPageRank() {
+		Random random = new Random(3);
+		PageRankSolver solver = new PageRankSolver(100, PageRank.DEFAULT_D, 0);
+		for (int round = 0; round < 5; round++) {
+			NormalMatrix matrix = new NormalMatrix(N, N);
+			CsrGraph graph = randomGraph(random, matrix);
+			double[] impact = new double[N];
+			for (int i = 0; i < N; i++) {
+				impact[i] = random.nextDouble();
+			}
+			double[] init = new double[N];
+			for (int i = 0; i < N; i++) {
+				init[i] = 1.0;
+			}
+			PageRank.prepareMatrix(matrix);
+			assertSame(PageRank.pageRank(matrix, 100), solver.pageRank(graph));
+			assertSame(PageRank.pageRank(matrix, 100, 0.85, init, impact),
+					solver.pageRank(graph, init, impact));
+			Assert.assertEquals(100, solver.getNumIterations());
+		}
+	}
+
+	public void testSameAsDiffusionRank() {
+		Random random = new Random(5);
+		PageRankSolver solver = new PageRankSolver(100, DiffusionRank.DEFAULT_D,
+				0);
+		NormalMatrix matrix = new NormalMatrix(N, N);
+		CsrGraph graph = randomGraph(random, matrix);
+		DiffusionRank.prepareMatrix(matrix);
+		assertSame(DiffusionRank.diffusionRank(matrix, 1.0, 100),
+				solver.diffusionRank(graph, 1.0));
+	}
+
+	public void testLinearInImpact() {
+		Random random = new Random(11);
+		NormalMatrix matrix = new NormalMatrix(N, N);
+		CsrGraph graph = randomGraph(random, matrix);
+		PageRankSolver solver = new PageRankSolver(100, PageRank.DEFAULT_D, 0);
+		double[] weights = { 0.1, 0.2, 0.3, 0.4 };
+		double[] init = new double[N];
+		double[] mixedInit = new double[N];
+		double[] mixedImpact = new double[N];
+		double[] expected = new double[N];
+		for (int i = 0; i < N; i++) {
+			init[i] = 1.0;
+			mixedInit[i] = 1.0;
+		}
+		for (int k = 0; k < weights.length; k++) {
+			double[] impact = new double[N];
+			for (int i = 0; i < N; i++) {
+				impact[i] = random.nextDouble() * 1e-3;
+				mixedImpact[i] += impact[i] * weights[k];
+			}
+			double[] rank = solver.pageRank(graph, init, impact);
+			for (int i = 0; i < N; i++) {
+				expected[i] += rank[i] * weights[k];
+			}
+		}
+		double[] result = solver.pageRank(graph, mixedInit, mixedImpact);
+		for (int i = 0; i < N; i++) {
+			Assert.assertEquals(expected[i], result[i], 1e-12 * expected[i]);
+		}
+	}
+
+	public void testSingleVertex() {
+		PageRankSolver solver = new PageRankSolver(100, PageRank.DEFAULT_D, 0);
+		NormalMatrix matrix = new NormalMatrix(1, 1);
+		PageRank.prepareMatrix(matrix);
+		assertSame(PageRank.pageRank(matrix, 100),
+				solver.pageRank(new CsrGraph.Builder(1).build()));
+		Assert.assertEquals(0,
+				solver.pageRank(new CsrGraph.Builder(0).build()).length);
+	}
+
+	public void testTolerance() {
+		Random random = new Random(7);
+		NormalMatrix matrix = new NormalMatrix(N, N);
+		CsrGraph graph = randomGraph(random, matrix);
+		PageRankSolver exact = new PageRankSolver(100, PageRank.DEFAULT_D, 0);
+		PageRankSolver solver = new PageRankSolver();
+		double[] expected = exact.pageRank(graph);
+		double[] result = solver.pageRank(graph);
+		Assert.assertTrue(solver.getNumIterations() < 100);
+		double error = 0;
+		double norm = 0;
+		for (int i = 0; i < N; i++) {
+			error += Math.abs(result[i] - expected[i]);
+			norm += expected[i];
+		}
+		Assert.assertTrue(error < 1e-5 * norm);
+	}
+
+	/**
+	 * A random graph with a few vertices without out-edges, into both a
+	 * CsrGraph and the given matrix.
+	 */
+	private static CsrGraph randomGraph(Random random, NormalMatrix matrix) {
+		CsrGraph.Builder builder = new CsrGraph.Builder(N);
+		for (int i = 0; i < 4 * N; i++) {
+			int s = random.nextInt(N - 3);
+			int t = random.nextInt(N);
+			double w = random.nextInt(3) + 1;
+			builder.addEdge(s, t, w);
+			matrix.add(s, t, w);
+		}
+		return builder.build();
+	}
+
+	private static void assertSame(double[] expected, double[] result) {
+		Assert.assertEquals(expected.length, result.length);
+		for (int i = 0; i < expected.length; i++) {
+			Assert.assertEquals(expected[i], result[i], 0.0);
+		}
+	}
+}
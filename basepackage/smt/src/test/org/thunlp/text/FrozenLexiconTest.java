@@ -0,0 +1,112 @@
+package org.thunlp.text;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.thunlp.text.Lexicon.Word;
+
+public class FrozenLexiconTest extends TestCase {
+	private Lexicon makeLexicon() {
+		Lexicon l = new Lexicon();
+		String[] doc1 = { "this", "is", "a", "good", "day" };
+		String[] doc2 = { "Bob", "is", "shit", "a:b" };
+		String[] doc3 = { "this", "is", "my", "day", "is", "a", "day" };
+		l.addDocument(doc1);
+		l.addDocument(doc2);
+		l.addDocument(doc3);
+		return l;
+	}
+
+	private void assertSameWords(Lexicon expected, Lexicon actual) {
+		Assert.assertEquals(expected.getSize(), actual.getSize());
+		Assert.assertEquals(expected.getNumDocs(), actual.getNumDocs());
+		for (int id = 0; id < expected.getSize(); id++) {
+			Word e = expected.getWord(id);
+			Word a = actual.getWord(e.getName());
+			Assert.assertEquals(e, a);
+			Assert.assertEquals(e.getFrequency(), a.getFrequency());
+			Assert.assertEquals(e.getDocumentFrequency(), a.getDocumentFrequency());
+			Assert.assertEquals(e, actual.getWord(id));
+		}
+	}
+
+	public void testFreeze() {
+		Lexicon l = makeLexicon();
+		FrozenLexicon f = l.freeze();
+		assertSameWords(l, f);
+		Assert.assertNull(f.getWord("unknown"));
+		Assert.assertNull(f.getWord(l.getSize()));
+		Assert.assertEquals(-1, f.getId("unknown"));
+		int id = f.getId("is");
+		Assert.assertEquals("is", f.getName(id));
+		Assert.assertEquals(4, f.getFrequency(id));
+		Assert.assertEquals(3, f.getDocumentFrequency(id));
+		Assert.assertSame(f, f.freeze());
+
+		Word[] terms = f.convertDocument(new String[] { "is", "unknown", "day" });
+		Assert.assertEquals(2, terms.length);
+		Assert.assertEquals("day", terms[1].getName());
+		try {
+			f.addDocument(new String[] { "is" });
+			Assert.fail("a frozen lexicon must not change");
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+
+	public void testLoadText() throws IOException {
+		File file = File.createTempFile("frozenlexicon", "txt");
+		Lexicon l = makeLexicon();
+		Assert.assertTrue(l.saveToFile(file));
+		FrozenLexicon f = new FrozenLexicon();
+		Assert.assertTrue(f.loadFromFile(file));
+		assertSameWords(l, f);
+		Assert.assertNotNull(f.getWord("a:b"));
+
+		// And back to the text format Lexicon reads.
+		Assert.assertTrue(f.saveToFile(file));
+		Lexicon l1 = new Lexicon(file);
+		assertSameWords(l, l1);
+		file.delete();
+	}
+
+	public void testSaveBinary() throws IOException {
+		File file = File.createTempFile("frozenlexicon", "bin");
+		Lexicon l = makeLexicon();
+		l.freeze().save(file);
+		FrozenLexicon f = new FrozenLexicon(file);
+		assertSameWords(l, f);
+		file.delete();
+	}
+
+	public void testRemoveWords() {
+		Lexicon l = makeLexicon();
+		FrozenLexicon f = l.freeze();
+		Lexicon lowDf = f.removeLowDfWords(2);
+		Assert.assertTrue(lowDf instanceof FrozenLexicon);
+		Set<String> kept = new HashSet<String>();
+		for (int id = 0; id < lowDf.getSize(); id++) {
+			kept.add(lowDf.getWord(id).getName());
+		}
+		Set<String> expected = new HashSet<String>();
+		Lexicon reference = l.removeLowDfWords(2);
+		for (int id = 0; id < reference.getSize(); id++) {
+			expected.add(reference.getWord(id).getName());
+		}
+		Assert.assertEquals(expected, kept);
+
+		Lexicon byFreq = f.reorderWordsByFreq();
+		Assert.assertEquals("is", byFreq.getWord(0).getName());
+		Assert.assertEquals(f.getSize(), byFreq.getSize());
+
+		Set<String> stopwords = new HashSet<String>();
+		stopwords.add("is");
+		Lexicon noStop = f.removeStopwords(stopwords);
+		Assert.assertEquals(f.getSize() - 1, noStop.getSize());
+		Assert.assertNull(noStop.getWord("is"));
+	}
+}
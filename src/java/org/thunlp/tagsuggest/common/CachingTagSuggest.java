@@ -0,0 +1,108 @@
+package org.thunlp.tagsuggest.common;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+import org.thunlp.misc.WeightString;
+
+/**
+ * Remembers the suggestions of another tagger by the text of the post (see
+ * SuggestionCache), so repeated and, with cache_fuzzy=true, nearly repeated
+ * posts skip segmentation and scoring. The wrapped tagger is either given to
+ * the constructor or named by cached_suggester, e.g.
+ *
+ *   suggester=common.CachingTagSuggest
+ *   config=cached_suggester=contentbase.SMTTagSuggest;cache_size=50000;...
+ *
+ * The cache is synchronized, so the decorator is as thread-safe as the tagger
+ * it wraps (see isThreadSafe()): a parallel evaluation or the serve command
+ * then loads one instance, and all its threads share the cache. Otherwise
+ * every thread gets its own copy, with its own cache.
+ *
+ * Only use it for taggers whose suggestions depend on the text of the post
+ * alone, not for KnnTagSuggest or ExpandRankKE, whose queries also read the
+ * doc_id and user_id fields. A call with an explain buffer bypasses the
+ * cache, and feedback() clears it.
+ */
+public class CachingTagSuggest implements TopKTagSuggest {
+  private TagSuggest suggester = null;
+  private Properties config = new Properties();
+  private SuggestionCache cache = null;
+
+  public CachingTagSuggest() {
+  }
+
+  public CachingTagSuggest(TagSuggest suggester) {
+    this.suggester = suggester;
+  }
+
+  public TagSuggest getSuggester() {
+    return suggester;
+  }
+
+  public SuggestionCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Whether suggest() may be called from many threads at once, that is,
+   * whether the wrapped tagger is a ThreadSafeTagSuggest.
+   */
+  public boolean isThreadSafe() {
+    return suggester instanceof ThreadSafeTagSuggest;
+  }
+
+  @Override
+  public void setConfig(Properties config) {
+    this.config = config;
+    if (suggester == null) {
+      String name = config.getProperty("cached_suggester");
+      if (name == null) {
+        throw new IllegalArgumentException("cached_suggester is not set");
+      }
+      if (!name.startsWith("org.thunlp.tagsuggest.")) {
+        name = "org.thunlp.tagsuggest." + name;
+      }
+      try {
+        suggester = (TagSuggest) Class.forName(name).newInstance();
+      } catch (Exception e) {
+        throw new IllegalArgumentException("cannot create " + name, e);
+      }
+    }
+    suggester.setConfig(config);
+  }
+
+  @Override
+  public void loadModel(String modelPath) throws IOException {
+    suggester.loadModel(modelPath);
+    cache = new SuggestionCache(config);
+  }
+
+  @Override
+  public List<WeightString> suggest(Post p, StringBuilder explain) {
+    return suggest(p, Integer.MAX_VALUE, explain);
+  }
+
+  @Override
+  public List<WeightString> suggest(Post p, int topK, StringBuilder explain) {
+    if (explain != null || cache == null) {
+      return TopTags.suggest(suggester, p, topK, explain);
+    }
+    String [] keys = cache.keys(p);
+    List<WeightString> tags = cache.get(keys, topK);
+    if (tags == null) {
+      tags = TopTags.suggest(suggester, p, topK, null);
+      cache.put(keys, tags, topK);
+    }
+    return tags;
+  }
+
+  @Override
+  public void feedback(Post p) {
+    suggester.feedback(p);
+    if (cache != null) {
+      cache.clear();
+    }
+  }
+}
@@ -0,0 +1,380 @@
+package org.thunlp.tagsuggest.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.thunlp.io.JsonUtil;
+import org.thunlp.io.RecordReader;
+
+/**
+ * Segmented posts of a dataset, so that the folds and algorithms of a run
+ * parse and segment every post once instead of once per pass.
+ *
+ * The cache is written next to the dataset, as the dataset name plus SUFFIX,
+ * the first time it is asked for. It holds for each post its id, user, fold
+ * (the extras field), the words WordFeatureExtractor.extract() gives before
+ * any lexicon filtering, and the tags with their counts. Strings are stored
+ * as varint symbol ids, and a symbol is spelled out only where it first
+ * occurs, so the file is written and read in a single pass.
+ *
+ * The words depend on the extractor settings, which are recorded in the
+ * header; a cache built with other settings, or older than the dataset, is
+ * rebuilt. Caching is enabled by "featurecache=true" in the config, and only
+ * applies to the DoubanPost and Post data types that are segmented by
+ * extract().
+ */
+public class FeatureCache {
+	private static Logger LOG = Logger.getAnonymousLogger();
+
+	public static String SUFFIX = ".features";
+	private static int MAGIC = 0x46434831;
+	private static int VERSION = 1;
+	private static int RECORD = 1;
+	private static int END = 0;
+	/**
+	 * A post read from the cache. It has no title and content, extract() of
+	 * a WordFeatureExtractor returns the cached words instead.
+	 */
+	public static class CachedPost extends DoubanPost {
+		private String[] features;
+
+		public CachedPost() {
+			// Keep the tags in the order they had when the cache was written.
+			setDoubanTags(new LinkedHashMap<String, Integer>());
+		}
+
+		public String[] getFeatures() {
+			return features;
+		}
+	}
+
+	/**
+	 * Posts of a dataset, read either from the cache or from the json records.
+	 */
+	public static interface PostReader<T extends Post> {
+		public boolean next() throws IOException;
+
+		public T post();
+
+		public int numRead();
+
+		public void close() throws IOException;
+	}
+
+	public static boolean isEnabled(Properties config) {
+		if (!config.getProperty("featurecache", "false").equals("true")) {
+			return false;
+		}
+		String dataType = config.getProperty("dataType", "Post");
+		if (!dataType.equals("Post") && !dataType.equals("DoubanPost")) {
+			return false;
+		}
+		return !config.getProperty("isSegmented", "false").equals("true");
+	}
+
+	/**
+	 * Open the posts of input as objects of type, from the cache if it is
+	 * enabled, building the cache if needed.
+	 */
+	public static <T extends Post> PostReader<T> open(String input,
+			Properties config, Class<T> type) throws IOException {
+		if (isEnabled(config) && type.isAssignableFrom(CachedPost.class)) {
+			File cache = build(input, config);
+			return new CacheReader<T>(cache);
+		}
+		return new JsonReader<T>(input, type);
+	}
+
+	/**
+	 * Make sure the cache of input is up to date.
+	 *
+	 * @return the cache file.
+	 */
+	public static synchronized File build(String input, Properties config)
+			throws IOException {
+		File cache = new File(input + SUFFIX);
+		String signature = signature(config);
+		if (isValid(cache, new File(input), signature)) {
+			return cache;
+		}
+		LOG.info("Building feature cache " + cache);
+		Class<? extends Post> type = config.getProperty("dataType", "Post")
+				.equals("DoubanPost") ? DoubanPost.class : Post.class;
+		WordFeatureExtractor extractor = new WordFeatureExtractor(config);
+		PostDecoder decoder = new PostDecoder("id", "userId", "title",
+				"summary", "content", "tags", "doubanTags", "extras");
+		Post post = type == DoubanPost.class ? new DoubanPost() : new Post();
+		RecordReader reader = new RecordReader(input);
+		File tmp = new File(cache.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(signature);
+		Symbols users = new Symbols();
+		Symbols folds = new Symbols();
+		Symbols words = new Symbols();
+		Symbols tags = new Symbols();
+		while (reader.next()) {
+			Post p = decoder.decode(reader.value(), post);
+			String[] features = extractor.extract(p);
+			out.writeByte(RECORD);
+			out.writeUTF(p.getId() == null ? "" : p.getId());
+			users.write(out, p.getUserId());
+			folds.write(out, p.getExtras());
+			writeVarint(out, features.length);
+			for (String word : features) {
+				words.write(out, word);
+			}
+			if (p instanceof DoubanPost) {
+				Map<String, Integer> counts = ((DoubanPost) p).getDoubanTags();
+				writeVarint(out, counts.size());
+				for (Entry<String, Integer> e : counts.entrySet()) {
+					tags.write(out, e.getKey());
+					writeVarint(out, e.getValue());
+				}
+			} else {
+				Set<String> postTags = p.getTags();
+				writeVarint(out, postTags == null ? 0 : postTags.size());
+				if (postTags != null) {
+					for (String tag : postTags) {
+						tags.write(out, tag);
+						writeVarint(out, 1);
+					}
+				}
+			}
+			if (reader.numRead() % 5000 == 0)
+				LOG.info("feature cache: " + reader.numRead());
+		}
+		reader.close();
+		out.writeByte(END);
+		out.close();
+		if (cache.exists() && !cache.delete()) {
+			throw new IOException("cannot replace " + cache);
+		}
+		if (!tmp.renameTo(cache)) {
+			throw new IOException("cannot rename " + tmp + " to " + cache);
+		}
+		LOG.info("done. " + reader.numRead() + " posts, " + words.size()
+				+ " words, " + tags.size() + " tags.");
+		return cache;
+	}
+
+	private static boolean isValid(File cache, File input, String signature)
+			throws IOException {
+		if (!cache.exists() || cache.lastModified() < input.lastModified()) {
+			return false;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(cache));
+		try {
+			return in.readInt() == MAGIC && in.readInt() == VERSION
+					&& in.readUTF().equals(signature);
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String signature(Properties config) {
+		StringBuilder sb = new StringBuilder();
+		for (String key : WordFeatureExtractor.SEGMENTATION_KEYS) {
+			sb.append(key).append('=').append(config.getProperty(key, ""))
+					.append(';');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * String to id mapping of one kind of symbol. An id is written as id + 1,
+	 * a new symbol as 0 followed by its text.
+	 */
+	private static class Symbols {
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		List<String> texts = new ArrayList<String>();
+
+		void write(DataOutputStream out, String text) throws IOException {
+			if (text == null) {
+				text = "";
+			}
+			Integer id = ids.get(text);
+			if (id == null) {
+				ids.put(text, texts.size());
+				texts.add(text);
+				writeVarint(out, 0);
+				out.writeUTF(text);
+			} else {
+				writeVarint(out, id + 1);
+			}
+		}
+
+		String read(DataInputStream in) throws IOException {
+			int v = readVarint(in);
+			if (v == 0) {
+				String text = in.readUTF();
+				texts.add(text);
+				return text;
+			}
+			if (v > texts.size()) {
+				throw new IOException("bad symbol id " + (v - 1));
+			}
+			return texts.get(v - 1);
+		}
+
+		int size() {
+			return texts.size();
+		}
+	}
+
+	private static void writeVarint(DataOutputStream out, int v)
+			throws IOException {
+		while ((v & ~0x7f) != 0) {
+			out.writeByte((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	private static int readVarint(DataInputStream in) throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("malformed varint");
+	}
+
+	private static class CacheReader<T extends Post> implements PostReader<T> {
+		DataInputStream in;
+		Symbols users = new Symbols();
+		Symbols folds = new Symbols();
+		Symbols words = new Symbols();
+		Symbols tags = new Symbols();
+		CachedPost current = null;
+		int numRead = 0;
+
+		CacheReader(File cache) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(cache), 1 << 16));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				in.close();
+				throw new IOException(cache + " is not a feature cache");
+			}
+			in.readUTF();
+		}
+
+		public boolean next() throws IOException {
+			int marker = in.readUnsignedByte();
+			if (marker == END) {
+				current = null;
+				return false;
+			}
+			if (marker != RECORD) {
+				throw new IOException("corrupted feature cache");
+			}
+			CachedPost p = new CachedPost();
+			p.setId(in.readUTF());
+			p.setUserId(users.read(in));
+			p.setExtras(folds.read(in));
+			String[] features = new String[readVarint(in)];
+			for (int i = 0; i < features.length; i++) {
+				features[i] = words.read(in);
+			}
+			p.features = features;
+			int numTags = readVarint(in);
+			Set<String> postTags = new LinkedHashSet<String>();
+			for (int i = 0; i < numTags; i++) {
+				String tag = tags.read(in);
+				postTags.add(tag);
+				p.getDoubanTags().put(tag, readVarint(in));
+			}
+			p.setTags(postTags);
+			current = p;
+			numRead++;
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		public T post() {
+			return (T) current;
+		}
+
+		public int numRead() {
+			return numRead;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private static class JsonReader<T extends Post> implements PostReader<T> {
+		RecordReader reader;
+		Class<T> type;
+		JsonUtil J = new JsonUtil();
+		// Only for the post types it knows; a new post for every line, as the
+		// caller may keep them.
+		PostDecoder decoder = null;
+		T current = null;
+
+		JsonReader(String input, Class<T> type) throws IOException {
+			reader = new RecordReader(input);
+			this.type = type;
+			if (type == Post.class || type == KeywordPost.class
+					|| type == DoubanPost.class) {
+				decoder = new PostDecoder();
+			}
+		}
+
+		public boolean next() throws IOException {
+			if (!reader.next()) {
+				current = null;
+				return false;
+			}
+			if (decoder == null) {
+				current = J.fromJson(reader.value(), type);
+			} else {
+				try {
+					current = decoder.decode(reader.value(), type.newInstance());
+				} catch (InstantiationException e) {
+					throw new IOException(e.toString());
+				} catch (IllegalAccessException e) {
+					throw new IOException(e.toString());
+				}
+			}
+			return true;
+		}
+
+		public T post() {
+			return current;
+		}
+
+		public int numRead() {
+			return reader.numRead();
+		}
+
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+}
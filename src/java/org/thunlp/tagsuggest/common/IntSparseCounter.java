@@ -0,0 +1,326 @@
+package org.thunlp.tagsuggest.common;
+
+import java.util.Arrays;
+
+/**
+ * 2D counter over int ids, the primitive counterpart of SparseCounter.
+ *
+ * A cell (row, column) is keyed by the long (row << 32 | column) in an
+ * open-addressing table, so inc() and get() allocate nothing. Each row keeps
+ * the array of its non-zero columns and each column the array of its non-zero
+ * rows; a cell remembers its position in both, so a cell that drops to zero
+ * is removed from them in constant time. Ids should be small and dense, since
+ * the per-row and per-column arrays are indexed by them.
+ *
+ * Not thread safe.
+ */
+public class IntSparseCounter {
+  private static final long EMPTY = -1L;
+
+  // The cells.
+  private long[] keys;
+  private long[] values;
+  private int[] rowPos;     // Position of the column in the row's list.
+  private int[] columnPos;  // Position of the row in the column's list.
+  private int size = 0;
+  private int mask;
+
+  // Non-zero columns of each row, and non-zero rows of each column.
+  private int[][] rowMembers = new int[0][];
+  private int[] rowSizes = new int[0];
+  private long[] rowSums = new long[0];
+  private int[][] columnMembers = new int[0][];
+  private int[] columnSizes = new int[0];
+  private long[] columnSums = new long[0];
+  private int numRows = 0;
+  private int numColumns = 0;
+  private long total = 0;
+
+  public IntSparseCounter() {
+    allocate(16);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    Arrays.fill(keys, EMPTY);
+    values = new long[capacity];
+    rowPos = new int[capacity];
+    columnPos = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  private static long key(int row, int column) {
+    return ((long) row << 32) | (column & 0xffffffffL);
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private int find(long key) {
+    int slot = hash(key) & mask;
+    while (keys[slot] != EMPTY) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1 - slot;
+  }
+
+  public void inc(IntSparseCounter another) {
+    for (int slot = 0; slot < another.keys.length; slot++) {
+      long key = another.keys[slot];
+      if (key != EMPTY) {
+        inc((int) (key >>> 32), (int) key, another.values[slot]);
+      }
+    }
+  }
+
+  public void clear() {
+    allocate(16);
+    size = 0;
+    rowMembers = new int[0][];
+    rowSizes = new int[0];
+    rowSums = new long[0];
+    columnMembers = new int[0][];
+    columnSizes = new int[0];
+    columnSums = new long[0];
+    numRows = 0;
+    numColumns = 0;
+    total = 0;
+  }
+
+  public long total() {
+    return total;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public double sparsity() {
+    return (double) size / (double) numRows / (double) numColumns;
+  }
+
+  public long numNonZeroElements() {
+    return size;
+  }
+
+  public void inc(int row, int column, long delta) {
+    if (delta == 0) {
+      return;
+    }
+    ensureRow(row);
+    ensureColumn(column);
+    long key = key(row, column);
+    int slot = find(key);
+    if (slot >= 0) {
+      values[slot] += delta;
+      if (values[slot] == 0) {
+        remove(slot);
+      }
+    } else {
+      if ((size + 1) * 2 > keys.length) {
+        rehash(keys.length * 2);
+        slot = find(key);
+      }
+      slot = -1 - slot;
+      keys[slot] = key;
+      values[slot] = delta;
+      rowPos[slot] = addMember(rowMembers, rowSizes, row, column);
+      columnPos[slot] = addMember(columnMembers, columnSizes, column, row);
+      if (rowSizes[row] == 1) {
+        numRows++;
+      }
+      if (columnSizes[column] == 1) {
+        numColumns++;
+      }
+      size++;
+    }
+    rowSums[row] += delta;
+    columnSums[column] += delta;
+    total += delta;
+  }
+
+  public long get(int row, int column) {
+    if (row < 0 || column < 0) {
+      return 0;
+    }
+    int slot = find(key(row, column));
+    return slot < 0 ? 0 : values[slot];
+  }
+
+  public long rowSum(int row) {
+    return row >= 0 && row < rowSums.length ? rowSums[row] : 0;
+  }
+
+  public long columnSum(int column) {
+    return column >= 0 && column < columnSums.length ? columnSums[column] : 0;
+  }
+
+  /**
+   * Number of the non-zero columns of row.
+   */
+  public int numColumns(int row) {
+    return row >= 0 && row < rowSizes.length ? rowSizes[row] : 0;
+  }
+
+  /**
+   * The i-th non-zero column of row, for 0 <= i < numColumns(row). The order
+   * changes as cells are added and removed.
+   */
+  public int column(int row, int i) {
+    return rowMembers[row][i];
+  }
+
+  /**
+   * Number of the non-zero rows of column.
+   */
+  public int numRows(int column) {
+    return column >= 0 && column < columnSizes.length ?
+        columnSizes[column] : 0;
+  }
+
+  /**
+   * The i-th non-zero row of column, for 0 <= i < numRows(column).
+   */
+  public int row(int column, int i) {
+    return columnMembers[column][i];
+  }
+
+  /**
+   * Number of rows with a non-zero cell.
+   */
+  public int numRows() {
+    return numRows;
+  }
+
+  /**
+   * Number of columns with a non-zero cell.
+   */
+  public int numColumns() {
+    return numColumns;
+  }
+
+  /**
+   * Rows with a non-zero cell, in id order.
+   */
+  public int[] rows() {
+    return nonEmpty(rowSizes, numRows);
+  }
+
+  /**
+   * Columns with a non-zero cell, in id order.
+   */
+  public int[] columns() {
+    return nonEmpty(columnSizes, numColumns);
+  }
+
+  private static int[] nonEmpty(int[] sizes, int n) {
+    int[] ids = new int[n];
+    int k = 0;
+    for (int id = 0; id < sizes.length; id++) {
+      if (sizes[id] > 0) {
+        ids[k++] = id;
+      }
+    }
+    return ids;
+  }
+
+  private void ensureRow(int row) {
+    if (row >= rowSizes.length) {
+      int n = Math.max(row + 1, rowSizes.length * 2);
+      rowMembers = Arrays.copyOf(rowMembers, n);
+      rowSizes = Arrays.copyOf(rowSizes, n);
+      rowSums = Arrays.copyOf(rowSums, n);
+    }
+  }
+
+  private void ensureColumn(int column) {
+    if (column >= columnSizes.length) {
+      int n = Math.max(column + 1, columnSizes.length * 2);
+      columnMembers = Arrays.copyOf(columnMembers, n);
+      columnSizes = Arrays.copyOf(columnSizes, n);
+      columnSums = Arrays.copyOf(columnSums, n);
+    }
+  }
+
+  private static int addMember(int[][] members, int[] sizes, int id,
+      int member) {
+    int[] list = members[id];
+    if (list == null) {
+      list = members[id] = new int[4];
+    } else if (sizes[id] == list.length) {
+      list = members[id] = Arrays.copyOf(list, list.length * 2);
+    }
+    list[sizes[id]] = member;
+    return sizes[id]++;
+  }
+
+  /**
+   * Remove the cell at slot from the member lists and the table.
+   */
+  private void remove(int slot) {
+    int row = (int) (keys[slot] >>> 32);
+    int column = (int) keys[slot];
+
+    // Move the last column of the row into the removed position.
+    int pos = rowPos[slot];
+    int last = --rowSizes[row];
+    if (pos != last) {
+      int moved = rowMembers[row][last];
+      rowMembers[row][pos] = moved;
+      rowPos[find(key(row, moved))] = pos;
+    }
+    pos = columnPos[slot];
+    last = --columnSizes[column];
+    if (pos != last) {
+      int moved = columnMembers[column][last];
+      columnMembers[column][pos] = moved;
+      columnPos[find(key(moved, column))] = pos;
+    }
+    if (rowSizes[row] == 0) {
+      numRows--;
+    }
+    if (columnSizes[column] == 0) {
+      numColumns--;
+    }
+
+    // Backward shift deletion, so that lookups need no tombstones.
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (keys[next] != EMPTY) {
+      int home = hash(keys[next]) & mask;
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        rowPos[hole] = rowPos[next];
+        columnPos[hole] = columnPos[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[hole] = EMPTY;
+    values[hole] = 0;
+    size--;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    long[] oldValues = values;
+    int[] oldRowPos = rowPos;
+    int[] oldColumnPos = columnPos;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = -1 - find(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+        rowPos[slot] = oldRowPos[i];
+        columnPos[slot] = oldColumnPos[i];
+      }
+    }
+  }
+}
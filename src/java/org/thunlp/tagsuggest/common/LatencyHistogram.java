@@ -0,0 +1,115 @@
+package org.thunlp.tagsuggest.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of latencies in nanoseconds, in the log-linear buckets of an HDR
+ * histogram: values below 128 get a bucket each, and every higher power of
+ * two is cut into 64 buckets, so a percentile is off by at most 1/64 of its
+ * value. The buckets take about 30KB whatever the range of the values.
+ *
+ * Recording is lock-free and may race with reading, in which case a snapshot
+ * is off by the values recorded meanwhile.
+ */
+public class LatencyHistogram {
+  private static int SUB_BUCKET_BITS = 7;
+  private static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+  private static int NUM_BUCKETS =
+    SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS;
+
+  private AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private AtomicLong count = new AtomicLong();
+  private AtomicLong sum = new AtomicLong();
+  private AtomicLong max = new AtomicLong();
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(bucket(nanos));
+    count.incrementAndGet();
+    sum.addAndGet(nanos);
+    long current = max.get();
+    while (nanos > current && !max.compareAndSet(current, nanos)) {
+      current = max.get();
+    }
+  }
+
+  /**
+   * Record the time from start, a System.nanoTime(), until now.
+   */
+  public void recordSince(long start) {
+    record(System.nanoTime() - start);
+  }
+
+  private static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int sub = (int) (value >>> shift);
+    return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS
+        + (sub - HALF_SUB_BUCKETS);
+  }
+
+  /**
+   * The highest value that falls into a bucket.
+   */
+  private static long highestValue(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = (bucket - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+    long sub = (bucket - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0.0 : (double) sum.get() / n;
+  }
+
+  /**
+   * The value that percent percent of the recorded values are at most, for
+   * 0 < percent <= 100, or 0 if nothing was recorded.
+   */
+  public long getPercentile(double percent) {
+    long total = 0;
+    long [] snapshot = new long[NUM_BUCKETS];
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * total));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(highestValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+}
@@ -0,0 +1,251 @@
+package org.thunlp.tagsuggest.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide latency histograms and counters of the stages of suggesting
+ * and training, so that a slow run shows where its time goes. A stage looks
+ * its histogram up once
+ *
+ *   private static final LatencyHistogram SEARCH_LATENCY =
+ *     Metrics.histogram("suggest.KnnTagSuggest.search");
+ *
+ * and is timed by
+ *
+ *   long start = System.nanoTime();
+ *   ...
+ *   SEARCH_LATENCY.recordSince(start);
+ *
+ * Events are counted by Metrics.count(name, n). Names are dotted, the
+ * suggesters' stages under suggest.<class>, the trainers' under train.<class>.
+ *
+ * The Evaluator and CrossValidator reports end with report(), and
+ * registerMBean() shows the metrics in jconsole or any other JMX client as
+ * org.thunlp.tagsuggest:type=Metrics while the run goes on: for every
+ * histogram its count, mean, p50, p90, p99, p999 and max in milliseconds, and
+ * every counter.
+ */
+public class Metrics {
+  public static String MBEAN_NAME = "org.thunlp.tagsuggest:type=Metrics";
+  private static Logger LOG = Logger.getAnonymousLogger();
+  private static double [] PERCENTILES = {50, 90, 99, 99.9};
+  private static String [] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+  private static ConcurrentMap<String, LatencyHistogram> histograms =
+    new ConcurrentHashMap<String, LatencyHistogram>();
+  private static ConcurrentMap<String, AtomicLong> counters =
+    new ConcurrentHashMap<String, AtomicLong>();
+  private static boolean registered = false;
+
+  private Metrics() {
+  }
+
+  public static LatencyHistogram histogram(String name) {
+    LatencyHistogram histogram = histograms.get(name);
+    if (histogram == null) {
+      histograms.putIfAbsent(name, new LatencyHistogram());
+      histogram = histograms.get(name);
+    }
+    return histogram;
+  }
+
+  /**
+   * Record the time from start, a System.nanoTime(), until now.
+   */
+  public static void record(String name, long start) {
+    histogram(name).recordSince(start);
+  }
+
+  public static void count(String name, long delta) {
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      counters.putIfAbsent(name, new AtomicLong());
+      counter = counters.get(name);
+    }
+    counter.addAndGet(delta);
+  }
+
+  public static long getCount(String name) {
+    AtomicLong counter = counters.get(name);
+    return counter == null ? 0 : counter.get();
+  }
+
+  /**
+   * Empty the histograms, which stay registered since the stages hold them in
+   * static fields, and forget the counters.
+   */
+  public static void reset() {
+    for (LatencyHistogram h : histograms.values()) {
+      h.reset();
+    }
+    counters.clear();
+  }
+
+  /**
+   * A table of the histograms that recorded anything in milliseconds, then
+   * the counters, by name.
+   */
+  public static String report() {
+    StringBuilder sb = new StringBuilder();
+    Map<String, LatencyHistogram> sorted =
+      new TreeMap<String, LatencyHistogram>();
+    for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+      if (e.getValue().getCount() > 0) {
+        sorted.put(e.getKey(), e.getValue());
+      }
+    }
+    if (!sorted.isEmpty()) {
+      sb.append("stage count mean");
+      for (String p : PERCENTILE_NAMES) {
+        sb.append(' ').append(p);
+      }
+      sb.append(" max (ms)\n");
+    }
+    for (Map.Entry<String, LatencyHistogram> e : sorted.entrySet()) {
+      LatencyHistogram h = e.getValue();
+      sb.append(e.getKey());
+      sb.append(' ').append(h.getCount());
+      sb.append(' ').append(format(h.getMean()));
+      for (double p : PERCENTILES) {
+        sb.append(' ').append(format(h.getPercentile(p)));
+      }
+      sb.append(' ').append(format(h.getMax()));
+      sb.append('\n');
+    }
+    for (Map.Entry<String, AtomicLong> e :
+        new TreeMap<String, AtomicLong>(counters).entrySet()) {
+      sb.append(e.getKey()).append(' ').append(e.getValue().get()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  private static String format(double nanos) {
+    return String.format("%.3f", nanos / 1e6);
+  }
+
+  /**
+   * Show the metrics over JMX. Later calls do nothing.
+   */
+  public static synchronized void registerMBean() {
+    if (registered) {
+      return;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(new MetricsMBean(), new ObjectName(MBEAN_NAME));
+      registered = true;
+    } catch (Exception e) {
+      LOG.warning("Cannot register " + MBEAN_NAME + ": " + e);
+    }
+  }
+
+  /**
+   * The attributes are named <histogram>.<statistic> and <counter>, and may
+   * come and go as stages run for the first time or are reset.
+   */
+  private static class MetricsMBean implements DynamicMBean {
+    public Object getAttribute(String attribute)
+        throws AttributeNotFoundException {
+      AtomicLong counter = counters.get(attribute);
+      if (counter != null) {
+        return counter.get();
+      }
+      int dot = attribute.lastIndexOf('.');
+      LatencyHistogram h = dot < 0 ? null :
+        histograms.get(attribute.substring(0, dot));
+      if (h == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      String statistic = attribute.substring(dot + 1);
+      if (statistic.equals("count")) {
+        return h.getCount();
+      } else if (statistic.equals("mean")) {
+        return h.getMean() / 1e6;
+      } else if (statistic.equals("max")) {
+        return h.getMax() / 1e6;
+      }
+      for (int i = 0; i < PERCENTILE_NAMES.length; i++) {
+        if (statistic.equals(PERCENTILE_NAMES[i])) {
+          return h.getPercentile(PERCENTILES[i]) / 1e6;
+        }
+      }
+      throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes) {
+        try {
+          list.add(new Attribute(attribute, getAttribute(attribute)));
+        } catch (AttributeNotFoundException e) {
+          // Left out, as JMX expects.
+        }
+      }
+      return list;
+    }
+
+    public void setAttribute(Attribute attribute)
+        throws AttributeNotFoundException {
+      throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params,
+        String[] signature) {
+      if (actionName.equals("reset")) {
+        reset();
+        return null;
+      }
+      throw new UnsupportedOperationException(actionName);
+    }
+
+    public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+      for (String name : new TreeMap<String, LatencyHistogram>(histograms)
+          .keySet()) {
+        attributes.add(new MBeanAttributeInfo(name + ".count", "long",
+            "number of recorded latencies", true, false, false));
+        attributes.add(new MBeanAttributeInfo(name + ".mean", "double",
+            "mean latency in ms", true, false, false));
+        for (String p : PERCENTILE_NAMES) {
+          attributes.add(new MBeanAttributeInfo(name + "." + p, "double",
+              p + " latency in ms", true, false, false));
+        }
+        attributes.add(new MBeanAttributeInfo(name + ".max", "double",
+            "maximal latency in ms", true, false, false));
+      }
+      for (String name : new TreeMap<String, AtomicLong>(counters).keySet()) {
+        attributes.add(new MBeanAttributeInfo(name, "long", "counter",
+            true, false, false));
+      }
+      MBeanOperationInfo reset = new MBeanOperationInfo("reset",
+          "empty all histograms and forget the counters", null, "void",
+          MBeanOperationInfo.ACTION);
+      return new MBeanInfo(Metrics.class.getName(),
+          "Latencies and counters of suggesting and training",
+          attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+          null, new MBeanOperationInfo[] {reset}, null);
+    }
+  }
+}
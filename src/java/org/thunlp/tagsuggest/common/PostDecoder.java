@@ -0,0 +1,214 @@
+package org.thunlp.tagsuggest.common;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Reads the JSON of a Post, KeywordPost or DoubanPost into a given post with
+ * Jackson's streaming parser, in place of JsonUtil.fromJson(). Only the fields
+ * asked for are decoded; the parser skips the others, e.g. the content of
+ * posts when only the fold (extras) and tags are needed, without making
+ * Strings of them. A loop that is done with each post before reading the next
+ * can decode every line into the same post and keep its tag set:
+ *
+ *   PostDecoder decoder = new PostDecoder("title", "content", "tags");
+ *   Post p = new Post();
+ *   while (reader.next()) {
+ *     decoder.decode(reader.value(), p);
+ *     ...
+ *   }
+ *
+ * The fields asked for are reset to their defaults before each line, so
+ * fields missing from it do not keep the values of the previous line; the
+ * other fields of the post are left as they are. Fields are named as in the
+ * JSON: id, resourceKey, title, content, userId, tags, timestamp, extras,
+ * summary, date and source of a KeywordPost, and doubanTags of a DoubanPost.
+ *
+ * A decoder is not thread-safe.
+ */
+public class PostDecoder {
+  /**
+   * The fields of Post, KeywordPost and DoubanPost.
+   */
+  public static String [] ALL_FIELDS = {
+    "id", "resourceKey", "title", "content", "userId", "tags", "timestamp",
+    "extras", "summary", "date", "source", "doubanTags"
+  };
+  /**
+   * The fields the feature extractors and trainers read: the text, tags and
+   * fold of a post.
+   */
+  public static String [] TEXT_FIELDS = {
+    "title", "summary", "content", "tags", "extras"
+  };
+  private static List<String> FIELD_NAMES = Arrays.asList(ALL_FIELDS);
+  private static int ID = 0;
+  private static int RESOURCE_KEY = 1;
+  private static int TITLE = 2;
+  private static int CONTENT = 3;
+  private static int USER_ID = 4;
+  private static int TAGS = 5;
+  private static int TIMESTAMP = 6;
+  private static int EXTRAS = 7;
+  private static int SUMMARY = 8;
+  private static int DATE = 9;
+  private static int SOURCE = 10;
+  private static int DOUBAN_TAGS = 11;
+
+  private JsonFactory factory = new JsonFactory();
+  // The wanted fields by name, to their index in ALL_FIELDS.
+  private Map<String, Integer> wanted = new HashMap<String, Integer>();
+
+  /**
+   * A decoder of all the fields.
+   */
+  public PostDecoder() {
+    this(ALL_FIELDS);
+  }
+
+  public PostDecoder(String ... fields) {
+    for (String field : fields) {
+      int index = FIELD_NAMES.indexOf(field);
+      if (index < 0) {
+        throw new IllegalArgumentException("unknown post field " + field);
+      }
+      wanted.put(field, index);
+    }
+  }
+
+  /**
+   * Read the wanted fields of json into post.
+   *
+   * @return post
+   */
+  public <T extends Post> T decode(String json, T post) throws IOException {
+    reset(post);
+    JsonParser parser = factory.createJsonParser(json);
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException("a post is not a JSON object",
+            parser.getCurrentLocation());
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        Integer field = wanted.get(parser.getCurrentName());
+        JsonToken value = parser.nextToken();
+        if (field == null) {
+          parser.skipChildren();
+        } else {
+          readField(parser, value, field, post);
+        }
+      }
+    } finally {
+      parser.close();
+    }
+    return post;
+  }
+
+  private void reset(Post post) {
+    for (int field : wanted.values()) {
+      if (field == TAGS) {
+        if (post.getTags() == null) {
+          post.setTags(new HashSet<String>());
+        } else {
+          post.getTags().clear();
+        }
+      } else if (field == DOUBAN_TAGS) {
+        if (post instanceof DoubanPost) {
+          DoubanPost dp = (DoubanPost) post;
+          if (dp.getDoubanTags() == null) {
+            dp.setDoubanTags(new HashMap<String, Integer>());
+          } else {
+            dp.getDoubanTags().clear();
+          }
+        }
+      } else if (field == TIMESTAMP) {
+        post.setTimestamp(0L);
+      } else {
+        setString(post, field, "");
+      }
+    }
+  }
+
+  private void readField(JsonParser parser, JsonToken value, int field,
+      Post post) throws IOException {
+    if (field == TAGS) {
+      if (value == JsonToken.VALUE_NULL) {
+        return;
+      }
+      expect(parser, value, JsonToken.START_ARRAY);
+      Set<String> tags = post.getTags();
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        tags.add(parser.getText());
+      }
+    } else if (field == DOUBAN_TAGS) {
+      if (!(post instanceof DoubanPost) || value == JsonToken.VALUE_NULL) {
+        parser.skipChildren();
+        return;
+      }
+      expect(parser, value, JsonToken.START_OBJECT);
+      Map<String, Integer> tags = ((DoubanPost) post).getDoubanTags();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String tag = parser.getCurrentName();
+        parser.nextToken();
+        tags.put(tag, parser.getIntValue());
+      }
+    } else if (field == TIMESTAMP) {
+      if (value == JsonToken.VALUE_STRING) {
+        post.setTimestamp(Long.parseLong(parser.getText().trim()));
+      } else if (value != JsonToken.VALUE_NULL) {
+        post.setTimestamp(parser.getLongValue());
+      }
+    } else if (value == JsonToken.VALUE_NULL) {
+      setString(post, field, null);
+    } else if (value == JsonToken.START_ARRAY
+        || value == JsonToken.START_OBJECT) {
+      throw new JsonParseException(ALL_FIELDS[field] + " is not a string",
+          parser.getCurrentLocation());
+    } else {
+      setString(post, field, parser.getText());
+    }
+  }
+
+  private static void expect(JsonParser parser, JsonToken value,
+      JsonToken expected) throws JsonParseException {
+    if (value != expected) {
+      throw new JsonParseException("expected " + expected + ", got " + value,
+          parser.getCurrentLocation());
+    }
+  }
+
+  private static void setString(Post post, int field, String value) {
+    if (field == ID) {
+      post.setId(value);
+    } else if (field == RESOURCE_KEY) {
+      post.setResourceKey(value);
+    } else if (field == TITLE) {
+      post.setTitle(value);
+    } else if (field == CONTENT) {
+      post.setContent(value);
+    } else if (field == USER_ID) {
+      post.setUserId(value);
+    } else if (field == EXTRAS) {
+      post.setExtras(value);
+    } else if (post instanceof KeywordPost) {
+      KeywordPost kp = (KeywordPost) post;
+      if (field == SUMMARY) {
+        kp.setSummary(value);
+      } else if (field == DATE) {
+        kp.setDate(value);
+      } else if (field == SOURCE) {
+        kp.setSource(value);
+      }
+    }
+  }
+}
@@ -0,0 +1,359 @@
+package org.thunlp.tagsuggest.common;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.logging.Logger;
+
+import org.thunlp.text.FrozenLexicon;
+import org.thunlp.text.Lexicon;
+
+/**
+ * The data a word trigger (SMT) suggester needs at suggest time: the word and
+ * tag vocabularies, the idf of every word and the two translation tables.
+ *
+ * A model can be read from the text files GIZA++ and the trainers leave in the
+ * model directory (book.vcb, bookTag.vcb, *.t1.5, *.ti.final and wordlex), or
+ * from a single binary file produced by compile(). The binary file is memory
+ * mapped, so loading it costs only the vocabularies, and several JVMs serving
+ * the same model share one copy of the tables through the page cache. It is
+ * ignored when one of the text files is newer.
+ *
+ * Binary layout (big-endian): magic, version, vocabulary block length and a
+ * reserved int; the vocabulary block; padding to 8 bytes; the word-to-tag
+ * table; padding to 8 bytes; the inverse table. See TranslationTable.writeTo
+ * for the table layout.
+ */
+public class SMTModel {
+	private static Logger LOG = Logger.getAnonymousLogger();
+
+	public static String COMPILED_MODEL = "smt.model.bin";
+	private static int MAGIC = 0x534d5431; // "SMT1"
+	private static int VERSION = 1;
+	private static int HEADER_SIZE = 16;
+
+	private HashMap<String, Integer> wordIds = new HashMap<String, Integer>();
+	private double[] idf = new double[0];
+	private String[] tagNames = new String[0];
+	private TranslationTable proTable = new TranslationTable.Builder().build();
+	private TranslationTable inverseTable = new TranslationTable.Builder()
+			.build();
+
+	private SMTModel() {
+	}
+
+	/**
+	 * Load the compiled model in modelPath if there is one and no text file is
+	 * newer, otherwise parse the text files.
+	 */
+	public static SMTModel load(String modelPath) throws IOException {
+		File compiled = new File(modelPath, COMPILED_MODEL);
+		if (compiled.exists()) {
+			File newer = newerSource(new File(modelPath), compiled);
+			if (newer == null) {
+				LOG.info("Map compiled model " + compiled);
+				return loadCompiled(compiled);
+			}
+			LOG.info(newer + " is newer than " + compiled
+					+ ", parse the text files");
+		}
+		return loadText(modelPath);
+	}
+
+	/**
+	 * A text file of the model in dir that was changed after compiled was
+	 * written, or null if there is none.
+	 */
+	private static File newerSource(File dir, File compiled) {
+		Vector<File> sources = new Vector<File>();
+		sources.add(new File(dir, "book.vcb"));
+		sources.add(new File(dir, "bookTag.vcb"));
+		sources.add(new File(dir, "wordlex"));
+		for (String extent : new String[] { "t1.5", "ti.final" }) {
+			String[] names = dir.list(new Filter(extent));
+			if (names != null) {
+				for (String name : names) {
+					sources.add(new File(dir, name));
+				}
+			}
+		}
+		for (File source : sources) {
+			if (source.exists()
+					&& source.lastModified() > compiled.lastModified()) {
+				return source;
+			}
+		}
+		return null;
+	}
+
+	public static SMTModel loadText(String modelPath) throws IOException {
+		SMTModel model = new SMTModel();
+
+		// Read book.vcb
+		String bookFile = modelPath + File.separator + "book.vcb";
+		BufferedReader book = new BufferedReader(new InputStreamReader(
+				new FileInputStream(bookFile), "UTF-8"));
+		String bookLine;
+		int numWords = 0;
+		while ((bookLine = book.readLine()) != null) {
+			String[] datas = bookLine.split(" ");
+			int id = Integer.parseInt(datas[0]);
+			model.wordIds.put(datas[1], id);
+			if (id + 1 > numWords)
+				numWords = id + 1;
+		}
+		book.close();
+
+		// Read bookTag.vcb
+		String tagFile = modelPath + File.separator + "bookTag.vcb";
+		BufferedReader bookTag = new BufferedReader(new InputStreamReader(
+				new FileInputStream(tagFile), "UTF-8"));
+		HashMap<Integer, String> tags = new HashMap<Integer, String>();
+		String tagLine;
+		int numTags = 0;
+		while ((tagLine = bookTag.readLine()) != null) {
+			String[] datas = tagLine.split(" ");
+			int id = Integer.parseInt(datas[0]);
+			tags.put(id, datas[1]);
+			if (id + 1 > numTags)
+				numTags = id + 1;
+		}
+		bookTag.close();
+		model.tagNames = new String[numTags];
+		for (Integer id : tags.keySet()) {
+			model.tagNames[id] = tags.get(id);
+		}
+
+		File dir = new File(modelPath);
+
+		// Read *.t1.5
+		Vector<String> files = new Vector<String>();
+		for (String e : dir.list(new Filter("t1.5")))
+			files.add(e);
+		Collections.sort(files);
+		if (files.size() == 0) {
+			System.out.println("*.t1.5 not exist");
+			LOG.info("*.t1.5 not exist");
+		} else {
+			String word2Tag = files.get(files.size() - 2);
+			LOG.info(word2Tag);
+			LOG.info(files.get(files.size() - 1));
+			model.proTable = TranslationTable.loadGizaTable(modelPath
+					+ File.separator + word2Tag, 0.0);
+		}
+		LOG.info(Integer.toString(model.proTable.size()));
+
+		// Read ti.final
+		Vector<String> files2 = new Vector<String>();
+		for (String e : dir.list(new Filter("ti.final"))) {
+			if (e.indexOf("actual") == -1)
+				files2.add(e);
+		}
+		Collections.sort(files2);
+		if (files2.size() == 0) {
+			System.out.println("*.ti.final not exist");
+			LOG.info("*.ti.final not exist");
+		} else {
+			String tag2Word = files2.get(files2.size() - 1);
+			LOG.info(files2.get(files2.size() - 2));
+			LOG.info(tag2Word);
+			model.inverseTable = TranslationTable.loadGizaTable(modelPath
+					+ File.separator + tag2Word, 0.01);
+		}
+
+		// read wordlex, and keep only the idf of the words we can translate.
+		model.idf = new double[numWords];
+		Arrays.fill(model.idf, Double.NaN);
+		Lexicon wordLex = new FrozenLexicon();
+		File cachedWordLexFile = new File(modelPath + "/wordlex");
+		if (cachedWordLexFile.exists()) {
+			LOG.info("Use cached lexicons");
+			wordLex.loadFromFile(cachedWordLexFile);
+		}
+		for (String word : model.wordIds.keySet()) {
+			Lexicon.Word w = wordLex.getWord(word);
+			if (w != null) {
+				model.idf[model.wordIds.get(word)] = Math.log(
+						(double) wordLex.getNumDocs()
+						/ (double) w.getDocumentFrequency());
+			}
+		}
+		return model;
+	}
+
+	public static SMTModel loadCompiled(File file) throws IOException {
+		SMTModel model = new SMTModel();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					HEADER_SIZE);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new IOException(file + " is not a compiled SMT model");
+			}
+			int vocabBytes = header.getInt(8);
+
+			byte[] vocab = new byte[vocabBytes];
+			channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, vocabBytes)
+					.get(vocab);
+			DataInputStream input = new DataInputStream(
+					new ByteArrayInputStream(vocab));
+			int numWords = input.readInt();
+			int numEntries = input.readInt();
+			model.idf = new double[numWords];
+			Arrays.fill(model.idf, Double.NaN);
+			for (int i = 0; i < numEntries; i++) {
+				int id = input.readInt();
+				model.wordIds.put(input.readUTF(), id);
+				model.idf[id] = input.readDouble();
+			}
+			int numTags = input.readInt();
+			numEntries = input.readInt();
+			model.tagNames = new String[numTags];
+			for (int i = 0; i < numEntries; i++) {
+				int id = input.readInt();
+				model.tagNames[id] = input.readUTF();
+			}
+
+			long position = align(HEADER_SIZE + vocabBytes);
+			model.proTable = mapTable(channel, position);
+			position = align(position + tableBytes(model.proTable));
+			model.inverseTable = mapTable(channel, position);
+		} finally {
+			// The mappings stay valid after the channel is closed.
+			raf.close();
+		}
+		return model;
+	}
+
+	private static TranslationTable mapTable(FileChannel channel, long position)
+			throws IOException {
+		ByteBuffer sizes = channel.map(FileChannel.MapMode.READ_ONLY, position, 8);
+		int numRows = sizes.getInt(0);
+		int size = sizes.getInt(4);
+		position += 8;
+		IntBuffer offsets = channel.map(FileChannel.MapMode.READ_ONLY,
+				position, 4L * (numRows + 1)).asIntBuffer();
+		position += 4L * (numRows + 1);
+		IntBuffer columns = channel.map(FileChannel.MapMode.READ_ONLY,
+				position, 4L * size).asIntBuffer();
+		position += 4L * size;
+		if ((numRows + 1 + size) % 2 == 1)
+			position += 4;
+		DoubleBuffer probs = channel.map(FileChannel.MapMode.READ_ONLY,
+				position, 8L * size).asDoubleBuffer();
+		return TranslationTable.wrap(offsets, columns, probs);
+	}
+
+	private static long tableBytes(TranslationTable table) {
+		long n = 2 + table.numRows() + 1 + table.size();
+		if ((table.numRows() + 1 + table.size()) % 2 == 1)
+			n++;
+		return 4 * n + 8L * table.size();
+	}
+
+	private static long align(long position) {
+		return (position + 7) / 8 * 8;
+	}
+
+	/**
+	 * Write this model in the binary format loadCompiled() maps.
+	 */
+	public void compile(File output) throws IOException {
+		ByteArrayOutputStream vocabBytes = new ByteArrayOutputStream();
+		DataOutputStream vocab = new DataOutputStream(vocabBytes);
+		vocab.writeInt(idf.length);
+		vocab.writeInt(wordIds.size());
+		for (String word : wordIds.keySet()) {
+			int id = wordIds.get(word);
+			vocab.writeInt(id);
+			vocab.writeUTF(word);
+			vocab.writeDouble(idf[id]);
+		}
+		int numEntries = 0;
+		for (String tag : tagNames) {
+			if (tag != null)
+				numEntries++;
+		}
+		vocab.writeInt(tagNames.length);
+		vocab.writeInt(numEntries);
+		for (int i = 0; i < tagNames.length; i++) {
+			if (tagNames[i] != null) {
+				vocab.writeInt(i);
+				vocab.writeUTF(tagNames[i]);
+			}
+		}
+		vocab.close();
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(output), 1 << 20));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(vocabBytes.size());
+		out.writeInt(0);
+		vocabBytes.writeTo(out);
+		long position = HEADER_SIZE + vocabBytes.size();
+		position = pad(out, position);
+		proTable.writeTo(out);
+		position = pad(out, position + tableBytes(proTable));
+		inverseTable.writeTo(out);
+		out.close();
+	}
+
+	private static long pad(DataOutputStream out, long position)
+			throws IOException {
+		while (position % 8 != 0) {
+			out.writeByte(0);
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 * @return the id of the word in book.vcb, or -1 if it is unknown.
+	 */
+	public int wordId(String word) {
+		Integer id = wordIds.get(word);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @return the idf of the word, or NaN if the word is not in wordlex.
+	 */
+	public double idf(int wordId) {
+		return (wordId >= 0 && wordId < idf.length) ? idf[wordId] : Double.NaN;
+	}
+
+	public int numTags() {
+		return tagNames.length;
+	}
+
+	public String tagName(int tagId) {
+		return tagNames[tagId];
+	}
+
+	public TranslationTable getProTable() {
+		return proTable;
+	}
+
+	public TranslationTable getInverseTable() {
+		return inverseTable;
+	}
+}
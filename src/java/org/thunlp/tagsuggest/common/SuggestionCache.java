@@ -0,0 +1,210 @@
+package org.thunlp.tagsuggest.common;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import org.thunlp.misc.WeightString;
+import org.thunlp.text.FuzzyHash;
+
+/**
+ * Suggestions by the text of the post, with least recently used eviction.
+ * Posts are keyed on the MD5 of their normalized title, summary (of a
+ * KeywordPost) and content: lower case, runs of white space as one space.
+ *
+ * With cache_fuzzy=true a post whose exact key misses may still hit the
+ * suggestions of a near duplicate, found by the FuzzyHash of its normalized
+ * text. Texts with fewer than cache_fuzzy_min_features anchor features get no
+ * fuzzy key, as short texts would too easily collide.
+ *
+ * Every key takes one of the cache_size slots. All methods are synchronized,
+ * so one cache can serve many threads, and lists are copied in and out.
+ */
+public class SuggestionCache {
+  private static Pattern SPACE_RE = Pattern.compile("\\s+");
+
+  private int capacity;
+  private FuzzyHash fuzzyHash = null;
+  private int minFuzzyFeatures;
+  private LinkedHashMap<String, Entry> entries;
+  private long hits = 0;
+  private long fuzzyHits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  private static class Entry {
+    List<WeightString> tags;
+    // The number of tags asked for, Integer.MAX_VALUE for all of them.
+    int topK;
+  }
+
+  public SuggestionCache(Properties config) {
+    capacity = Integer.parseInt(config.getProperty("cache_size", "10000"));
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() > capacity) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+    if (config.getProperty("cache_fuzzy", "false").equals("true")) {
+      try {
+        fuzzyHash = new FuzzyHash(
+            Integer.parseInt(config.getProperty("cache_fuzzy_radius", "2")),
+            Double.parseDouble(config.getProperty("cache_fuzziness", "0.1")));
+      } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+      }
+      fuzzyHash.setAnchor(config.getProperty("cache_fuzzy_anchors",
+          "的 是 有 一 了 在 the of and").split(" "));
+      minFuzzyFeatures = Integer.parseInt(
+          config.getProperty("cache_fuzzy_min_features", "4"));
+    }
+  }
+
+  /**
+   * The keys of a post: the exact key, and the fuzzy key or null.
+   */
+  public String [] keys(Post p) {
+    StringBuilder text = new StringBuilder();
+    text.append(p.getTitle()).append(' ');
+    if (p instanceof KeywordPost) {
+      text.append(((KeywordPost) p).getSummary()).append(' ');
+    }
+    text.append(p.getContent());
+    String normalized =
+      SPACE_RE.matcher(text.toString().toLowerCase()).replaceAll(" ").trim();
+    String [] keys = new String[2];
+    keys[0] = md5(normalized);
+    if (fuzzyHash != null) {
+      synchronized (fuzzyHash) {
+        String hash = fuzzyHash.getHash(normalized);
+        if (fuzzyHash.getNumUsedFeatures() >= minFuzzyFeatures) {
+          keys[1] = "~" + hash;
+        }
+      }
+    }
+    return keys;
+  }
+
+  private static String md5(String text) {
+    try {
+      byte [] digest = MessageDigest.getInstance("MD5").digest(
+          text.getBytes("UTF-8"));
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * The best topK suggestions of the post with these keys, or null if they
+   * are not cached. A miss is counted.
+   */
+  public synchronized List<WeightString> get(String [] keys, int topK) {
+    List<WeightString> tags = lookup(keys[0], topK);
+    if (tags != null) {
+      hits++;
+      return tags;
+    }
+    if (keys[1] != null) {
+      tags = lookup(keys[1], topK);
+      if (tags != null) {
+        hits++;
+        fuzzyHits++;
+        return tags;
+      }
+    }
+    misses++;
+    return null;
+  }
+
+  private List<WeightString> lookup(String key, int topK) {
+    Entry entry = entries.get(key);
+    // Fewer tags than asked for means that there are no more.
+    if (entry == null || (entry.topK < topK && entry.tags.size() >= entry.topK)) {
+      return null;
+    }
+    return copy(entry.tags, topK);
+  }
+
+  /**
+   * Remember the best topK suggestions of the post with these keys.
+   */
+  public synchronized void put(String [] keys, List<WeightString> tags,
+      int topK) {
+    for (String key : keys) {
+      if (key == null) {
+        continue;
+      }
+      Entry entry = entries.get(key);
+      if (entry != null && entry.topK >= topK) {
+        continue;
+      }
+      entry = new Entry();
+      entry.tags = copy(tags, topK);
+      entry.topK = topK;
+      entries.put(key, entry);
+    }
+  }
+
+  private static List<WeightString> copy(List<WeightString> tags, int topK) {
+    int n = Math.min(tags.size(), topK);
+    List<WeightString> result = new ArrayList<WeightString>(n);
+    for (int i = 0; i < n; i++) {
+      WeightString tag = tags.get(i);
+      result.add(new WeightString(tag.text, tag.weight));
+    }
+    return result;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * The hits on a near duplicate, included in getHits().
+   */
+  public synchronized long getFuzzyHits() {
+    return fuzzyHits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "hits " + hits + " (fuzzy " + fuzzyHits + "), misses " + misses
+        + ", evictions " + evictions + ", size " + entries.size();
+  }
+}
@@ -18,7 +18,7 @@ public class TagFilter {
 	public TagFilter(Properties config, Lexicon tagLex) {
 		minTagFreq = Integer.parseInt(config.getProperty("mintagfreq", "1"));
 		if (tagLex != null)
-			lex = tagLex.removeLowFreqWords(minTagFreq);
+			lex = tagLex.removeLowFreqWords(minTagFreq).freeze();
 		stopTags = new HashSet<String>();
 		stopTags.add("imported");
 		stopTags.add("public");
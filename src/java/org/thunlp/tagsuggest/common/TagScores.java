@@ -0,0 +1,71 @@
+package org.thunlp.tagsuggest.common;
+
+import java.util.Arrays;
+
+/**
+ * Scratch space for accumulating scores over a dense range of tag ids. The
+ * ids that received a score are remembered, so ranking and clear() only touch
+ * those, and one instance can be reused from request to request without
+ * reallocating or zeroing the whole array.
+ *
+ * Instances are not thread-safe; a suggester shared by several threads keeps
+ * one per thread (see ThreadSafeTagSuggest).
+ */
+public class TagScores {
+	private double[] scores = new double[0];
+	private boolean[] touched = new boolean[0];
+	private int[] candidates = new int[16];
+	private int numCandidates = 0;
+
+	/**
+	 * Make room for tag ids in [0, numTags). Must be called while empty.
+	 */
+	public void ensureCapacity(int numTags) {
+		if (scores.length < numTags) {
+			scores = new double[numTags];
+			touched = new boolean[numTags];
+		}
+	}
+
+	public void add(int tagId, double delta) {
+		if (!touched[tagId]) {
+			touched[tagId] = true;
+			if (numCandidates == candidates.length)
+				candidates = Arrays.copyOf(candidates, numCandidates * 2);
+			candidates[numCandidates++] = tagId;
+		}
+		scores[tagId] += delta;
+	}
+
+	public int size() {
+		return numCandidates;
+	}
+
+	/**
+	 * @return the k-th tag id that received a score.
+	 */
+	public int candidate(int k) {
+		return candidates[k];
+	}
+
+	public double score(int tagId) {
+		return scores[tagId];
+	}
+
+	/**
+	 * Order the candidates by tag id, which makes the ranking independent of
+	 * the order the scores were added in.
+	 */
+	public void sortCandidates() {
+		Arrays.sort(candidates, 0, numCandidates);
+	}
+
+	public void clear() {
+		for (int k = 0; k < numCandidates; k++) {
+			int tagId = candidates[k];
+			scores[tagId] = 0.0;
+			touched[tagId] = false;
+		}
+		numCandidates = 0;
+	}
+}
@@ -0,0 +1,14 @@
+package org.thunlp.tagsuggest.common;
+
+/**
+ * A tagger whose suggest() may be called from many threads at once. After
+ * setConfig() and loadModel() return, the loaded model is only read, and
+ * whatever a request needs to write lives on its own stack or in per-thread
+ * scratch space. One loaded instance can then serve every request thread.
+ *
+ * setConfig(), loadModel() and feedback() are not covered and must not run
+ * concurrently with suggest(). Taggers that do not implement this interface
+ * have to be given one instance per thread.
+ */
+public interface ThreadSafeTagSuggest extends TagSuggest {
+}
@@ -0,0 +1,15 @@
+package org.thunlp.tagsuggest.common;
+
+import java.util.List;
+
+import org.thunlp.misc.WeightString;
+
+/**
+ * A tagger that can rank only the best topK tags, without building and
+ * sorting the full suggestion list. The result must equal the first topK
+ * elements of suggest(p, explain). Callers that hold a plain TagSuggest can
+ * use TopTags.suggest(), which falls back to truncating the full list.
+ */
+public interface TopKTagSuggest extends TagSuggest {
+  public List<WeightString> suggest(Post p, int topK, StringBuilder explain);
+}
@@ -0,0 +1,154 @@
+package org.thunlp.tagsuggest.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.thunlp.misc.WeightString;
+
+/**
+ * Keeps the k best scored tags seen so far, like org.thunlp.misc.TopPool,
+ * but in a bounded min-heap over parallel arrays, so offering a candidate
+ * allocates nothing and a WeightString is only built for the k winners.
+ *
+ * drain() returns the tags by decreasing score, and tags with equal scores in
+ * the order they were added. That is the order a stable descending sort of all
+ * candidates gives, so a top-k suggest() returns exactly the first k tags of
+ * the full list.
+ */
+public class TopTags {
+	private int k;
+	private String[] tags;
+	private double[] scores;
+	private int[] seqs;
+	private int size = 0;
+	private int seq = 0;
+
+	public TopTags(int k) {
+		this.k = Math.max(k, 0);
+		tags = new String[this.k];
+		scores = new double[this.k];
+		seqs = new int[this.k];
+	}
+
+	/**
+	 * Ask ts for its topK best tags, using the top-k path when ts has one.
+	 */
+	public static List<WeightString> suggest(TagSuggest ts, Post p, int topK,
+			StringBuilder explain) {
+		if (ts instanceof TopKTagSuggest) {
+			return ((TopKTagSuggest) ts).suggest(p, topK, explain);
+		}
+		List<WeightString> tags = ts.suggest(p, explain);
+		if (tags.size() > topK) {
+			tags = new ArrayList<WeightString>(tags.subList(0, Math.max(topK, 0)));
+		}
+		return tags;
+	}
+
+	/**
+	 * @return false if the tag is not among the k best so far.
+	 */
+	public boolean add(String tag, double score) {
+		int s = seq++;
+		if (size < k) {
+			tags[size] = tag;
+			scores[size] = score;
+			seqs[size] = s;
+			siftUp(size++);
+			return true;
+		}
+		// A later tag never beats an equal score, so only strictly better
+		// scores replace the current worst.
+		if (k == 0 || Double.compare(score, scores[0]) <= 0) {
+			return false;
+		}
+		tags[0] = tag;
+		scores[0] = score;
+		seqs[0] = s;
+		siftDown(0);
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the kept tags, best first. The pool is empty afterwards.
+	 */
+	public List<WeightString> drain() {
+		WeightString[] sorted = new WeightString[size];
+		while (size > 0) {
+			sorted[size - 1] = new WeightString(tags[0], scores[0]);
+			size--;
+			if (size > 0) {
+				move(size, 0);
+				siftDown(0);
+			}
+			tags[size] = null;
+		}
+		seq = 0;
+		List<WeightString> result = new ArrayList<WeightString>(sorted.length);
+		for (WeightString tag : sorted) {
+			result.add(tag);
+		}
+		return result;
+	}
+
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			tags[i] = null;
+		}
+		size = 0;
+		seq = 0;
+	}
+
+	/**
+	 * Whether entry i ranks below entry j: a lower score, or an equal score
+	 * added later.
+	 */
+	private boolean worse(int i, int j) {
+		int c = Double.compare(scores[i], scores[j]);
+		return c < 0 || (c == 0 && seqs[i] > seqs[j]);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!worse(i, parent))
+				break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && worse(child + 1, child))
+				child++;
+			if (!worse(child, i))
+				break;
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	private void move(int from, int to) {
+		tags[to] = tags[from];
+		scores[to] = scores[from];
+		seqs[to] = seqs[from];
+	}
+
+	private void swap(int i, int j) {
+		String tag = tags[i];
+		double score = scores[i];
+		int s = seqs[i];
+		move(j, i);
+		tags[j] = tag;
+		scores[j] = score;
+		seqs[j] = s;
+	}
+}
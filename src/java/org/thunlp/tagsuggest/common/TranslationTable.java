@@ -0,0 +1,239 @@
+package org.thunlp.tagsuggest.common;
+
+import java.io.BufferedReader;
+import java.io.DataOutput;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A read-only word-to-tag translation table stored in compressed sparse row
+ * form. Row i spans the entries [rowStart(i), rowEnd(i)) of the parallel
+ * columns/probs arrays, and the columns of each row are sorted, so a cell can
+ * be found by binary search and two rows can be merge-joined without boxing.
+ *
+ * This replaces the HashMap<Integer, HashMap<Integer, Double>> tables the SMT
+ * suggesters used to keep for the GIZA++ *.t1.5 and *.ti.final outputs. The
+ * arrays are held as buffers, so a table can live either on the heap or in a
+ * memory-mapped compiled model (see SMTModel).
+ */
+public class TranslationTable {
+	private IntBuffer offsets;
+	private IntBuffer columns;
+	private DoubleBuffer probs;
+	private int numRows;
+
+	private TranslationTable(IntBuffer offsets, IntBuffer columns,
+			DoubleBuffer probs) {
+		this.offsets = offsets;
+		this.columns = columns;
+		this.probs = probs;
+		this.numRows = offsets.limit() - 1;
+	}
+
+	/**
+	 * Load a GIZA++ translation table, whose lines are
+	 * "source_id target_id probability". Entries involving the NULL word (id 0)
+	 * or with probability below minProb are dropped.
+	 */
+	public static TranslationTable loadGizaTable(String file, double minProb)
+			throws IOException {
+		Builder builder = new Builder();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			String[] data = line.split(" ");
+			if (data.length != 3)
+				continue;
+			int first = Integer.parseInt(data[0]);
+			int second = Integer.parseInt(data[1]);
+			double probability = Double.parseDouble(data[2]);
+			if (first == 0 || second == 0 || probability < minProb) {
+				continue;
+			}
+			builder.add(first, second, probability);
+		}
+		reader.close();
+		return builder.build();
+	}
+
+	/**
+	 * Wrap CSR buffers, e.g. views over a memory-mapped compiled model. The
+	 * buffers are used as they are and must not be modified afterwards.
+	 */
+	public static TranslationTable wrap(IntBuffer offsets, IntBuffer columns,
+			DoubleBuffer probs) {
+		return new TranslationTable(offsets, columns, probs);
+	}
+
+	public int numRows() {
+		return numRows;
+	}
+
+	public int size() {
+		return columns.limit();
+	}
+
+	public boolean hasRow(int row) {
+		return row >= 0 && row < numRows && offsets.get(row) < offsets.get(row + 1);
+	}
+
+	public int rowStart(int row) {
+		return (row >= 0 && row < numRows) ? offsets.get(row) : 0;
+	}
+
+	public int rowEnd(int row) {
+		return (row >= 0 && row < numRows) ? offsets.get(row + 1) : 0;
+	}
+
+	public int column(int entry) {
+		return columns.get(entry);
+	}
+
+	public double prob(int entry) {
+		return probs.get(entry);
+	}
+
+	/**
+	 * @return the entry index of (row, column), or -1 if there is none.
+	 */
+	public int find(int row, int column) {
+		int low = rowStart(row);
+		int high = rowEnd(row) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = columns.get(mid);
+			if (c < column)
+				low = mid + 1;
+			else if (c > column)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * The largest column id in the table plus one, which is the size of a dense
+	 * score array indexed by column.
+	 */
+	public int columnBound() {
+		int max = -1;
+		for (int i = 0; i < columns.limit(); i++) {
+			if (columns.get(i) > max)
+				max = columns.get(i);
+		}
+		return max + 1;
+	}
+
+	/**
+	 * Write the three arrays in the layout SMTModel maps back: numRows and
+	 * size, then offsets, columns and probs, all big-endian. One int of padding
+	 * is put before probs when needed, so that probs stays 8-byte aligned if
+	 * the table itself starts at an 8-byte boundary.
+	 */
+	public void writeTo(DataOutput output) throws IOException {
+		output.writeInt(numRows);
+		output.writeInt(size());
+		for (int i = 0; i <= numRows; i++)
+			output.writeInt(offsets.get(i));
+		for (int i = 0; i < size(); i++)
+			output.writeInt(columns.get(i));
+		if ((numRows + 1 + size()) % 2 == 1)
+			output.writeInt(0);
+		for (int i = 0; i < size(); i++)
+			output.writeDouble(probs.get(i));
+	}
+
+	/**
+	 * Collects (row, column, prob) triples in any order. Duplicated cells keep
+	 * the value added last, as the old HashMap tables did.
+	 */
+	public static class Builder {
+		private int[] rows = new int[1024];
+		private int[] cols = new int[1024];
+		private double[] values = new double[1024];
+		private int n = 0;
+
+		public void add(int row, int column, double prob) {
+			if (n == rows.length) {
+				rows = Arrays.copyOf(rows, n * 2);
+				cols = Arrays.copyOf(cols, n * 2);
+				values = Arrays.copyOf(values, n * 2);
+			}
+			rows[n] = row;
+			cols[n] = column;
+			values[n] = prob;
+			n++;
+		}
+
+		public TranslationTable build() {
+			int numRows = 0;
+			for (int i = 0; i < n; i++) {
+				if (rows[i] + 1 > numRows)
+					numRows = rows[i] + 1;
+			}
+			// Counting sort by row, keeping the insertion order within a row.
+			int[] offsets = new int[numRows + 1];
+			for (int i = 0; i < n; i++) {
+				offsets[rows[i] + 1]++;
+			}
+			for (int i = 0; i < numRows; i++) {
+				offsets[i + 1] += offsets[i];
+			}
+			int[] fill = Arrays.copyOf(offsets, numRows);
+			int[] columns = new int[n];
+			double[] probs = new double[n];
+			for (int i = 0; i < n; i++) {
+				int pos = fill[rows[i]]++;
+				columns[pos] = cols[i];
+				probs[pos] = values[i];
+			}
+
+			// Sort each row by column and drop duplicated cells. The position
+			// within the row goes into the low bits, so the sort is stable.
+			long[] keys = new long[16];
+			int out = 0;
+			int[] newOffsets = new int[numRows + 1];
+			for (int r = 0; r < numRows; r++) {
+				int start = offsets[r];
+				int len = offsets[r + 1] - start;
+				if (keys.length < len)
+					keys = new long[len];
+				for (int i = 0; i < len; i++) {
+					keys[i] = ((long) columns[start + i] << 32) | i;
+				}
+				Arrays.sort(keys, 0, len);
+				int[] rowCols = new int[len];
+				double[] rowProbs = new double[len];
+				for (int i = 0; i < len; i++) {
+					int pos = start + (int) (keys[i] & 0xffffffffL);
+					rowCols[i] = columns[pos];
+					rowProbs[i] = probs[pos];
+				}
+				newOffsets[r] = out;
+				for (int i = 0; i < len; i++) {
+					if (i + 1 < len && rowCols[i + 1] == rowCols[i])
+						continue; // a later duplicate wins.
+					columns[out] = rowCols[i];
+					probs[out] = rowProbs[i];
+					out++;
+				}
+			}
+			newOffsets[numRows] = out;
+			if (out < n) {
+				columns = Arrays.copyOf(columns, out);
+				probs = Arrays.copyOf(probs, out);
+			}
+			rows = null;
+			cols = null;
+			values = null;
+			return new TranslationTable(IntBuffer.wrap(newOffsets),
+					IntBuffer.wrap(columns), DoubleBuffer.wrap(probs));
+		}
+	}
+}
@@ -9,9 +9,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Vector;
@@ -19,7 +23,6 @@ import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import org.thunlp.html.HtmlReformatter;
-import org.thunlp.io.JsonUtil;
 import org.thunlp.io.RecordReader;
 import org.thunlp.language.chinese.ForwardMaxWordSegment;
 import org.thunlp.language.chinese.LangUtils;
@@ -31,8 +34,27 @@ import org.thunlp.text.Lexicon.Word;
 public class WordFeatureExtractor implements FeatureExtractor {
 	public static int ENGLISH = 0;
 	public static int CHINESE = 1;
+	/**
+	 * The configuration keys that change the words a post is segmented into,
+	 * before the word lexicon filters them. FeatureCache keeps these words.
+	 */
+	public static final String[] SEGMENTATION_KEYS = { "dataType", "model",
+			"title", "content", "bigram", "singlechinese", "chineseonly", "lang" };
+	/**
+	 * The configuration keys that change the words extract() returns with a
+	 * word lexicon set: SEGMENTATION_KEYS and the lexicon's minwordfreq.
+	 * DocsTable keeps these words.
+	 */
+	public static final String[] WORD_KEYS = withKey(SEGMENTATION_KEYS,
+			"minwordfreq");
 	private Properties config = null;
 	private static Logger LOG = Logger.getAnonymousLogger();
+	private static final LatencyHistogram LEXICONS_LATENCY =
+			Metrics.histogram("train.lexicons");
+	private static final LatencyHistogram EXTRACT_LATENCY =
+			Metrics.histogram("extract");
+	private static final LatencyHistogram EXTRACT_CACHED_LATENCY =
+			Metrics.histogram("extract.cached");
 	WordSegment ws = null;
 	boolean useContent = true;
 	boolean useTitle = true;
@@ -51,6 +73,7 @@ public class WordFeatureExtractor implements FeatureExtractor {
 
 	private HashSet<String> tagPossibleSet = new HashSet<String>();
 	private static RtuMain jar_path = new RtuMain();
+	private static Map<String, Set<String>> stopwordFiles = new HashMap<String, Set<String>>();
 	
 	public HashSet<String> getTagPossibleSet() {
 		return tagPossibleSet;
@@ -62,6 +85,13 @@ public class WordFeatureExtractor implements FeatureExtractor {
 	
 	public static void buildLexicons(String input, Lexicon wordlex,
 			Lexicon taglex, Properties config) throws IOException {
+		long start = System.nanoTime();
+		readLexicons(input, wordlex, taglex, config);
+		LEXICONS_LATENCY.recordSince(start);
+	}
+
+	private static void readLexicons(String input, Lexicon wordlex,
+			Lexicon taglex, Properties config) throws IOException {
 
 		// We use lexicon cache to avoid repeatly lexicon building.
 		File cachedTagLexFile = new File(input + ".taglex");
@@ -74,7 +104,7 @@ public class WordFeatureExtractor implements FeatureExtractor {
 		}
 
 		WordFeatureExtractor extractor = new WordFeatureExtractor(config);
-		JsonUtil J = new JsonUtil();
+		PostDecoder decoder = new PostDecoder(PostDecoder.TEXT_FIELDS);
 		RecordReader reader = new RecordReader(input);
 		Set<String> filtered = new HashSet<String>();
 		TagFilter tagFilter = new TagFilter(config, null);
@@ -86,27 +116,31 @@ public class WordFeatureExtractor implements FeatureExtractor {
 		String dataType = config.getProperty("dataType", "Post");
 
 		if (dataType.equals("DoubanPost") ){
-				while (reader.next()) {
-					DoubanPost p = J.fromJson(reader.value(), DoubanPost.class);
+				reader.close();
+				FeatureCache.PostReader<DoubanPost> posts = FeatureCache.open(
+						input, config, DoubanPost.class);
+				while (posts.next()) {
+					DoubanPost p = posts.post();
 					String[] features = extractor.extract(p);
 					localWordLex.addDocument(features);
 					tagFilter.filterMapWithNorm(p.getDoubanTags(), filtered);
 					taglex.addDocument(filtered.toArray(new String[filtered
 							.size()]));
-					if (reader.numRead() % 1000 == 0)
-						LOG.info("building lexicons: " + reader.numRead());
-					if (reader.numRead() % 5000 == 0 && useBigram) {
+					if (posts.numRead() % 1000 == 0)
+						LOG.info("building lexicons: " + posts.numRead());
+					if (posts.numRead() % 5000 == 0 && useBigram) {
 						LOG.info("trim lexicion");
 						localWordLex = localWordLex.removeLowDfWords(5);
-						LOG.info("building lexicons: " + reader.numRead());
+						LOG.info("building lexicons: " + posts.numRead());
 					}
 				}
-				reader.close();
+				posts.close();
 		} else  if(dataType.equals("Post")){
 				if (config.getProperty("isSegmented", "false").equals("true")) {
 					if (config.getProperty("useLda", "false").equals("true")) {
+						Post post = new Post();
 						while (reader.next()) {
-							Post p = J.fromJson(reader.value(), Post.class);
+							Post p = decoder.decode(reader.value(), post);
 							String[] features = extractor.extractPostLda(p);
 							localWordLex.addDocument(features);
 							tagFilter.filterWithNorm(p.getTags(), filtered);
@@ -122,8 +156,9 @@ public class WordFeatureExtractor implements FeatureExtractor {
 						}
 						reader.close();
 					}else{
+						Post post = new Post();
 						while (reader.next()) {
-							Post p = J.fromJson(reader.value(), Post.class);
+							Post p = decoder.decode(reader.value(), post);
 							String[] features = extractor.extractPostSegmented(p);
 							localWordLex.addDocument(features);
 							tagFilter.filterWithNorm(p.getTags(), filtered);
@@ -140,29 +175,33 @@ public class WordFeatureExtractor implements FeatureExtractor {
 						reader.close();
 					}
 				}else{
-					while (reader.next()) {
-						Post p = J.fromJson(reader.value(), Post.class);
+					reader.close();
+					FeatureCache.PostReader<Post> posts = FeatureCache.open(
+							input, config, Post.class);
+					while (posts.next()) {
+						Post p = posts.post();
 						String[] features = extractor.extract(p);
 						localWordLex.addDocument(features);
 						tagFilter.filterWithNorm(p.getTags(), filtered);
 						taglex.addDocument(filtered.toArray(new String[filtered
 								.size()]));
-						if (reader.numRead() % 1000 == 0)
-							LOG.info("building lexicons: " + reader.numRead());
-						if (reader.numRead() % 5000 == 0 && useBigram) {
+						if (posts.numRead() % 1000 == 0)
+							LOG.info("building lexicons: " + posts.numRead());
+						if (posts.numRead() % 5000 == 0 && useBigram) {
 							LOG.info("trim lexicion");
 							localWordLex = localWordLex.removeLowDfWords(5);
-							LOG.info("building lexicons: " + reader.numRead());
+							LOG.info("building lexicons: " + posts.numRead());
 						}
 					}
-					reader.close();
+					posts.close();
 				}
 			}
 		else  if(dataType.equals("KeywordPost")){
 			if (config.getProperty("isSegmented", "false").equals("true")) {
 				if (config.getProperty("useLda", "false").equals("true")) {
+					KeywordPost post = new KeywordPost();
 					while (reader.next()) {
-						KeywordPost p = J.fromJson(reader.value(), KeywordPost.class);
+						KeywordPost p = decoder.decode(reader.value(), post);
 						String[] features = extractor.extractKeywordLda(p, true, true,
 								true);
 						localWordLex.addDocument(features);
@@ -179,8 +218,9 @@ public class WordFeatureExtractor implements FeatureExtractor {
 					}
 					reader.close();
 				}else{
+					KeywordPost post = new KeywordPost();
 					while (reader.next()) {
-						KeywordPost p = J.fromJson(reader.value(), KeywordPost.class);
+						KeywordPost p = decoder.decode(reader.value(), post);
 						String[] features = extractor.extractKeywordSegmented(p, true, true,
 								true);
 						localWordLex.addDocument(features);
@@ -198,8 +238,9 @@ public class WordFeatureExtractor implements FeatureExtractor {
 					reader.close();
 				}
 			}else{
+				KeywordPost post = new KeywordPost();
 				while (reader.next()) {
-					KeywordPost p = J.fromJson(reader.value(), KeywordPost.class);
+					KeywordPost p = decoder.decode(reader.value(), post);
 					String[] features = extractor.extractKeyword(p, true, true,
 							true);
 					localWordLex.addDocument(features);
@@ -257,26 +298,11 @@ public class WordFeatureExtractor implements FeatureExtractor {
 		try {
 			String stopWordsFile = jar_path.getProjectPath() + File.separator + "chinese_stop_word.txt"; 
 			
-			BufferedReader stop = new BufferedReader(
-					new InputStreamReader(
-							new FileInputStream(
-									stopWordsFile),
-							"UTF-8"));
-			String line;
-			while ((line = stop.readLine()) != null) {
-				stopwords.add(line);
-			}
-			stop.close();
+			stopwords.addAll(loadStopwords(stopWordsFile));
 		} catch (IOException e) {
 			// e.printStackTrace();
-			BufferedReader stop;
 			try {
-				stop = new BufferedReader(new InputStreamReader(
-						new FileInputStream("chinese_stop_word.txt"), "UTF-8"));
-				String line;
-				while ((line = stop.readLine()) != null) {
-					stopwords.add(line);
-				}
+				stopwords.addAll(loadStopwords("chinese_stop_word.txt"));
 			} catch (Exception e1) {
 				// TODO Auto-generated catch block
 			//	e1.printStackTrace();
@@ -284,6 +310,30 @@ public class WordFeatureExtractor implements FeatureExtractor {
 		}
 	}
 
+	/**
+	 * Read a stop word file, or return the words read by an earlier call, so
+	 * that the many extractors of one run do not read the file again.
+	 */
+	private static synchronized Set<String> loadStopwords(String file)
+			throws IOException {
+		Set<String> words = stopwordFiles.get(file);
+		if (words == null) {
+			words = new HashSet<String>();
+			BufferedReader stop = new BufferedReader(
+					new InputStreamReader(
+							new FileInputStream(file),
+							"UTF-8"));
+			String line;
+			while ((line = stop.readLine()) != null) {
+				words.add(line);
+			}
+			stop.close();
+			words = Collections.unmodifiableSet(words);
+			stopwordFiles.put(file, words);
+		}
+		return words;
+	}
+
 	public WordFeatureExtractor(Properties config)  {
 		
 		this();
@@ -295,34 +345,19 @@ public class WordFeatureExtractor implements FeatureExtractor {
 							 jar_path.getProjectPath()) + File.separator +"chinese_stop_word.txt";
 	
 			LOG.info(stopWordsFile);
-		
-			BufferedReader stop = new BufferedReader(
-					new InputStreamReader(
-							new FileInputStream(
-									stopWordsFile),
-							"UTF-8"));
-			String line;
-			while ((line = stop.readLine()) != null) {
-				stopwords.add(line);
-			}
-			stop.close();
+			stopwords.addAll(loadStopwords(stopWordsFile));
 		} catch (IOException e) {
 			 e.printStackTrace();
 		}
 		
 		try {
+			// The dictionary is shared with every other extractor of the same
+			// model through DictionaryRegistry.
 			if (!config.getProperty("dataType", "Post").equals("Keyword")) {
-				System
-						.setProperty(
-								"wordsegment.automata.file",
-								config
-										.getProperty("model",
-												 jar_path.getProjectPath()) + File.separator + "book.model");
-
-			}
-			ws = new ForwardMaxWordSegment();
-			if (!config.getProperty("dataType", "Post").equals("Keyword")) {
-				System.clearProperty("wordsegment.automata.file");
+				ws = new ForwardMaxWordSegment(config.getProperty("model",
+						jar_path.getProjectPath()) + File.separator + "book.model");
+			} else {
+				ws = new ForwardMaxWordSegment();
 			}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -372,6 +407,19 @@ public class WordFeatureExtractor implements FeatureExtractor {
 
 	@Override
 	public String[] extract(Post p) {
+		long start = System.nanoTime();
+		if (p instanceof FeatureCache.CachedPost) {
+			String[] features =
+				filterCached(((FeatureCache.CachedPost) p).getFeatures());
+			EXTRACT_CACHED_LATENCY.recordSince(start);
+			return features;
+		}
+		String[] features = extractWords(p);
+		EXTRACT_LATENCY.recordSince(start);
+		return features;
+	}
+
+	private String[] extractWords(Post p) {
 		String content = "";
 		if (useTitle) {
 			content += " " + p.getTitle();
@@ -434,6 +482,24 @@ public class WordFeatureExtractor implements FeatureExtractor {
 		return filtered.toArray(new String[filtered.size()]);
 	}
 
+	/**
+	 * The lexicon filtering of extract(), for words that went through the
+	 * other filters when the feature cache was built.
+	 */
+	private String[] filterCached(String[] words) {
+		if (wordLex == null) {
+			return words.clone();
+		}
+		List<String> filtered = new LinkedList<String>();
+		for (String word : words) {
+			Word wordType = wordLex.getWord(word);
+			if (wordType == null || wordType.getFrequency() < minWordCount)
+				continue;
+			filtered.add(word);
+		}
+		return filtered.toArray(new String[filtered.size()]);
+	}
+
 	public String[] extractKeyword(KeywordPost p, boolean containTitle,
 			boolean containSummary, boolean containContent) {
 		String content = "";
@@ -867,4 +933,10 @@ public class WordFeatureExtractor implements FeatureExtractor {
 		cleaned = LangUtils.removeExtraSpaces(cleaned);
 		return cleaned.trim();
 	}
-}
\ No newline at end of file
+
+	private static String[] withKey(String[] keys, String key) {
+		String[] all = Arrays.copyOf(keys, keys.length + 1);
+		all[keys.length] = key;
+		return all;
+	}
+}
@@ -0,0 +1,444 @@
+package org.thunlp.tagsuggest.contentbase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.thunlp.tagsuggest.common.WordFeatureExtractor;
+
+/**
+ * What the Lucene-backed KnnTagSuggest and ExpandRankKE read from the docs
+ * index for every post, precomputed once: the idf of every term of the
+ * content field, keyed by term id, and for every document its tags and,
+ * optionally, its content as segmented by the suggester's extractor, as id
+ * arrays. With it a suggestion makes no docFreq(), maxDoc() or doc() calls,
+ * only the search itself.
+ *
+ * The table is built from the index at load time and saved as docs.table next
+ * to it, so later loads only read the file. A saved table is rebuilt when the
+ * index version changes, or when the words are needed but were segmented with
+ * other extractor settings. The idf is maxDoc / df, as the suggesters compute
+ * it. The suggesters of one model in a JVM share one loaded table, and the
+ * file is written under a temporary name and renamed, so a reader never sees
+ * half of it.
+ *
+ * Layout (big-endian, DataOutputStream): magic, version, index version,
+ * number of documents, words signature; terms with their df; tag names; tag
+ * offsets and tag ids; and, if the signature is not empty, the extra words
+ * that are not terms, then word offsets and word ids.
+ */
+public class DocsTable {
+  public static String TABLE_FILE = "docs.table";
+  private static Logger LOG = Logger.getAnonymousLogger();
+  private static int MAGIC = 0x444f4331; // "DOC1"
+  private static int VERSION = 1;
+  // Loaded tables by file and signature, held as long as a suggester holds
+  // them.
+  private static Map<String, WeakReference<DocsTable>> tables =
+    new HashMap<String, WeakReference<DocsTable>>();
+
+  private long indexVersion;
+  private int numDocs;
+  private String signature;
+  private Map<String, Integer> termIds = new HashMap<String, Integer>();
+  // Ids below numIndexTerms are terms of the index, the rest extra words.
+  private int numIndexTerms;
+  private String [] terms;
+  private int [] docFreqs;
+  private double [] idfs;
+  private String [] tagNames;
+  private int [] tagOffsets;
+  private int [] docTags;
+  // Null unless the table holds the words.
+  private int [] wordOffsets = null;
+  private int [] docWords = null;
+
+  private DocsTable() {
+  }
+
+  /**
+   * The table of the index at modelPath/docs: the one already loaded by
+   * another suggester of the same model, if it is still held and up to date,
+   * or else read from modelPath/docs.table or built and saved there.
+   *
+   * @param extractor segments the stored content into the words of each
+   *        document, or null if the words are not needed
+   * @param config the configuration of extractor
+   */
+  public static synchronized DocsTable load(String modelPath,
+      IndexReader reader, WordFeatureExtractor extractor, Properties config)
+      throws IOException {
+    File file = new File(modelPath, TABLE_FILE);
+    String signature = extractor == null ? "" : signature(config);
+    String key = file.getCanonicalPath() + "\n" + signature;
+    WeakReference<DocsTable> loaded = tables.get(key);
+    DocsTable table = loaded == null ? null : loaded.get();
+    if (table != null && table.matches(reader, signature)) {
+      return table;
+    }
+    table = readOrBuild(file, reader, extractor, signature);
+    tables.put(key, new WeakReference<DocsTable>(table));
+    return table;
+  }
+
+  private static DocsTable readOrBuild(File file, IndexReader reader,
+      WordFeatureExtractor extractor, String signature) throws IOException {
+    if (file.exists()) {
+      try {
+        DocsTable table = read(file);
+        if (table.matches(reader, signature)) {
+          return table;
+        }
+        LOG.info(file + " is out of date, rebuilding");
+      } catch (IOException e) {
+        LOG.warning("Cannot read " + file + ", rebuilding: " + e);
+      }
+    }
+    long start = System.currentTimeMillis();
+    DocsTable table = build(reader, extractor, signature);
+    LOG.info("Build docs table of " + table.numDocs + " documents and "
+        + table.terms.length + " terms in "
+        + (System.currentTimeMillis() - start) + "ms");
+    try {
+      table.save(file);
+    } catch (IOException e) {
+      // A read-only model still works, only without the saved table.
+      LOG.warning("Cannot save " + file + ": " + e);
+    }
+    return table;
+  }
+
+  /**
+   * Whether this table is of the index of reader and, if signature is not
+   * empty, holds words segmented under it.
+   */
+  private boolean matches(IndexReader reader, String signature) {
+    return indexVersion == reader.getVersion()
+        && numDocs == reader.maxDoc()
+        && (signature.length() == 0 || this.signature.equals(signature));
+  }
+
+  /**
+   * The extractor settings as one string, so that words segmented under
+   * other settings are noticed. Other keys do not change the words.
+   */
+  private static String signature(Properties config) {
+    StringBuilder sb = new StringBuilder("words\n");
+    for (String key : WordFeatureExtractor.WORD_KEYS) {
+      String value = config.getProperty(key);
+      if (value != null) {
+        sb.append(key).append('=').append(value).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  public int numDocs() {
+    return numDocs;
+  }
+
+  /**
+   * The id of a term, or -1 if it is not in the index.
+   */
+  public int termId(String term) {
+    Integer id = termIds.get(term);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * The term or extra word of an id.
+   */
+  public String term(int id) {
+    return terms[id];
+  }
+
+  public int docFreq(String term) {
+    Integer id = termIds.get(term);
+    return id == null ? 0 : docFreqs[id];
+  }
+
+  /**
+   * numDocs() / df of a term, 0 if it is not in the index.
+   */
+  public double idf(String term) {
+    Integer id = termIds.get(term);
+    return id == null ? 0.0 : idfs[id];
+  }
+
+  public int numTags(int doc) {
+    return tagOffsets[doc + 1] - tagOffsets[doc];
+  }
+
+  /**
+   * The i-th tag of doc, for 0 <= i < numTags(doc).
+   */
+  public String tag(int doc, int i) {
+    return tagNames[tagId(doc, i)];
+  }
+
+  /**
+   * The id of the i-th tag of doc, in [0, numTagNames()).
+   */
+  public int tagId(int doc, int i) {
+    return docTags[tagOffsets[doc] + i];
+  }
+
+  public int numTagNames() {
+    return tagNames.length;
+  }
+
+  public String tagName(int tag) {
+    return tagNames[tag];
+  }
+
+  public boolean hasWords() {
+    return docWords != null;
+  }
+
+  public int numWords(int doc) {
+    return wordOffsets[doc + 1] - wordOffsets[doc];
+  }
+
+  /**
+   * The id of the i-th word of doc, for 0 <= i < numWords(doc). Use term() for
+   * the word itself.
+   */
+  public int word(int doc, int i) {
+    return docWords[wordOffsets[doc] + i];
+  }
+
+  private void computeIdfs() {
+    idfs = new double[docFreqs.length];
+    for (int i = 0; i < idfs.length; i++) {
+      idfs[i] = docFreqs[i] > 0 ? (double) numDocs / docFreqs[i] : 0.0;
+    }
+  }
+
+  private static DocsTable build(IndexReader reader,
+      WordFeatureExtractor extractor, String signature) throws IOException {
+    DocsTable table = new DocsTable();
+    table.indexVersion = reader.getVersion();
+    table.numDocs = reader.maxDoc();
+    table.signature = signature;
+
+    // The terms of the content field, in the index order.
+    String [] terms = new String[1024];
+    int [] docFreqs = new int[1024];
+    int numTerms = 0;
+    TermEnum termEnum = reader.terms(new Term("content", ""));
+    try {
+      do {
+        Term term = termEnum.term();
+        if (term == null || !term.field().equals("content")) {
+          break;
+        }
+        if (numTerms == terms.length) {
+          terms = Arrays.copyOf(terms, numTerms * 2);
+          docFreqs = Arrays.copyOf(docFreqs, numTerms * 2);
+        }
+        table.termIds.put(term.text(), numTerms);
+        terms[numTerms] = term.text();
+        docFreqs[numTerms] = termEnum.docFreq();
+        numTerms++;
+      } while (termEnum.next());
+    } finally {
+      termEnum.close();
+    }
+    table.numIndexTerms = numTerms;
+
+    Map<String, Integer> tagIds = new HashMap<String, Integer>();
+    table.tagOffsets = new int[table.numDocs + 1];
+    int [] docTags = new int[1024];
+    if (extractor != null) {
+      table.wordOffsets = new int[table.numDocs + 1];
+      table.docWords = new int[1024];
+    }
+    int numTags = 0;
+    int numWords = 0;
+    for (int doc = 0; doc < table.numDocs; doc++) {
+      // Deleted documents keep their place, with no tags and no words.
+      if (!reader.isDeleted(doc)) {
+        Document document = reader.document(doc);
+        String tags = document.get("tags");
+        if (tags != null) {
+          for (String tag : tags.split(" ")) {
+            Integer id = tagIds.get(tag);
+            if (id == null) {
+              id = tagIds.size();
+              tagIds.put(tag, id);
+            }
+            if (numTags == docTags.length) {
+              docTags = Arrays.copyOf(docTags, numTags * 2);
+            }
+            docTags[numTags++] = id;
+          }
+        }
+        String content = document.get("content");
+        if (extractor != null && content != null) {
+          for (String word : extractor.getWords(content)) {
+            // Words the segmenter makes that are not terms get extra ids.
+            Integer id = table.termIds.get(word);
+            if (id == null) {
+              id = numTerms;
+              table.termIds.put(word, id);
+              if (numTerms == terms.length) {
+                terms = Arrays.copyOf(terms, numTerms * 2);
+                docFreqs = Arrays.copyOf(docFreqs, numTerms * 2);
+              }
+              terms[numTerms++] = word;
+            }
+            if (numWords == table.docWords.length) {
+              table.docWords = Arrays.copyOf(table.docWords, numWords * 2);
+            }
+            table.docWords[numWords++] = id;
+          }
+        }
+      }
+      table.tagOffsets[doc + 1] = numTags;
+      if (extractor != null) {
+        table.wordOffsets[doc + 1] = numWords;
+      }
+    }
+    table.terms = Arrays.copyOf(terms, numTerms);
+    table.docFreqs = Arrays.copyOf(docFreqs, numTerms);
+    table.docTags = Arrays.copyOf(docTags, numTags);
+    if (extractor != null) {
+      table.docWords = Arrays.copyOf(table.docWords, numWords);
+    }
+    table.tagNames = new String[tagIds.size()];
+    for (Map.Entry<String, Integer> e : tagIds.entrySet()) {
+      table.tagNames[e.getValue()] = e.getKey();
+    }
+    table.computeIdfs();
+    return table;
+  }
+
+  private static DocsTable read(File file) throws IOException {
+    DocsTable table = new DocsTable();
+    DataInputStream input = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)));
+    try {
+      if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+        throw new IOException(file + " is not a docs table");
+      }
+      table.indexVersion = input.readLong();
+      table.numDocs = input.readInt();
+      table.signature = input.readUTF();
+      int numTerms = input.readInt();
+      table.numIndexTerms = numTerms;
+      int numExtraWords = table.signature.length() > 0 ? input.readInt() : 0;
+      table.terms = new String[numTerms + numExtraWords];
+      table.docFreqs = new int[numTerms + numExtraWords];
+      for (int i = 0; i < numTerms; i++) {
+        table.terms[i] = input.readUTF();
+        table.docFreqs[i] = input.readInt();
+        table.termIds.put(table.terms[i], i);
+      }
+      for (int i = numTerms; i < numTerms + numExtraWords; i++) {
+        table.terms[i] = input.readUTF();
+        table.termIds.put(table.terms[i], i);
+      }
+      table.tagNames = new String[input.readInt()];
+      for (int i = 0; i < table.tagNames.length; i++) {
+        table.tagNames[i] = input.readUTF();
+      }
+      table.tagOffsets = readInts(input, table.numDocs + 1);
+      table.docTags = readInts(input, table.tagOffsets[table.numDocs]);
+      if (table.signature.length() > 0) {
+        table.wordOffsets = readInts(input, table.numDocs + 1);
+        table.docWords = readInts(input, table.wordOffsets[table.numDocs]);
+      }
+    } finally {
+      input.close();
+    }
+    table.computeIdfs();
+    return table;
+  }
+
+  private static int [] readInts(DataInputStream input, int size)
+      throws IOException {
+    int [] values = new int[size];
+    for (int i = 0; i < size; i++) {
+      values[i] = input.readInt();
+    }
+    return values;
+  }
+
+  /**
+   * Write the table next to file and rename it to file.
+   */
+  private void save(File file) throws IOException {
+    File tmp = File.createTempFile(TABLE_FILE, ".tmp",
+        file.getAbsoluteFile().getParentFile());
+    try {
+      write(tmp);
+      if (!tmp.renameTo(file)) {
+        // Some platforms do not rename over an existing file.
+        file.delete();
+        if (!tmp.renameTo(file)) {
+          throw new IOException("cannot rename " + tmp + " to " + file);
+        }
+      }
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  private void write(File file) throws IOException {
+    int numTerms = numIndexTerms;
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(indexVersion);
+      out.writeInt(numDocs);
+      out.writeUTF(signature);
+      out.writeInt(numTerms);
+      if (signature.length() > 0) {
+        out.writeInt(terms.length - numTerms);
+      }
+      for (int i = 0; i < numTerms; i++) {
+        out.writeUTF(terms[i]);
+        out.writeInt(docFreqs[i]);
+      }
+      for (int i = numTerms; i < terms.length; i++) {
+        out.writeUTF(terms[i]);
+      }
+      out.writeInt(tagNames.length);
+      for (String tag : tagNames) {
+        out.writeUTF(tag);
+      }
+      writeInts(out, tagOffsets);
+      writeInts(out, docTags);
+      if (signature.length() > 0) {
+        writeInts(out, wordOffsets);
+        writeInts(out, docWords);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void writeInts(DataOutputStream out, int [] values)
+      throws IOException {
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+}
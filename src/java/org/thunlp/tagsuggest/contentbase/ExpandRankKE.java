@@ -22,28 +22,37 @@ import java.util.Map.Entry;
 import java.util.logging.Logger;
 
 import org.apache.lucene.analysis.WhitespaceAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.CorruptIndexException;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.MultiFieldQueryParser;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TopDocs;
-import org.thunlp.matrix.NormalMatrix;
-import org.thunlp.matrix.pagerank.PageRank;
+import org.thunlp.matrix.CsrGraph;
+import org.thunlp.matrix.pagerank.PageRankSolver;
 import org.thunlp.misc.Counter;
 import org.thunlp.misc.WeightString;
 import org.thunlp.tagsuggest.common.KeywordPost;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
 import org.thunlp.tagsuggest.common.LegacyFeatureExtractor;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.Post;
 import org.thunlp.tagsuggest.common.TagSuggest;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 
 public class ExpandRankKE implements TagSuggest {
 	private static Logger LOG = Logger.getAnonymousLogger();
+	private static final LatencyHistogram KEYWORDS_LATENCY =
+			Metrics.histogram("suggest.ExpandRankKE.keywords");
+	private static final LatencyHistogram SEARCH_LATENCY =
+			Metrics.histogram("suggest.ExpandRankKE.search");
+	private static final LatencyHistogram GRAPH_LATENCY =
+			Metrics.histogram("suggest.ExpandRankKE.graph");
+	private static final LatencyHistogram RANK_LATENCY =
+			Metrics.histogram("suggest.ExpandRankKE.rank");
 	private IndexSearcher docsSearcher = null;
+	// The idf of the words and the segmented content of the documents.
+	private DocsTable table = null;
 	private QueryParser queryParser = null;
 	//private LegacyFeatureExtractor extractor = new LegacyFeatureExtractor();
 	private WordFeatureExtractor extractor = null;
@@ -52,6 +61,7 @@ public class ExpandRankKE implements TagSuggest {
 
 	private int k = 1;
 	private int numKeywords = 10;
+	private PageRankSolver solver = new PageRankSolver();
 
 	private static List<Vector<Double>> answerTf = new ArrayList<Vector<Double>>();
 	private static List<Vector<Double>> suggestTf = new ArrayList<Vector<Double>>(); 
@@ -65,6 +75,11 @@ public class ExpandRankKE implements TagSuggest {
 	public void loadModel(String modelPath) throws IOException {
 		docsSearcher = new IndexSearcher((new File(modelPath, "docs"))
 				.getAbsolutePath());
+		if (extractor == null) {
+			extractor = new WordFeatureExtractor(config);
+		}
+		table = DocsTable.load(modelPath, docsSearcher.getIndexReader(),
+				extractor, config);
 		String[] fields = { "doc_id", "content", "user_id", "tag" };
 		queryParser = new MultiFieldQueryParser(fields,
 				new WhitespaceAnalyzer());
@@ -79,26 +94,6 @@ public class ExpandRankKE implements TagSuggest {
 				.getProperty("keywords", "10"));
 	}
 
-	public void addEdge(NormalMatrix matrix, Vector<Integer> v, int start,
-			int end) {
-		for (int i = start; i < end; i++) {
-			for (int j = i + 1; j <= end; j++) {
-				matrix.add(v.get(i), v.get(j), 1);
-				matrix.add(v.get(j), v.get(i), 1);
-			}
-		}
-	}
-	
-	public void addEdge(NormalMatrix matrix, Vector<Integer> v, int start,
-			int end, double score) {
-		for (int i = start; i < end; i++) {
-			for (int j = i + 1; j <= end; j++) {
-				matrix.add(v.get(i), v.get(j), score);
-				matrix.add(v.get(j), v.get(i), score);
-			}
-		}
-	}
-
 	@Override
 	public List<WeightString> suggest(Post p, StringBuilder explain) {
 		// We first extract TF*IDF weighted keywords from post p. Then we use
@@ -110,8 +105,10 @@ public class ExpandRankKE implements TagSuggest {
 		// String content = p.getTitle() + " " + p.getContent();
 		String content = p.getTitle() + " " + ((KeywordPost) p).getSummary()
 				+ " " + p.getContent();
+		long start = System.nanoTime();
 		content = extractor.clean(content);
 		List<WeightString> keywords = extractKeywords(content);
+		KEYWORDS_LATENCY.recordSince(start);
 		Query q;
 		try {
 			q = makeQueryFromKeywords(keywords, numKeywords);
@@ -121,59 +118,53 @@ public class ExpandRankKE implements TagSuggest {
 			return EMPTY_SUGGESTION;
 		}
 		TopDocs topDocs;
+		start = System.nanoTime();
 		try {
 			topDocs = docsSearcher.search(q, null, k);
 		} catch (IOException e1) {
 			LOG.warning("IOException when search for " + p.getId());
 			return EMPTY_SUGGESTION;
 		}
+		SEARCH_LATENCY.recordSince(start);
 
+		start = System.nanoTime();
 		String[] words = extractor.getWords(content);
 		Counter<String> termFreq = new Counter<String>();
 
 		// calculate the word tf
 		HashMap<String, Integer> textMap = new HashMap<String, Integer>();
-		Vector<Integer> textWordId = new Vector<Integer>();
+		int[] textWordId = new int[words.length];
 		int num = 0;
 
-		for (String word : words) {
+		for (int i = 0; i < words.length; i++) {
+			String word = words[i];
 			termFreq.inc(word, 1);
 			if (!textMap.containsKey(word)) {
 				textMap.put(word, num);
-				textWordId.add(num);
+				textWordId[i] = num;
 				num++;
 			} else {
-				textWordId.add(textMap.get(word));
+				textWordId[i] = textMap.get(word);
 			}
 		}
 		
 		// Collect tags.
 		//Map<String, Double> tags = new Hashtable<String, Double>();
-		Vector<Vector<Integer>> otherTexts = new Vector<Vector<Integer>>();
+		List<int[]> otherTexts = new ArrayList<int[]>();
 		Vector<Double> scores = new Vector<Double>();
 		for (int i = 0; i < topDocs.scoreDocs.length; i++) {
 			int resultId = topDocs.scoreDocs[i].doc;
 			double score = topDocs.scoreDocs[i].score;
-			Document doc;
-			try {
-				doc = docsSearcher.doc(resultId);
-			} catch (CorruptIndexException e1) {
-				LOG.warning("Corrupted index when searching for " + p.getId());
-				return EMPTY_SUGGESTION;
-			} catch (IOException e1) {
-				LOG.warning("IOException when looking up doc " + p.getId());
-				return EMPTY_SUGGESTION;
-			}
 			
-			String[] otherWords = extractor.getWords(doc.get("content"));
-			Vector<Integer> otherText = new Vector<Integer>();
-			for (String word : otherWords) {
+			int[] otherText = new int[table.numWords(resultId)];
+			for (int j = 0; j < otherText.length; j++) {
+				String word = table.term(table.word(resultId, j));
 				if (!textMap.containsKey(word)) {
 					textMap.put(word, num);
-					otherText.add(num);
+					otherText[j] = num;
 					num++;
 				} else {
-					otherText.add(textMap.get(word));
+					otherText[j] = textMap.get(word);
 				}
 			}
 			otherTexts.add(otherText);
@@ -191,53 +182,17 @@ public class ExpandRankKE implements TagSuggest {
 			*/
 		}
 		
-		NormalMatrix matrix = new NormalMatrix(num, num);
+		CsrGraph.Builder graph = new CsrGraph.Builder(num);
 		int window = 10;
-		int len = textWordId.size();
-		if (len < window) {
-			for (int i = 1; i < len; i++) {
-				addEdge(matrix, textWordId, 0, i);
-			}
-			for (int i = 1; i < len - 1; i++) {
-				addEdge(matrix, textWordId, i, len - 1);
-			}
-		} else {
-			for (int i = 1; i < window - 1; i++) {
-				addEdge(matrix, textWordId, 0, i);
-			}
-			for (int i = 0; i <= len - window; i++) {
-				addEdge(matrix, textWordId, i, i + window - 1);
-			}
-			for (int i = len - window + 1; i < len - 1; i++) {
-				addEdge(matrix, textWordId, i, len - 1);
-			}
-		}
-		
+		graph.addSlidingWindows(textWordId, window, 1);
 		for(int j = 0; j < otherTexts.size(); j ++){
-			len = otherTexts.get(j).size();
-			double score = scores.get(j);
-			if (len < window) {
-				for (int i = 1; i < len; i++) {
-					addEdge(matrix, otherTexts.get(j), 0, i, score);
-				}
-				for (int i = 1; i < len - 1; i++) {
-					addEdge(matrix, otherTexts.get(j), i, len - 1, score);
-				}
-			} else {
-				for (int i = 1; i < window - 1; i++) {
-					addEdge(matrix, otherTexts.get(j), 0, i, score);
-				}
-				for (int i = 0; i <= len - window; i++) {
-					addEdge(matrix, otherTexts.get(j), i, i + window - 1, score);
-				}
-				for (int i = len - window + 1; i < len - 1; i++) {
-					addEdge(matrix, otherTexts.get(j), i, len - 1, score);
-				}
-			}
+			graph.addSlidingWindows(otherTexts.get(j), window, scores.get(j));
 		}
-		
-		PageRank.prepareMatrix(matrix);
-		double rankValue[] = PageRank.pageRank(matrix, 100);
+		CsrGraph built = graph.build();
+		GRAPH_LATENCY.recordSince(start);
+
+		start = System.nanoTime();
+		double rankValue[] = solver.pageRank(built);
 
 		Iterator<Entry<String, Long>> iter = termFreq.iterator();
 		List<WeightString> suggested = new ArrayList<WeightString>();
@@ -257,6 +212,7 @@ public class ExpandRankKE implements TagSuggest {
 			}
 
 		});
+		RANK_LATENCY.recordSince(start);
 		
 		double normalTf = 0.0;
 		Vector<Double> record = new Vector<Double>();
@@ -359,32 +315,12 @@ public class ExpandRankKE implements TagSuggest {
 		for (String word : words) {
 			termFreq.inc(word, 1);
 		}
-		double maxDocs = 100000;
-		try {
-			maxDocs = (double) docsSearcher.maxDoc();
-		} catch (IOException e1) {
-			LOG.warning("Cannot query the total number of docs.");
-			e1.printStackTrace();
-		}
 		Iterator<Entry<String, Long>> iter = termFreq.iterator();
 		List<WeightString> keywords = new ArrayList<WeightString>();
 		while (iter.hasNext()) {
 			Entry<String, Long> e = iter.next();
 			double tf = (double) e.getValue() / (double) words.length;
-			double df = 1;
-			try {
-				df = docsSearcher.docFreq(new Term("content", e.getKey()));
-			} catch (IOException e1) {
-				LOG
-						.warning("Cannot query document frequency for "
-								+ e.getKey());
-				e1.printStackTrace();
-			}
-			double idf = 0.0;
-			if (df > 0.0)
-				idf = maxDocs / df;
-			else
-				idf = 0.0;
+			double idf = table.idf(e.getKey());
 			keywords.add(new WeightString(e.getKey(), tf * idf));
 		}
 
@@ -0,0 +1,235 @@
+package org.thunlp.tagsuggest.contentbase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.thunlp.hadooplda.LdaModel;
+
+/**
+ * Topic inference of single documents against a trained LDA model, for the
+ * taggers that infer the topics of every post they are asked about.
+ *
+ * A trained model is locked, so p(w|z) is fixed. It is copied into one dense
+ * row per word when the tagger loads the model, and a sweep reads a row
+ * instead of looking up the word and recomputing the row for every token.
+ * The draws are the same as those of the model's own inference: p(z) is
+ * proportional to p(w|z) * (n(z,d) + alpha), mixed with the uniform mask of
+ * LdaModel, and unknown words get no topic.
+ *
+ * The model's inference always runs 30 burn-in and 10 sampling sweeps. Here
+ * sampling starts after minBurnIn sweeps, and stops once one more sample moves
+ * the averaged topic distribution by less than tolerance (L1), or after the
+ * model's 40 sweeps. The distributions of recent documents are kept in an LRU
+ * cache keyed by the document's known words.
+ *
+ * Safe to use from many threads.
+ */
+public class FastLdaInference {
+  private static final int NUM_BURN_IN = 30;
+  private static final int NUM_SAMPLING = 10;
+  private static final int MIN_SAMPLING = 3;
+
+  private int numTopics;
+  private double alpha;
+  private double mask;
+  private Map<String, Integer> wordIds = new HashMap<String, Integer>();
+  private double [][] pwz;
+  private int minBurnIn = 5;
+  private double tolerance = 0.01;
+  private Random random = new Random();
+  private Map<DocumentKey, double []> cache = null;
+
+  public FastLdaInference(LdaModel model) {
+    this(model.getNumTopics(), model.getAlpha(), model.getMask());
+    double [] row = new double[numTopics];
+    for (String word : model.getAllWords()) {
+      model.pwz(word, row);
+      addWord(word, row);
+    }
+  }
+
+  public FastLdaInference(NoiseTagLdaModel model) {
+    this(model.getNumTopics(), model.getAlpha(), 0);
+    double [] row = new double[numTopics];
+    for (String word : model.getAllWords()) {
+      model.pwz(word, row);
+      addWord(word, row);
+    }
+  }
+
+  private FastLdaInference(int numTopics, double alpha, double mask) {
+    this.numTopics = numTopics;
+    this.alpha = alpha;
+    this.mask = mask;
+    pwz = new double[16][];
+  }
+
+  private void addWord(String word, double [] row) {
+    int id = wordIds.size();
+    wordIds.put(word, id);
+    if (id == pwz.length) {
+      pwz = Arrays.copyOf(pwz, id * 2);
+    }
+    pwz[id] = row.clone();
+  }
+
+  /**
+   * Read lda_burnin (the sweeps before sampling starts), lda_tolerance and
+   * lda_cache_size (0 turns the cache off).
+   */
+  public void configure(Properties config) {
+    minBurnIn = Math.min(NUM_BURN_IN,
+        Integer.parseInt(config.getProperty("lda_burnin", "5")));
+    tolerance =
+      Double.parseDouble(config.getProperty("lda_tolerance", "0.01"));
+    setCacheSize(
+        Integer.parseInt(config.getProperty("lda_cache_size", "1000")));
+  }
+
+  public void setCacheSize(final int size) {
+    if (size <= 0) {
+      cache = null;
+      return;
+    }
+    cache = new LinkedHashMap<DocumentKey, double []>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<DocumentKey, double []> eldest) {
+        return size() > size;
+      }
+    };
+  }
+
+  public int getNumTopics() {
+    return numTopics;
+  }
+
+  /**
+   * Infer the topic distribution of the document into pzd.
+   */
+  public void inference(String [] words, double [] pzd) {
+    int [] ids = new int[words.length];
+    int n = 0;
+    for (String word : words) {
+      Integer id = wordIds.get(word);
+      if (id != null) {
+        ids[n++] = id;
+      }
+    }
+    ids = Arrays.copyOf(ids, n);
+
+    Map<DocumentKey, double []> cache = this.cache;
+    DocumentKey key = null;
+    if (cache != null) {
+      // The order of the words does not matter to the topics.
+      int [] sorted = ids.clone();
+      Arrays.sort(sorted);
+      key = new DocumentKey(sorted);
+      double [] cached;
+      synchronized (cache) {
+        cached = cache.get(key);
+      }
+      if (cached != null) {
+        System.arraycopy(cached, 0, pzd, 0, numTopics);
+        return;
+      }
+    }
+
+    gibbsSampling(ids, pzd);
+
+    if (cache != null) {
+      synchronized (cache) {
+        cache.put(key, pzd.clone());
+      }
+    }
+  }
+
+  private void gibbsSampling(int [] ids, double [] pzd) {
+    int [] topics = new int[ids.length];
+    int [] nzd = new int[numTopics];
+    double [] p = new double[numTopics];
+    double [] mean = new double[numTopics];
+    for (int i = 0; i < ids.length; i++) {
+      topics[i] = random.nextInt(numTopics);
+      nzd[topics[i]]++;
+    }
+
+    int numSamples = 0;
+    for (int iter = 0; iter < NUM_BURN_IN + NUM_SAMPLING; iter++) {
+      for (int i = 0; i < ids.length; i++) {
+        nzd[topics[i]]--;
+        double [] row = pwz[ids[i]];
+        double sum = 0;
+        for (int z = 0; z < numTopics; z++) {
+          double v = row[z] * (nzd[z] + alpha);
+          if (mask > 0) {
+            v = (1 - mask) * v + mask / numTopics;
+          }
+          sum += v;
+          p[z] = sum;
+        }
+        double u = random.nextDouble() * sum;
+        int z = 0;
+        while (z < numTopics - 1 && p[z] < u) {
+          z++;
+        }
+        topics[i] = z;
+        nzd[z]++;
+      }
+      if (iter < minBurnIn || ids.length == 0) {
+        continue;
+      }
+
+      // Fold the sample into the running mean of n(z,d) / n(d).
+      numSamples++;
+      double change = 0;
+      for (int z = 0; z < numTopics; z++) {
+        double delta =
+          ((double) nzd[z] / ids.length - mean[z]) / numSamples;
+        mean[z] += delta;
+        change += Math.abs(delta);
+      }
+      if (numSamples >= MIN_SAMPLING && change < tolerance) {
+        break;
+      }
+    }
+
+    // Smooth as the model does after its NUM_SAMPLING samples, so that alpha
+    // keeps the same weight however many samples were taken.
+    double norm = 0;
+    for (int z = 0; z < numTopics; z++) {
+      pzd[z] = mean[z] * ids.length * NUM_SAMPLING + alpha;
+      norm += pzd[z];
+    }
+    for (int z = 0; z < numTopics; z++) {
+      pzd[z] /= norm;
+    }
+  }
+
+  private static class DocumentKey {
+    private int [] ids;
+    private int hash;
+
+    DocumentKey(int [] ids) {
+      this.ids = ids;
+      hash = Arrays.hashCode(ids);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof DocumentKey
+          && Arrays.equals(ids, ((DocumentKey) o).ids);
+    }
+  }
+}
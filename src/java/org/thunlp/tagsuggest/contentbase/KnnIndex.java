@@ -0,0 +1,539 @@
+package org.thunlp.tagsuggest.contentbase;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The document index of the native KNN backend: an inverted index from word
+ * ids to the documents containing them, and a forward array from documents to
+ * their tag ids. TrainKnn writes it instead of the Lucene index when
+ * knn_backend=native.
+ *
+ * A posting carries the impact of the word on the document, scored as Lucene's
+ * DefaultSimilarity does without the query norm and coord:
+ * sqrt(tf) * idf / sqrt(length), with idf = 1 + ln(numDocs / (df + 1)). It is
+ * quantized to a byte, in units of 1/255 of the largest impact of the word,
+ * and 255 units bound the score of the word for WAND.
+ *
+ * The file is memory mapped as SMTModel's is. Layout (big-endian): magic,
+ * version, dictionary block length, number of documents; the dictionary block
+ * (words with their df and impact unit, then tag names); the posting
+ * offsets, posting documents, tag offsets and tag ids as ints; the impacts as
+ * bytes.
+ */
+public class KnnIndex {
+  public static String INDEX_FILE = "knn.index";
+  private static int MAGIC = 0x4b4e4e31; // "KNN1"
+  private static int VERSION = 1;
+  private static int HEADER_SIZE = 16;
+
+  private int numDocs;
+  private Map<String, Integer> wordIds = new HashMap<String, Integer>();
+  private int [] docFreqs;
+  private float [] impactUnits;
+  private String [] tagNames;
+  private IntBuffer postingOffsets;
+  private IntBuffer postingDocs;
+  private ByteBuffer postingImpacts;
+  private IntBuffer tagOffsets;
+  private IntBuffer docTags;
+
+  private KnnIndex() {
+  }
+
+  public int numDocs() {
+    return numDocs;
+  }
+
+  /**
+   * The id of word, or -1 if no document contains it.
+   */
+  public int wordId(String word) {
+    Integer id = wordIds.get(word);
+    return id == null ? -1 : id;
+  }
+
+  public int docFreq(String word) {
+    Integer id = wordIds.get(word);
+    return id == null ? 0 : docFreqs[id];
+  }
+
+  public int numTags(int doc) {
+    return tagOffsets.get(doc + 1) - tagOffsets.get(doc);
+  }
+
+  /**
+   * The i-th tag id of doc, for 0 <= i < numTags(doc).
+   */
+  public int tag(int doc, int i) {
+    return docTags.get(tagOffsets.get(doc) + i);
+  }
+
+  public int numTagNames() {
+    return tagNames.length;
+  }
+
+  public String tagName(int tag) {
+    return tagNames[tag];
+  }
+
+  private double impact(int word, int posting) {
+    return (postingImpacts.get(posting) & 0xff) * (double) impactUnits[word];
+  }
+
+  /**
+   * Find the k documents of highest score sum_i weights[i] * impact(words[i]),
+   * with WAND: documents that cannot beat the k-th best score so far are
+   * skipped over by binary search in the posting lists, without scoring them.
+   * The result is the same as scoring every document, with ties going to the
+   * lower document id.
+   *
+   * @param words word ids, each at most once; negative ids are ignored
+   * @param docs receives the documents by decreasing score
+   * @param scores receives their scores
+   * @return the number of documents found, at most k
+   */
+  public int search(int [] words, double [] weights, int k, int [] docs,
+      double [] scores) {
+    if (k <= 0) {
+      return 0;
+    }
+    // One cursor per word, kept sorted by current document.
+    int n = 0;
+    int [] word = new int[words.length];
+    int [] pos = new int[words.length];
+    int [] end = new int[words.length];
+    int [] doc = new int[words.length];
+    double [] weight = new double[words.length];
+    double [] bound = new double[words.length];
+    for (int i = 0; i < words.length; i++) {
+      if (words[i] < 0 || weights[i] <= 0) {
+        continue;
+      }
+      word[n] = words[i];
+      pos[n] = postingOffsets.get(words[i]);
+      end[n] = postingOffsets.get(words[i] + 1);
+      doc[n] = postingDocs.get(pos[n]);
+      weight[n] = weights[i];
+      bound[n] = weights[i] * (255 * (double) impactUnits[words[i]]);
+      n++;
+    }
+    for (int i = 1; i < n; i++) {
+      insertCursor(i, word, pos, end, doc, weight, bound);
+    }
+
+    // A min-heap of the best documents so far; heapDocs[0] is the k-th best.
+    int size = 0;
+    int [] heapDocs = new int[k];
+    double [] heapScores = new double[k];
+    while (n > 0) {
+      double threshold = size < k ? -1 : heapScores[0];
+      // The pivot is the first cursor where the bounds add up above the
+      // threshold. No document before its document can make it.
+      double sum = 0;
+      int pivot = -1;
+      for (int i = 0; i < n; i++) {
+        sum += bound[i];
+        if (sum > threshold) {
+          pivot = i;
+          break;
+        }
+      }
+      if (pivot < 0) {
+        break;
+      }
+      int pivotDoc = doc[pivot];
+      if (doc[0] == pivotDoc) {
+        // Score the pivot document and move its cursors on.
+        double score = 0;
+        while (n > 0 && doc[0] == pivotDoc) {
+          score += weight[0] * impact(word[0], pos[0]);
+          if (++pos[0] == end[0]) {
+            n--;
+            moveCursor(n, 0, word, pos, end, doc, weight, bound);
+          } else {
+            doc[0] = postingDocs.get(pos[0]);
+          }
+          bubbleDown(0, n, word, pos, end, doc, weight, bound);
+        }
+        if (size < k) {
+          heapDocs[size] = pivotDoc;
+          heapScores[size] = score;
+          siftUp(size++, heapDocs, heapScores);
+        } else if (score > heapScores[0]) {
+          heapDocs[0] = pivotDoc;
+          heapScores[0] = score;
+          siftDown(0, size, heapDocs, heapScores);
+        }
+      } else {
+        // Skip the cursors before the pivot to the pivot document.
+        while (doc[0] < pivotDoc) {
+          pos[0] = seek(pos[0], end[0], pivotDoc);
+          if (pos[0] == end[0]) {
+            n--;
+            moveCursor(n, 0, word, pos, end, doc, weight, bound);
+          } else {
+            doc[0] = postingDocs.get(pos[0]);
+          }
+          bubbleDown(0, n, word, pos, end, doc, weight, bound);
+          if (n == 0) {
+            break;
+          }
+        }
+      }
+    }
+
+    for (int i = size - 1; i >= 0; i--) {
+      docs[i] = heapDocs[0];
+      scores[i] = heapScores[0];
+      heapDocs[0] = heapDocs[i];
+      heapScores[0] = heapScores[i];
+      siftDown(0, i, heapDocs, heapScores);
+    }
+    return size;
+  }
+
+  /**
+   * The first posting in [from, to) whose document is at least target, by
+   * galloping and then binary search.
+   */
+  private int seek(int from, int to, int target) {
+    int step = 1;
+    int lo = from;
+    int hi = from;
+    while (hi < to && postingDocs.get(hi) < target) {
+      lo = hi + 1;
+      hi += step;
+      step *= 2;
+    }
+    hi = Math.min(hi, to);
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (postingDocs.get(mid) < target) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private static void moveCursor(int from, int to, int [] word, int [] pos,
+      int [] end, int [] doc, double [] weight, double [] bound) {
+    word[to] = word[from];
+    pos[to] = pos[from];
+    end[to] = end[from];
+    doc[to] = doc[from];
+    weight[to] = weight[from];
+    bound[to] = bound[from];
+  }
+
+  /**
+   * Insertion step for a cursor at i whose predecessors are sorted.
+   */
+  private static void insertCursor(int i, int [] word, int [] pos, int [] end,
+      int [] doc, double [] weight, double [] bound) {
+    while (i > 0 && doc[i - 1] > doc[i]) {
+      swap(i - 1, i, word, pos, end, doc, weight, bound);
+      i--;
+    }
+  }
+
+  /**
+   * Move the cursor at i, whose document grew, to its place among n cursors.
+   */
+  private static void bubbleDown(int i, int n, int [] word, int [] pos,
+      int [] end, int [] doc, double [] weight, double [] bound) {
+    while (i + 1 < n && doc[i + 1] < doc[i]) {
+      swap(i, i + 1, word, pos, end, doc, weight, bound);
+      i++;
+    }
+  }
+
+  private static void swap(int a, int b, int [] word, int [] pos, int [] end,
+      int [] doc, double [] weight, double [] bound) {
+    int t = word[a]; word[a] = word[b]; word[b] = t;
+    t = pos[a]; pos[a] = pos[b]; pos[b] = t;
+    t = end[a]; end[a] = end[b]; end[b] = t;
+    t = doc[a]; doc[a] = doc[b]; doc[b] = t;
+    double d = weight[a]; weight[a] = weight[b]; weight[b] = d;
+    d = bound[a]; bound[a] = bound[b]; bound[b] = d;
+  }
+
+  /**
+   * Heap order: lower score first, and of equal scores the higher document,
+   * so that the lower document survives.
+   */
+  private static boolean worse(int a, int b, int [] docs, double [] scores) {
+    return scores[a] < scores[b]
+        || (scores[a] == scores[b] && docs[a] > docs[b]);
+  }
+
+  private static void siftUp(int i, int [] docs, double [] scores) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (!worse(i, parent, docs, scores)) {
+        break;
+      }
+      swapEntries(i, parent, docs, scores);
+      i = parent;
+    }
+  }
+
+  private static void siftDown(int i, int size, int [] docs,
+      double [] scores) {
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && worse(child + 1, child, docs, scores)) {
+        child++;
+      }
+      if (!worse(child, i, docs, scores)) {
+        break;
+      }
+      swapEntries(i, child, docs, scores);
+      i = child;
+    }
+  }
+
+  private static void swapEntries(int a, int b, int [] docs,
+      double [] scores) {
+    int d = docs[a]; docs[a] = docs[b]; docs[b] = d;
+    double s = scores[a]; scores[a] = scores[b]; scores[b] = s;
+  }
+
+  public static KnnIndex load(File file) throws IOException {
+    KnnIndex index = new KnnIndex();
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          HEADER_SIZE);
+      if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+        throw new IOException(file + " is not a KNN index");
+      }
+      int dictionaryBytes = header.getInt(8);
+      index.numDocs = header.getInt(12);
+
+      byte [] dictionary = new byte[dictionaryBytes];
+      channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, dictionaryBytes)
+          .get(dictionary);
+      DataInputStream input = new DataInputStream(
+          new ByteArrayInputStream(dictionary));
+      int numWords = input.readInt();
+      index.docFreqs = new int[numWords];
+      index.impactUnits = new float[numWords];
+      for (int i = 0; i < numWords; i++) {
+        index.wordIds.put(input.readUTF(), i);
+        index.docFreqs[i] = input.readInt();
+        index.impactUnits[i] = input.readFloat();
+      }
+      index.tagNames = new String[input.readInt()];
+      for (int i = 0; i < index.tagNames.length; i++) {
+        index.tagNames[i] = input.readUTF();
+      }
+
+      long position = align(HEADER_SIZE + dictionaryBytes);
+      index.postingOffsets = mapInts(channel, position, numWords + 1);
+      position += 4L * (numWords + 1);
+      int numPostings = index.postingOffsets.get(numWords);
+      index.postingDocs = mapInts(channel, position, numPostings);
+      position += 4L * numPostings;
+      index.tagOffsets = mapInts(channel, position, index.numDocs + 1);
+      position += 4L * (index.numDocs + 1);
+      int numDocTags = index.tagOffsets.get(index.numDocs);
+      index.docTags = mapInts(channel, position, numDocTags);
+      position += 4L * numDocTags;
+      index.postingImpacts = channel.map(FileChannel.MapMode.READ_ONLY,
+          position, numPostings);
+    } finally {
+      // The mappings stay valid after the channel is closed.
+      raf.close();
+    }
+    return index;
+  }
+
+  private static IntBuffer mapInts(FileChannel channel, long position,
+      int size) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * size)
+        .asIntBuffer();
+  }
+
+  private static long align(long position) {
+    return (position + 3) / 4 * 4;
+  }
+
+  /**
+   * Collects the documents and writes the index.
+   */
+  public static class Builder {
+    private Map<String, Integer> wordIds = new HashMap<String, Integer>();
+    private Map<String, Integer> tagIds = new HashMap<String, Integer>();
+    private String [] words = new String[1024];
+    private String [] tags = new String[64];
+    // The postings of each word as (document, term frequency) pairs.
+    private int [][] postings = new int[1024][];
+    private int [] postingSizes = new int[1024];
+    private int [] lengths = new int[1024];
+    private int [] tagOffsets = new int[1025];
+    private int [] docTags = new int[1024];
+    private int numDocs = 0;
+    private Map<String, int []> tf = new HashMap<String, int []>();
+
+    /**
+     * Add the next document, whose id is the number of documents added before.
+     */
+    public void addDocument(String [] content, Collection<String> docTagNames) {
+      int doc = numDocs++;
+      if (doc == lengths.length) {
+        lengths = Arrays.copyOf(lengths, doc * 2);
+        tagOffsets = Arrays.copyOf(tagOffsets, doc * 2 + 1);
+      }
+      lengths[doc] = content.length;
+
+      tf.clear();
+      for (String word : content) {
+        int [] count = tf.get(word);
+        if (count == null) {
+          tf.put(word, new int[] {1});
+        } else {
+          count[0]++;
+        }
+      }
+      for (Map.Entry<String, int []> e : tf.entrySet()) {
+        int id = id(wordIds, e.getKey());
+        if (id == words.length) {
+          words = Arrays.copyOf(words, id * 2);
+          postings = Arrays.copyOf(postings, id * 2);
+          postingSizes = Arrays.copyOf(postingSizes, id * 2);
+        }
+        words[id] = e.getKey();
+        int [] list = postings[id];
+        int size = postingSizes[id];
+        if (list == null) {
+          list = postings[id] = new int[4];
+        } else if (size == list.length) {
+          list = postings[id] = Arrays.copyOf(list, size * 2);
+        }
+        list[size] = doc;
+        list[size + 1] = e.getValue()[0];
+        postingSizes[id] = size + 2;
+      }
+
+      int n = tagOffsets[doc];
+      for (String tag : docTagNames) {
+        int id = id(tagIds, tag);
+        if (id == tags.length) {
+          tags = Arrays.copyOf(tags, id * 2);
+        }
+        tags[id] = tag;
+        if (n == docTags.length) {
+          docTags = Arrays.copyOf(docTags, n * 2);
+        }
+        docTags[n++] = id;
+      }
+      tagOffsets[doc + 1] = n;
+    }
+
+    private static int id(Map<String, Integer> ids, String name) {
+      Integer id = ids.get(name);
+      if (id == null) {
+        id = ids.size();
+        ids.put(name, id);
+      }
+      return id;
+    }
+
+    public void write(File output) throws IOException {
+      int numWords = wordIds.size();
+      float [] impactUnits = new float[numWords];
+      int [] postingOffsets = new int[numWords + 1];
+      for (int w = 0; w < numWords; w++) {
+        postingOffsets[w + 1] = postingOffsets[w] + postingSizes[w] / 2;
+      }
+      int numPostings = postingOffsets[numWords];
+      byte [] impacts = new byte[numPostings];
+      double [] impact = new double[0];
+      for (int w = 0; w < numWords; w++) {
+        int df = postingSizes[w] / 2;
+        double idf = 1 + Math.log((double) numDocs / (df + 1));
+        if (impact.length < df) {
+          impact = new double[df];
+        }
+        double max = 0;
+        for (int i = 0; i < df; i++) {
+          int doc = postings[w][2 * i];
+          impact[i] = Math.sqrt(postings[w][2 * i + 1]) * idf
+              / Math.sqrt(lengths[doc]);
+          max = Math.max(max, impact[i]);
+        }
+        impactUnits[w] = (float) (max / 255);
+        for (int i = 0; i < df; i++) {
+          impacts[postingOffsets[w] + i] = (byte) Math.round(
+              max > 0 ? impact[i] / max * 255 : 0);
+        }
+      }
+
+      ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+      DataOutputStream dictionary = new DataOutputStream(dictionaryBytes);
+      dictionary.writeInt(numWords);
+      for (int w = 0; w < numWords; w++) {
+        dictionary.writeUTF(words[w]);
+        dictionary.writeInt(postingSizes[w] / 2);
+        dictionary.writeFloat(impactUnits[w]);
+      }
+      dictionary.writeInt(tagIds.size());
+      for (int t = 0; t < tagIds.size(); t++) {
+        dictionary.writeUTF(tags[t]);
+      }
+      dictionary.close();
+
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(output)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(dictionaryBytes.size());
+        out.writeInt(numDocs);
+        dictionaryBytes.writeTo(out);
+        for (long p = HEADER_SIZE + dictionaryBytes.size();
+            p < align(HEADER_SIZE + dictionaryBytes.size()); p++) {
+          out.writeByte(0);
+        }
+        for (int w = 0; w <= numWords; w++) {
+          out.writeInt(postingOffsets[w]);
+        }
+        for (int w = 0; w < numWords; w++) {
+          for (int i = 0; i < postingSizes[w]; i += 2) {
+            out.writeInt(postings[w][i]);
+          }
+        }
+        for (int d = 0; d <= numDocs; d++) {
+          out.writeInt(tagOffsets[d]);
+        }
+        for (int i = 0; i < tagOffsets[numDocs]; i++) {
+          out.writeInt(docTags[i]);
+        }
+        out.write(impacts);
+      } finally {
+        out.close();
+      }
+    }
+  }
+}
@@ -5,19 +5,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
 
 import org.apache.lucene.analysis.WhitespaceAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.CorruptIndexException;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.MultiFieldQueryParser;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
@@ -26,20 +21,46 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TopDocs;
 import org.thunlp.misc.Counter;
 import org.thunlp.misc.WeightString;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
 import org.thunlp.tagsuggest.common.LegacyFeatureExtractor;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.Post;
-import org.thunlp.tagsuggest.common.TagSuggest;
+import org.thunlp.tagsuggest.common.TagScores;
+import org.thunlp.tagsuggest.common.TopKTagSuggest;
+import org.thunlp.tagsuggest.common.TopTags;
 
-public class KnnTagSuggest implements TagSuggest {
+/**
+ * Suggests the tags of the k documents most similar to the post. The
+ * documents are searched in the Lucene index TrainKnn builds, or in the
+ * native KnnIndex with knn_backend=native, which must be the backend the
+ * model was trained with. The native index runs a WAND top-k search directly on the
+ * keyword weights and reads the tags of the hits from a forward array.
+ * With Lucene, the idf of the keywords and the tags of the hits come from a
+ * DocsTable, so the index is only searched.
+ *
+ * Not a ThreadSafeTagSuggest: QueryParser keeps parsing state in the
+ * instance, so each thread needs its own suggester. The IndexSearcher itself
+ * could be shared.
+ */
+public class KnnTagSuggest implements TopKTagSuggest {
   private static Logger LOG = Logger.getAnonymousLogger();
+  private static final LatencyHistogram KEYWORDS_LATENCY =
+      Metrics.histogram("suggest.KnnTagSuggest.keywords");
+  private static final LatencyHistogram SEARCH_LATENCY =
+      Metrics.histogram("suggest.KnnTagSuggest.search");
+  private static final LatencyHistogram TAGS_LATENCY =
+      Metrics.histogram("suggest.KnnTagSuggest.tags");
   private IndexSearcher docsSearcher = null;
   private QueryParser queryParser = null;
+  private KnnIndex index = null;
+  private DocsTable table = null;
   private LegacyFeatureExtractor extractor = new LegacyFeatureExtractor();
   private Properties config = new Properties();
   private static List<WeightString> EMPTY_SUGGESTION =  new LinkedList<WeightString>();
   
   private int k = 1;
   private int numKeywords = 10;
+  private TagScores tagScores = new TagScores();
   
   @Override
   public void feedback(Post p) {
@@ -48,7 +69,14 @@ public class KnnTagSuggest implements TagSuggest {
 
   @Override
   public void loadModel(String modelPath) throws IOException {
+    if (config.getProperty("knn_backend", "lucene").equals("native")) {
+      index = KnnIndex.load(new File(modelPath, KnnIndex.INDEX_FILE));
+      LOG.info("Load native KNN index of " + index.numDocs() + " documents");
+      return;
+    }
     docsSearcher =  new IndexSearcher((new File(modelPath, "docs")).getAbsolutePath());
+    table = DocsTable.load(modelPath, docsSearcher.getIndexReader(), null,
+        config);
     String [] fields = {"doc_id", "content", "user_id", "tag"};
     queryParser = new MultiFieldQueryParser(fields, new WhitespaceAnalyzer());
   }
@@ -63,13 +91,23 @@ public class KnnTagSuggest implements TagSuggest {
 
   @Override
   public List<WeightString> suggest(Post p, StringBuilder explain) {
+    return suggest(p, Integer.MAX_VALUE, explain);
+  }
+
+  @Override
+  public List<WeightString> suggest(Post p, int topK, StringBuilder explain) {
     // We first extract TF*IDF weighted keywords from post p. Then we use these
     // keywords to form a query to Lucene index. Finally, we collect the tags in 
     // relevant documents as the suggestion.
     
+    long start = System.nanoTime();
     String content = p.getTitle() + " " + p.getContent();
     content = extractor.clean(content);
     List<WeightString> keywords = extractKeywords(content);
+    KEYWORDS_LATENCY.recordSince(start);
+    if (index != null) {
+      return suggestFromIndex(keywords, topK);
+    }
     Query q;
     try {
     	q = makeQueryFromKeywords(keywords, numKeywords);
@@ -79,53 +117,76 @@ public class KnnTagSuggest implements TagSuggest {
       return EMPTY_SUGGESTION;
     }
     TopDocs topDocs;
+    start = System.nanoTime();
     try {
       topDocs = docsSearcher.search(q, null, k);
     } catch (IOException e1) {
       LOG.warning("IOException when search for " + p.getId());
       return EMPTY_SUGGESTION;
     }
+    SEARCH_LATENCY.recordSince(start);
 
     // Collect tags.
-    Map<String, Double> tags = new Hashtable<String, Double>();
+    start = System.nanoTime();
+    tagScores.ensureCapacity(table.numTagNames());
     for (int i = 0; i < topDocs.scoreDocs.length; i++) {
       int resultId = topDocs.scoreDocs[i].doc;
       double score = topDocs.scoreDocs[i].score;
-      Document doc;
-      try {
-        doc = docsSearcher.doc(resultId);
-      } catch (CorruptIndexException e1) {
-        LOG.warning("Corrupted index when searching for " + p.getId());
-        return EMPTY_SUGGESTION;
-      } catch (IOException e1) {
-        LOG.warning("IOException when looking up doc " + p.getId());
-        return EMPTY_SUGGESTION;
-      }
-      String [] docTags = doc.get("tags").split(" ");
-      for (String tagStr : docTags) {
-        Double weight = tags.get(tagStr);
-        if (weight == null) {
-          weight = 0.0;
-        }
-        tags.put(tagStr, weight + score);
+      for (int j = 0; j < table.numTags(resultId); j++) {
+        tagScores.add(table.tagId(resultId, j), score);
       }
     }
 
     // Weight tags.
-    List<WeightString> suggested = new ArrayList<WeightString>();
-    for (Entry<String, Double> e : tags.entrySet()) {
-      suggested.add(new WeightString(e.getKey(), e.getValue()));
+    tagScores.sortCandidates();
+    TopTags top = new TopTags(Math.min(topK, tagScores.size()));
+    for (int j = 0; j < tagScores.size(); j++) {
+      int tag = tagScores.candidate(j);
+      top.add(table.tagName(tag), tagScores.score(tag));
     }
-    Collections.sort(suggested, new Comparator<WeightString>() {
+    tagScores.clear();
+    List<WeightString> result = top.drain();
+    TAGS_LATENCY.recordSince(start);
+    return result;
+  }
 
-      @Override
-      public int compare(WeightString o1, WeightString o2) {
-        return Double.compare(o2.weight, o1.weight);
+  /**
+   * The native backend: the keywords are searched with the weights the
+   * Lucene query would boost them by, log(weight + 1).
+   */
+  private List<WeightString> suggestFromIndex(List<WeightString> keywords,
+      int topK) {
+    int n = Math.min(numKeywords, keywords.size());
+    int [] words = new int[n];
+    double [] weights = new double[n];
+    for (int i = 0; i < n; i++) {
+      words[i] = index.wordId(keywords.get(i).text);
+      weights[i] = Math.log(keywords.get(i).weight + 1);
+    }
+    long start = System.nanoTime();
+    int [] docs = new int[k];
+    double [] scores = new double[k];
+    int numDocs = index.search(words, weights, k, docs, scores);
+    SEARCH_LATENCY.recordSince(start);
+
+    // Collect tags.
+    start = System.nanoTime();
+    tagScores.ensureCapacity(index.numTagNames());
+    for (int i = 0; i < numDocs; i++) {
+      for (int j = 0; j < index.numTags(docs[i]); j++) {
+        tagScores.add(index.tag(docs[i], j), scores[i]);
       }
-      
-    });
-    
-    return suggested;
+    }
+    tagScores.sortCandidates();
+    TopTags top = new TopTags(Math.min(topK, tagScores.size()));
+    for (int j = 0; j < tagScores.size(); j++) {
+      int tag = tagScores.candidate(j);
+      top.add(index.tagName(tag), tagScores.score(tag));
+    }
+    tagScores.clear();
+    List<WeightString> result = top.drain();
+    TAGS_LATENCY.recordSince(start);
+    return result;
   }
 
   public Query makeQueryFromKeywords(List<WeightString> keywords, int n)
@@ -152,30 +213,20 @@ public class KnnTagSuggest implements TagSuggest {
     for (String word : words) {
       termFreq.inc(word, 1);
     }
-    double maxDocs = 100000;
-    try {
-      maxDocs = (double) docsSearcher.maxDoc();
-    } catch (IOException e1) {
-      LOG.warning("Cannot query the total number of docs.");
-      e1.printStackTrace();
-    }
+    double maxDocs = index != null ? index.numDocs() : table.numDocs();
     Iterator<Entry<String, Long>> iter = termFreq.iterator();
     List<WeightString> keywords = new ArrayList<WeightString>();
     while (iter.hasNext()) {
       Entry<String, Long> e = iter.next();
       double tf = (double) e.getValue() / (double) words.length;
-      double df = 1;
-      try {
-        df = docsSearcher.docFreq(new Term("content", e.getKey()));
-      } catch (IOException e1) {
-        LOG.warning("Cannot query document frequency for " + e.getKey());
-        e1.printStackTrace();
-      }
       double idf = 0.0;
-      if (df > 0.0) 
-        idf = maxDocs / df;
-      else
-        idf = 0.0;
+      if (index != null) {
+        double df = index.docFreq(e.getKey());
+        if (df > 0.0) 
+          idf = maxDocs / df;
+      } else {
+        idf = table.idf(e.getKey());
+      }
       keywords.add(new WeightString(e.getKey(), tf * idf));
     }
     
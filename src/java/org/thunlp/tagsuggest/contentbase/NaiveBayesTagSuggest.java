@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
@@ -17,16 +18,41 @@ import org.thunlp.misc.Counter;
 import org.thunlp.misc.WeightString;
 import org.thunlp.tagsuggest.common.FeatureExtractor;
 import org.thunlp.tagsuggest.common.GenerativeTagSuggest;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.Post;
+import org.thunlp.tagsuggest.common.TagScores;
+import org.thunlp.tagsuggest.common.ThreadSafeTagSuggest;
+import org.thunlp.tagsuggest.common.TopKTagSuggest;
+import org.thunlp.tagsuggest.common.TopTags;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 
-public class NaiveBayesTagSuggest implements GenerativeTagSuggest {
+public class NaiveBayesTagSuggest implements GenerativeTagSuggest,
+    ThreadSafeTagSuggest, TopKTagSuggest {
   private static Logger LOG = Logger.getAnonymousLogger();
+  private static final LatencyHistogram SCORE_LATENCY =
+      Metrics.histogram("suggest.NaiveBayesTagSuggest.score");
+  private static final LatencyHistogram RANK_LATENCY =
+      Metrics.histogram("suggest.NaiveBayesTagSuggest.rank");
   private Map<String, Counter<String>> counts;
   private FeatureExtractor fe = new WordFeatureExtractor();
   private Counter<String> nw = new Counter<String>();
   private Counter<String> tagfreq = new Counter<String>();
   private double alpha = 0.01;
+  // For suggest(): the tags of each word by id, with their p(t|w).
+  private Map<String, WordTags> wordTags;
+  private String [] tagNames;
+  private ThreadLocal<TagScores> scratch = new ThreadLocal<TagScores>() {
+    @Override
+    protected TagScores initialValue() {
+      return new TagScores();
+    }
+  };
+
+  private static class WordTags {
+    int [] tagIds;
+    double [] ptws;
+  }
 
   @Override
   public void feedback(Post p) {
@@ -60,6 +86,29 @@ public class NaiveBayesTagSuggest implements GenerativeTagSuggest {
     LOG.info("load " + nw.size() + " words and " +
         tagfreq.size() + " tags");
 
+    Map<String, Integer> tagIds = new HashMap<String, Integer>();
+    List<String> names = new ArrayList<String>();
+    wordTags = new HashMap<String, WordTags>();
+    for (Entry<String, Counter<String>> e : counts.entrySet()) {
+      WordTags row = new WordTags();
+      row.tagIds = new int[e.getValue().size()];
+      row.ptws = new double[row.tagIds.length];
+      int i = 0;
+      for (Entry<String, Long> ntw : e.getValue()) {
+        Integer id = tagIds.get(ntw.getKey());
+        if (id == null) {
+          id = names.size();
+          tagIds.put(ntw.getKey(), id);
+          names.add(ntw.getKey());
+        }
+        row.tagIds[i] = id;
+        row.ptws[i] = ntw.getValue() / (double) nw.get(e.getKey());
+        i++;
+      }
+      wordTags.put(e.getKey(), row);
+    }
+    tagNames = names.toArray(new String[names.size()]);
+
   }
 
   @Override
@@ -69,39 +118,42 @@ public class NaiveBayesTagSuggest implements GenerativeTagSuggest {
 
   @Override
   public List<WeightString> suggest(Post p, StringBuilder explain) {
+    return suggest(p, Integer.MAX_VALUE, explain);
+  }
+
+  @Override
+  public List<WeightString> suggest(Post p, int topK, StringBuilder explain) {
     String [] words = fe.extract(p);
-    Map<String, Double> ptds = new Hashtable<String, Double>();
+    long start = System.nanoTime();
+    TagScores scores = scratch.get();
+    scores.ensureCapacity(tagNames.length);
     Counter<String> nwd = new Counter<String>();
     for (String w : words) {
       nwd.inc(w, 1);
     }
     for (Entry<String, Long> w : nwd) {
-      Counter<String> count = counts.get(w.getKey());
-      if (count == null)
+      WordTags row = wordTags.get(w.getKey());
+      if (row == null)
         continue;
-      for (Entry<String, Long> ntw : count) {
-        double ptw = ntw.getValue() / (double) nw.get(w.getKey());
-        double pwd = w.getValue() / (double) words.length;
-        Double ptd = ptds.get(ntw.getKey());
-        if (ptd == null)
-          ptd = 0.0;
-        ptds.put(ntw.getKey(), ptd + ptw * pwd);
+      double pwd = w.getValue() / (double) words.length;
+      for (int i = 0; i < row.tagIds.length; i++) {
+        scores.add(row.tagIds[i], row.ptws[i] * pwd);
       }
     }
 
-    List<WeightString> tags = new ArrayList<WeightString>();
-    for (Entry<String, Double> e : ptds.entrySet()) {
-      tags.add(new WeightString(e.getKey(), e.getValue()));
-    }
-    Collections.sort(tags, new Comparator<WeightString>() {
-
-      @Override
-      public int compare(WeightString o1, WeightString o2) {
-        return Double.compare(o2.weight, o1.weight);
-      }
+    SCORE_LATENCY.recordSince(start);
 
-    }); 
-    return tags;
+    start = System.nanoTime();
+    scores.sortCandidates();
+    TopTags top = new TopTags(Math.min(topK, scores.size()));
+    for (int k = 0; k < scores.size(); k++) {
+      int tagId = scores.candidate(k);
+      top.add(tagNames[tagId], scores.score(tagId));
+    }
+    scores.clear();
+    List<WeightString> result = top.drain();
+    RANK_LATENCY.recordSince(start);
+    return result;
   }
 
   @Override
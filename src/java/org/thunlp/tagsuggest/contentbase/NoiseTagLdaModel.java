@@ -11,12 +11,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -27,6 +31,21 @@ import org.thunlp.misc.WeightString;
  * This is a LDA model. It holds all parameters, namely the n(w,z) matrix. It is
  * able to do inference. It can be serialized through input/output streams. It
  * uses GibbsSampling as the inference algorithm.
+ *
+ * Words and tags are numbered in order of appearance, and n(w,z) and n(t,z)
+ * are dense count arrays indexed by those ids. Training can split each Gibbs
+ * sweep over threads in the way of approximate distributed LDA (AD-LDA): each
+ * thread samples its own block of documents against the counts of the last
+ * sweep plus its own changes, and the changes of all threads are added to the
+ * model after the sweep. This is not the exact sequential chain, so the
+ * perplexity of every sweep is logged to compare the convergence.
+ *
+ * With setSparseSampling(true) a word's topic is drawn the SparseLDA way (Yao,
+ * Mimno and McCallum, KDD 2009). p(z) is split into a smoothing bucket, a
+ * bucket over the topics of the document and a bucket over the topics of the
+ * word, and the last two only visit non-zero counts. The draws have the same
+ * distribution as the dense O(K) scan, but cost far less per token when the
+ * number of topics is large.
  * @author sixiance
  */
 public class NoiseTagLdaModel {
@@ -40,16 +59,24 @@ public class NoiseTagLdaModel {
   protected double eta = 0;
   protected int numTopics = 0;
   protected boolean locked = false;
+  protected boolean sparseSampling = false;
 
   //////////////////////////////////////////////////////////////////////////////
   // The model parameters.
-  protected Map<String, int []> nwz = new Hashtable<String, int []>();
-  protected Map<String, int []> ntz = new Hashtable<String, int []>();
+  protected Map<String, Integer> wordIds = new HashMap<String, Integer>();
+  protected List<String> words = new ArrayList<String>();
+  protected int [][] nwz = new int[16][];  // By word id.
+  protected Map<String, Integer> tagIds = new HashMap<String, Integer>();
+  protected List<String> tags = new ArrayList<String>();
+  protected int [][] ntz = new int[16][];  // By tag id.
   protected int [] wnz = null;
   protected int [] tnz = null;
   protected int nw = 0;
   protected int nt = 0;
   protected int noise;
+  // Non-zero topics of each word for the sparse sampler, null until needed.
+  protected volatile int [][] wordTopics = null;
+  protected int [] numWordTopics = null;
 
   //////////////////////////////////////////////////////////////////////////////
   // Internal helpers.
@@ -94,13 +121,13 @@ public class NoiseTagLdaModel {
     Arrays.fill(wnz, 0);
     for (int i = 0; i < numWords; i++) {
       String word = datain.readUTF();
-      int [] count = new int[numTopics];
+      int w = addWord(word);
+      int [] count = nwz[w];
       for (int j = 0; j < numTopics; j++) {
         count[j] = datain.readInt();
         wnz[j] += count[j];
         nw += count[j];
       }
-      nwz.put(word, count);
     }
     tnz = new int[numTopics + 1];
     Arrays.fill(tnz, 0);
@@ -108,13 +135,13 @@ public class NoiseTagLdaModel {
     eta = datain.readDouble();
     for (int i = 0; i < numTags; i++) {
       String word = datain.readUTF();
-      int [] count = new int[numTopics + 1];
+      int t = addTag(word);
+      int [] count = ntz[t];
       for (int j = 0; j < numTopics + 1; j++) {
         count[j] = datain.readInt();
         tnz[j] += count[j];
         nt += count[j];
       }
-      ntz.put(word, count);
     }
     noise = numTopics;
   }
@@ -128,22 +155,22 @@ public class NoiseTagLdaModel {
     GZIPOutputStream zipout = new GZIPOutputStream(out);
     DataOutputStream dataout = new DataOutputStream(zipout);
     dataout.writeInt(numTopics);
-    dataout.writeInt(nwz.size());
+    dataout.writeInt(words.size());
     dataout.writeDouble(alpha);
     dataout.writeDouble(beta);
     dataout.writeBoolean(locked);
-    for (Entry<String, int []> e : nwz.entrySet()) {
-      dataout.writeUTF(e.getKey());
-      int [] c = e.getValue();
+    for (int w = 0; w < words.size(); w++) {
+      dataout.writeUTF(words.get(w));
+      int [] c = nwz[w];
       for (int i = 0; i < numTopics; i++) {
         dataout.writeInt(c[i]);
       }
     }
-    dataout.writeInt(ntz.size());
+    dataout.writeInt(tags.size());
     dataout.writeDouble(eta);
-    for (Entry<String, int []> e : ntz.entrySet()) {
-      dataout.writeUTF(e.getKey());
-      int [] c = e.getValue();
+    for (int t = 0; t < tags.size(); t++) {
+      dataout.writeUTF(tags.get(t));
+      int [] c = ntz[t];
       for (int i = 0; i < numTopics + 1; i++) {
         dataout.writeInt(c[i]);
       }
@@ -179,11 +206,11 @@ public class NoiseTagLdaModel {
   }
 
   public int getNumWords() {
-    return nwz.size();
+    return words.size();
   }
 
   public Set<String> getAllWords() {
-    return nwz.keySet();
+    return wordIds.keySet();
   }
 
   /**
@@ -197,6 +224,17 @@ public class NoiseTagLdaModel {
     return locked;
   }
 
+  /**
+   * Use the SparseLDA sampler instead of the dense one.
+   */
+  public void setSparseSampling(boolean b) {
+    sparseSampling = b;
+  }
+
+  public boolean getSparseSampling() {
+    return sparseSampling;
+  }
+
   public static class Document implements Serializable{
     public Document(String [] words, String [] tags) {
       this.words = words;
@@ -209,47 +247,139 @@ public class NoiseTagLdaModel {
     int [] topics;
     String [] tags;
     int [] reasons;
+    // Model ids of the words and tags, -1 for the unknown ones. Set by
+    // initializeTopics().
+    int [] wordIds;
+    int [] tagIds;
   }
 
   //////////////////////////////////////////////////////////////////////////////
   // Training.
   public void train(List<Document> docs, int numIterations) {
-    // Training for 100 iterations.
+    train(docs, numIterations, 1);
+  }
+
+  /**
+   * Train the model, with AD-LDA sweeps over numThreads threads if it is more
+   * than 1. The first iteration assigns the initial topics.
+   */
+  public void train(List<Document> docs, int numIterations, int numThreads) {
     setLocked(false);
-    double [] pzd = new double[numTopics];
-    for (int i = 0; i < numIterations; i++) {
-      double loglikelihood = 0;
-      for (Document d : docs) {
+    Document [] all = docs.toArray(new Document[docs.size()]);
+    numThreads = Math.max(1, Math.min(numThreads, all.length));
+    Sampler [] samplers = new Sampler[numThreads];
+    ExecutorService executor =
+      numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+    try {
+      for (int i = 0; i < numIterations; i++) {
+        long start = System.currentTimeMillis();
+        double loglikelihood = 0;
         if (i == 0) {
-          initializeTopics(d);
+          for (Document d : all) {
+            initializeTopics(d);
+          }
+          // The vocabulary is complete now, so the samplers can be made.
+          if (sparseSampling) {
+            buildTopicLists();
+          }
+          if (numThreads == 1) {
+            samplers[0] = new Sampler(random, false);
+          } else {
+            for (int k = 0; k < numThreads; k++) {
+              samplers[k] = new Sampler(new Random(random.nextLong()), true);
+            }
+          }
+        } else if (numThreads == 1) {
+          samplers[0].resetStats();
+          for (Document d : all) {
+            loglikelihood += samplers[0].sample(d);
+          }
         } else {
-          loglikelihood += 
-            inferenceByGibbsSampling(d, pzd, 0, 1);
-        } 
+          loglikelihood = parallelSweep(executor, samplers, all);
+        }
+        double wordLikelihood = 0;
+        long numTokens = 0;
+        for (Sampler s : samplers) {
+          wordLikelihood += s.wordLikelihood;
+          numTokens += s.numTokens;
+        }
+        LOG.info(i + " LL: " + loglikelihood +
+            " NR: " + pnoise() +
+            " PPL: " + (numTokens == 0 ? "-" : String.format("%.4f",
+                Math.exp(-wordLikelihood / numTokens))) +
+            " time: " + (System.currentTimeMillis() - start) + "ms");
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
       }
-      LOG.info(i + " LL: " + loglikelihood +
-          " NR: " + pnoise() );
     }
     setLocked(true);
   }
 
+  /**
+   * One AD-LDA sweep: every sampler takes a block of the documents, then the
+   * changes of all samplers are added to the model.
+   */
+  private double parallelSweep(ExecutorService executor,
+      final Sampler [] samplers, final Document [] all) {
+    List<Future<Double>> futures = new ArrayList<Future<Double>>();
+    int chunk = (all.length + samplers.length - 1) / samplers.length;
+    for (int k = 0; k < samplers.length; k++) {
+      final Sampler sampler = samplers[k];
+      final int from = Math.min(k * chunk, all.length);
+      final int to = Math.min(from + chunk, all.length);
+      futures.add(executor.submit(new Callable<Double>() {
+        public Double call() {
+          sampler.resetStats();
+          double loglikelihood = 0;
+          for (int i = from; i < to; i++) {
+            loglikelihood += sampler.sample(all[i]);
+          }
+          return loglikelihood;
+        }
+      }));
+    }
+    double loglikelihood = 0;
+    try {
+      for (Future<Double> future : futures) {
+        loglikelihood += future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("interrupted");
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    for (Sampler sampler : samplers) {
+      sampler.merge();
+    }
+    return loglikelihood;
+  }
+
   //////////////////////////////////////////////////////////////////////////////
   // Inference methods.
 
   public void initializeTopics(Document d) {
     // Initialize the topic vector.
+    d.wordIds = new int[d.words.length];
     for (int i = 0; i < d.words.length; i++) {
-      if (nwz.containsKey(d.words[i]) || !locked) {
+      int w = locked ? wordId(d.words[i]) : addWord(d.words[i]);
+      d.wordIds[i] = w;
+      if (w >= 0) {
         d.topics[i] = random.nextInt(numTopics);
-        updateCounts(d.words[i], d.topics[i], 1);
+        updateCounts(w, d.topics[i], 1);
       } else {
         d.topics[i] = NO_TOPIC;
       }
     }
+    d.tagIds = new int[d.tags.length];
     for (int i = 0; i < d.tags.length; i++) {
-      if (nwz.containsKey(d.tags[i]) || !locked) {
+      int t = locked ? tagId(d.tags[i]) : addTag(d.tags[i]);
+      d.tagIds[i] = t;
+      if (t >= 0) {
         d.reasons[i] = random.nextInt(numTopics + 1);
-        updateTagCounts(d.tags[i], d.reasons[i], 1);
+        updateTagCounts(t, d.reasons[i], 1);
       } else {
         d.reasons[i] = NO_TOPIC;
       }
@@ -296,9 +426,13 @@ public class NoiseTagLdaModel {
     Arrays.fill(pzd, 0);
 
     // Sampling.
+    if (sparseSampling && wordTopics == null) {
+      buildTopicLists();
+    }
+    Sampler sampler = new Sampler(random, false);
     double loglikelihood = 0.0;
     for (int i = 0; i < numBurnIn + numSampling; i++) {
-      loglikelihood += gibbsSampling(d);
+      loglikelihood += sampler.sample(d);
       if (i >= numBurnIn) {
         for (int topic : d.topics) {
           if (topic != NO_TOPIC)
@@ -319,20 +453,21 @@ public class NoiseTagLdaModel {
   //////////////////////////////////////////////////////////////////////////////
   // Getting more detail about the probabilities.
   public double pwz(String word, int z) {
-    int [] n = nwz.get(word);
-    if (n == null)
+    int w = wordId(word);
+    if (w < 0)
       return 0;
     else
-      return (n[z] + beta) / (wnz[z] + nwz.size() * beta);
+      return (nwz[w][z] + beta) / (wnz[z] + words.size() * beta);
   }
 
   public void pwz(String word, double [] p) {
-    int [] n = nwz.get(word);
-    if (n == null)
+    int w = wordId(word);
+    if (w < 0)
       Arrays.fill(p, 1.0 / p.length);
     else {
+      int [] n = nwz[w];
       for (int i = 0; i < numTopics; i++)
-        p[i] = (n[i] + beta) / (wnz[i] + nwz.size() * beta);
+        p[i] = (n[i] + beta) / (wnz[i] + words.size() * beta);
     }
   }
 
@@ -346,14 +481,15 @@ public class NoiseTagLdaModel {
   }
 
   public double pw(String word) {
-    int [] n = nwz.get(word);
-    if (n == null)
+    int w = wordId(word);
+    if (w < 0)
       return 0;
     else {
+      int [] n = nwz[w];
       double p = 0;
       for (int i = 0; i < numTopics; i++)
         p += n[i];
-      return (p + beta) / (nw + nwz.size() * beta);
+      return (p + beta) / (nw + words.size() * beta);
     }
   }
 
@@ -362,108 +498,563 @@ public class NoiseTagLdaModel {
   }
 
   public void ptz(String tag, double [] p) {
-    int [] n = ntz.get(tag);
-    if (n == null)
+    int t = tagId(tag);
+    if (t < 0)
       Arrays.fill(p, 1.0 / p.length);
     else {
+      int [] n = ntz[t];
       for (int i = 0; i < numTopics + 1; i++)
-        p[i] = (n[i] + beta) / (tnz[i] + ntz.size() * beta);
+        p[i] = (n[i] + beta) / (tnz[i] + tags.size() * beta);
     }
   }
 
   public Set<String> tags() {
-    return ntz.keySet();
+    return tagIds.keySet();
   }
 
   //////////////////////////////////////////////////////////////////////////////
   // Internals.
-  protected int [] updateCounts(String word, int topic, int delta) {
-    int [] counts = nwz.get(word);
-    if (!locked) { 
-      if (counts == null) {
-        counts = new int[numTopics];
-        Arrays.fill(counts, 0);
-        nwz.put(word, counts);
+  protected int wordId(String word) {
+    Integer id = wordIds.get(word);
+    return id == null ? -1 : id;
+  }
+
+  protected int tagId(String tag) {
+    Integer id = tagIds.get(tag);
+    return id == null ? -1 : id;
+  }
+
+  protected int addWord(String word) {
+    Integer id = wordIds.get(word);
+    if (id == null) {
+      id = words.size();
+      wordIds.put(word, id);
+      words.add(word);
+      if (id == nwz.length) {
+        nwz = Arrays.copyOf(nwz, nwz.length * 2);
       }
-      counts[topic] += delta;
+      nwz[id] = new int[numTopics];
+      if (wordTopics != null) {
+        if (id == wordTopics.length) {
+          wordTopics = Arrays.copyOf(wordTopics, nwz.length);
+          numWordTopics = Arrays.copyOf(numWordTopics, nwz.length);
+        }
+        wordTopics[id] = new int[4];
+      }
+    }
+    return id;
+  }
+
+  protected int addTag(String tag) {
+    Integer id = tagIds.get(tag);
+    if (id == null) {
+      id = tags.size();
+      tagIds.put(tag, id);
+      tags.add(tag);
+      if (id == ntz.length) {
+        ntz = Arrays.copyOf(ntz, ntz.length * 2);
+      }
+      ntz[id] = new int[numTopics + 1];
+    }
+    return id;
+  }
+
+  protected void updateCounts(int word, int topic, int delta) {
+    if (!locked) { 
+      int before = nwz[word][topic];
+      nwz[word][topic] += delta;
       wnz[topic] += delta;
       nw += delta;
+      if (wordTopics != null) {
+        if (before == 0) {
+          addWordTopic(word, topic);
+        } else if (nwz[word][topic] == 0) {
+          removeWordTopic(word, topic);
+        }
+      }
     }
-    return counts;
   }
 
-  protected int [] updateTagCounts(String tag, int topic, int delta) {
-    int [] counts = ntz.get(tag);
-    if (!locked) { 
-      if (counts == null) {
-        counts = new int[numTopics + 1];
-        Arrays.fill(counts, 0);
-        ntz.put(tag, counts);
+  /**
+   * Build the non-zero topic lists of all words, which are then kept up to
+   * date by updateCounts().
+   */
+  protected synchronized void buildTopicLists() {
+    if (wordTopics != null) {
+      return;
+    }
+    int [][] lists = new int[nwz.length][];
+    int [] sizes = new int[nwz.length];
+    for (int w = 0; w < words.size(); w++) {
+      int [] n = nwz[w];
+      for (int z = 0; z < numTopics; z++) {
+        if (n[z] != 0) {
+          sizes[w]++;
+        }
+      }
+      lists[w] = new int[Math.max(4, sizes[w])];
+      int k = 0;
+      for (int z = 0; z < numTopics; z++) {
+        if (n[z] != 0) {
+          lists[w][k++] = z;
+        }
+      }
+    }
+    numWordTopics = sizes;
+    wordTopics = lists;
+  }
+
+  protected void rebuildWordTopics(int word) {
+    int [] n = nwz[word];
+    numWordTopics[word] = 0;
+    for (int z = 0; z < numTopics; z++) {
+      if (n[z] != 0) {
+        addWordTopic(word, z);
       }
-      counts[topic] += delta;
+    }
+  }
+
+  private void addWordTopic(int word, int topic) {
+    int [] list = wordTopics[word];
+    if (numWordTopics[word] == list.length) {
+      list = Arrays.copyOf(list, list.length * 2);
+      wordTopics[word] = list;
+    }
+    list[numWordTopics[word]++] = topic;
+  }
+
+  private void removeWordTopic(int word, int topic) {
+    int [] list = wordTopics[word];
+    int last = --numWordTopics[word];
+    for (int k = 0; k <= last; k++) {
+      if (list[k] == topic) {
+        list[k] = list[last];
+        return;
+      }
+    }
+  }
+
+  protected void updateTagCounts(int tag, int topic, int delta) {
+    if (!locked) { 
+      ntz[tag][topic] += delta;
       tnz[topic] += delta;
       nt += delta;
     }
-    return counts;
   }
 
   protected double gibbsSampling(Document d) {
-    double loglikelihood = 0;
-    int [] nzd = new int[numTopics];
-    double [] p = new double[numTopics];
-    Arrays.fill(nzd, 0);
-    for (int i = 0; i < d.words.length; i++) {
-      if (d.topics[i] != NO_TOPIC)
-        nzd[d.topics[i]]++;
+    return new Sampler(random, false).sample(d);
+  }
+
+  /**
+   * The Gibbs sampling state of one thread. An unshared sampler updates the
+   * model counts in place. A shared one only reads them, and keeps its own
+   * changes in delta rows, allocated as words and tags are first touched,
+   * until merge() adds them to the model. Sampling keeps the total counts nw
+   * and nt, so only the per-topic sums need deltas.
+   */
+  private class Sampler {
+    private Random random;
+    private boolean shared;
+    private double [] p = new double[numTopics];
+    private double [] pz = new double[numTopics + 1];
+    private int [] nzd = new int[numTopics];
+    private int [][] dwz = null;
+    private int [][] dtz = null;
+    private int [] dwnz = null;
+    private int [] dtnz = null;
+    private int [] touchedWords = new int[16];
+    private int numTouchedWords = 0;
+    private int [] touchedTags = new int[16];
+    private int numTouchedTags = 0;
+    // Sparse sampling state. coef[z] is 1 / (n(z) + V * beta), smooth and
+    // docBucket are the smoothing and document bucket masses, and docTopics
+    // lists the topics with nzd[z] > 0. A shared sampler keeps in
+    // extraTopics the topics it gave a word that the model's list lacks.
+    private double [] coef = null;
+    private double [] qcoef = null;
+    private double [] bucket = null;
+    private int [] docTopics = null;
+    private int [] docTopicPos = null;
+    private int numDocTopics = 0;
+    private int [][] extraTopics = null;
+    private int [] numExtraTopics = null;
+    // Statistics since the last resetStats().
+    private double wordLikelihood = 0;
+    private long numTokens = 0;
+
+    Sampler(Random random, boolean shared) {
+      this.random = random;
+      this.shared = shared;
+      if (shared) {
+        dwz = new int[words.size()][];
+        dtz = new int[tags.size()][];
+        dwnz = new int[numTopics];
+        dtnz = new int[numTopics + 1];
+      }
+      if (sparseSampling) {
+        coef = new double[numTopics];
+        qcoef = new double[numTopics];
+        bucket = new double[numTopics + 1];
+        docTopics = new int[numTopics];
+        docTopicPos = new int[numTopics];
+        if (shared) {
+          extraTopics = new int[words.size()][];
+          numExtraTopics = new int[words.size()];
+        }
+      }
     }
-    // Sample word-topic allocation.
-    for (int i = 0; i < d.words.length; i++) {
-      if (d.topics[i] == NO_TOPIC)
-        continue;
-      updateCounts(d.words[i], d.topics[i], -1);
-      nzd[d.topics[i]]--;
-      int [] nwzi = nwz.get(d.words[i]);
-      for (int z = 0; z < numTopics; z++) {
-        double pwz = (nwzi[z] + beta) / (wnz[z] + nwz.size() * beta);
-        double pzd = (nzd[z] + alpha) / (d.words.length + numTopics * alpha);
-        p[z] = pwz * pzd;
-        checkProb(pwz);
-        checkProb(pzd);
-        checkProb(p[z]);
-      }
-      int newTopic = sampleBy(p);
-      d.topics[i] = newTopic;
-      updateCounts(d.words[i], d.topics[i], 1);
-      nzd[d.topics[i]]++;
-      loglikelihood += Math.log(p[newTopic]);
-    }
-    // Sample tag-topic allocation.
-    double [] pz = new double[numTopics + 1];
-    for (int i = 0; i < d.tags.length; i++) {
-      if (d.reasons[i] == NO_TOPIC)
-        continue;
-      updateTagCounts(d.tags[i], d.reasons[i], -1);
-      ptz(d.tags[i], pz);
-      //double sumNonNoise = 0;
-      //int sumNzd = 0;
+
+    void resetStats() {
+      wordLikelihood = 0;
+      numTokens = 0;
+    }
+
+    private void updateCounts(int word, int topic, int delta) {
+      if (!shared) {
+        NoiseTagLdaModel.this.updateCounts(word, topic, delta);
+        return;
+      }
+      if (dwz[word] == null) {
+        dwz[word] = new int[numTopics];
+        if (numTouchedWords == touchedWords.length) {
+          touchedWords = Arrays.copyOf(touchedWords, numTouchedWords * 2);
+        }
+        touchedWords[numTouchedWords++] = word;
+      }
+      int before = dwz[word][topic];
+      dwz[word][topic] += delta;
+      dwnz[topic] += delta;
+      if (extraTopics != null && before == 0 && delta > 0
+          && nwz[word][topic] == 0) {
+        addExtraTopic(word, topic);
+      }
+    }
+
+    private void addExtraTopic(int word, int topic) {
+      int [] list = extraTopics[word];
+      if (list == null) {
+        list = extraTopics[word] = new int[4];
+      }
+      int n = numExtraTopics[word];
+      for (int k = 0; k < n; k++) {
+        if (list[k] == topic) {
+          return;
+        }
+      }
+      if (n == list.length) {
+        list = extraTopics[word] = Arrays.copyOf(list, n * 2);
+      }
+      list[n] = topic;
+      numExtraTopics[word] = n + 1;
+    }
+
+    private void updateTagCounts(int tag, int topic, int delta) {
+      if (!shared) {
+        NoiseTagLdaModel.this.updateTagCounts(tag, topic, delta);
+        return;
+      }
+      if (dtz[tag] == null) {
+        dtz[tag] = new int[numTopics + 1];
+        if (numTouchedTags == touchedTags.length) {
+          touchedTags = Arrays.copyOf(touchedTags, numTouchedTags * 2);
+        }
+        touchedTags[numTouchedTags++] = tag;
+      }
+      dtz[tag][topic] += delta;
+      dtnz[topic] += delta;
+    }
+
+    /**
+     * Add the changes to the model and clear them. Must not run while any
+     * sampler is sampling.
+     */
+    void merge() {
+      for (int k = 0; k < numTouchedWords; k++) {
+        int [] n = nwz[touchedWords[k]];
+        int [] d = dwz[touchedWords[k]];
+        for (int z = 0; z < numTopics; z++) {
+          n[z] += d[z];
+          d[z] = 0;
+        }
+        if (wordTopics != null) {
+          rebuildWordTopics(touchedWords[k]);
+        }
+        if (extraTopics != null) {
+          numExtraTopics[touchedWords[k]] = 0;
+        }
+      }
+      for (int k = 0; k < numTouchedTags; k++) {
+        int [] n = ntz[touchedTags[k]];
+        int [] d = dtz[touchedTags[k]];
+        for (int z = 0; z < numTopics + 1; z++) {
+          n[z] += d[z];
+          d[z] = 0;
+        }
+      }
       for (int z = 0; z < numTopics; z++) {
-        // double pzd = (nzd[z] + alpha) / (d.words.length + numTopics * alpha);
-        double pzd = (double)nzd[z] / (double)d.words.length;
-        //sumNzd += nzd[z];
-        pz[z] *= (1.0 - pnoise()) * pzd;
-        //sumNonNoise += pz[z];
-        //checkProb(pz[z]);
-      }
-      pz[noise] *= pnoise();
-      //checkProb(pz[noise]);
-      //LOG.info("non-noise: " + sumNonNoise + " nzd:" + sumNzd + " noise:" + pz[noise]);
-      int newTopic = sampleBy(pz);
-      d.reasons[i] = newTopic;
-      updateTagCounts(d.tags[i], d.reasons[i], 1);
-      loglikelihood += Math.log(pz[newTopic]);
+        wnz[z] += dwnz[z];
+        dwnz[z] = 0;
+      }
+      for (int z = 0; z < numTopics + 1; z++) {
+        tnz[z] += dtnz[z];
+        dtnz[z] = 0;
+      }
     }
 
-    return loglikelihood;
+    /**
+     * One Gibbs sampling pass over the words and tags of d.
+     * @return the log-likelihood of the sampled assignments.
+     */
+    double sample(Document d) {
+      return sparseSampling ? sampleSparse(d) : sampleDense(d);
+    }
+
+    private double sampleDense(Document d) {
+      double loglikelihood = 0;
+      double wordsBeta = words.size() * beta;
+      Arrays.fill(nzd, 0);
+      for (int i = 0; i < d.words.length; i++) {
+        if (d.topics[i] != NO_TOPIC)
+          nzd[d.topics[i]]++;
+      }
+      // Sample word-topic allocation.
+      for (int i = 0; i < d.words.length; i++) {
+        if (d.topics[i] == NO_TOPIC)
+          continue;
+        int w = d.wordIds[i];
+        updateCounts(w, d.topics[i], -1);
+        nzd[d.topics[i]]--;
+        int [] nwzi = nwz[w];
+        int [] dwzi = shared ? dwz[w] : null;
+        double sum = 0;
+        for (int z = 0; z < numTopics; z++) {
+          int n = nwzi[z];
+          int nz = wnz[z];
+          if (shared) {
+            n += dwzi[z];
+            nz += dwnz[z];
+          }
+          double pwz = (n + beta) / (nz + wordsBeta);
+          double pzd = (nzd[z] + alpha) / (d.words.length + numTopics * alpha);
+          p[z] = pwz * pzd;
+          checkProb(pwz);
+          checkProb(pzd);
+          checkProb(p[z]);
+          sum += p[z];
+        }
+        int newTopic = sampleBy(p, random);
+        d.topics[i] = newTopic;
+        updateCounts(w, d.topics[i], 1);
+        nzd[d.topics[i]]++;
+        loglikelihood += Math.log(p[newTopic]);
+        wordLikelihood += Math.log(sum);
+        numTokens++;
+      }
+      // Sample tag-topic allocation.
+      double tagsBeta = tags.size() * beta;
+      for (int i = 0; i < d.tags.length; i++) {
+        if (d.reasons[i] == NO_TOPIC)
+          continue;
+        int t = d.tagIds[i];
+        updateTagCounts(t, d.reasons[i], -1);
+        int [] ntzi = ntz[t];
+        int [] dtzi = shared ? dtz[t] : null;
+        for (int z = 0; z < numTopics + 1; z++) {
+          int n = ntzi[z];
+          int nz = tnz[z];
+          if (shared) {
+            n += dtzi[z];
+            nz += dtnz[z];
+          }
+          pz[z] = (n + beta) / (nz + tagsBeta);
+        }
+        int noiseCount = tnz[noise] + (shared ? dtnz[noise] : 0);
+        double pnoise = (noiseCount + eta) / (nt + 2 * eta);
+        for (int z = 0; z < numTopics; z++) {
+          double pzd = (double)nzd[z] / (double)d.words.length;
+          pz[z] *= (1.0 - pnoise) * pzd;
+        }
+        pz[noise] *= pnoise;
+        int newTopic = sampleBy(pz, random);
+        d.reasons[i] = newTopic;
+        updateTagCounts(t, d.reasons[i], 1);
+        loglikelihood += Math.log(pz[newTopic]);
+      }
+
+      return loglikelihood;
+    }
+
+    private int topicCount(int z) {
+      return shared ? wnz[z] + dwnz[z] : wnz[z];
+    }
+
+    private void addDocTopic(int z) {
+      docTopicPos[z] = numDocTopics;
+      docTopics[numDocTopics++] = z;
+    }
+
+    private void removeDocTopic(int z) {
+      int last = docTopics[--numDocTopics];
+      docTopics[docTopicPos[z]] = last;
+      docTopicPos[last] = docTopicPos[z];
+    }
+
+    /**
+     * sample() with the SparseLDA buckets. For word w in document d,
+     * p(z) is proportional to
+     *   alpha * beta * coef[z]                 (smoothing)
+     * + nzd[z] * beta * coef[z]                (document, nzd[z] > 0)
+     * + n(w,z) * (nzd[z] + alpha) * coef[z]    (word, n(w,z) > 0)
+     * The first two are kept up to date as counts change, so only the word
+     * bucket is computed for each token.
+     */
+    private double sampleSparse(Document d) {
+      double loglikelihood = 0;
+      double wordsBeta = words.size() * beta;
+      double docNorm = d.words.length + numTopics * alpha;
+      double alphaBeta = alpha * beta;
+      Arrays.fill(nzd, 0);
+      numDocTopics = 0;
+      for (int i = 0; i < d.words.length; i++) {
+        if (d.topics[i] != NO_TOPIC && nzd[d.topics[i]]++ == 0)
+          addDocTopic(d.topics[i]);
+      }
+      double smooth = 0;
+      double docBucket = 0;
+      for (int z = 0; z < numTopics; z++) {
+        coef[z] = 1.0 / (topicCount(z) + wordsBeta);
+        qcoef[z] = (nzd[z] + alpha) * coef[z];
+        smooth += alphaBeta * coef[z];
+        docBucket += nzd[z] * beta * coef[z];
+      }
+
+      // Sample word-topic allocation.
+      for (int i = 0; i < d.words.length; i++) {
+        if (d.topics[i] == NO_TOPIC)
+          continue;
+        int w = d.wordIds[i];
+        int z = d.topics[i];
+        smooth -= alphaBeta * coef[z];
+        docBucket -= nzd[z] * beta * coef[z];
+        updateCounts(w, z, -1);
+        if (--nzd[z] == 0)
+          removeDocTopic(z);
+        coef[z] = 1.0 / (topicCount(z) + wordsBeta);
+        qcoef[z] = (nzd[z] + alpha) * coef[z];
+        smooth += alphaBeta * coef[z];
+        docBucket += nzd[z] * beta * coef[z];
+
+        // The word bucket, over the model's topics of w and, for a shared
+        // sampler, the topics it added itself.
+        int [] nwzi = nwz[w];
+        int [] dwzi = shared ? dwz[w] : null;
+        int [] list = wordTopics[w];
+        int numList = numWordTopics[w];
+        int numExtra = extraTopics == null ? 0 : numExtraTopics[w];
+        double wordBucket = 0;
+        for (int k = 0; k < numList + numExtra; k++) {
+          int t = k < numList ? list[k] : extraTopics[w][k - numList];
+          int n = dwzi == null ? nwzi[t] : nwzi[t] + dwzi[t];
+          bucket[k] = n * qcoef[t];
+          wordBucket += bucket[k];
+        }
+
+        double total = smooth + docBucket + wordBucket;
+        double u = random.nextDouble() * total;
+        int newTopic = -1;
+        if (u < wordBucket) {
+          for (int k = 0; k < numList + numExtra; k++) {
+            if (bucket[k] > 0) {
+              newTopic = k < numList ? list[k] : extraTopics[w][k - numList];
+              u -= bucket[k];
+              if (u <= 0)
+                break;
+            }
+          }
+        } else if ((u -= wordBucket) < docBucket && numDocTopics > 0) {
+          for (int k = 0; k < numDocTopics; k++) {
+            newTopic = docTopics[k];
+            u -= nzd[newTopic] * beta * coef[newTopic];
+            if (u <= 0)
+              break;
+          }
+        } else {
+          // Also reached when rounding leaves a little docBucket mass with
+          // no topic in the document.
+          u = Math.max(u - docBucket, 0);
+          for (int t = 0; t < numTopics; t++) {
+            newTopic = t;
+            u -= alphaBeta * coef[t];
+            if (u <= 0)
+              break;
+          }
+        }
+
+        z = newTopic;
+        int n = dwzi == null ? nwzi[z] : nwzi[z] + dwzi[z];
+        double pz = (n + beta) * coef[z] * (nzd[z] + alpha) / docNorm;
+        checkProb(pz);
+        loglikelihood += Math.log(pz);
+        wordLikelihood += Math.log(total / docNorm);
+        numTokens++;
+
+        smooth -= alphaBeta * coef[z];
+        docBucket -= nzd[z] * beta * coef[z];
+        d.topics[i] = z;
+        updateCounts(w, z, 1);
+        if (nzd[z]++ == 0)
+          addDocTopic(z);
+        coef[z] = 1.0 / (topicCount(z) + wordsBeta);
+        qcoef[z] = (nzd[z] + alpha) * coef[z];
+        smooth += alphaBeta * coef[z];
+        docBucket += nzd[z] * beta * coef[z];
+      }
+
+      // Sample tag-topic allocation. Topics missing from the document have
+      // no probability, so only its topics and the noise are visited.
+      double tagsBeta = tags.size() * beta;
+      for (int i = 0; i < d.tags.length; i++) {
+        if (d.reasons[i] == NO_TOPIC)
+          continue;
+        int t = d.tagIds[i];
+        updateTagCounts(t, d.reasons[i], -1);
+        int [] ntzi = ntz[t];
+        int [] dtzi = shared ? dtz[t] : null;
+        int noiseCount = tnz[noise] + (shared ? dtnz[noise] : 0);
+        double pnoise = (noiseCount + eta) / (nt + 2 * eta);
+        double total = 0;
+        for (int k = 0; k <= numDocTopics; k++) {
+          int z = k < numDocTopics ? docTopics[k] : noise;
+          int n = ntzi[z];
+          int nz = tnz[z];
+          if (shared) {
+            n += dtzi[z];
+            nz += dtnz[z];
+          }
+          double ptz = (n + beta) / (nz + tagsBeta);
+          if (z == noise) {
+            bucket[k] = ptz * pnoise;
+          } else {
+            bucket[k] = ptz * (1.0 - pnoise) * nzd[z] / d.words.length;
+          }
+          total += bucket[k];
+        }
+        double u = random.nextDouble() * total;
+        int k = 0;
+        for (; k < numDocTopics; k++) {
+          u -= bucket[k];
+          if (u <= 0)
+            break;
+        }
+        int newTopic = k < numDocTopics ? docTopics[k] : noise;
+        d.reasons[i] = newTopic;
+        updateTagCounts(t, d.reasons[i], 1);
+        loglikelihood += Math.log(bucket[k]);
+      }
+
+      return loglikelihood;
+    }
   }
 
   public void checkProb(double p) {
@@ -476,6 +1067,10 @@ public class NoiseTagLdaModel {
   }
 
   protected int sampleBy(double [] p) {
+    return sampleBy(p, random);
+  }
+
+  private static int sampleBy(double [] p, Random random) {
     double sum = 0;
     for (double v : p) {
       sum += v;
@@ -523,10 +1118,10 @@ public class NoiseTagLdaModel {
       double max = 0;
       if (i < numTopics) {
         tokens.clear();
-        for (Entry<String, int []> e : nwz.entrySet()) {
-          int [] counts = e.getValue();
+        for (int w = 0; w < words.size(); w++) {
+          int [] counts = nwz[w];
           double pwz = (double)counts[i] / (double)wnz[i];
-          tokens.add(new WeightString(e.getKey(), pwz));
+          tokens.add(new WeightString(words.get(w), pwz));
         }
         Collections.sort(tokens, cmp);
         max = 0;
@@ -543,10 +1138,10 @@ public class NoiseTagLdaModel {
       }
       // Render tags per topics.
       tokens.clear();
-      for (Entry<String, int []> e : ntz.entrySet()) {
-        int [] counts = e.getValue();
+      for (int t = 0; t < tags.size(); t++) {
+        int [] counts = ntz[t];
         double ptz = (double)counts[i] / (double)tnz[i];
-        tokens.add(new WeightString(e.getKey(), ptz));
+        tokens.add(new WeightString(tags.get(t), ptz));
       }
       Collections.sort(tokens, cmp);
       max = 0;
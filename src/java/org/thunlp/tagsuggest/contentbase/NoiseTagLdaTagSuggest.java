@@ -2,10 +2,7 @@ package org.thunlp.tagsuggest.contentbase;
 
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
@@ -16,18 +13,29 @@ import org.thunlp.misc.WeightString;
 import org.thunlp.tagsuggest.common.FeatureExtractor;
 import org.thunlp.tagsuggest.common.GenerativeTagSuggest;
 import org.thunlp.tagsuggest.common.KeywordPost;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.Post;
-import org.thunlp.tagsuggest.common.TagSuggest;
+import org.thunlp.tagsuggest.common.TopKTagSuggest;
+import org.thunlp.tagsuggest.common.TopTags;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 import org.thunlp.tagsuggest.contentbase.NoiseTagLdaModel.Document;
 
 /**
  * This class use the Tag-LDA method proposed by Xiance Si.
+ *
+ * Topics are inferred with FastLdaInference unless lda_inference=model, which
+ * runs the model's own sampler.
  * @author sixiance
  *
  */
-public class NoiseTagLdaTagSuggest implements TagSuggest, GenerativeTagSuggest {
+public class NoiseTagLdaTagSuggest
+  implements TopKTagSuggest, GenerativeTagSuggest {
   private static Logger LOG = Logger.getAnonymousLogger();
+  private static final LatencyHistogram INFERENCE_LATENCY =
+      Metrics.histogram("suggest.NoiseTagLdaTagSuggest.inference");
+  private static final LatencyHistogram RANK_LATENCY =
+      Metrics.histogram("suggest.NoiseTagLdaTagSuggest.rank");
   private NoiseTagLdaModel model;
   private Properties config = null;
   private WordFeatureExtractor extractor = new WordFeatureExtractor();
@@ -36,6 +44,11 @@ public class NoiseTagLdaTagSuggest implements TagSuggest, GenerativeTagSuggest {
   private static int [] EMPTY_REASON_SET = new int[0];
   private double [] pzd = null;
   private double [] ptz = null;
+  private FastLdaInference inference = null;
+  // p(t|z) * (1 - p(noise)) for each tag, and p(t|noise) * p(noise).
+  private String [] tagNames = null;
+  private double [][] tagTopics = null;
+  private double [] tagNoise = null;
 
   @Override
   public void feedback(Post p) {}
@@ -45,10 +58,49 @@ public class NoiseTagLdaTagSuggest implements TagSuggest, GenerativeTagSuggest {
     FileInputStream input = new FileInputStream(modelPath);
     model = new NoiseTagLdaModel(input);
     input.close();
+    inference = null;
+    setUpInference();
     LOG.info("Load LDA model of " + model.getNumTopics()
         + " topics and " + model.tags().size() + " tags.");
     pzd = new double[model.getNumTopics()];
     ptz = new double[model.getNumTopics() + 1];
+
+    int numTopics = model.getNumTopics();
+    double pnoise = model.pnoise();
+    tagNames = model.tags().toArray(new String[model.tags().size()]);
+    tagTopics = new double[tagNames.length][numTopics];
+    tagNoise = new double[tagNames.length];
+    for (int t = 0; t < tagNames.length; t++) {
+      model.ptz(tagNames[t], ptz);
+      for (int z = 0; z < numTopics; z++) {
+        tagTopics[t][z] = ptz[z] * (1 - pnoise);
+      }
+      tagNoise[t] = ptz[model.noise] * pnoise;
+    }
+  }
+
+  private void setUpInference() {
+    if (model == null) {
+      return;
+    }
+    Properties c = config == null ? new Properties() : config;
+    model.setSparseSampling(c.getProperty("sampler", "dense").equals("sparse"));
+    if (c.getProperty("lda_inference", "fast").equals("fast")) {
+      if (inference == null) {
+        inference = new FastLdaInference(model);
+      }
+      inference.configure(c);
+    } else {
+      inference = null;
+    }
+  }
+
+  private void inferTopics(String [] words, double [] pzd) {
+    if (inference != null) {
+      inference.inference(words, pzd);
+    } else {
+      model.inference(new Document(words, EMPTY_TAG_SET), pzd);
+    }
   }
 
   @Override
@@ -56,6 +108,7 @@ public class NoiseTagLdaTagSuggest implements TagSuggest, GenerativeTagSuggest {
     this.config = config;
     extractor = new WordFeatureExtractor(config);
     numTags = Integer.parseInt(config.getProperty("numtags", "10"));
+    setUpInference();
   }
 
   public double computeLikelihood(double [] ptz, double [] pzd) {
@@ -69,33 +122,38 @@ public class NoiseTagLdaTagSuggest implements TagSuggest, GenerativeTagSuggest {
 
   @Override
   public List<WeightString> suggest(Post p, StringBuilder explain) {
+    return suggest(p, numTags, explain);
+  }
+
+  @Override
+  public List<WeightString> suggest(Post p, int topK, StringBuilder explain) {
     String [] features = extractor.extract(p);
 	//String [] features = extractor.extractKeyword((KeywordPost)p, true, false, containContent);
-    Document d = new Document(features, EMPTY_TAG_SET);
-    model.inference(d, pzd);
-    List<WeightString> results = new ArrayList<WeightString>();
-    for (String t : model.tags()) {
-      model.ptz(t, ptz);
-      results.add(new WeightString(t, computeLikelihood(ptz, pzd)));
-    }
-
-    Collections.sort(results, new Comparator<WeightString>() {
-      @Override
-      public int compare(WeightString o1, WeightString o2) {
-        return Double.compare(o2.weight, o1.weight);
+    double [] pzd = new double[model.getNumTopics()];
+    long start = System.nanoTime();
+    inferTopics(features, pzd);
+    INFERENCE_LATENCY.recordSince(start);
+    start = System.nanoTime();
+    TopTags top = new TopTags(
+        Math.min(Math.min(topK, numTags), tagNames.length));
+    for (int t = 0; t < tagNames.length; t++) {
+      double [] row = tagTopics[t];
+      double ptd = 0;
+      for (int z = 0; z < row.length; z++) {
+        ptd += row[z] * pzd[z];
       }
-    });
-    if (results.size() > numTags)
-      results = results.subList(0, numTags);
-    return results;
+      top.add(tagNames[t], ptd + tagNoise[t]);
+    }
+    List<WeightString> result = top.drain();
+    RANK_LATENCY.recordSince(start);
+    return result;
   }
 
   @Override
   public void likelihood(Post p, List<Double> likelihoods) {
     String [] words = extractor.extract(p);
-    Document d = new Document(
-        words, p.getTags().toArray(new String[p.getTags().size()]));
-    model.inference(d, pzd);
+    // The tags of the post do not change the topics of its words.
+    inferTopics(words, pzd);
     for (String tag : p.getTags()) {
       if (model.tags().contains(tag)) {
         model.ptz(tag, ptz);
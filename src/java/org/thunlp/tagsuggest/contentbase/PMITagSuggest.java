@@ -17,14 +17,24 @@ import java.util.Properties;
 
 import org.thunlp.misc.Counter;
 import org.thunlp.misc.WeightString;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.Post;
-import org.thunlp.tagsuggest.common.TagSuggest;
+import org.thunlp.tagsuggest.common.TagScores;
+import org.thunlp.tagsuggest.common.ThreadSafeTagSuggest;
+import org.thunlp.tagsuggest.common.TopKTagSuggest;
+import org.thunlp.tagsuggest.common.TopTags;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
+import org.thunlp.text.FrozenLexicon;
 import org.thunlp.text.Lexicon;
 import org.thunlp.text.Lexicon.Word;
 
-public class PMITagSuggest implements TagSuggest {
+public class PMITagSuggest implements ThreadSafeTagSuggest, TopKTagSuggest {
 	private static Logger LOG = Logger.getAnonymousLogger();
+	private static final LatencyHistogram SCORE_LATENCY =
+			Metrics.histogram("suggest.PMITagSuggest.score");
+	private static final LatencyHistogram RANK_LATENCY =
+			Metrics.histogram("suggest.PMITagSuggest.rank");
 	private Lexicon wordLex = null;
 	private Lexicon tagLex = null;
 	private WordFeatureExtractor fe = null;
@@ -32,6 +42,14 @@ public class PMITagSuggest implements TagSuggest {
 	private int numTags = 5;
 
 	private HashMap<Integer, HashMap<Integer, Double>> pmiMap = new HashMap<Integer, HashMap<Integer, Double>>();
+	// One more than the largest tag id in pmiMap.
+	private int tagIdLimit = 0;
+	private ThreadLocal<TagScores> scratch = new ThreadLocal<TagScores>() {
+		@Override
+		protected TagScores initialValue() {
+			return new TagScores();
+		}
+	};
 	
 	@Override
 	public void feedback(Post p) {
@@ -63,10 +81,11 @@ public class PMITagSuggest implements TagSuggest {
 				pmiMap.put(first, new HashMap<Integer, Double>());
 			}
 			pmiMap.get(first).put(second, probability);
+			tagIdLimit = Math.max(tagIdLimit, second + 1);
 		}
 		pro.close();
 		
-		wordLex = new Lexicon();
+		wordLex = new FrozenLexicon();
 		String input = modelPath+"/wordlex";
 		File cachedWordLexFile = new File(input);
 		if (cachedWordLexFile.exists()) {
@@ -74,7 +93,7 @@ public class PMITagSuggest implements TagSuggest {
 			wordLex.loadFromFile(cachedWordLexFile);
 		}
 		
-		tagLex = new Lexicon();
+		tagLex = new FrozenLexicon();
 		String inputTag = modelPath+"/taglex";
 		File cachedTagLexFile = new File(inputTag);
 		if (cachedTagLexFile.exists()) {
@@ -93,9 +112,15 @@ public class PMITagSuggest implements TagSuggest {
 
 	@Override
 	public List<WeightString> suggest(Post p, StringBuilder explain) {
+		return suggest(p, Integer.MAX_VALUE, explain);
+	}
+
+	@Override
+	public List<WeightString> suggest(Post p, int topK, StringBuilder explain) {
 		HashMap<Integer, Double> wordTfidf = new HashMap<Integer, Double>();
 		
 		String[] words = fe.extract(p);
+		long start = System.nanoTime();
 		Counter<String> termFreq = new Counter<String>();
 		// calculate the word tfidf
 		for (String word : words) {
@@ -103,7 +128,8 @@ public class PMITagSuggest implements TagSuggest {
 				termFreq.inc(word, 1);
 		}
 		Iterator<Entry<String, Long>> iter = termFreq.iterator();
-		HashMap<Integer, Double> proMap = new HashMap<Integer, Double>();
+		TagScores scores = scratch.get();
+		scores.ensureCapacity(tagIdLimit);
 		while (iter.hasNext()) {
 			Entry<String, Long> e = iter.next();
 			String word = e.getKey();
@@ -127,29 +153,25 @@ public class PMITagSuggest implements TagSuggest {
 					int tagId = ee.getKey();
 					if(tagLex.getWord(tagId) != null){
 						double pro = ee.getValue();
-						if(!proMap.containsKey(tagId)){
-							proMap.put(tagId, 0.0);
-						}
-						proMap.put(tagId, proMap.get(tagId) + tfidf * pro);
+						scores.add(tagId, tfidf * pro);
 					}
 				}
 			}
 		}
 		
+		SCORE_LATENCY.recordSince(start);
+		
 		// ranking
-		List<WeightString> tags = new ArrayList<WeightString>();
-		for (Entry<Integer, Double> e : proMap.entrySet()) {
-			tags.add(new WeightString(tagLex.getWord(e.getKey()).getName(), e
-							.getValue()));
+		start = System.nanoTime();
+		scores.sortCandidates();
+		TopTags top = new TopTags(Math.min(topK, scores.size()));
+		for (int k = 0; k < scores.size(); k++) {
+			int tagId = scores.candidate(k);
+			top.add(tagLex.getWord(tagId).getName(), scores.score(tagId));
 		}
-		Collections.sort(tags, new Comparator<WeightString>() {
-
-			@Override
-			public int compare(WeightString o1, WeightString o2) {
-				return Double.compare(o2.weight, o1.weight);
-			}
-
-		});
-		return tags;
+		scores.clear();
+		List<WeightString> result = top.drain();
+		RANK_LATENCY.recordSince(start);
+		return result;
 	}
 }
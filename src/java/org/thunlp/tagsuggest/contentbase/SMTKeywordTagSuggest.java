@@ -30,31 +30,41 @@ import org.thunlp.misc.Counter;
 import org.thunlp.misc.WeightString;
 import org.thunlp.tagsuggest.common.ConfigIO;
 import org.thunlp.tagsuggest.common.DoubanPost;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
 import org.thunlp.tagsuggest.common.Post;
 import org.thunlp.tagsuggest.common.KeywordPost;
-import org.thunlp.tagsuggest.common.TagSuggest;
+import org.thunlp.tagsuggest.common.Metrics;
+import org.thunlp.tagsuggest.common.SMTModel;
+import org.thunlp.tagsuggest.common.TagScores;
+import org.thunlp.tagsuggest.common.ThreadSafeTagSuggest;
+import org.thunlp.tagsuggest.common.TopKTagSuggest;
+import org.thunlp.tagsuggest.common.TopTags;
+import org.thunlp.tagsuggest.common.TranslationTable;
 import org.thunlp.tagsuggest.common.Filter;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 import org.thunlp.text.Lexicon;
 
-public class SMTKeywordTagSuggest implements TagSuggest {
+public class SMTKeywordTagSuggest implements ThreadSafeTagSuggest,
+		TopKTagSuggest {
 	private static Logger LOG = Logger.getAnonymousLogger();
+	private static final LatencyHistogram TRANSLATE_LATENCY =
+			Metrics.histogram("suggest.SMTKeywordTagSuggest.translate");
+	private static final LatencyHistogram RANK_LATENCY =
+			Metrics.histogram("suggest.SMTKeywordTagSuggest.rank");
 
 	private WordFeatureExtractor extractor = null;
-	private Lexicon wordLex = null;
 
 	private Properties config = new Properties();
 	private static List<WeightString> EMPTY_SUGGESTION = new LinkedList<WeightString>();
 
-	private HashMap<Integer, String> bookMap = new HashMap<Integer, String>();
-	private HashMap<String, Integer> idMap = new HashMap<String, Integer>();
-	private HashMap<Integer, String> bookTagMap = new HashMap<Integer, String>();
-
-	private HashMap<String, Integer> df = new HashMap<String, Integer>();
-
-	private HashMap<Integer, HashMap<Integer, Double>> proTable = new HashMap<Integer, HashMap<Integer, Double>>();
-	private HashMap<Integer, HashMap<Integer, Double>> inverseTable = new HashMap<Integer, HashMap<Integer,Double>>();
+	private SMTModel model = null;
 	private double para = 0.5;
+	private ThreadLocal<TagScores> scratch = new ThreadLocal<TagScores>() {
+		@Override
+		protected TagScores initialValue() {
+			return new TagScores();
+		}
+	};
 	
 	@Override
 	public void feedback(Post p) {
@@ -67,145 +77,7 @@ public class SMTKeywordTagSuggest implements TagSuggest {
 
 		para = Double.parseDouble(config.getProperty("para", "0.5"));
 
-		// Read book.vcb
-		String bookFile = modelPath + File.separator + "book.vcb";
-		BufferedReader book = new BufferedReader(new InputStreamReader(
-				new FileInputStream(bookFile), "UTF-8"));
-		String bookLine;
-		while ((bookLine = book.readLine()) != null) {
-			String[] datas = bookLine.split(" ");
-			bookMap.put(Integer.parseInt(datas[0]), datas[1]);
-			idMap.put(datas[1], Integer.parseInt(datas[0]));
-			df.put(datas[1], Integer.parseInt(datas[2]));
-		}
-		book.close();
-
-		// Read bookTag.vcb
-		String tagFile = modelPath + File.separator + "bookTag.vcb";
-		BufferedReader bookTag = new BufferedReader(new InputStreamReader(
-				new FileInputStream(tagFile), "UTF-8"));
-		String tagLine;
-		while ((tagLine = bookTag.readLine()) != null) {
-			String[] datas = tagLine.split(" ");
-			bookTagMap.put(Integer.parseInt(datas[0]), datas[1]);
-		}
-		bookTag.close();
-
-		// Read *.t1.5
-		File dir = new File(modelPath);
-		
-		Filter filter = new Filter("t1.5");
-		String files_tmp[] = dir.list(filter);
-
-		Vector<String> files = new Vector<String>();
-		for (String e:files_tmp)
-			files.add(e);
-		
-		Collections.sort(files);
-
-		int files_len = files.size();
-
-		if (files_len == 0) {
-			System.out.println("*.t1.5 not exist");
-			LOG.info("*.t1.5 not exist");
-		}
-		else{
-			String word2Tag;
-			String tag2Word;
-
-			word2Tag = files.get(files_len-2);
-			tag2Word = files.get(files_len-1);
-			LOG.info(word2Tag);
-			LOG.info(tag2Word);
-			BufferedReader pro = new BufferedReader(new InputStreamReader(
-					new FileInputStream(modelPath + File.separator +  word2Tag),
-					"UTF-8"));
-			String proLine;
-			while ((proLine = pro.readLine()) != null) {
-				String[] data = proLine.split(" ");
-				
-				if (data.length != 3)
-					continue;
-
-				int first = Integer.parseInt(data[0]);
-				int second = Integer.parseInt(data[1]);
-				double probability = Double.parseDouble(data[2]);
-				if (first == 0 || second == 0) {
-					continue;
-				}
-				if (proTable.containsKey(first)) {
-					proTable.get(first).put(second, probability);
-				} else {
-					HashMap<Integer, Double> tmp = new HashMap<Integer, Double>();
-					tmp.put(second, probability);
-					proTable.put(first, tmp);
-				}
-			}
-			pro.close();
-		}
-		LOG.info(new Integer(proTable.size()).toString());
-		
-		// Read ti.fianl
-		Filter filter2 = new Filter("ti.final");
-		String files2_tmp[] = dir.list(filter2);
-
-		Vector<String> files2 = new Vector<String>();
-		for (String e:files2_tmp)
-		{
-			if (e.indexOf("actual") == -1)
-				files2.add(e);
-		}
-		
-		Collections.sort(files2);
-
-
-		int files2_len = files2.size();
-		
-		if(files2_len == 0){
-			System.out.println("*.ti.final not exist");
-			LOG.info("*.ti.final not exist");
-		}
-		else{
-			String word2Tag;
-			String tag2Word;
-			
-			word2Tag = files2.get(files2_len-2);
-			tag2Word = files2.get(files2_len-1);
-			LOG.info(word2Tag);
-			LOG.info(tag2Word);
-			BufferedReader inverse = new BufferedReader(
-					new InputStreamReader(new FileInputStream(modelPath + File.separator + tag2Word),"UTF-8"));
-			String line;
-			while((line = inverse.readLine()) != null){
-				String[] data = line.split(" ");
-				if(data.length != 3) continue;
-
-				int first = Integer.parseInt(data[0]);
-				int second = Integer.parseInt(data[1]);
-				double probability = Double.parseDouble(data[2]);
-				if(first == 0 || second == 0 || (probability < 0.01)){
-					continue;
-				}
-				if(inverseTable.containsKey(first)){
-					inverseTable.get(first).put(second, probability);
-				}
-				else{
-					HashMap<Integer, Double> tmp = new HashMap<Integer, Double>();
-					tmp.put(second, probability);
-					inverseTable.put(first, tmp);
-				}
-			}
-			inverse.close();
-		}
-
-		// read wordlex
-		wordLex = new Lexicon();
-		String input = modelPath+"/wordlex";
-		File cachedWordLexFile = new File(input);
-		if (cachedWordLexFile.exists()) {
-			LOG.info("Use cached lexicons");
-			wordLex.loadFromFile(cachedWordLexFile);
-		}
+		model = SMTModel.load(modelPath);
 	}
 
 	@Override
@@ -217,78 +89,78 @@ public class SMTKeywordTagSuggest implements TagSuggest {
 
 	@Override
 	public List<WeightString> suggest(Post p, StringBuilder explain) {
-		// TODO Auto-generated method stub
-		HashMap<Integer, Double> wordTfidf = new HashMap<Integer, Double>();
-	//	HashMap<Integer, HashMap<Integer, Double>> LDA = new HashMap<Integer, HashMap<Integer,Double>>();
-		
+		return suggest(p, Integer.MAX_VALUE, explain);
+	}
+
+	@Override
+	public List<WeightString> suggest(Post p, int topK, StringBuilder explain) {
 		String[] words = extractor.extract(p);
+		long start = System.nanoTime();
 		Counter<String> termFreq = new Counter<String>();
 		// calculate the word tfidf
 		for (String word : words) {
-			if (idMap.containsKey(word))
+			if (model.wordId(word) >= 0)
 				termFreq.inc(word, 1);
 		}
+		TranslationTable proTable = model.getProTable();
+		TranslationTable inverseTable = model.getInverseTable();
+		int numTags = model.numTags();
+
+		// Tag scores are accumulated in a dense per-thread array indexed by
+		// tag id, and the touched ids are remembered so that only they are
+		// ranked and reset.
+		TagScores scores = scratch.get();
+		scores.ensureCapacity(numTags);
 
 		Iterator<Entry<String, Long>> iter = termFreq.iterator();
-		HashMap<Integer, Double> proMap = new HashMap<Integer, Double>();
 		while (iter.hasNext()) {
 			Entry<String, Long> e = iter.next();
 			String word = e.getKey();
 
 			double tf = (double) e.getValue() / (double) words.length;
-			double idf = 0.0;
-			
-			if(wordLex.getWord(word) != null){
-				idf = Math.log((double) wordLex.getNumDocs()
-					/ (double) wordLex.getWord(word).getDocumentFrequency());
-			}
-			else{
+			int id = model.wordId(word);
+			double idf = model.idf(id);
+			if (Double.isNaN(idf)) {
 				continue;
 			}
 			double tfidf = tf * idf;
-			int id = idMap.get(word);
-			if (proTable.containsKey(id)) {
-				wordTfidf.put(id, tfidf);
-				
-				HashMap<Integer, Double> tmpMap = new HashMap<Integer, Double>();
-				tmpMap.putAll(proTable.get(id));
-				
-				// to suggest the tags
-				for (Entry<Integer, Double> ee : proTable.get(id).entrySet()) {
-					int tagId = ee.getKey();
-					if(inverseTable.containsKey(id) && inverseTable.get(id).containsKey(tagId)){
-					double pro = ee.getValue() * inverseTable.get(id).get(tagId);
-			//		double pro = 1.0 / ( para / ee.getValue() + (1.0 - para) / inverseTable.get(id).get(tagId));
 
-						if (proMap.containsKey(tagId)) {
-							double tmp = proMap.get(tagId);
-							tmp += tfidf * pro;
-							proMap.remove(tagId);
-							proMap.put(tagId, tmp);
-						} else {
-							proMap.put(tagId, tfidf * pro);
-						}
+			// Both rows are sorted by tag id, so a merge join finds the tags
+			// present in both directions.
+			int i = proTable.rowStart(id), iEnd = proTable.rowEnd(id);
+			int j = inverseTable.rowStart(id), jEnd = inverseTable.rowEnd(id);
+			while (i < iEnd && j < jEnd) {
+				int tagId = proTable.column(i);
+				int inverseTagId = inverseTable.column(j);
+				if (tagId < inverseTagId) {
+					i++;
+				} else if (tagId > inverseTagId) {
+					j++;
+				} else {
+					double pro = proTable.prob(i) * inverseTable.prob(j);
+					if (tagId < numTags) {
+						scores.add(tagId, tfidf * pro);
 					}
+					i++;
+					j++;
 				}
 			}
 		}
 
+		TRANSLATE_LATENCY.recordSince(start);
+
 		// ranking
-		List<WeightString> tags = new ArrayList<WeightString>();
-		for (Entry<Integer, Double> e : proMap.entrySet()) {
-			tags.add(new WeightString(bookTagMap.get(e.getKey()), e
-							.getValue()));
+		start = System.nanoTime();
+		scores.sortCandidates();
+		TopTags top = new TopTags(Math.min(topK, scores.size()));
+		for (int k = 0; k < scores.size(); k++) {
+			int tagId = scores.candidate(k);
+			top.add(model.tagName(tagId), scores.score(tagId));
 		}
-		Collections.sort(tags, new Comparator<WeightString>() {
-
-			@Override
-			public int compare(WeightString o1, WeightString o2) {
-				return Double.compare(o2.weight, o1.weight);
-			}
-
-		});
-
-		return tags;
+		scores.clear();
+		List<WeightString> result = top.drain();
+		RANK_LATENCY.recordSince(start);
+		return result;
 	}
 
 	public static void main(String[] args) throws IOException {
@@ -13,7 +13,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.Map.Entry;
 import java.util.logging.Logger;
 
 import javax.swing.Box.Filler;
@@ -22,18 +21,29 @@ import org.thunlp.misc.StringUtil;
 import org.thunlp.misc.WeightString;
 import org.thunlp.tagsuggest.common.FeatureExtractor;
 import org.thunlp.tagsuggest.common.GenerativeTagSuggest;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.Post;
+import org.thunlp.tagsuggest.common.TagScores;
 import org.thunlp.tagsuggest.common.TagSuggest;
+import org.thunlp.tagsuggest.common.TopKTagSuggest;
+import org.thunlp.tagsuggest.common.TopTags;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 
-public class TAMTagSuggest implements TagSuggest, GenerativeTagSuggest {
+public class TAMTagSuggest implements TagSuggest, GenerativeTagSuggest,
+		TopKTagSuggest {
 	private static Logger LOG = Logger.getAnonymousLogger();
+	private static final LatencyHistogram SCORE_LATENCY =
+			Metrics.histogram("suggest.TAMTagSuggest.score");
+	private static final LatencyHistogram RANK_LATENCY =
+			Metrics.histogram("suggest.TAMTagSuggest.rank");
 	private TagAllocationModel model;
 	private FeatureExtractor extractor = new WordFeatureExtractor();
 	private Properties config = null;
 	private int numTags = 10;
 	private int numSamples = 100;
 	private boolean useNoise = false;
+	private TagScores scores = new TagScores();
 
 	@Override
 	public void feedback(Post p) {
@@ -66,9 +76,15 @@ public class TAMTagSuggest implements TagSuggest, GenerativeTagSuggest {
 
 	@Override
 	public List<WeightString> suggest(Post p, StringBuilder explain) {
+		return suggest(p, numTags, explain);
+	}
+
+	@Override
+	public List<WeightString> suggest(Post p, int topK, StringBuilder explain) {
 		addExplain(explain, "<div class='explain'>");
 		addExplain(explain, "<div>suggest for " + p.getContent() + "</div>");
 		String[] features = extractor.extract(p);
+		long start = System.nanoTime();
 		Set<String> featureSet = new HashSet<String>();
 		for (String feature : features) {
 			featureSet.add(feature);
@@ -76,7 +92,7 @@ public class TAMTagSuggest implements TagSuggest, GenerativeTagSuggest {
 		addExplain(explain, "features: ");
 		if (explain != null) {
 			for (String feature : features) {
-				if (model.getRelatedTags(feature).size() > 0) {
+				if (model.numRelatedTags(model.reasonId(feature)) > 0) {
 					addExplain(explain, "<span style='color:red'>" + feature
 							+ "</span> ");
 				} else {
@@ -85,23 +101,25 @@ public class TAMTagSuggest implements TagSuggest, GenerativeTagSuggest {
 			}
 		}
 		addExplain(explain, "<br>");
-		List<WeightString> results = new ArrayList<WeightString>();
-
-		Map<String, Double> tagWeights = new Hashtable<String, Double>();
+		scores.ensureCapacity(model.numTags());
 		Map<String, List<String>> tagsrc = null;
 		if (explain != null) {
 			tagsrc = new Hashtable<String, List<String>>();
 		}
 		double norm = 0;
 		for (String feature : featureSet) {
-			norm += model.prw(feature);
+			norm += model.prw(model.reasonId(feature));
 		}
+		double pcm = model.pcm();
 		for (String feature : featureSet) {
-			Set<String> ctags = model.getRelatedTags(feature);
-			double prd = model.prw(feature) / norm;
-			for (String tag : ctags) {
-				double ptr = model.ptr(tag, feature);
+			int reason = model.reasonId(feature);
+			double prd = model.prw(reason) / norm;
+			int numRelated = model.numRelatedTags(reason);
+			for (int i = 0; i < numRelated; i++) {
+				int tagId = model.relatedTag(reason, i);
+				double ptr = model.ptr(tagId, reason);
 				if (explain != null) {
+					String tag = model.tagName(tagId);
 					List<String> srcs = tagsrc.get(tag);
 					if (srcs == null) {
 						srcs = new LinkedList<String>();
@@ -109,39 +127,33 @@ public class TAMTagSuggest implements TagSuggest, GenerativeTagSuggest {
 					}
 					srcs.add(feature + ":" + String.format("%.3f", ptr));
 				}
-				double ptf = ptr * prd * (1 - model.pcm());
-				Double w = tagWeights.get(tag);
-				if (w == null) {
-					w = 0.0;
-				}
-				tagWeights.put(tag, w + ptf);
+				scores.add(tagId, ptr * prd * (1 - pcm));
 			}
 		}
 		if (useNoise) {
-			for (String tag : model.getRelatedTags(TagAllocationModel.NOISE)) {
-				double ptr = model.ptr(tag, TagAllocationModel.NOISE);
-				double ptf = ptr * model.pcm();
-				Double w = tagWeights.get(tag);
-				if (w == null) {
-					w = 0.0;
-				}
-				tagWeights.put(tag, w + ptf);
+			int numRelated = model.numRelatedTags(TagAllocationModel.NOISE_ID);
+			for (int i = 0; i < numRelated; i++) {
+				int tagId = model.relatedTag(TagAllocationModel.NOISE_ID, i);
+				double ptr = model.ptr(tagId, TagAllocationModel.NOISE_ID);
+				scores.add(tagId, ptr * pcm);
 			}
 		}
 
-		for (Entry<String, Double> e : tagWeights.entrySet()) {
-			results.add(new WeightString(e.getKey(), e.getValue()));
+		SCORE_LATENCY.recordSince(start);
+
+		start = System.nanoTime();
+		scores.sortCandidates();
+		TopTags top = new TopTags(Math.min(Math.min(topK, numTags),
+				scores.size()));
+		for (int k = 0; k < scores.size(); k++) {
+			int tagId = scores.candidate(k);
+			top.add(model.tagName(tagId), scores.score(tagId));
 		}
+		scores.clear();
+		List<WeightString> results = top.drain();
+		RANK_LATENCY.recordSince(start);
 
 		addExplain(explain, "</div>");
-		Collections.sort(results, new Comparator<WeightString>() {
-			@Override
-			public int compare(WeightString o1, WeightString o2) {
-				return Double.compare(o2.weight, o1.weight);
-			}
-		});
-		if (results.size() > numTags)
-			results = results.subList(0, numTags);
 
 		if (explain != null && results.size() > 0) {
 			double largestWeight = results.get(0).weight;
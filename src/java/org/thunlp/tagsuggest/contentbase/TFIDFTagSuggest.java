@@ -13,16 +13,23 @@ import org.thunlp.misc.Counter;
 import org.thunlp.misc.WeightString;
 import org.thunlp.tagsuggest.common.ConfigIO;
 import org.thunlp.tagsuggest.common.FeatureExtractor;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.Post;
 import org.thunlp.tagsuggest.common.KeywordPost;
 import org.thunlp.tagsuggest.common.TagSuggest;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 import org.thunlp.tagsuggest.train.TrainTFIDF;
+import org.thunlp.text.FrozenLexicon;
 import org.thunlp.text.Lexicon;
 import org.thunlp.text.Lexicon.Word;
 
 public class TFIDFTagSuggest implements TagSuggest {
 private static Logger LOG = Logger.getAnonymousLogger();
+  private static final LatencyHistogram KEYWORDS_LATENCY =
+      Metrics.histogram("suggest.TFIDFTagSuggest.keywords");
+  private static final LatencyHistogram SCORE_LATENCY =
+      Metrics.histogram("suggest.TFIDFTagSuggest.score");
 
   Lexicon lex = null;
   private WordFeatureExtractor extractor = new WordFeatureExtractor();
@@ -36,7 +43,7 @@ private static Logger LOG = Logger.getAnonymousLogger();
 
   @Override
   public void loadModel(String modelPath) throws IOException {
-	lex = new Lexicon();
+	lex = new FrozenLexicon();
 	String input = modelPath + "/wordlex";
 	File cachedWordLexFile = new File(input);
 	if (cachedWordLexFile.exists()) {
@@ -57,7 +64,10 @@ private static Logger LOG = Logger.getAnonymousLogger();
   @Override
   public List<WeightString> suggest(Post p, StringBuilder explain) {
 	  
+    long start = System.nanoTime();
     String [] features = extractor.extractKeyword((KeywordPost) p, true, true,true);
+    KEYWORDS_LATENCY.recordSince(start);
+    start = System.nanoTime();
     
     Counter<String> featureSet = new Counter<String>();
 
@@ -85,6 +95,7 @@ private static Logger LOG = Logger.getAnonymousLogger();
     if (tags.size() > numTags) {
       tags = tags.subList(0, numTags);
     }
+    SCORE_LATENCY.recordSince(start);
     return tags;
   }
 	
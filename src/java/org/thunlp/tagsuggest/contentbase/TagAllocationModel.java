@@ -11,8 +11,11 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
@@ -26,7 +29,7 @@ import org.thunlp.tagsuggest.common.ListDataSource;
 import org.thunlp.misc.AnyDoublePair;
 import org.thunlp.misc.Counter;
 import org.thunlp.misc.WeightString;
-import org.thunlp.tagsuggest.common.SparseCounter;
+import org.thunlp.tagsuggest.common.IntSparseCounter;
 import org.thunlp.text.Lexicon;
 import org.thunlp.text.Lexicon.Word;
 
@@ -52,7 +55,20 @@ public class TagAllocationModel {
     public String [] words;
     public String [] tags;
     public String [] reason;  // The same length as the tags.
-    
+
+    // The document in model ids, made by prepare(). A slot is a distinct
+    // word, and the last slot is NOISE; reasonSlots[i] is the slot of
+    // reason[i].
+    private String [] preparedWords = null;
+    private String [] preparedTags = null;
+    private String [] preparedReason = null;
+    private boolean interned = false;
+    private String [] slotNames;
+    private int [] slotIds;
+    private int [] slotCounts;
+    private int [] tagIds;
+    private int [] reasonSlots;
+
     public String toString() {
       StringBuilder sb = new StringBuilder();
       for (int i = 0; i < tags.length; i++) {
@@ -97,18 +113,20 @@ public class TagAllocationModel {
    * An empty model for training.
    */
   public TagAllocationModel() {
-    this.ntw = new SparseCounter<String>();
-    this.nw = new Counter<String>();
+    this.ntw = new IntSparseCounter();
+    reasonVocab.intern(NOISE);
   }
 
   /**
    * Read an existing model.
    */
   public TagAllocationModel(InputStream input) throws IOException {
+    reasonVocab.intern(NOISE);
     loadFrom(input);
   }
 
   public TagAllocationModel(File file) throws IOException {
+    reasonVocab.intern(NOISE);
     FileInputStream input = new FileInputStream(file);
     loadFrom(input);
     input.close();
@@ -152,16 +170,16 @@ public class TagAllocationModel {
     if (line == null)
       throw new IOException("number of tags wrong.");
     int numTags = Integer.parseInt(line);
-    ntw = new SparseCounter<String>();   
+    ntw = new IntSparseCounter();
     for (int i = 0; i < numTags; i++) {
       line = reader.readLine();
       if (line == null)
         throw new IOException("no data for the " + i + "-th tag");
       String [] cols = line.split(" ");
-      String tag = cols[0];
+      int tag = tagVocab.intern(cols[0]);
       for (int j = 1; j < cols.length; j+=2) {
         long count = Long.parseLong(cols[j+1]);
-        ntw.inc(tag, cols[j], count);
+        ntw.inc(tag, reasonVocab.intern(cols[j]), count);
       }
     }
     // Load word count.
@@ -169,18 +187,17 @@ public class TagAllocationModel {
     if (line == null)
       throw new IOException("number of tags wrong.");
     int numWords = Integer.parseInt(line);
-    nw = new Counter<String>(); 
+    setWordCounts(new long[0]);
     for (int i = 0; i < numWords; i++) {
       line = reader.readLine();
       if (line == null)
         throw new IOException("no data for the " + i + "-th word");
       String [] cols = line.split(" ");
-      String word = cols[0];
       long count = Long.parseLong(cols[1]);
-      nw.inc(word, count);
+      incWord(reasonVocab.intern(cols[0]), count);
     }
-    LOG.info("Load " + ntw.rows().size() + " tags and " +
-        nw.size() + " words. alpha:" + alpha[0] + "," + alpha[1] +                             
+    LOG.info("Load " + ntw.numRows() + " tags and " +
+        this.numWords + " words. alpha:" + alpha[0] + "," + alpha[1] +
         " beta:" + beta + " gamma:" + gamma);
   }
 
@@ -207,28 +224,29 @@ public class TagAllocationModel {
     writer.write(Integer.toString(numCombinedIterations));
     writer.write("\n");
     // Write ntw.
-    Set<String> tags = ntw.rows();
-    writer.write(Integer.toString(tags.size()));
+    int [] rows = ntw.rows();
+    writer.write(Integer.toString(rows.length));
     writer.write("\n");
-    for (String tag : tags) {
-      writer.write(tag);
-
-      Set<String> words = ntw.columns(tag);
-      for (String word : words) {
+    for (int tag : rows) {
+      writer.write(tagVocab.name(tag));
+      for (int i = 0; i < ntw.numColumns(tag); i++) {
+        int word = ntw.column(tag, i);
         writer.write(" ");
-        writer.write(word);
+        writer.write(reasonVocab.name(word));
         writer.write(" ");
         writer.write(Long.toString(ntw.get(tag, word)));
       }
       writer.write("\n");
     }
     // Write nw.
-    writer.write(Integer.toString(nw.size()));
+    writer.write(Integer.toString(numWords));
     writer.write("\n");
-    for (Entry<String, Long> e : nw) {
-      writer.write(e.getKey());
+    for (int word = 0; word < nw.length; word++) {
+      if (nw[word] == 0)
+        continue;
+      writer.write(reasonVocab.name(word));
       writer.write(" ");
-      writer.write(Long.toString(e.getValue()));
+      writer.write(Long.toString(nw[word]));
       writer.write("\n");
     }
     writer.flush();
@@ -253,9 +271,10 @@ public class TagAllocationModel {
 
     // Estimate p(r=w|w_d,c=c_m,beta).
     for (Entry<String, Long> e : nwd) {
-      if (!ntw.columns().contains(e.getKey()))
+      int word = reasonVocab.id(e.getKey());
+      if (ntw.numRows(word) == 0)
         continue;
-      double prw = prw(e.getKey());
+      double prw = prw(word);
       prwd.put(e.getKey(), e.getValue() * prw);
     }
 
@@ -274,8 +293,10 @@ public class TagAllocationModel {
       }
       // Sample a tag.
       p.clear();
-      for (String tag : ntw.rows(reason)) {
-        p.put(tag, ptr(tag, reason));
+      int r = reasonVocab.id(reason);
+      for (int j = 0; j < ntw.numRows(r); j++) {
+        int tag = ntw.row(r, j);
+        p.put(tagVocab.name(tag), ptr(tag, r));
       }
       if (p.size() > 0) {
         String tag = sample(p);
@@ -299,7 +320,8 @@ public class TagAllocationModel {
    */
   public double likelihood(String [] doc, String tag) {
     double likelihood = 0;
-    if (ntw.rowSum(tag) == 0) {
+    int t = tagVocab.id(tag);
+    if (ntw.rowSum(t) == 0) {
       return likelihood;  // No such tag in the model.
     }
     Counter<String> nwd = new Counter<String>();
@@ -307,17 +329,21 @@ public class TagAllocationModel {
       nwd.inc(w, 1);
     }
     double norm = 0;
-    Map<String, Double> prwd = new Hashtable<String, Double>();
+    int [] words = new int[nwd.size()];
+    double [] prwd = new double[words.length];
+    int k = 0;
     for (Entry<String, Long> e : nwd) {
-      double prw = prw(e.getKey());
-      norm += prw;
-      prwd.put(e.getKey(), prw);
+      words[k] = reasonVocab.id(e.getKey());
+      prwd[k] = prw(words[k]);
+      norm += prwd[k];
+      k++;
     }
-    for (Entry<String, Double> e : prwd.entrySet()) {
-      double prw = e.getValue() / norm;
-      likelihood += ptr(tag, e.getKey()) * prw * (1.0 - pcm());
+    double pcm = pcm();
+    for (k = 0; k < words.length; k++) {
+      double prw = prwd[k] / norm;
+      likelihood += ptr(t, words[k]) * prw * (1.0 - pcm);
     }
-    likelihood += ptr(tag, NOISE) * pcm();
+    likelihood += ptr(t, NOISE_ID) * pcm;
     return likelihood;
   }
 
@@ -327,56 +353,54 @@ public class TagAllocationModel {
   
   public double inference(
       Document doc, Map<String, AnyDoublePair<Integer>> perTagLL) {
+    prepare(doc, !locked, false);
     double loglikelihood = 0;
-    Map<String, Double> prtd = new Hashtable<String, Double>();
-    Counter<String> nwd = new Counter<String>();
-    for (String w : doc.words) {
-      nwd.inc(w, 1);
-    }
+    int noise = doc.slotIds.length - 1;
 
     // Estimate p(r=w|w_d,c=c_m,beta).
-    Map<String, Double> prwd = new Hashtable<String, Double>();
+    double [] prwd = new double[noise];
     double norm = 0;
-    for (Entry<String, Long> e : nwd) {
-      double p = prw(e.getKey()) * (double)e.getValue();
-      norm += p;
-      prwd.put(e.getKey(), p);
+    for (int s = 0; s < noise; s++) {
+      prwd[s] = prw(doc.slotIds[s]) * (double)doc.slotCounts[s];
+      norm += prwd[s];
     }
-    for (Entry<String, Double> e : prwd.entrySet()) {
-      double p = e.getValue() / norm;
-      checkProb(p);
-      prwd.put(e.getKey(), p);
+    for (int s = 0; s < noise; s++) {
+      prwd[s] /= norm;
+      checkProb(prwd[s]);
     }
 
+    double [] prtd = new double[noise + 1];
     for (int t = 0; t < doc.tags.length; t++) {
       String tag = doc.tags[t];
+      int tagId = doc.tagIds[t];
       double likelihood = 0;
       if (!locked) {
-        ntw.inc(doc.tags[t], doc.reason[t], -1);
+        ntw.inc(tagId, doc.slotIds[doc.reasonSlots[t]], -1);
       }
       // Generate sampling vector (prtd) for words.
-      prtd.clear();  
-      for (Entry<String, Long> e : nwd) {
-        String word = e.getKey();
-        double p = ptr(tag, word) * prwd.get(word) * (1 - pcm());
+      double pcm = pcm();
+      for (int s = 0; s < noise; s++) {
+        double p = ptr(tagId, doc.slotIds[s]) * prwd[s] * (1 - pcm);
         checkProb(p);
         likelihood += p;
         checkDouble(likelihood);
-        prtd.put(word, p);
+        prtd[s] = p;
       }
 
       // Generate noise sample rate.
-      double ptm = ptr(tag, NOISE) * pcm();
+      double ptm = ptr(tagId, NOISE_ID) * pcm;
       checkProb(ptm);
       likelihood += ptm;
       checkDouble(likelihood);
-      prtd.put(NOISE, ptm);
+      prtd[noise] = ptm;
 
       // Sample.
-      doc.reason[t] = sample(prtd);
+      int slot = sample(prtd);
+      doc.reasonSlots[t] = slot;
+      doc.reason[t] = doc.slotNames[slot];
 
       if (!locked) {
-        ntw.inc(doc.tags[t], doc.reason[t], 1);
+        ntw.inc(tagId, doc.slotIds[slot], 1);
       }
       if (perTagLL != null) {
         AnyDoublePair<Integer> v = perTagLL.get(tag);
@@ -435,8 +459,8 @@ public class TagAllocationModel {
     docs.rewind();
     
     LOG.info("Number of tag tokens: " + numTagTokens + " N/R: " + pcm());
-    SparseCounter<String> meanNtw = new SparseCounter<String>();
-    Counter<String> meanNw = new Counter<String>();
+    IntSparseCounter meanNtw = new IntSparseCounter();
+    long [] meanNw = new long[0];
     for (int i = 0; i < numIterations; i++) {
       double l = 0;
       Map<String, AnyDoublePair<Integer>> perTagLikelihood = 
@@ -470,7 +494,12 @@ public class TagAllocationModel {
           " NZ: " + ntw.numNonZeroElements());
       if (i > numBurnIn) {
         meanNtw.inc(ntw);
-        meanNw.inc(nw);
+        if (meanNw.length < nw.length) {
+          meanNw = Arrays.copyOf(meanNw, nw.length);
+        }
+        for (int word = 0; word < nw.length; word++) {
+          meanNw[word] += nw[word];
+        }
       }
       loglikelihoods.add(l);
     }
@@ -478,8 +507,7 @@ public class TagAllocationModel {
     // Use aggregated result.
     ntw = null;
     ntw = meanNtw;
-    nw = null;
-    nw = meanNw;
+    setWordCounts(meanNw);
     numCombinedIterations = numIterations - numBurnIn;
     setLocked(true);
     return loglikelihoods;
@@ -527,62 +555,136 @@ public class TagAllocationModel {
   }
 
   public Set<String> getRelatedTags(String word) {
-    return ntw.rows(word);
+    int reason = reasonVocab.id(word);
+    Set<String> related = new HashSet<String>();
+    for (int i = 0; i < ntw.numRows(reason); i++) {
+      related.add(tagVocab.name(ntw.row(reason, i)));
+    }
+    return related;
   }
 
   public Set<String> getRelatedWords(String tag) {
-    return ntw.columns(tag);
+    int t = tagVocab.id(tag);
+    Set<String> related = new HashSet<String>();
+    for (int i = 0; i < ntw.numColumns(t); i++) {
+      related.add(reasonVocab.name(ntw.column(t, i)));
+    }
+    return related;
   }
   
   public Set<String> getAllTags() {
-    return ntw.rows();
+    Set<String> all = new HashSet<String>();
+    for (int tag : ntw.rows()) {
+      all.add(tagVocab.name(tag));
+    }
+    return all;
   }
 
   public Set<String> getAllFeatures() {
-    return ntw.columns();
+    Set<String> all = new HashSet<String>();
+    for (int reason : ntw.columns()) {
+      all.add(reasonVocab.name(reason));
+    }
+    return all;
+  }
+
+  /**
+   * The id of a tag, or -1 if the model has not seen it.
+   */
+  public int tagId(String tag) {
+    return tagVocab.id(tag);
+  }
+
+  public String tagName(int tag) {
+    return tagVocab.name(tag);
+  }
+
+  /**
+   * Tag ids are in [0, numTags()).
+   */
+  public int numTags() {
+    return tagVocab.size();
+  }
+
+  /**
+   * The id of a word as a reason, or -1 if the model has not seen it. NOISE
+   * is NOISE_ID.
+   */
+  public int reasonId(String reason) {
+    return reasonVocab.id(reason);
+  }
+
+  public String reasonName(int reason) {
+    return reasonVocab.name(reason);
+  }
+
+  /**
+   * Number of tags allocated to reason, the tags are relatedTag(reason, i)
+   * for i < numRelatedTags(reason). Same as getRelatedTags() but by ids.
+   */
+  public int numRelatedTags(int reason) {
+    return ntw.numRows(reason);
+  }
+
+  public int relatedTag(int reason, int i) {
+    return ntw.row(reason, i);
   }
 
   public double ptr(String tag, String reason) {
+    return ptr(tagVocab.id(tag), reasonVocab.id(reason));
+  }
+
+  public double ptr(int tag, int reason) {
     long nr = ntw.columnSum(reason);
     double p = (ntw.get(tag, reason) + gamma * numCombinedIterations)
-    / (nr + ntw.rows().size() * gamma * numCombinedIterations);
+    / (nr + ntw.numRows() * gamma * numCombinedIterations);
     if (p > 1 || p < 0)
-      throw new RuntimeException("ptr=" + p + ":" + tag +"/" + reason + ":"
-          + ntw.get(tag, reason) + " " +nw.get(reason));
+      throw new RuntimeException("ptr=" + p + ":" + tagVocab.name(tag) + "/"
+          + reasonVocab.name(reason) + ":" + ntw.get(tag, reason) + " "
+          + wordCount(reason));
     return p;
   }
 
   public double prt(String reason, String tag) {
+    return prt(reasonVocab.id(reason), tagVocab.id(tag));
+  }
+
+  public double prt(int reason, int tag) {
     long nt = ntw.rowSum(tag); // - ntw.get(tag, NOISE); 
     double p = (ntw.get(tag, reason) + gamma * numCombinedIterations)
-    / (nt + ntw.columns().size() * gamma * numCombinedIterations);
+    / (nt + ntw.numColumns() * gamma * numCombinedIterations);
     if (p > 1 || p < 0)
-      throw new RuntimeException(tag +"/" + reason + ":"
-          + ntw.get(tag, reason) + " " +nw.get(reason));
+      throw new RuntimeException(tagVocab.name(tag) + "/"
+          + reasonVocab.name(reason) + ":" + ntw.get(tag, reason) + " "
+          + wordCount(reason));
     return p;
   }
 
   public double pt(String tag) {
-    double nt = ntw.rowSum(tag);
+    double nt = ntw.rowSum(tagVocab.id(tag));
     return nt / (double)ntw.total();
   }
 
   public double pr(String reason) {
-    return (double)nw.get(reason) / (double)nw.total();
+    return (double)wordCount(reasonVocab.id(reason)) / (double)nwTotal;
   }
 
   public double pcm() {
-    return (ntw.columnSum(NOISE) + alpha[0] * numCombinedIterations)
+    return (ntw.columnSum(NOISE_ID) + alpha[0] * numCombinedIterations)
     / (ntw.total() + (alpha[0] + alpha[1]) * numCombinedIterations);
   }
 
   public double prw(String word) {
+    return prw(reasonVocab.id(word));
+  }
+
+  public double prw(int word) {
     return (ntw.columnSum(word) + beta * numCombinedIterations)
-    / (nw.get(word) + nw.size() * beta * numCombinedIterations);
+    / (wordCount(word) + numWords * beta * numCombinedIterations);
   }
 
   public long nt(String tag) {
-    return ntw.rowSum(tag);
+    return ntw.rowSum(tagVocab.id(tag));
   }
 
   //////////////////////////////////////////////////////////////////////////////
@@ -591,12 +693,134 @@ public class TagAllocationModel {
   // mechanism, you can stop here safely.
   //////////////////////////////////////////////////////////////////////////////
   /**
-   * Count of tag|word. NOISE is treated as a word. The key is "NOISE".
+   * The reason id of NOISE.
+   */
+  public static final int NOISE_ID = 0;
+
+  /**
+   * Count of tag|word, by tag id and reason id. NOISE is treated as a word,
+   * its id is NOISE_ID.
    */
-  public SparseCounter<String> ntw;
-  public Counter<String> nw;
+  public IntSparseCounter ntw;
+  /**
+   * Count of each word by reason id, numWords of them are non-zero.
+   */
+  private long [] nw = new long[0];
+  private int numWords = 0;
+  private long nwTotal = 0;
+  private Symbols tagVocab = new Symbols();
+  private Symbols reasonVocab = new Symbols();
   public Random random = new Random();
 
+  /**
+   * Names to ids and back. Ids are given in order and never reused.
+   */
+  private static class Symbols {
+    private Map<String, Integer> ids = new HashMap<String, Integer>();
+    private List<String> names = new ArrayList<String>();
+
+    public int id(String name) {
+      Integer id = ids.get(name);
+      return id == null ? -1 : id;
+    }
+
+    public int intern(String name) {
+      Integer id = ids.get(name);
+      if (id == null) {
+        id = names.size();
+        ids.put(name, id);
+        names.add(name);
+      }
+      return id;
+    }
+
+    public String name(int id) {
+      return id >= 0 && id < names.size() ? names.get(id) : null;
+    }
+
+    public int size() {
+      return names.size();
+    }
+  }
+
+  private long wordCount(int word) {
+    return word >= 0 && word < nw.length ? nw[word] : 0;
+  }
+
+  private void incWord(int word, long delta) {
+    if (word >= nw.length) {
+      nw = Arrays.copyOf(nw, Math.max(word + 1, nw.length * 2));
+    }
+    long before = nw[word];
+    nw[word] += delta;
+    if (before == 0 && nw[word] != 0) {
+      numWords++;
+    } else if (before != 0 && nw[word] == 0) {
+      numWords--;
+    }
+    nwTotal += delta;
+  }
+
+  private void setWordCounts(long [] counts) {
+    nw = counts;
+    numWords = 0;
+    nwTotal = 0;
+    for (long count : counts) {
+      if (count != 0) {
+        numWords++;
+      }
+      nwTotal += count;
+    }
+  }
+
+  /**
+   * Map the words, tags and reasons of doc to ids, unless it was done for the
+   * same arrays already. Unknown words and tags get -1 unless intern is set.
+   */
+  private void prepare(Document doc, boolean intern, boolean force) {
+    if (!force && doc.preparedWords == doc.words
+        && doc.preparedTags == doc.tags && doc.preparedReason == doc.reason
+        && (doc.interned || !intern)) {
+      return;
+    }
+    Map<String, Integer> slots = new HashMap<String, Integer>();
+    String [] names = new String[doc.words.length + 1];
+    int [] counts = new int[doc.words.length + 1];
+    for (String w : doc.words) {
+      Integer slot = slots.get(w);
+      if (slot == null) {
+        slot = slots.size();
+        slots.put(w, slot);
+        names[slot] = w;
+      }
+      counts[slot]++;
+    }
+    int noise = slots.size();
+    doc.slotNames = Arrays.copyOf(names, noise + 1);
+    doc.slotNames[noise] = NOISE;
+    doc.slotCounts = Arrays.copyOf(counts, noise + 1);
+    doc.slotIds = new int[noise + 1];
+    for (int s = 0; s < noise; s++) {
+      doc.slotIds[s] =
+        intern ? reasonVocab.intern(names[s]) : reasonVocab.id(names[s]);
+    }
+    doc.slotIds[noise] = NOISE_ID;
+    doc.tagIds = new int[doc.tags.length];
+    for (int t = 0; t < doc.tags.length; t++) {
+      doc.tagIds[t] =
+        intern ? tagVocab.intern(doc.tags[t]) : tagVocab.id(doc.tags[t]);
+    }
+    doc.reasonSlots = new int[doc.tags.length];
+    for (int t = 0; t < doc.tags.length; t++) {
+      Integer slot = doc.reason[t] == null ? null : slots.get(doc.reason[t]);
+      doc.reasonSlots[t] = slot == null ? noise : slot;
+    }
+    doc.preparedWords = doc.words;
+    doc.preparedTags = doc.tags;
+    doc.preparedReason = doc.reason;
+    doc.interned = intern;
+  }
+
   /**
    * Training only. Initialize the document's tag allocation, and add the
    * document's allocation to the global count of the model.
@@ -627,14 +851,32 @@ public class TagAllocationModel {
         d.put(TagAllocationModel.NOISE, sampleWeight / d.size());
         doc.reason[i] = sample(d);
       }
+    }
 
+    prepare(doc, true, true);
+    for (int i = 0; i < doc.tags.length; i++) {
       if (!locked) { 
-        ntw.inc(doc.tags[i], doc.reason[i], 1);
+        ntw.inc(doc.tagIds[i], doc.slotIds[doc.reasonSlots[i]], 1);
       }
     }
-    for (String word : doc.words) {
-      nw.inc(word, doc.tags.length);
+    for (int s = 0; s < doc.slotIds.length - 1; s++) {
+      incWord(doc.slotIds[s], (long) doc.slotCounts[s] * doc.tags.length);
+    }
+  }
+
+  private int sample(double [] p) {
+    double sum = 0;
+    for (int i = 0; i < p.length; i++) {
+      sum += p[i];
+    }
+    double r = random.nextDouble() * sum;
+    sum = 0;
+    for (int i = 0; i < p.length; i++) {
+      sum += p[i];
+      if (r < sum)
+        return i;
     }
+    return p.length - 1;
   }
 
   public String sample(Map<String, Double> p) {
@@ -680,13 +922,14 @@ public class TagAllocationModel {
     // Sort all tags by frequency.
     double maxTagWeight = 0;
     List<WeightString> rows = new ArrayList<WeightString>();
-    for (String tag : ntw.rows()) {
+    for (int tagId : ntw.rows()) {
+      String tag = tagVocab.name(tagId);
       if (tag.length() > 15)
         continue;
-      if (ntw.rowSum(tag) < 10)
+      if (ntw.rowSum(tagId) < 10)
         continue;
       // double pn = (double)ntw.rowSum(row);
-      double pn = prt(NOISE, tag);
+      double pn = prt(NOISE_ID, tagId);
       rows.add(new WeightString(tag, pn));
       if (pn > maxTagWeight)
         maxTagWeight = pn;
@@ -705,11 +948,13 @@ public class TagAllocationModel {
     List<WeightString> words = new ArrayList<WeightString>();
     for (int i = 0; i < rows.size(); i++) {
       String tag = rows.get(i).text;
+      int tagId = tagVocab.id(tag);
       words.clear();
-      for (String word : ntw.columns(tag)) {
-        if (word.equals(NOISE))
+      for (int j = 0; j < ntw.numColumns(tagId); j++) {
+        int word = ntw.column(tagId, j);
+        if (word == NOISE_ID)
           continue;
-        words.add(new WeightString(word, ptr(tag, word)));
+        words.add(new WeightString(reasonVocab.name(word), ptr(tagId, word)));
       }
       if (words.size() == 0) {
         LOG.info("drop " + tag);
@@ -765,13 +1010,14 @@ public class TagAllocationModel {
 
     // Sort all features by likelihood to be selected.
     List<WeightString> features = new ArrayList<WeightString>();
-    for (String feature : ntw.columns()) {
+    for (int featureId : ntw.columns()) {
+      String feature = reasonVocab.name(featureId);
       if (feature.length() > 15)
         continue;
-      if (ntw.columnSum(feature) < 10)
+      if (ntw.columnSum(featureId) < 10)
         continue;
-      if (!feature.equals(NOISE)) {
-        double prw = prw(feature);
+      if (featureId != NOISE_ID) {
+        double prw = prw(featureId);
         features.add(new WeightString(feature, prw));
       } else {
         features.add(new WeightString(NOISE, 1));
@@ -793,9 +1039,11 @@ public class TagAllocationModel {
     List<WeightString> tags = new ArrayList<WeightString>();
     for (int i = 0; i < features.size(); i++) {
       String feature = features.get(i).text;
+      int featureId = reasonVocab.id(feature);
       tags.clear();
-      for (String tag : ntw.rows(feature)) {
-        tags.add(new WeightString(tag, ptr(tag, feature)));
+      for (int j = 0; j < ntw.numRows(featureId); j++) {
+        int tag = ntw.row(featureId, j);
+        tags.add(new WeightString(tagVocab.name(tag), ptr(tag, featureId)));
       }
       Collections.sort(tags, new Comparator<WeightString>() {
         @Override
@@ -2,11 +2,8 @@ package org.thunlp.tagsuggest.contentbase;
 
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
@@ -17,17 +14,27 @@ import org.thunlp.hadooplda.LdaModel;
 import org.thunlp.misc.WeightString;
 import org.thunlp.tagsuggest.common.FeatureExtractor;
 import org.thunlp.tagsuggest.common.GenerativeTagSuggest;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.Post;
-import org.thunlp.tagsuggest.common.TagSuggest;
+import org.thunlp.tagsuggest.common.TopKTagSuggest;
+import org.thunlp.tagsuggest.common.TopTags;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 
 /**
  * This class use the Tag-LDA method proposed by Xiance Si.
+ *
+ * Topics are inferred with FastLdaInference unless lda_inference=model, which
+ * runs the model's own sampler.
  * @author sixiance
  *
  */
-public class TagLdaTagSuggest implements TagSuggest, GenerativeTagSuggest {
+public class TagLdaTagSuggest implements TopKTagSuggest, GenerativeTagSuggest {
   private static Logger LOG = Logger.getAnonymousLogger();
+  private static final LatencyHistogram INFERENCE_LATENCY =
+      Metrics.histogram("suggest.TagLdaTagSuggest.inference");
+  private static final LatencyHistogram RANK_LATENCY =
+      Metrics.histogram("suggest.TagLdaTagSuggest.rank");
   private LdaModel model;
   private Set<String> knownTags = new HashSet<String>();
   private double [] norms = null;
@@ -35,6 +42,10 @@ public class TagLdaTagSuggest implements TagSuggest, GenerativeTagSuggest {
   private FeatureExtractor extractor = new WordFeatureExtractor();
   private int numTags = 10;
   private int maxNumTags = 3000;
+  private FastLdaInference inference = null;
+  // p(_t|z) / norms[z] for each known tag.
+  private String [] tagNames = null;
+  private double [][] tagTopics = null;
 
   @Override
   public void feedback(Post p) {}
@@ -55,43 +66,76 @@ public class TagLdaTagSuggest implements TagSuggest, GenerativeTagSuggest {
           norms[k] += ptz[k];
       }
     }
+    tagNames = knownTags.toArray(new String[knownTags.size()]);
+    tagTopics = new double[tagNames.length][model.getNumTopics()];
+    for (int t = 0; t < tagNames.length; t++) {
+      model.pwz("_" + tagNames[t], tagTopics[t]);
+      for (int k = 0; k < model.getNumTopics(); k++)
+        tagTopics[t][k] /= norms[k];
+    }
+    inference = null;
+    setUpInference();
     LOG.info("Load LDA model of " + model.getNumTopics()
         + " topics and " + knownTags.size() + " tags.");
   }
 
+  private void setUpInference() {
+    if (model == null) {
+      return;
+    }
+    Properties c = config == null ? new Properties() : config;
+    if (c.getProperty("lda_inference", "fast").equals("fast")) {
+      if (inference == null) {
+        inference = new FastLdaInference(model);
+      }
+      inference.configure(c);
+    } else {
+      inference = null;
+    }
+  }
+
+  private void inferTopics(String [] words, double [] pzd) {
+    if (inference != null) {
+      inference.inference(words, pzd);
+    } else {
+      model.inference(words, new int[words.length], pzd);
+    }
+  }
+
   @Override
   public void setConfig(Properties config) {
     this.config = config;
     extractor = new WordFeatureExtractor(config);
     numTags = Integer.parseInt(config.getProperty("numtags", "10"));
+    setUpInference();
   }
 
   @Override
   public List<WeightString> suggest(Post p, StringBuilder explain) {
+    return suggest(p, numTags, explain);
+  }
+
+  @Override
+  public List<WeightString> suggest(Post p, int topK, StringBuilder explain) {
     double [] pzd = new double[model.getNumTopics()];
-    double [] ptz = new double[model.getNumTopics()];
     String [] features = extractor.extract(p);
-    int [] topics = new int[features.length];
-    model.inference(features, topics, pzd);
-    List<WeightString> results = new ArrayList<WeightString>();
-    for (String t : knownTags) {
+    long start = System.nanoTime();
+    inferTopics(features, pzd);
+    INFERENCE_LATENCY.recordSince(start);
+    start = System.nanoTime();
+    TopTags top = new TopTags(
+        Math.min(Math.min(topK, numTags), tagNames.length));
+    for (int t = 0; t < tagNames.length; t++) {
+      double [] row = tagTopics[t];
       double ptd = 0;
-      model.pwz("_" + t, ptz);
       for (int i = 0; i < pzd.length; i++) {
-        ptd += ptz[i] / norms[i] * pzd[i];
+        ptd += row[i] * pzd[i];
       }
-      results.add(new WeightString(t, ptd));
+      top.add(tagNames[t], ptd);
     }
-
-    Collections.sort(results, new Comparator<WeightString>() {
-      @Override
-      public int compare(WeightString o1, WeightString o2) {
-        return Double.compare(o2.weight, o1.weight);
-      }
-    });
-    if (results.size() > numTags)
-      results = results.subList(0, numTags);
-    return results;
+    List<WeightString> result = top.drain();
+    RANK_LATENCY.recordSince(start);
+    return result;
   }
 
   @Override
@@ -101,8 +145,7 @@ public class TagLdaTagSuggest implements TagSuggest, GenerativeTagSuggest {
       double likelihood = 0;
       if (knownTags.contains(tag)) {
         double [] pzd = new double[model.getNumTopics()];
-        int [] topics = new int[doc.length];
-        model.inference(doc, topics, pzd);
+        inferTopics(doc, pzd);
         for (int z = 0; z < model.getNumTopics(); z++) {
           likelihood += model.pwz("_" + tag, z) / norms[z] * pzd[z];
         }
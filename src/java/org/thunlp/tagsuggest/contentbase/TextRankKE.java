@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -16,25 +17,31 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
-import java.util.Vector;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
 
 import org.thunlp.io.JsonUtil;
 import org.thunlp.io.RecordReader;
-import org.thunlp.matrix.NormalMatrix;
-import org.thunlp.matrix.pagerank.PageRank;
+import org.thunlp.matrix.CsrGraph;
+import org.thunlp.matrix.pagerank.PageRankSolver;
 import org.thunlp.misc.Counter;
 import org.thunlp.misc.WeightString;
 import org.thunlp.tagsuggest.common.DoubanPost;
 import org.thunlp.tagsuggest.common.KeywordPost;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.Post;
 import org.thunlp.tagsuggest.common.TagSuggest;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
+import org.thunlp.text.FrozenLexicon;
 import org.thunlp.text.Lexicon;
 
 public class TextRankKE implements TagSuggest {
 	private static Logger LOG = Logger.getAnonymousLogger();
+	private static final LatencyHistogram KEYWORDS_LATENCY =
+			Metrics.histogram("suggest.TextRankKE.keywords");
+	private static final LatencyHistogram RANK_LATENCY =
+			Metrics.histogram("suggest.TextRankKE.rank");
 
 	private WordFeatureExtractor extractor = null;
 	private Lexicon wordLex = null;
@@ -46,6 +53,8 @@ public class TextRankKE implements TagSuggest {
 	private HashMap<String, Integer> idMap = new HashMap<String, Integer>();
 	private HashMap<Integer, String> bookTagMap = new HashMap<Integer, String>();
 
+	private PageRankSolver solver = new PageRankSolver();
+
 	@Override
 	public void feedback(Post p) {
 		// TODO Auto-generated method stub
@@ -79,7 +88,7 @@ public class TextRankKE implements TagSuggest {
 		bookTag.close();
 
 		// read wordlex
-		wordLex = new Lexicon();
+		wordLex = new FrozenLexicon();
 		String input = modelPath + "/wordlex";
 		File cachedWordLexFile = new File(input);
 		if (cachedWordLexFile.exists()) {
@@ -95,29 +104,22 @@ public class TextRankKE implements TagSuggest {
 		extractor = new WordFeatureExtractor(config);
 	}
 
-	public void addEdge(NormalMatrix matrix, Vector<Integer> v, int start,
-			int end) {
-		for (int i = start; i < end; i++) {
-			for (int j = i + 1; j <= end; j++) {
-				matrix.add(v.get(i), v.get(j), 1);
-				matrix.add(v.get(j), v.get(i), 1);
-			}
-		}
-	}
-
 	@Override
 	public List<WeightString> suggest(Post p, StringBuilder explain) {
 		// TODO Auto-generated method stub
 
 		List<WeightString> tags = new ArrayList<WeightString>();
 
+		long start = System.nanoTime();
 		String[] words = extractor.extractKeyword((KeywordPost) p, true, false,
 				false);
+		KEYWORDS_LATENCY.recordSince(start);
 		Counter<String> termFreq = new Counter<String>();
 
 		// calculate the word tf
 		HashMap<String, Integer> textMap = new HashMap<String, Integer>();
-		Vector<Integer> textWordId = new Vector<Integer>();
+		int[] textWordId = new int[words.length];
+		int len = 0;
 		int num = 0;
 
 		for (String word : words) {
@@ -125,40 +127,22 @@ public class TextRankKE implements TagSuggest {
 				termFreq.inc(word, 1);
 				if (!textMap.containsKey(word)) {
 					textMap.put(word, num);
-					textWordId.add(num);
+					textWordId[len++] = num;
 					num++;
 				} else {
-					textWordId.add(textMap.get(word));
+					textWordId[len++] = textMap.get(word);
 				}
 			}
 		}
 
 		// calculate the TextRank value
 
-		NormalMatrix matrix = new NormalMatrix(num, num);
+		start = System.nanoTime();
+		CsrGraph.Builder graph = new CsrGraph.Builder(num);
 		int window = 10;
-		int len = textWordId.size();
-		if (len < window) {
-			for (int i = 1; i < len; i++) {
-				addEdge(matrix, textWordId, 0, i);
-			}
-			for (int i = 1; i < len - 1; i++) {
-				addEdge(matrix, textWordId, i, len - 1);
-			}
-		} else {
-			for (int i = 1; i < window - 1; i++) {
-				addEdge(matrix, textWordId, 0, i);
-			}
-			for (int i = 0; i <= len - window; i++) {
-				addEdge(matrix, textWordId, i, i + window - 1);
-			}
-			for (int i = len - window + 1; i < len - 1; i++) {
-				addEdge(matrix, textWordId, i, len - 1);
-			}
-		}
+		graph.addSlidingWindows(Arrays.copyOf(textWordId, len), window, 1);
 
-		PageRank.prepareMatrix(matrix);
-		double rankValue[] = PageRank.pageRank(matrix, 100);
+		double rankValue[] = solver.pageRank(graph.build());
 
 		Iterator<Entry<String, Long>> iter = termFreq.iterator();
 		while (iter.hasNext()) {
@@ -178,6 +162,7 @@ public class TextRankKE implements TagSuggest {
 			}
 
 		});
+		RANK_LATENCY.recordSince(start);
 
 		return tags;
 	}
@@ -13,37 +13,45 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
-import java.util.Vector;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
 import java.util.HashSet;
 
 import org.thunlp.io.JsonUtil;
 import org.thunlp.io.RecordReader;
-import org.thunlp.matrix.NormalMatrix;
-import org.thunlp.matrix.pagerank.PageRank;
+import org.thunlp.matrix.CsrGraph;
+import org.thunlp.matrix.pagerank.PageRankSolver;
 import org.thunlp.misc.WeightString;
 import org.thunlp.tagsuggest.common.ConfigIO;
 import org.thunlp.tagsuggest.common.GenerativeTagSuggest;
 import org.thunlp.tagsuggest.common.KeywordPost;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.Post;
-import org.thunlp.tagsuggest.common.TagSuggest;
+import org.thunlp.tagsuggest.common.ThreadSafeTagSuggest;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 import org.thunlp.tagsuggest.contentbase.NoiseTagLdaModel.Document;
 
 import java.lang.Thread;
 
-public class TextpagerankTagSuggest implements TagSuggest {
+public class TextpagerankTagSuggest implements ThreadSafeTagSuggest {
 	private static Logger LOG = Logger.getAnonymousLogger();
+	private static final LatencyHistogram KEYWORDS_LATENCY =
+			Metrics.histogram("suggest.TextpagerankTagSuggest.keywords");
+	private static final LatencyHistogram RANK_LATENCY =
+			Metrics.histogram("suggest.TextpagerankTagSuggest.rank");
 	private Properties config = null;
 	private WordFeatureExtractor extractor = new WordFeatureExtractor();
 	private int numTags = 10;
 	private static String[] EMPTY_TAG_SET = new String[0];
 	private static int[] EMPTY_REASON_SET = new int[0];
 	private static  JsonUtil J = new JsonUtil();
-	private static double[] PRresult = null;
-	private static double[] rankResult = null;
-	private static int num = 0;
+	private ThreadLocal<PageRankSolver> solver = new ThreadLocal<PageRankSolver>() {
+		@Override
+		protected PageRankSolver initialValue() {
+			return new PageRankSolver();
+		}
+	};
 
 	public static void main(String[] args) throws IOException {
 		TextpagerankTagSuggest lda = new TextpagerankTagSuggest();
@@ -76,64 +84,39 @@ public class TextpagerankTagSuggest implements TagSuggest {
 		numTags = Integer.parseInt(config.getProperty("numtags", "10"));
 	}
 
-	public void addEdge(NormalMatrix matrix, Vector<Integer> v, int start,
-			int end) {
-		for (int i = start; i < end; i++) {
-			for (int j = i + 1; j <= end; j++) {
-				matrix.add(v.get(i), v.get(j), 1);
-				matrix.add(v.get(j), v.get(i), 1);
-			}
-		}
-	}
-
 	@Override
 	public List<WeightString> suggest(Post p, StringBuilder explain) {
 
+		long start = System.nanoTime();
 		String[] features = extractor.extractKeyword((KeywordPost) p, true, true,true);
+		KEYWORDS_LATENCY.recordSince(start);
 		Document d = new Document(features, EMPTY_TAG_SET);
 
 		// for TextRank
 		HashMap<String, Integer> textMap = new HashMap<String, Integer>();
 		HashMap<Integer, String> textWordMap = new HashMap<Integer, String>();
-		Vector<Integer> textWordId = new Vector<Integer>();
-		num = 0;
+		int[] textWordId = new int[features.length];
+		int num = 0;
 
-		for (String word : features) {
+		for (int i = 0; i < features.length; i++) {
+				String word = features[i];
 				if (!textMap.containsKey(word)) {
 					textMap.put(word, num);
 					textWordMap.put(num, word);
-					textWordId.add(num);
+					textWordId[i] = num;
 					num++;
 				} else {
-					textWordId.add(textMap.get(word));
+					textWordId[i] = textMap.get(word);
 				}
 		}
 
 		// calculate the TextRank value
-		NormalMatrix matrix = new NormalMatrix(num, num);
+		start = System.nanoTime();
+		CsrGraph.Builder graph = new CsrGraph.Builder(num);
 		int window = 10;
-		int len = textWordId.size();
-		if (len < window) {
-			for (int i = 1; i < len; i++) {
-				addEdge(matrix, textWordId, 0, i);
-			}
-			for (int i = 1; i < len - 1; i++) {
-				addEdge(matrix, textWordId, i, len - 1);
-			}
-		} else {
-			for (int i = 1; i < window - 1; i++) {
-				addEdge(matrix, textWordId, 0, i);
-			}
-			for (int i = 0; i <= len - window; i++) {
-				addEdge(matrix, textWordId, i, i + window - 1);
-			}
-			for (int i = len - window + 1; i < len - 1; i++) {
-				addEdge(matrix, textWordId, i, len - 1);
-			}
-		}
-		PageRank.prepareMatrix(matrix);
+		graph.addSlidingWindows(textWordId, window, 1);
 		
-		double[] rankResult = PageRank.pageRank(matrix, 100);
+		double[] rankResult = solver.get().pageRank(graph.build());
 		
 		List<WeightString> results = new ArrayList<WeightString>();
 		
@@ -150,6 +133,7 @@ public class TextpagerankTagSuggest implements TagSuggest {
 		});
 		if (results.size() > numTags)
 			results = results.subList(0, numTags);
+		RANK_LATENCY.recordSince(start);
 		
 		return results;
 	}
@@ -13,7 +13,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
-import java.util.Vector;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
 import java.util.HashSet;
@@ -21,12 +20,14 @@ import java.util.HashSet;
 import org.thunlp.hadooplda.LdaModel;
 import org.thunlp.io.JsonUtil;
 import org.thunlp.io.RecordReader;
-import org.thunlp.matrix.NormalMatrix;
-import org.thunlp.matrix.pagerank.PageRank;
+import org.thunlp.matrix.CsrGraph;
+import org.thunlp.matrix.pagerank.PageRankSolver;
 import org.thunlp.misc.WeightString;
 import org.thunlp.tagsuggest.common.ConfigIO;
 import org.thunlp.tagsuggest.common.GenerativeTagSuggest;
 import org.thunlp.tagsuggest.common.KeywordPost;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.Post;
 import org.thunlp.tagsuggest.common.TagSuggest;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
@@ -36,24 +37,38 @@ import java.lang.Thread;
 /**
  * This class use the Tag-LDA method proposed by Xiance Si.
  * 
+ * The rank of a word is its TextRank biased towards each topic, with p(w|z)
+ * as the impact, and mixed by p(z|d). PageRank is linear in the initial value
+ * and the impact, so by default (topic_rank=mixed) the graph is ranked once
+ * with the p(z|d)-mixed impact instead of once per topic. topic_rank=per_topic
+ * runs the solve for every topic as before; both give the same ranks up to
+ * rounding.
+ * 
+ * Not a ThreadSafeTagSuggest: LdaModel.inference() samples from the random
+ * generator of the shared model, so give each thread its own instance.
+ * 
  * @author sixiance
  * 
  */
 public class TopicPageRankTagSuggest implements TagSuggest {
 	private static Logger LOG = Logger.getAnonymousLogger();
+	private static final LatencyHistogram KEYWORDS_LATENCY =
+			Metrics.histogram("suggest.TopicPageRankTagSuggest.keywords");
+	private static final LatencyHistogram INFERENCE_LATENCY =
+			Metrics.histogram("suggest.TopicPageRankTagSuggest.inference");
+	private static final LatencyHistogram GRAPH_LATENCY =
+			Metrics.histogram("suggest.TopicPageRankTagSuggest.graph");
+	private static final LatencyHistogram RANK_LATENCY =
+			Metrics.histogram("suggest.TopicPageRankTagSuggest.rank");
 	private LdaModel model  = null;
 	private Properties config = null;
 	private WordFeatureExtractor extractor  =  null;//new WordFeatureExtractor();
 	private int numTags = 10;
+	private boolean perTopic = false;
 	private static String[] EMPTY_TAG_SET = new String[0];
 	private static int[] EMPTY_REASON_SET = new int[0];
-	private double[] pzd = null;
-	private double[] pwz = null;
-	private double[] ptz = null;
+	private PageRankSolver solver = new PageRankSolver();
 	private static  JsonUtil J = new JsonUtil();
-	private static double[] PRresult = null;
-	private static double[] rankResult = null;
-	private static int num = 0;
 	
 	@Override
 	public void feedback(Post p) {
@@ -73,84 +88,52 @@ public class TopicPageRankTagSuggest implements TagSuggest {
 		this.config = config;
 		extractor = new WordFeatureExtractor(config);
 		numTags = Integer.parseInt(config.getProperty("numtags", "10"));
-	}
-
-	public void addEdge(NormalMatrix matrix, Vector<Integer> v, int start,
-			int end) {
-		for (int i = start; i < end; i++) {
-			for (int j = i + 1; j <= end; j++) {
-				matrix.add(v.get(i), v.get(j), 1);
-				matrix.add(v.get(j), v.get(i), 1);
-			}
-		}
+		perTopic = config.getProperty("topic_rank", "mixed").equals("per_topic");
 	}
 
 	@Override
 	public List<WeightString> suggest(Post p, StringBuilder explain) {
+		long start = System.nanoTime();
 		String[] features = extractor.extractKeyword((KeywordPost) p, true, true, true);
-	    pzd = new double[model.getNumTopics()];
+		KEYWORDS_LATENCY.recordSince(start);
+		start = System.nanoTime();
+	    double[] pzd = new double[model.getNumTopics()];
 	    int [] topics = new int[features.length];
 	    model.inference(features, topics, pzd);
+		INFERENCE_LATENCY.recordSince(start);
 	    
+		start = System.nanoTime();
 		// for TextRank
 		HashMap<String, Integer> textMap = new HashMap<String, Integer>();
 		HashMap<Integer, String> textWordMap = new HashMap<Integer, String>();
-		Vector<Integer> textWordId = new Vector<Integer>();
-		num = 0;
+		int[] textWordId = new int[features.length];
+		int num = 0;
 
-		for (String word : features) {
+		for (int k = 0; k < features.length; k++) {
+				String word = features[k];
 				if (!textMap.containsKey(word)) {
 					textMap.put(word, num);
 					textWordMap.put(num, word);
-					textWordId.add(num);
+					textWordId[k] = num;
 					num++;
 				} else {
-					textWordId.add(textMap.get(word));
+					textWordId[k] = textMap.get(word);
 				}
 		}
 
 		// calculate the TextRank value
-		NormalMatrix matrix = new NormalMatrix(num, num);
+		CsrGraph.Builder builder = new CsrGraph.Builder(num);
 		int window = 10;
-		int len = textWordId.size();
-		if (len < window) {
-			for (int i = 1; i < len; i++) {
-				addEdge(matrix, textWordId, 0, i);
-			}
-			for (int i = 1; i < len - 1; i++) {
-				addEdge(matrix, textWordId, i, len - 1);
-			}
+		builder.addSlidingWindows(textWordId, window, 1);
+		CsrGraph graph = builder.build();
+		GRAPH_LATENCY.recordSince(start);
+
+		start = System.nanoTime();
+		double[] rankResult;
+		if (perTopic) {
+			rankResult = rankPerTopic(graph, textWordMap, pzd);
 		} else {
-			for (int i = 1; i < window - 1; i++) {
-				addEdge(matrix, textWordId, 0, i);
-			}
-			for (int i = 0; i <= len - window; i++) {
-				addEdge(matrix, textWordId, i, i + window - 1);
-			}
-			for (int i = len - window + 1; i < len - 1; i++) {
-				addEdge(matrix, textWordId, i, len - 1);
-			}
-		}
-		PageRank.prepareMatrix(matrix);
-
-		double[] impact = new double[num];
-		double[] init = new double[num];
-		rankResult =  new double[num];
-	
-		for (int i = 0; i < num; ++i)
-			rankResult[i] = 0;
-		for (int i = 0; i != init.length; i++) {
-			init[i] = 1.0;
-		}
-
-		for (int i = 0; i < model.getNumTopics(); i++) {
-			for (int j = 0; j < num; j++) {
-				impact[j] = model.pwz(textWordMap.get(j), i);
-			}
-			double[] rankValue = PageRank.pageRank(matrix, 100, 0.85, init, impact);
-			
-			for (int j = 0; j < num; ++j) 
-				rankResult[j] += rankValue[j] * pzd[i];
+			rankResult = rankMixed(graph, textWordMap, pzd);
 		}
 
 		List<WeightString> results = new ArrayList<WeightString>();
@@ -170,8 +153,59 @@ public class TopicPageRankTagSuggest implements TagSuggest {
 		});
 		if (results.size() > numTags)
 			results = results.subList(0, numTags);
+		RANK_LATENCY.recordSince(start);
 		
 		return results;
 	}
 
+	/**
+	 * One solve per topic, mixed by pzd.
+	 */
+	private double[] rankPerTopic(CsrGraph graph,
+			HashMap<Integer, String> textWordMap, double[] pzd) {
+		int num = graph.numVertices();
+		double[] impact = new double[num];
+		double[] init = new double[num];
+		double[] rankResult = new double[num];
+		for (int i = 0; i != init.length; i++) {
+			init[i] = 1.0;
+		}
+
+		for (int i = 0; i < model.getNumTopics(); i++) {
+			for (int j = 0; j < num; j++) {
+				impact[j] = model.pwz(textWordMap.get(j), i);
+			}
+			double[] rankValue = solver.pageRank(graph, init, impact);
+			
+			for (int j = 0; j < num; ++j) 
+				rankResult[j] += rankValue[j] * pzd[i];
+		}
+		return rankResult;
+	}
+
+	/**
+	 * A single solve from sum(pzd) * init with impact sum_z pzd[z] * p(w|z),
+	 * which is the pzd-weighted sum of the per topic ranks.
+	 */
+	private double[] rankMixed(CsrGraph graph,
+			HashMap<Integer, String> textWordMap, double[] pzd) {
+		int num = graph.numVertices();
+		double[] impact = new double[num];
+		double[] init = new double[num];
+		double sum = 0;
+		for (int i = 0; i < pzd.length; i++) {
+			sum += pzd[i];
+		}
+		// pwz(word, row) gives unknown words a uniform row, where the per
+		// topic impact is 0, so ask for each topic.
+		for (int j = 0; j < num; j++) {
+			String word = textWordMap.get(j);
+			for (int i = 0; i < model.getNumTopics(); i++) {
+				impact[j] += model.pwz(word, i) * pzd[i];
+			}
+			init[j] = sum;
+		}
+		return solver.pageRank(graph, init, impact);
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+package org.thunlp.tagsuggest.dataset;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.thunlp.misc.Flags;
+import org.thunlp.tagsuggest.common.ConfigIO;
+import org.thunlp.tagsuggest.common.FeatureCache;
+import org.thunlp.tool.GenericTool;
+
+/**
+ * Segment a dataset ahead of training, writing the feature cache that the
+ * trainers read when "featurecache=true" is in their config. The config must
+ * have the same extractor settings as the training config.
+ */
+public class BuildFeatureCache implements GenericTool {
+  private static Logger LOG = Logger.getAnonymousLogger();
+
+  @Override
+  public void run(String[] args) throws Exception {
+    Flags flags = new Flags();
+    flags.add("input");
+    flags.addWithDefaultValue("config", "", "extractor config");
+    flags.parseAndCheck(args);
+
+    Properties config = ConfigIO.configFromString(flags.getString("config"));
+    long start = System.currentTimeMillis();
+    File cache = FeatureCache.build(flags.getString("input"), config);
+    LOG.info(cache + " is ready after "
+        + (System.currentTimeMillis() - start) + "ms");
+  }
+}
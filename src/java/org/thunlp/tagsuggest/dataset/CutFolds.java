@@ -9,6 +9,7 @@ import org.thunlp.misc.Flags;
 import org.thunlp.tagsuggest.common.DoubanPost;
 import org.thunlp.tagsuggest.common.KeywordPost;
 import org.thunlp.tagsuggest.common.Post;
+import org.thunlp.tagsuggest.common.PostDecoder;
 import org.thunlp.tool.GenericTool;
 
 public class CutFolds implements GenericTool {
@@ -30,21 +31,25 @@ public class CutFolds implements GenericTool {
     RecordReader input = new RecordReader(inputPath);
     RecordWriter output = new RecordWriter(outputPath);
     JsonUtil J = new JsonUtil();
+    PostDecoder decoder = new PostDecoder();
+    DoubanPost doubanPost = new DoubanPost();
+    Post post = new Post();
+    KeywordPost keywordPost = new KeywordPost();
     int n = 0;
 
     while (input.next()) {
     	if(dataType.equals("DoubanPost")){
-	  	      DoubanPost p = J.fromJson(input.value(), DoubanPost.class);
+	  	      DoubanPost p = decoder.decode(input.value(), doubanPost);
 		      p.setExtras(Integer.toString(n % numFolds));
 		      output.add(J.toJson(p));
 	    }
 	    else if(dataType.equals("Post")){
-	    	 Post p = J.fromJson(input.value(), Post.class);
+	    	 Post p = decoder.decode(input.value(), post);
 		      p.setExtras(Integer.toString(n % numFolds));
 		      output.add(J.toJson(p));
 	    }
     	else if(dataType.equals("KeywordPost")){
-    		KeywordPost p = J.fromJson(input.value(), KeywordPost.class);
+    		KeywordPost p = decoder.decode(input.value(), keywordPost);
     		p.setExtras(Integer.toString(n % numFolds));
 		    output.add(J.toJson(p));
     	}
@@ -0,0 +1,554 @@
+package org.thunlp.tagsuggest.evaluation;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.thunlp.io.JsonUtil;
+import org.thunlp.io.RecordReader;
+import org.thunlp.language.chinese.ForwardMaxWordSegment;
+import org.thunlp.matrix.CsrGraph;
+import org.thunlp.matrix.CsrMatrix;
+import org.thunlp.matrix.MatrixFactory;
+import org.thunlp.matrix.MatrixInterface;
+import org.thunlp.matrix.pagerank.PageRank;
+import org.thunlp.matrix.pagerank.PageRankSolver;
+import org.thunlp.misc.Flags;
+import org.thunlp.tagsuggest.common.ConfigIO;
+import org.thunlp.tagsuggest.common.DoubanPost;
+import org.thunlp.tagsuggest.common.KeywordPost;
+import org.thunlp.tagsuggest.common.Post;
+import org.thunlp.tagsuggest.common.PostDecoder;
+import org.thunlp.tagsuggest.common.TagSuggest;
+import org.thunlp.tagsuggest.common.WordFeatureExtractor;
+import org.thunlp.text.Lexicon;
+import org.thunlp.tool.GenericTool;
+
+/**
+ * Micro benchmarks of the hot paths, run the way JMH runs them in average
+ * time mode: each benchmark is warmed up, then timed over several iterations
+ * of a fixed duration, and reported as the mean time per operation with a
+ * 99.9% confidence interval. The results are written as JSON in the layout of
+ * JMH's JSON output, so runs can be compared with the usual JMH tools.
+ *
+ * The suggesters are trained on a small bundled corpus before they are
+ * timed: synthetic book descriptions, made of two-character words over
+ * common Chinese characters, with topics as in BenchmarkLdaSampler and the
+ * most frequent word of each topic as its tag. Segmentation uses the
+ * dictionary and stop words of the resources directory (demo/ in the source
+ * tree).
+ *
+ * Unlike JMH there is no forking, so benchmarks run one after the other in
+ * one JVM; run a single one with include= for the cleanest numbers.
+ */
+public class Benchmark implements GenericTool {
+  private static Logger LOG = Logger.getAnonymousLogger();
+
+  /**
+   * The timed suggesters: class, trainer, data type of the training posts,
+   * and the model file inside the model directory ("" for the directory).
+   */
+  private static String [][] SUGGESTERS = {
+    {"KnnTagSuggest", "TrainKnn", "Post", ""},
+    {"NaiveBayesTagSuggest", "TrainNaiveBayes", "Post", "model"},
+    {"TFIDFTagSuggest", "TrainTFIDF", "Post", ""},
+    {"TextpagerankTagSuggest", "TrainTextpagerank", "Post", ""},
+    {"ExpandRankKE", "TrainExpandRank", "KeywordPost", ""},
+    {"PMITagSuggest", "TrainPMI", "Post", ""},
+    {"TagLdaTagSuggest", "TrainTagLdaModel", "Post", "model"},
+    {"NoiseTagLdaTagSuggest", "TrainNoiseTagLdaModel", "Post", "model"},
+    {"TAMTagSuggest", "TrainTAM", "Post", ""},
+    {"TopicPageRankTagSuggest", "TrainTopicPageRank", "KeywordPost",
+      "model"},
+    {"SMTTagSuggest", "TrainWAM", "KeywordPost", ""},
+  };
+
+  // Two-sided 99.9% quantiles of Student's t for 1 to 30 degrees of freedom.
+  private static double [] T_999 = {
+    636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+    4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+    3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646
+  };
+
+  private static int MAX_POSTS_READ = 10000;
+  private static String CHARACTERS =
+    "的一是在不了有和人这中大为上个国我以要他时来用们生到作地于出就分对成会"
+    + "可主发年动同工也能下过子说产种面而方后多定行学法所民得经十三之进着等部"
+    + "度家电力里如水化高自二理起小物现实加量都两体制机当使点从业本去把性好应"
+    + "开它合还因由其些然前外天政四日那社义事平形相全表间样与关各重新线内数正"
+    + "心反你明看原又么利比或但质气第向道命此变条只没结解问意建月公无系军很情"
+    + "者最立代想已通并提直题党程展五果料象员革位入常文总次品式活设及管特件长";
+
+  private JsonUtil json = new JsonUtil();
+  private long warmupNanos;
+  private long iterationNanos;
+  private int numIterations;
+  private Pattern include;
+  private List<Map<String, Object>> results =
+    new ArrayList<Map<String, Object>>();
+  // Every result goes in here, so that no benchmarked call is dead code.
+  private long sink = 0;
+
+  /**
+   * One operation of a benchmark. i counts the operations, so that a
+   * benchmark can cycle through its inputs.
+   */
+  private interface Operation {
+    Object run(int i) throws Exception;
+  }
+
+  @Override
+  public void run(String[] args) throws Exception {
+    Flags flags = new Flags();
+    flags.addWithDefaultValue("output", "benchmark.json", "JSON results");
+    flags.addWithDefaultValue("resources", "demo",
+        "directory with book.model and chinese_stop_word.txt");
+    flags.addWithDefaultValue("include", ".*",
+        "regular expression of the benchmarks to run");
+    flags.addWithDefaultValue("warmup", "1000", "warm up time, ms");
+    flags.addWithDefaultValue("iteration", "1000",
+        "time of one measurement iteration, ms");
+    flags.addWithDefaultValue("iterations", "5", "measurement iterations");
+    flags.addWithDefaultValue("docs", "1000", "training posts");
+    flags.addWithDefaultValue("config", "", "extra training/suggester config");
+    flags.addWithDefaultValue("posts", "",
+        "decode the Post records of this file too, e.g. bookPost70000");
+    flags.parseAndCheck(args);
+
+    warmupNanos = flags.getInt("warmup") * 1000000L;
+    iterationNanos = flags.getInt("iteration") * 1000000L;
+    numIterations = Math.max(1, flags.getInt("iterations"));
+    include = Pattern.compile(flags.getString("include"));
+    String resources = new File(flags.getString("resources")).getAbsolutePath();
+    Properties config = ConfigIO.configFromString(flags.getString("config"));
+    config.setProperty("model", resources);
+    if (config.getProperty("aligner") == null) {
+      // The pure Java aligner, so that no GIZA++ binary is needed.
+      config.setProperty("aligner", "model1");
+    }
+
+    List<KeywordPost> posts = generatePosts(flags.getInt("docs") + 100);
+    List<KeywordPost> train = posts.subList(0, posts.size() - 100);
+    List<KeywordPost> test = posts.subList(posts.size() - 100, posts.size());
+
+    // The models log every step of their training.
+    Logger root = Logger.getLogger("");
+    Level level = root.getLevel();
+    root.setLevel(Level.WARNING);
+    File workDir = createTempDir();
+    try {
+      benchmarkText(resources, config, test);
+      benchmarkJson(test, flags.getString("posts"));
+      benchmarkPageRank(test, resources);
+      benchmarkSuggesters(train, test, config, workDir);
+    } finally {
+      root.setLevel(level);
+      delete(workDir);
+    }
+
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(
+        new FileOutputStream(flags.getString("output")), "UTF-8"));
+    out.println(json.toJson(results));
+    out.close();
+    LOG.info("Wrote " + results.size() + " results to "
+        + flags.getString("output") + " (" + sink + ")");
+  }
+
+  private void benchmarkText(String resources, Properties config,
+      final List<KeywordPost> test) throws Exception {
+    final ForwardMaxWordSegment segment = new ForwardMaxWordSegment(
+        resources + File.separator + "book.model");
+    measure("ForwardMaxWordSegment.segment", new Operation() {
+      public Object run(int i) {
+        return segment.segment(test.get(i % test.size()).getContent());
+      }
+    });
+
+    final WordFeatureExtractor extractor = new WordFeatureExtractor(config);
+    measure("WordFeatureExtractor.extract", new Operation() {
+      public Object run(int i) {
+        return extractor.extract(test.get(i % test.size()));
+      }
+    });
+
+    final Lexicon lexicon = new Lexicon();
+    final List<String> words = new ArrayList<String>();
+    for (KeywordPost p : test) {
+      String [] doc = segment.segment(p.getContent());
+      lexicon.addDocument(doc);
+      words.addAll(Arrays.asList(doc));
+    }
+    measure("Lexicon.getWord", new Operation() {
+      public Object run(int i) {
+        return lexicon.getWord(words.get(i % words.size()));
+      }
+    });
+  }
+
+  /**
+   * Decoding the JSON of posts by JsonUtil and by PostDecoder, the latter
+   * with all fields into new posts, as the Evaluator does, with the fields of
+   * the trainers into one reused post, and with just the fold. With a posts file, its first
+   * MAX_POSTS_READ records are decoded as Posts as well.
+   */
+  private void benchmarkJson(List<KeywordPost> test, String postsFile)
+      throws Exception {
+    final List<String> posts = new ArrayList<String>();
+    final List<String> keywordPosts = new ArrayList<String>();
+    final List<String> doubanPosts = new ArrayList<String>();
+    for (KeywordPost p : test) {
+      keywordPosts.add(json.toJson(p));
+      Post post = new Post();
+      copy(p, post);
+      posts.add(json.toJson(post));
+      DoubanPost douban = new DoubanPost();
+      copy(p, douban);
+      HashMap<String, Integer> doubanTags = new HashMap<String, Integer>();
+      for (String tag : p.getTags()) {
+        doubanTags.put(tag, 1 + tag.hashCode() % 10);
+      }
+      douban.setDoubanTags(doubanTags);
+      doubanPosts.add(json.toJson(douban));
+    }
+    measure("JsonUtil.fromJson.Post", new Operation() {
+      public Object run(int i) throws IOException {
+        return json.fromJson(posts.get(i % posts.size()), Post.class);
+      }
+    });
+    measure("JsonUtil.fromJson.DoubanPost", new Operation() {
+      public Object run(int i) throws IOException {
+        return json.fromJson(doubanPosts.get(i % doubanPosts.size()),
+            DoubanPost.class);
+      }
+    });
+    measure("JsonUtil.fromJson.KeywordPost", new Operation() {
+      public Object run(int i) throws IOException {
+        return json.fromJson(keywordPosts.get(i % keywordPosts.size()),
+            KeywordPost.class);
+      }
+    });
+    measureDecoder("Post", posts, Post.class);
+    measureDecoder("DoubanPost", doubanPosts, DoubanPost.class);
+    measureDecoder("KeywordPost", keywordPosts, KeywordPost.class);
+
+    if (postsFile.length() > 0) {
+      final List<String> records = new ArrayList<String>();
+      RecordReader reader = new RecordReader(postsFile);
+      while (records.size() < MAX_POSTS_READ && reader.next()) {
+        records.add(reader.value());
+      }
+      reader.close();
+      measure("JsonUtil.fromJson.file", new Operation() {
+        public Object run(int i) throws IOException {
+          return json.fromJson(records.get(i % records.size()), Post.class);
+        }
+      });
+      measureDecoder("file", records, Post.class);
+    }
+  }
+
+  private void measureDecoder(String name, final List<String> records,
+      final Class<? extends Post> type) throws Exception {
+    final PostDecoder all = new PostDecoder();
+    final PostDecoder text = new PostDecoder(PostDecoder.TEXT_FIELDS);
+    final PostDecoder fold = new PostDecoder("extras");
+    final Post post = type.newInstance();
+    measure("PostDecoder.decode." + name, new Operation() {
+      public Object run(int i) throws Exception {
+        return all.decode(records.get(i % records.size()), type.newInstance());
+      }
+    });
+    measure("PostDecoder.decode.text.reused." + name, new Operation() {
+      public Object run(int i) throws IOException {
+        return text.decode(records.get(i % records.size()), post);
+      }
+    });
+    measure("PostDecoder.decode.fold.reused." + name, new Operation() {
+      public Object run(int i) throws IOException {
+        return fold.decode(records.get(i % records.size()), post);
+      }
+    });
+  }
+
+  /**
+   * The TextRank word graph of one post, ranked by PageRank over a dense and
+   * over a CSR matrix, and by PageRankSolver.
+   */
+  private void benchmarkPageRank(List<KeywordPost> test, String resources)
+      throws Exception {
+    String [] words = new ForwardMaxWordSegment(resources + File.separator
+        + "book.model").segment(test.get(0).getContent());
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    int [] sequence = new int[words.length];
+    for (int i = 0; i < words.length; i++) {
+      Integer id = ids.get(words[i]);
+      if (id == null) {
+        id = ids.size();
+        ids.put(words[i], id);
+      }
+      sequence[i] = id;
+    }
+    CsrGraph.Builder builder = new CsrGraph.Builder(ids.size());
+    builder.addSlidingWindows(sequence, 10, 1.0);
+    final CsrGraph graph = builder.build();
+    for (final String name : new String[] {
+        MatrixFactory.NORMAL_MATRIX, MatrixFactory.CSR_MATRIX }) {
+      CsrMatrix.Builder entries = new CsrMatrix.Builder(ids.size(), ids.size());
+      for (int v = 0; v < graph.numVertices(); v++) {
+        for (int e = graph.offset(v); e < graph.offset(v + 1); e++) {
+          entries.add(v, graph.target(e), graph.weight(e));
+        }
+      }
+      final MatrixInterface matrix = MatrixFactory.getMatrix(entries, name);
+      PageRank.prepareMatrix(matrix);
+      measure("PageRank.pageRank." + name, new Operation() {
+        public Object run(int i) {
+          return PageRank.pageRank(matrix, 100);
+        }
+      });
+    }
+    final PageRankSolver solver = new PageRankSolver();
+    measure("PageRankSolver.pageRank", new Operation() {
+      public Object run(int i) {
+        return solver.pageRank(graph);
+      }
+    });
+  }
+
+  private void benchmarkSuggesters(List<KeywordPost> train,
+      final List<KeywordPost> test, Properties config, File workDir)
+      throws Exception {
+    File postInput = new File(workDir, "posts.json");
+    File keywordPostInput = new File(workDir, "keyword_posts.json");
+    PrintWriter postOut = new PrintWriter(new OutputStreamWriter(
+        new FileOutputStream(postInput), "UTF-8"));
+    PrintWriter keywordPostOut = new PrintWriter(new OutputStreamWriter(
+        new FileOutputStream(keywordPostInput), "UTF-8"));
+    for (KeywordPost p : train) {
+      Post post = new Post();
+      copy(p, post);
+      postOut.println(json.toJson(post));
+      keywordPostOut.println(json.toJson(p));
+    }
+    postOut.close();
+    keywordPostOut.close();
+
+    for (String [] s : SUGGESTERS) {
+      String name = "TagSuggest.suggest." + s[0];
+      if (!include.matcher(name).find()) {
+        continue;
+      }
+      Properties suggesterConfig = new Properties();
+      suggesterConfig.putAll(config);
+      suggesterConfig.setProperty("dataType", s[2]);
+      File modelDir = new File(workDir, s[0]);
+      modelDir.mkdirs();
+      String modelPath = s[3].length() == 0 ? modelDir.getPath() :
+        new File(modelDir, s[3]).getPath();
+      final TagSuggest suggester;
+      try {
+        Object trainer = Class.forName(
+            "org.thunlp.tagsuggest.train." + s[1]).newInstance();
+        trainer.getClass().getMethod("train", String.class, String.class,
+            Properties.class).invoke(trainer, (s[2].equals("Post") ?
+                postInput : keywordPostInput).getPath(), modelPath,
+                suggesterConfig);
+        suggester = (TagSuggest) Class.forName(
+            "org.thunlp.tagsuggest.contentbase." + s[0]).newInstance();
+        suggester.setConfig(suggesterConfig);
+        suggester.loadModel(modelPath);
+      } catch (Exception e) {
+        LOG.warning("Cannot train " + s[0] + ", skipped: " + e);
+        continue;
+      }
+      measure(name, new Operation() {
+        public Object run(int i) {
+          return suggester.suggest(test.get(i % test.size()), null);
+        }
+      });
+    }
+  }
+
+  /**
+   * Warm up, then time the iterations, and record the result if the name
+   * matches include.
+   */
+  private void measure(String name, Operation op) throws Exception {
+    if (!include.matcher(name).find()) {
+      return;
+    }
+    // Operations are timed in batches, grown during the warm up until a
+    // batch takes a millisecond, so that reading the clock costs little.
+    int batch = 1;
+    int i = 0;
+    long start = System.nanoTime();
+    while (System.nanoTime() - start < warmupNanos) {
+      long batchStart = System.nanoTime();
+      for (int j = 0; j < batch; j++) {
+        sink += op.run(i++).hashCode();
+      }
+      if (System.nanoTime() - batchStart < 1000000L && batch < (1 << 20)) {
+        batch *= 2;
+      }
+    }
+
+    double [] scores = new double[numIterations];
+    for (int k = 0; k < numIterations; k++) {
+      long ops = 0;
+      long iterationStart = System.nanoTime();
+      long elapsed;
+      do {
+        for (int j = 0; j < batch; j++) {
+          sink += op.run(i++).hashCode();
+        }
+        ops += batch;
+        elapsed = System.nanoTime() - iterationStart;
+      } while (elapsed < iterationNanos);
+      scores[k] = elapsed / 1000.0 / ops;
+    }
+
+    double mean = 0;
+    for (double score : scores) {
+      mean += score;
+    }
+    mean /= scores.length;
+    double error = Double.NaN;
+    if (scores.length > 1) {
+      double variance = 0;
+      for (double score : scores) {
+        variance += (score - mean) * (score - mean);
+      }
+      variance /= scores.length - 1;
+      double t = scores.length - 1 <= T_999.length ?
+          T_999[scores.length - 2] : 3.291;
+      error = t * Math.sqrt(variance / scores.length);
+    }
+    System.out.println(String.format("%-45s %12.3f +- %.3f us/op", name, mean,
+        error));
+
+    Map<String, Object> metric = new LinkedHashMap<String, Object>();
+    metric.put("score", mean);
+    metric.put("scoreError", error);
+    metric.put("scoreConfidence", new double [] {mean - error, mean + error});
+    metric.put("scoreUnit", "us/op");
+    List<double []> rawData = new ArrayList<double []>();
+    rawData.add(scores);
+    metric.put("rawData", rawData);
+    Map<String, Object> result = new LinkedHashMap<String, Object>();
+    result.put("benchmark", getClass().getName() + "." + name);
+    result.put("mode", "avgt");
+    result.put("threads", 1);
+    result.put("forks", 0);
+    result.put("jvm", System.getProperty("java.home"));
+    result.put("jdkVersion", System.getProperty("java.version"));
+    result.put("vmName", System.getProperty("java.vm.name"));
+    result.put("warmupTime", warmupNanos / 1000000 + " ms");
+    result.put("measurementIterations", numIterations);
+    result.put("measurementTime", iterationNanos / 1000000 + " ms");
+    result.put("primaryMetric", metric);
+    results.add(result);
+  }
+
+  /**
+   * The bundled corpus: BenchmarkLdaSampler's synthetic documents, written
+   * in Chinese words, with 4 words of each as the title.
+   */
+  public static List<KeywordPost> generatePosts(int numDocs) {
+    Set<Character> unique = new LinkedHashSet<Character>();
+    for (char c : CHARACTERS.toCharArray()) {
+      unique.add(c);
+    }
+    char [] characters = new char[unique.size()];
+    int n = 0;
+    for (char c : unique) {
+      characters[n++] = c;
+    }
+    int vocabSize = 5000;
+    int wordsPerTopic = vocabSize / 50;
+    String [][][] corpus =
+      BenchmarkLdaSampler.generateCorpus(numDocs, 80, vocabSize);
+    Random random = new Random(11);
+    List<KeywordPost> posts = new ArrayList<KeywordPost>();
+    for (int i = 0; i < corpus.length; i++) {
+      StringBuilder content = new StringBuilder();
+      String [] words = corpus[i][0];
+      for (int j = 0; j < words.length; j++) {
+        content.append(word(Integer.parseInt(words[j].substring(1)),
+            characters));
+        if (j % 8 == 7) {
+          content.append(j == words.length - 1 ? '。' : '，');
+        }
+      }
+      Set<String> tags = new HashSet<String>();
+      for (String tag : corpus[i][1]) {
+        int id = Integer.parseInt(tag.substring(1));
+        // A topic is tagged with its most frequent word.
+        tags.add(word(tag.charAt(0) == 't' ? id * wordsPerTopic : id,
+            characters));
+      }
+      KeywordPost p = new KeywordPost();
+      p.setId(Integer.toString(i));
+      p.setUserId("u" + random.nextInt(100));
+      p.setResourceKey("r" + i);
+      p.setTitle(content.substring(0, 8));
+      p.setSummary("");
+      p.setContent(content.toString());
+      p.setTags(tags);
+      p.setTimestamp(1000L * i);
+      p.setExtras(Integer.toString(i % 5));
+      posts.add(p);
+    }
+    return posts;
+  }
+
+  private static String word(int id, char [] characters) {
+    return new String(new char [] {
+        characters[id / characters.length % characters.length],
+        characters[id % characters.length]});
+  }
+
+  private static void copy(Post from, Post to) {
+    to.setId(from.getId());
+    to.setUserId(from.getUserId());
+    to.setResourceKey(from.getResourceKey());
+    to.setTitle(from.getTitle());
+    to.setContent(from.getContent());
+    to.setTags(from.getTags());
+    to.setTimestamp(from.getTimestamp());
+    to.setExtras(from.getExtras());
+  }
+
+  private static File createTempDir() throws IOException {
+    File dir = File.createTempFile("benchmark", "");
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new IOException("cannot create " + dir);
+    }
+    return dir;
+  }
+
+  private static void delete(File f) {
+    File [] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    f.delete();
+  }
+}
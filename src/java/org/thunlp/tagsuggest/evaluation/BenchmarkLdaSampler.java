@@ -0,0 +1,143 @@
+package org.thunlp.tagsuggest.evaluation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.thunlp.misc.Flags;
+import org.thunlp.tagsuggest.contentbase.NoiseTagLdaModel;
+import org.thunlp.tagsuggest.contentbase.NoiseTagLdaModel.Document;
+import org.thunlp.tool.GenericTool;
+
+/**
+ * Compare the training throughput of the dense and the sparse (SparseLDA)
+ * samplers of NoiseTagLdaModel over a range of topic numbers.
+ *
+ * The corpus is synthetic: every document mixes a few of 50 hidden topics,
+ * each of which draws its words log-uniformly from its own part of the
+ * vocabulary, and is tagged with the names of its topics plus a random tag.
+ */
+public class BenchmarkLdaSampler implements GenericTool {
+  private static Logger LOG = Logger.getAnonymousLogger();
+  private static final int NUM_HIDDEN_TOPICS = 50;
+
+  @Override
+  public void run(String[] args) throws Exception {
+    Flags flags = new Flags();
+    flags.addWithDefaultValue("topics", "32,64,128,256,512,1024",
+        "comma separated numbers of topics");
+    flags.addWithDefaultValue("docs", "2000", "number of documents");
+    flags.addWithDefaultValue("doc_length", "100", "words per document");
+    flags.addWithDefaultValue("vocab", "20000", "vocabulary size");
+    flags.addWithDefaultValue("burnin", "5", "untimed sampling sweeps");
+    flags.addWithDefaultValue("iterations", "10", "timed sampling sweeps");
+    flags.addWithDefaultValue("threads", "1", "training threads");
+    flags.parseAndCheck(args);
+
+    String [][][] corpus = generateCorpus(
+        flags.getInt("docs"), flags.getInt("doc_length"), flags.getInt("vocab"));
+    long numTokens = 0;
+    for (String [][] doc : corpus) {
+      numTokens += doc[0].length + doc[1].length;
+    }
+    int numBurnin = flags.getInt("burnin");
+    int numIterations = flags.getInt("iterations");
+    int numThreads = flags.getInt("threads");
+
+    LOG.info("Corpus: " + corpus.length + " documents, " + numTokens +
+        " tokens");
+    // The per-iteration log of the model would drown the table.
+    Logger root = Logger.getLogger("");
+    Level level = root.getLevel();
+    root.setLevel(Level.WARNING);
+    // Warm up the JIT, or the first row would mostly time the compiler.
+    trainingTime(documents(corpus), 32, 1 + numBurnin, numThreads, false);
+    trainingTime(documents(corpus), 32, 1 + numBurnin, numThreads, true);
+    System.out.println("topics\tdense tokens/s\tsparse tokens/s\tspeedup");
+    try {
+      for (String k : flags.getString("topics").split(",")) {
+        int numTopics = Integer.parseInt(k.trim());
+        double dense = throughput(
+            corpus, numTokens, numTopics, numBurnin, numIterations, numThreads,
+            false);
+        double sparse = throughput(
+            corpus, numTokens, numTopics, numBurnin, numIterations, numThreads,
+            true);
+        System.out.println(String.format("%d\t%.0f\t%.0f\t%.2f",
+            numTopics, dense, sparse, sparse / dense));
+      }
+    } finally {
+      root.setLevel(level);
+    }
+  }
+
+  /**
+   * Tokens sampled per second after the burn-in. The sparse sampler speeds up
+   * as the counts get sparse, so the first sweeps are not representative.
+   * The time up to the end of the burn-in is measured on a separate model.
+   */
+  private double throughput(String [][][] corpus, long numTokens,
+      int numTopics, int numBurnin, int numIterations, int numThreads,
+      boolean sparse) {
+    long burnin = trainingTime(
+        documents(corpus), numTopics, 1 + numBurnin, numThreads, sparse);
+    long all = trainingTime(documents(corpus), numTopics,
+        1 + numBurnin + numIterations, numThreads, sparse);
+    double seconds = (all - burnin) / 1e9;
+    return numTokens * (double) numIterations / seconds;
+  }
+
+  private long trainingTime(List<Document> docs, int numTopics,
+      int numIterations, int numThreads, boolean sparse) {
+    NoiseTagLdaModel model = new NoiseTagLdaModel(numTopics);
+    model.setSparseSampling(sparse);
+    long start = System.nanoTime();
+    model.train(docs, numIterations, numThreads);
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Fresh documents, since training keeps its topic assignments in them.
+   */
+  private static List<Document> documents(String [][][] corpus) {
+    List<Document> docs = new ArrayList<Document>(corpus.length);
+    for (String [][] doc : corpus) {
+      docs.add(new Document(doc[0], doc[1]));
+    }
+    return docs;
+  }
+
+  /**
+   * Returns the words and the tags of each document.
+   */
+  public static String [][][] generateCorpus(
+      int numDocs, int docLength, int vocabSize) {
+    Random random = new Random(7);
+    int wordsPerTopic = Math.max(1, vocabSize / NUM_HIDDEN_TOPICS);
+    String [][][] corpus = new String[numDocs][][];
+    for (int i = 0; i < numDocs; i++) {
+      // Up to 3 topics a stride apart, so that they are distinct.
+      int [] topics = new int[1 + random.nextInt(3)];
+      int first = random.nextInt(NUM_HIDDEN_TOPICS);
+      int stride = 1 + random.nextInt(NUM_HIDDEN_TOPICS / 3);
+      for (int j = 0; j < topics.length; j++) {
+        topics[j] = (first + j * stride) % NUM_HIDDEN_TOPICS;
+      }
+      String [] words = new String[docLength];
+      for (int j = 0; j < docLength; j++) {
+        int topic = topics[random.nextInt(topics.length)];
+        int rank = (int) Math.pow(wordsPerTopic, random.nextDouble()) - 1;
+        words[j] = "w" + ((topic * wordsPerTopic + rank) % vocabSize);
+      }
+      String [] tags = new String[topics.length + 1];
+      for (int j = 0; j < topics.length; j++) {
+        tags[j] = "t" + topics[j];
+      }
+      tags[topics.length] = "r" + random.nextInt(vocabSize);
+      corpus[i] = new String [][] {words, tags};
+    }
+    return corpus;
+  }
+}
@@ -1,17 +1,27 @@
 package org.thunlp.tagsuggest.evaluation;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import org.thunlp.io.TextFileWriter;
 import org.thunlp.misc.Flags;
 import org.thunlp.tagsuggest.common.ConfigIO;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.ModelTrainer;
 import org.thunlp.tagsuggest.common.TagSuggest;
+import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 import org.thunlp.tagsuggest.dataset.CutFolds;
 import org.thunlp.tagsuggest.evaluation.Evaluator.Result;
 import org.thunlp.tagsuggest.evaluation.EvaluatorByActual.Result2;
+import org.thunlp.text.Lexicon;
 import org.thunlp.tool.GenericTool;
 
 /** 
@@ -32,12 +42,20 @@ public class CrossValidator implements GenericTool {
     flags.add("suggester_class");
     flags.addWithDefaultValue("num_folds", "5", "");
     flags.addWithDefaultValue("at_n", "10", "");
+    flags.addWithDefaultValue("parallel_folds", "1",
+        "number of folds trained and tested at the same time");
+    flags.addWithDefaultValue("fold_memory_mb", "0",
+        "estimated heap one fold needs, parallel_folds is lowered to fit -Xmx");
+    flags.addWithDefaultValue("max_threads", "0",
+        "evaluation and model 1 threads shared by the running folds, 0 to keep"
+        + " eval_threads and model1_threads");
     flags.parseAndCheck(args);
   }
 
   @Override
   public void run(String[] args) throws Exception {
     parseFlags(args);
+    Metrics.registerMBean();
 
     int numFolds = flags.getInt("num_folds");
     Properties config = ConfigIO.configFromString(flags.getString("config"));
@@ -57,8 +75,6 @@ public class CrossValidator implements GenericTool {
     if (!trainerName.startsWith("org.thunlp.tagsuggest.train")) {
       trainerName = "org.thunlp.tagsuggest.train." + trainerName;
     }
-    ModelTrainer trainer = 
-      (ModelTrainer) Class.forName(trainerName).newInstance();
 
     File workingDirFile = new File(workingDir);
 
@@ -77,32 +93,121 @@ public class CrossValidator implements GenericTool {
 
     // Train & test for each fold.
     Result [] results = new Result[numFolds];
+    int parallelFolds = foldsToRunInParallel(numFolds);
+    if (parallelFolds <= 1) {
+      for (int i = 0; i < numFolds; i++) {
+        results[i] = runFold(i, config, trainerName, suggesterClassName,
+            cutDatasetPath, workingDir, atN);
+      }
+    } else {
+      runFoldsInParallel(parallelFolds, results, config, trainerName,
+          suggesterClassName, cutDatasetPath, workingDir, atN);
+    }
+
+    String report = writeReport(results);
+    TextFileWriter.writeToFile(report, new File(reportPath), "UTF-8");
+  }
+
+  /**
+   * Train and test one fold. The fold gets its own copy of the config, trainer
+   * and evaluator, so that several folds can run at the same time.
+   */
+  private Result runFold(int i, Properties baseConfig, String trainerName,
+      String suggesterClassName, String cutDatasetPath, String workingDir,
+      int atN) throws Exception {
+    Properties config = new Properties();
+    config.putAll(baseConfig);
+    LOG.info("Fold " + i);
+    config.setProperty("fold", Integer.toString(i));
+    String modelPath = workingDir + File.separator + "model." + i + ".gz";
+
+    if (!fileExists(modelPath)) {
+      LOG.info("Training " + i);
+      ModelTrainer trainer =
+        (ModelTrainer) Class.forName(trainerName).newInstance();
+      trainer.train(cutDatasetPath, modelPath, config);
+    } else {
+      LOG.info("Using existing model " + i);
+    }
+    LOG.info("Testing " + i);
+
     Evaluator evaluator = new Evaluator(config);
     evaluator.setMinLog(
         Double.parseDouble(config.getProperty("minlog", "-10")));
-    for (int i = 0; i < numFolds; i++) {
-      LOG.info("Fold " + i);
-      config.setProperty("fold", Integer.toString(i));
-      String modelPath = workingDir + File.separator + "model." + i + ".gz";
-
-      if (!fileExists(modelPath)) {
-        LOG.info("Training " + i);
-        trainer.train(cutDatasetPath, modelPath, config);
-      } else {
-        LOG.info("Using existing model " + i);
-      }
-      LOG.info("Testing " + i);
+    int numThreads =
+      Integer.parseInt(config.getProperty("eval_threads", "1"));
+    List<TagSuggest> suggesters = Evaluator.createSuggesters(
+        suggesterClassName, config, modelPath, numThreads);
 
-      TagSuggest ts =
-        (TagSuggest) Class.forName(suggesterClassName).newInstance();
-      ts.setConfig(config);
-      ts.loadModel(modelPath);
+    return evaluator.evaluateSuggester(cutDatasetPath, suggesters, atN, i);
+  }
 
-      results[i] = evaluator.evaluateSuggester(cutDatasetPath, ts, atN, i);
+  /**
+   * How many folds may run at once: parallel_folds, lowered so that
+   * fold_memory_mb times that number fits into the maximal heap.
+   */
+  private int foldsToRunInParallel(int numFolds) {
+    int parallelFolds = Math.min(flags.getInt("parallel_folds"), numFolds);
+    long foldMemory = flags.getInt("fold_memory_mb") * 1024L * 1024L;
+    if (foldMemory > 0) {
+      long byMemory = Runtime.getRuntime().maxMemory() / foldMemory;
+      if (byMemory < parallelFolds) {
+        LOG.info("Only " + byMemory + " folds fit into the heap, asked for "
+            + parallelFolds);
+        parallelFolds = (int) Math.max(byMemory, 1);
+      }
     }
+    return parallelFolds;
+  }
 
-    String report = writeReport(results);
-    TextFileWriter.writeToFile(report, new File(reportPath), "UTF-8");
+  private void runFoldsInParallel(int parallelFolds, Result [] results,
+      Properties config, final String trainerName,
+      final String suggesterClassName, final String cutDatasetPath,
+      final String workingDir, final int atN) throws Exception {
+    LOG.info("Run " + parallelFolds + " folds in parallel.");
+    final Properties foldConfig = new Properties();
+    foldConfig.putAll(config);
+    int maxThreads = flags.getInt("max_threads");
+    if (maxThreads > 0) {
+      int foldThreads = Math.max(1, maxThreads / parallelFolds);
+      foldConfig.setProperty("eval_threads", Integer.toString(foldThreads));
+      // Model 1 threads each hold their own count arrays, so they are capped
+      // rather than raised.
+      int model1Threads = Integer.parseInt(foldConfig.getProperty(
+          "model1_threads", Integer.toString(foldThreads)));
+      foldConfig.setProperty("model1_threads",
+          Integer.toString(Math.min(model1Threads, foldThreads)));
+    }
+
+    // All folds read the lexicon cache of the cut dataset, build it once
+    // here rather than racing for it.
+    WordFeatureExtractor.buildLexicons(cutDatasetPath, new Lexicon(),
+        new Lexicon(), foldConfig);
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallelFolds);
+    List<Future<Result>> futures = new ArrayList<Future<Result>>();
+    for (int i = 0; i < results.length; i++) {
+      final int fold = i;
+      futures.add(executor.submit(new Callable<Result>() {
+        public Result call() throws Exception {
+          return runFold(fold, foldConfig, trainerName, suggesterClassName,
+              cutDatasetPath, workingDir, atN);
+        }
+      }));
+    }
+    try {
+      for (int i = 0; i < results.length; i++) {
+        try {
+          results[i] = futures.get(i).get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof Exception)
+            throw (Exception) e.getCause();
+          throw e;
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
   }
 
   public boolean fileExists(String filename) {
@@ -186,6 +291,9 @@ public class CrossValidator implements GenericTool {
       sb.append("\n");
     }
     sb.append(result.num+" "+result.suggestnum+" "+result.answernum);
+    sb.append("\n\n");
+    // The stages of all the folds, training and testing.
+    sb.append(Metrics.report());
     return sb.toString();
   }
 
@@ -10,29 +10,39 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 import org.thunlp.io.JsonUtil;
 import org.thunlp.io.RecordReader;
 import org.thunlp.io.TextFileWriter;
 import org.thunlp.misc.Flags;
 import org.thunlp.misc.WeightString;
+import org.thunlp.tagsuggest.common.CachingTagSuggest;
 import org.thunlp.tagsuggest.common.ConfigIO;
 import org.thunlp.tagsuggest.common.DoubanPost;
 import org.thunlp.tagsuggest.common.GenerativeTagSuggest;
 import org.thunlp.tagsuggest.common.KeywordPost;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.MyKeyword2;
 import org.thunlp.tagsuggest.common.MyTag;
 import org.thunlp.tagsuggest.common.Post;
+import org.thunlp.tagsuggest.common.PostDecoder;
 import org.thunlp.tagsuggest.common.TagFilter;
 import org.thunlp.tagsuggest.common.TagSuggest;
+import org.thunlp.tagsuggest.common.ThreadSafeTagSuggest;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 import org.thunlp.text.Lexicon;
 import org.thunlp.tool.GenericTool;
@@ -47,11 +57,12 @@ import edu.stanford.nlp.util.StringUtils;
  */
 public class Evaluator implements GenericTool {
 	private static Logger LOG = Logger.getAnonymousLogger();
+	private static final LatencyHistogram SUGGEST_LATENCY =
+			Metrics.histogram("suggest");
 	private JsonUtil J = new JsonUtil();
 	private Properties config = null;
 	private double minLog = -10;
 	private Set<String> tagblacklist = new HashSet<String>();
-	private List<Double> likelihoods = new LinkedList<Double>();
 
 	public Evaluator() {
 		// For GenericTool interface.
@@ -111,6 +122,7 @@ public class Evaluator implements GenericTool {
 		flags.parseAndCheck(args);
 
 		config = ConfigIO.configFromString(flags.getString("config"));
+		Metrics.registerMBean();
 		int fold = Integer.parseInt(config.getProperty("fold", "-1"));
 		File output = new File(flags.getString("output"));
 		int atN = flags.getInt("at_n");
@@ -120,285 +132,165 @@ public class Evaluator implements GenericTool {
 		if (!suggesterClassName.startsWith("org.thunlp.tagsuggest.")) {
 			suggesterClassName = "org.thunlp.tagsuggest." + suggesterClassName;
 		}
-		TagSuggest ts = (TagSuggest) Class.forName(suggesterClassName)
-				.newInstance();
-		ts.setConfig(config);
-		ts.loadModel(flags.getString("model_path"));
+		int numThreads = Integer.parseInt(config.getProperty("eval_threads", "1"));
+		List<TagSuggest> suggesters = createSuggesters(suggesterClassName,
+				config, flags.getString("model_path"), numThreads);
 
-		Result result = evaluateSuggester(flags.getString("input"), ts, atN,
-				fold);
+		Result result = evaluateSuggester(flags.getString("input"), suggesters,
+				atN, fold);
 
 		writeReport(result, output);
 	}
 
+	/**
+	 * The evaluation of one suggester, run as a parallel evaluation with a
+	 * single worker.
+	 */
 	public Result evaluateSuggester(String input, TagSuggest ts, int atN,
 			int fold) throws IOException {
-		RecordReader reader = new RecordReader(input);
-		Result result = new Result(atN);
-		int n = 0;
-		long duration = 0l;
+		return evaluateSuggester(input, Collections.singletonList(ts), atN,
+				fold);
+	}
 
-		String outputFile = config.getProperty("outputFile",input);
-		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
-				new FileOutputStream(outputFile+fold),
-				"UTF-8"));
-		
-		boolean outputF = config.getProperty("outputF", "false").equals("true");
-		BufferedWriter outF = new BufferedWriter(new OutputStreamWriter(
-				new FileOutputStream(outputFile+"F"+fold),"UTF-8"));
-		List<WeightString> fmeasure = new ArrayList<WeightString>();
-		
-		boolean outputWrong = config.getProperty("outputWrong", "false").equals("true");
-		BufferedWriter outWrong = new BufferedWriter(new OutputStreamWriter(
-				new FileOutputStream(outputFile+fold+"wrong"),
-				"UTF-8"));
-		
-		
-		
+	/**
+	 * Create the numSuggesters suggesters of a parallel evaluation, one per
+	 * worker. A ThreadSafeTagSuggest, or a CachingTagSuggest wrapping one, is
+	 * loaded once and the same instance is returned for every worker; other
+	 * suggesters keep per-call state, so each worker gets its own loaded copy.
+	 */
+	public static List<TagSuggest> createSuggesters(String className,
+			Properties config, String modelPath, int numSuggesters)
+			throws Exception {
+		List<TagSuggest> suggesters = new ArrayList<TagSuggest>();
+		TagSuggest shared = null;
+		for (int i = 0; i < Math.max(numSuggesters, 1); i++) {
+			if (shared != null) {
+				suggesters.add(shared);
+				continue;
+			}
+			TagSuggest ts = (TagSuggest) Class.forName(className).newInstance();
+			ts.setConfig(config);
+			ts.loadModel(modelPath);
+			if (ts instanceof ThreadSafeTagSuggest
+					|| (ts instanceof CachingTagSuggest
+							&& ((CachingTagSuggest) ts).isThreadSafe()))
+				shared = ts;
+			suggesters.add(ts);
+		}
+		return suggesters;
+	}
+
+	/**
+	 * Evaluate with one worker thread per given suggester. A reader thread
+	 * feeds the input lines through a bounded queue to the workers, which
+	 * parse the post, call suggest() and normalize the answer tags. The
+	 * calling thread then scores the posts and writes the outputs in input
+	 * order, so the result and the output files do not depend on the number
+	 * of workers (floating point sums depend on the order).
+	 */
+	public Result evaluateSuggester(String input, List<TagSuggest> suggesters,
+			int atN, int fold) throws IOException {
 		String dataType = config.getProperty("dataType", "Post");
-		if(dataType.equals("DoubanPost")){
-				Lexicon wordlex = new Lexicon();
-				Lexicon taglex = new Lexicon();
-				WordFeatureExtractor.buildLexicons(input, wordlex, taglex, config);
-				int minTagFreq = Integer.parseInt(config.getProperty("mintagfreq",
-						"1"));
-				
-				TagFilter tagFilter = new TagFilter(config, taglex);
-			
-				// Evaluation.
-				Set<String> normedTags = new HashSet<String>();
-				Pattern spaceRE = Pattern.compile(" +");
-				while (reader.next()) {
-					DoubanPost p = J.fromJson(reader.value(), DoubanPost.class);
-					if (fold >= 0) {
-						if (!p.getExtras().equals(Integer.toString(fold)))
-							continue;
-					}
-					// p.getTags().removeAll(tagblacklist);
-					if (p.getDoubanTags().size() == 0)
-						continue;
-					long start = System.currentTimeMillis();
-					List<WeightString> tags = ts.suggest(p, null);
-					duration += System.currentTimeMillis() - start;
-					
-					normedTags.clear();
-					
-					tagFilter.filterMapWithNorm(p.getDoubanTags(), normedTags);
-					
-					if (normedTags.size() == 0)
-						continue; // Skip documents with no valid tags.
-					
-					collectScore(tags, normedTags, result);
-	
-					if(fold == 3){
-						// output for Demo
-						MyTag myTag = new MyTag();
-						myTag.setTitle(p.getTitle());
-						myTag.setContent(p.getContent());
-						myTag.setAnswer(normedTags);
-
-						if(tags.size() < 10) myTag.setSuggestTags(tags);
-						else myTag.setSuggestTags(tags.subList(0, 10));
-						out.write(J.toJson(myTag));
-						out.newLine();
-						out.flush();
-					}
-					
-					if (n % 100 == 0) {
-						LOG.info("evaluated " + n);
-						LOG.info("  @5 p:" + (result.p[4] / result.n) + " r: "
-								+ (result.r[4] / result.n));
-						LOG.info("  Perplexity:"
-								+ Math.pow(2.0, -result.loglikelihood
-										/ result.numTags));
-					}
-					n++;
-				}
-				out.close();
-				reader.close();
-				
-				LOG.info("suggester speed:" + duration + "/" + n + "="
-						+ (duration / (double) n) + ", "
-						+ (duration / (double) n / 1000.0) + "ms.");
-				// Normalize the result.
-				for (int i = 0; i < atN; i++) {
-					result.p[i] /= result.n;
-					result.r[i] /= result.n;
-					result.f1[i] /= result.n;
-				}
-				
-				result.loglikelihood /= result.numTags;
-				result.perplexity = Math.pow(2.0, -result.loglikelihood);
-				return result;
-		} 
-		else if (dataType.equals("Post")){
-				// Load the word frequency info, count it if not exist.
-				Lexicon wordlex = new Lexicon();
-				Lexicon taglex = new Lexicon();
-				WordFeatureExtractor.buildLexicons(input, wordlex, taglex, config);
-				int minTagFreq = Integer.parseInt(config.getProperty("mintagfreq",
-						"1"));
-				taglex = taglex.removeLowDfWords(minTagFreq);
-	
-				// Check if this suggester can provide likelihood.
-				boolean useLikelihood = (ts instanceof GenerativeTagSuggest);
-				GenerativeTagSuggest gts = null;
-				if (useLikelihood)
-					gts = (GenerativeTagSuggest) ts;
-	
-				TagFilter tagFilter = new TagFilter(config, taglex);
-				// Evaluation.
-				Set<String> normedTags = new HashSet<String>();
-				while (reader.next()) {
-					Post p = J.fromJson(reader.value(), Post.class);
-					if (fold >= 0) {
-						if (!p.getExtras().equals(Integer.toString(fold)))
-							continue;
-					}
-					p.getTags().removeAll(tagblacklist);
-					if (p.getTags().size() == 0)
-						continue;
-					long start = System.currentTimeMillis();
-					List<WeightString> tags = ts.suggest(p, null);
-					duration += System.currentTimeMillis() - start;
-					normedTags.clear();
-			
-					tagFilter.filterWithNorm(p.getTags(), normedTags);
-					if (normedTags.size() == 0)
-						continue; // Skip documents with no valid tags.
-					
-					collectScore(tags, normedTags, result);
-	
-					if(fold == 3){
-						// output for Demo
-						MyTag myTag = new MyTag();
-						myTag.setTitle(p.getTitle());
-						myTag.setContent(p.getContent());
-			
-						myTag.setAnswer(normedTags);
-						if(tags.size() < 10) myTag.setSuggestTags(tags);
-						else myTag.setSuggestTags(tags.subList(0, 10));
-						out.write(J.toJson(myTag));
-						out.newLine();
-						out.flush();
-					}
-					
-	
-					if (useLikelihood) {
-						likelihoods.clear();
-						gts.likelihood(p, likelihoods);
-						for (Double l : likelihoods) {
-							result.loglikelihood += takeSafeLog(l);
-							result.numTags++;
-						}
-					}
-	
-					if (n % 100 == 0) {
-						LOG.info("evaluated " + n);
-						LOG.info("  @5 p:" + (result.p[4] / result.n) + " r: "
-								+ (result.r[4] / result.n));
-						LOG.info("  Perplexity:"
-								+ Math.pow(2.0, -result.loglikelihood
-										/ result.numTags));
-					}
-					n++;
-				}
-				reader.close();
-				
-				LOG.info("suggester speed:" + duration + "/" + n + "="
-						+ (duration / (double) n) + ", "
-						+ (duration / (double) n / 1000.0) + "ms.");
-				// Normalize the result.
-				for (int i = 0; i < atN; i++) {
-					result.p[i] /= result.n;
-					result.r[i] /= result.n;
-					result.f1[i] /= result.n;
-				}
-				result.loglikelihood /= result.numTags;
-				result.perplexity = Math.pow(2.0, -result.loglikelihood);
-				return result;
+		if (!dataType.equals("DoubanPost") && !dataType.equals("Post")
+				&& !dataType.equals("KeywordPost")) {
+			return new Result(atN);
 		}
-		else if (dataType.equals("KeywordPost")){
-			Lexicon wordlex = new Lexicon();
-			Lexicon taglex = new Lexicon();
-			WordFeatureExtractor.buildLexicons(input, wordlex, taglex, config);
+		int queueSize = Integer.parseInt(config.getProperty("eval_queue",
+				Integer.toString(suggesters.size() * 64)));
+
+		Lexicon wordlex = new Lexicon();
+		Lexicon taglex = new Lexicon();
+		WordFeatureExtractor.buildLexicons(input, wordlex, taglex, config);
+		if (!dataType.equals("DoubanPost")) {
 			int minTagFreq = Integer.parseInt(config.getProperty("mintagfreq",
 					"1"));
 			taglex = taglex.removeLowDfWords(minTagFreq);
+		}
+		TagFilter tagFilter = new TagFilter(config, taglex);
 
-			// Check if this suggester can provide likelihood.
-			boolean useLikelihood = (ts instanceof GenerativeTagSuggest);
-			GenerativeTagSuggest gts = null;
-			if (useLikelihood)
-				gts = (GenerativeTagSuggest) ts;
+		ParallelRun run = new ParallelRun(queueSize);
+		run.start(new InputReader(input, run, suggesters.size()),
+				"evaluator-reader");
+		for (int i = 0; i < suggesters.size(); i++) {
+			run.start(new SuggestWorker(suggesters.get(i), tagFilter, dataType,
+					fold, run), "evaluator-worker-" + i);
+		}
 
-			
-			TagFilter tagFilter = new TagFilter(config, taglex);
-			// Evaluation.
-			Set<String> normedTags = new HashSet<String>();
-			while (reader.next()) {
-				KeywordPost p = J.fromJson(reader.value(), KeywordPost.class);
-				if (fold >= 0) {
-					if (!p.getExtras().equals(Integer.toString(fold)))
+		String outputFile = config.getProperty("outputFile", input);
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(outputFile + fold), "UTF-8"));
+		boolean outputF = config.getProperty("outputF", "false").equals("true");
+		BufferedWriter outF = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(outputFile + "F" + fold), "UTF-8"));
+		List<WeightString> fmeasure = new ArrayList<WeightString>();
+		BufferedWriter outWrong = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(outputFile + fold + "wrong"), "UTF-8"));
+
+		Result result = new Result(atN);
+		int n = 0;
+		long duration = 0l;
+		long wallStart = System.currentTimeMillis();
+		Map<Long, Outcome> pending = new HashMap<Long, Outcome>();
+		long next = 0;
+		try {
+			while (true) {
+				Outcome o = pending.remove(next);
+				if (o == null) {
+					o = run.take();
+					if (o.seq != next) {
+						pending.put(o.seq, o);
 						continue;
+					}
 				}
-				p.getTags().removeAll(tagblacklist);
-				if (p.getTags().size() == 0)
+				next++;
+				run.release();
+				if (o.end) {
+					break;
+				}
+				duration += o.duration;
+				if (o.normedTags == null)
 					continue;
-				long start = System.currentTimeMillis();
-				List<WeightString> tags = ts.suggest(p, null);
-				duration += System.currentTimeMillis() - start;
-				normedTags.clear();
-				
-				tagFilter.filterWithNorm(p.getTags(), normedTags);
-				if (normedTags.size() == 0)
-					continue; // Skip documents with no valid tags.
-				
+
+				Post p = o.post;
+				List<WeightString> tags = o.tags;
+				Set<String> normedTags = o.normedTags;
 				collectScore(tags, normedTags, result);
 
-				if(outputF){
-					int count = 0;
-					for(int i = 0; i < tags.size() && i < 10; i++){
-						if (normedTags.contains(tags.get(i).text.toLowerCase())) {
-							count ++;
-						}
+				if (dataType.equals("KeywordPost")) {
+					KeywordPost kp = (KeywordPost) p;
+					if (outputF) {
+						fmeasure.add(new WeightString(kp.getId(), fmeasureAt10(
+								tags, normedTags)));
 					}
-					double pp = 0.0;
-					if(tags.size() < 10){
-						pp = (tags.size() == 0) ? 0.0 : (double)count / (double)tags.size() ;
+					MyKeyword2 myKeyword = new MyKeyword2();
+					myKeyword.setTitle(kp.getTitle());
+					myKeyword.setSummary(kp.getSummary());
+					myKeyword.setContent(kp.getContent());
+					myKeyword.setId(kp.getId());
+					myKeyword.setAnswer(normedTags);
+					for (int i = 0; i < tags.size() && i < 10; i++) {
+						myKeyword.getSuggestTags().add(tags.get(i).text);
 					}
-					else{
-						pp = (double)count / 10.0;
-					}
-					double r = (normedTags.size() == 0) ? 0.0 : (double)count / (double)normedTags.size() ;
-					double f = 0.0;
-					if (pp == 0 || r == 0)
-						f = 0;
+					out.write(J.toJson(myKeyword));
+					out.newLine();
+					out.flush();
+				} else if (fold == 3) {
+					// output for Demo
+					MyTag myTag = new MyTag();
+					myTag.setTitle(p.getTitle());
+					myTag.setContent(p.getContent());
+					myTag.setAnswer(normedTags);
+					if (tags.size() < 10)
+						myTag.setSuggestTags(tags);
 					else
-						f = 2 * pp * r / (pp + r);
-					fmeasure.add(new WeightString(p.getId(), f));
-					
-					
-				}
-		
-				MyKeyword2 myKeyword = new MyKeyword2();
-				myKeyword.setTitle(p.getTitle());
-				myKeyword.setSummary(p.getSummary());
-				myKeyword.setContent(p.getContent());
-				myKeyword.setId(p.getId());
-				myKeyword.setAnswer(normedTags);
-		
-				for(int i = 0 ; i < tags.size() && i < 10; i ++){
-					myKeyword.getSuggestTags().add(tags.get(i).text);
+						myTag.setSuggestTags(tags.subList(0, 10));
+					out.write(J.toJson(myTag));
+					out.newLine();
+					out.flush();
 				}
-				out.write(J.toJson(myKeyword));
-				out.newLine();
-				out.flush();
-				
-				if (useLikelihood) {
-					likelihoods.clear();
-					gts.likelihood(p, likelihoods);
-					for (Double l : likelihoods) {
+
+				if (o.likelihoods != null) {
+					for (Double l : o.likelihoods) {
 						result.loglikelihood += takeSafeLog(l);
 						result.numTags++;
 					}
@@ -409,46 +301,270 @@ public class Evaluator implements GenericTool {
 					LOG.info("  @5 p:" + (result.p[4] / result.n) + " r: "
 							+ (result.r[4] / result.n));
 					LOG.info("  Perplexity:"
-							+ Math.pow(2.0, -result.loglikelihood
-									/ result.numTags));
+							+ Math.pow(2.0, -result.loglikelihood / result.numTags));
 				}
 				n++;
 			}
-			reader.close();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while evaluating");
+		} finally {
+			run.stop();
 			out.close();
 			outWrong.close();
-			
-			if(outputF){
-				Collections.sort(fmeasure, new Comparator<WeightString>() {
-					@Override
-					public int compare(WeightString o1, WeightString o2) {
-						return Double.compare(o2.weight, o1.weight);
-					}
-				});
-				for(int i = 0; i < fmeasure.size(); i ++){
-					outF.write(fmeasure.get(i).text + " " + fmeasure.get(i).weight);
-					outF.newLine();
-					outF.flush();
-				}
+			if (!outputF)
 				outF.close();
+		}
+
+		if (outputF) {
+			Collections.sort(fmeasure, new Comparator<WeightString>() {
+				@Override
+				public int compare(WeightString o1, WeightString o2) {
+					return Double.compare(o2.weight, o1.weight);
+				}
+			});
+			for (int i = 0; i < fmeasure.size(); i++) {
+				outF.write(fmeasure.get(i).text + " " + fmeasure.get(i).weight);
+				outF.newLine();
 			}
-			
-			LOG.info("suggester speed:" + duration + "/" + n + "="
-					+ (duration / (double) n) + ", "
-					+ (duration / (double) n / 1000.0) + "ms.");
-			// Normalize the result.
-			for (int i = 0; i < atN; i++) {
-				result.p[i] /= result.n;
-				result.r[i] /= result.n;
-				result.f1[i] /= result.n;
-			}
-			result.loglikelihood /= result.numTags;
-			result.perplexity = Math.pow(2.0, -result.loglikelihood);
-			return result;
+			outF.close();
+		}
+
+		LOG.info("suggester speed:" + duration + "/" + n + "="
+				+ (duration / (double) n) + ", "
+				+ (duration / (double) n / 1000.0) + "ms.");
+		LOG.info("wall time with " + suggesters.size() + " workers: "
+				+ (System.currentTimeMillis() - wallStart) + "ms.");
+		// Normalize the result.
+		for (int i = 0; i < atN; i++) {
+			result.p[i] /= result.n;
+			result.r[i] /= result.n;
+			result.f1[i] /= result.n;
 		}
+		result.loglikelihood /= result.numTags;
+		result.perplexity = Math.pow(2.0, -result.loglikelihood);
 		return result;
 	}
 
+	private double fmeasureAt10(List<WeightString> tags, Set<String> normedTags) {
+		int count = 0;
+		for (int i = 0; i < tags.size() && i < 10; i++) {
+			if (normedTags.contains(tags.get(i).text.toLowerCase())) {
+				count++;
+			}
+		}
+		double pp = 0.0;
+		if (tags.size() < 10) {
+			pp = (tags.size() == 0) ? 0.0 : (double) count
+					/ (double) tags.size();
+		} else {
+			pp = (double) count / 10.0;
+		}
+		double r = (normedTags.size() == 0) ? 0.0 : (double) count
+				/ (double) normedTags.size();
+		if (pp == 0 || r == 0)
+			return 0;
+		return 2 * pp * r / (pp + r);
+	}
+
+	/**
+	 * What a worker found for one input line. Posts which are not scored have
+	 * null normedTags, and the last outcome has end set.
+	 */
+	private static class Outcome {
+		long seq;
+		boolean end = false;
+		Post post;
+		List<WeightString> tags;
+		Set<String> normedTags;
+		List<Double> likelihoods;
+		long duration = 0;
+		Throwable error;
+	}
+
+	private static class Line {
+		long seq;
+		String value; // null means no more input.
+	}
+
+	/**
+	 * The queues shared by the reader, the workers and the collecting thread.
+	 * The permits bound the number of lines read but not yet collected, so
+	 * that a slow post cannot make the reorder buffer grow without limit.
+	 */
+	private static class ParallelRun {
+		BlockingQueue<Line> lines;
+		BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<Outcome>();
+		Semaphore permits;
+		List<Thread> threads = new ArrayList<Thread>();
+		volatile boolean stopped = false;
+
+		ParallelRun(int queueSize) {
+			lines = new ArrayBlockingQueue<Line>(queueSize);
+			permits = new Semaphore(queueSize * 2);
+		}
+
+		Outcome take() throws InterruptedException, IOException {
+			Outcome o = outcomes.take();
+			if (o.error != null) {
+				IOException e = new IOException("evaluation failed: "
+						+ o.error);
+				e.initCause(o.error);
+				throw e;
+			}
+			return o;
+		}
+
+		void release() {
+			permits.release();
+		}
+
+		void start(Runnable r, String name) {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			threads.add(t);
+			t.start();
+		}
+
+		void stop() {
+			stopped = true;
+			for (Thread t : threads) {
+				t.interrupt();
+			}
+		}
+
+		void fail(Throwable e) {
+			Outcome o = new Outcome();
+			o.seq = -1;
+			o.error = e;
+			outcomes.add(o);
+		}
+	}
+
+	private class InputReader implements Runnable {
+		private String input;
+		private ParallelRun run;
+		private int numWorkers;
+
+		InputReader(String input, ParallelRun run, int numWorkers) {
+			this.input = input;
+			this.run = run;
+			this.numWorkers = numWorkers;
+		}
+
+		public void run() {
+			try {
+				RecordReader reader = new RecordReader(input);
+				long seq = 0;
+				while (!run.stopped && reader.next()) {
+					run.permits.acquire();
+					Line line = new Line();
+					line.seq = seq++;
+					line.value = reader.value();
+					run.lines.put(line);
+				}
+				reader.close();
+				// The end marker is collected like a line.
+				run.permits.acquire();
+				Outcome end = new Outcome();
+				end.seq = seq;
+				end.end = true;
+				run.outcomes.put(end);
+				for (int i = 0; i < numWorkers; i++) {
+					run.lines.put(new Line());
+				}
+			} catch (InterruptedException e) {
+				// Stopped by the collecting thread.
+			} catch (Throwable e) {
+				// Errors too, or the collecting thread would wait forever.
+				run.fail(e);
+			}
+		}
+	}
+
+	private class SuggestWorker implements Runnable {
+		private TagSuggest ts;
+		private TagFilter tagFilter;
+		private String dataType;
+		private int fold;
+		private ParallelRun run;
+		// Each worker its own, as a decoder is not thread-safe.
+		private PostDecoder decoder = new PostDecoder();
+
+		SuggestWorker(TagSuggest ts, TagFilter tagFilter, String dataType,
+				int fold, ParallelRun run) {
+			this.ts = ts;
+			this.tagFilter = tagFilter;
+			this.dataType = dataType;
+			this.fold = fold;
+			this.run = run;
+		}
+
+		public void run() {
+			try {
+				while (!run.stopped) {
+					Line line = run.lines.take();
+					if (line.value == null)
+						break;
+					Outcome o = new Outcome();
+					o.seq = line.seq;
+					evaluate(line.value, o);
+					run.outcomes.put(o);
+				}
+			} catch (InterruptedException e) {
+				// Stopped by the collecting thread.
+			} catch (Throwable e) {
+				// Errors too, or the collecting thread would wait forever.
+				run.fail(e);
+			}
+		}
+
+		private void evaluate(String value, Outcome o) throws IOException {
+			Post p;
+			if (dataType.equals("DoubanPost")) {
+				p = decoder.decode(value, new DoubanPost());
+			} else if (dataType.equals("KeywordPost")) {
+				p = decoder.decode(value, new KeywordPost());
+			} else {
+				p = decoder.decode(value, new Post());
+			}
+			if (fold >= 0) {
+				if (!p.getExtras().equals(Integer.toString(fold)))
+					return;
+			}
+			if (p instanceof DoubanPost) {
+				if (((DoubanPost) p).getDoubanTags().size() == 0)
+					return;
+			} else {
+				p.getTags().removeAll(tagblacklist);
+				if (p.getTags().size() == 0)
+					return;
+			}
+			long start = System.currentTimeMillis();
+			long startNanos = System.nanoTime();
+			List<WeightString> tags = ts.suggest(p, null);
+			SUGGEST_LATENCY.recordSince(startNanos);
+			o.duration = System.currentTimeMillis() - start;
+
+			Set<String> normedTags = new HashSet<String>();
+			if (p instanceof DoubanPost) {
+				tagFilter.filterMapWithNorm(((DoubanPost) p).getDoubanTags(),
+						normedTags);
+			} else {
+				tagFilter.filterWithNorm(p.getTags(), normedTags);
+			}
+			if (normedTags.size() == 0)
+				return; // Skip documents with no valid tags.
+
+			o.post = p;
+			o.tags = tags;
+			o.normedTags = normedTags;
+			if (!(p instanceof DoubanPost) && ts instanceof GenerativeTagSuggest) {
+				o.likelihoods = new LinkedList<Double>();
+				((GenerativeTagSuggest) ts).likelihood(p, o.likelihoods);
+			}
+		}
+	}
+
 	public void collectScore(List<WeightString> suggested,
 			Collection<String> real, Result scores) {
 		int[] correct = new int[scores.p.length];
@@ -546,6 +662,8 @@ public class Evaluator implements GenericTool {
 			sb.append(result.perplexity);
 			sb.append("\n");
 		}
+		sb.append("\n");
+		sb.append(Metrics.report());
 		TextFileWriter.writeToFile(sb.toString(), output, "UTF-8");
 	}
 
@@ -0,0 +1,334 @@
+package org.thunlp.tagsuggest.evaluation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.thunlp.io.JsonUtil;
+import org.thunlp.misc.Flags;
+import org.thunlp.misc.WeightString;
+import org.thunlp.tagsuggest.common.ConfigIO;
+import org.thunlp.tagsuggest.common.KeywordPost;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
+import org.thunlp.tagsuggest.common.Post;
+import org.thunlp.tagsuggest.common.TagSuggest;
+import org.thunlp.tagsuggest.common.TopTags;
+import org.thunlp.tool.GenericTool;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the suggestions of one loaded TagSuggest over HTTP, with the JDK's
+ * built-in server:
+ *
+ *   POST /suggest?n=10   body: a post as JSON, as in the evaluation input
+ *                        reply: {"id": ..., "tags": [{"text", "weight"}...]}
+ *   GET  /health         reply: ok
+ *
+ * Posts are queued and taken by serve_threads workers, each with its own
+ * suggester as in a parallel evaluation (one shared instance for a
+ * ThreadSafeTagSuggest). A worker takes up to serve_batch posts at a time,
+ * waiting at most serve_batch_wait ms for the batch to fill once it has one,
+ * and then parses and answers them in turn. Posts beyond serve_queue waiting
+ * ones are refused at once, and posts that waited more than serve_timeout ms
+ * are dropped unanswered by the suggester; both get 503. Bodies longer than
+ * serve_max_body bytes are refused with 413. A post the suggester fails on,
+ * with an exception or an error, gets 500 and the worker goes on.
+ *
+ * The posts are KeywordPosts if dataType=KeywordPost, Posts otherwise. The
+ * latencies and the refused, timed out and failed posts are in Metrics, over
+ * JMX.
+ */
+public class SuggestServer implements GenericTool {
+  private static Logger LOG = Logger.getAnonymousLogger();
+  private static final LatencyHistogram SUGGEST_LATENCY =
+      Metrics.histogram("suggest");
+  private static int DEFAULT_TOP_N = 10;
+
+  private BlockingQueue<Request> queue;
+  private int batchSize;
+  private long batchWaitMs;
+  private long timeoutMs;
+  private int maxBodyBytes;
+  private Class<? extends Post> postClass;
+  private HttpServer server;
+  private List<Thread> workers = new ArrayList<Thread>();
+  private volatile boolean stopped = false;
+
+  /**
+   * A post waiting for a worker.
+   */
+  private static class Request {
+    HttpExchange exchange;
+    byte [] body;
+    int topN;
+    long arrival;
+  }
+
+  @Override
+  public void run(String[] args) throws Exception {
+    Flags flags = new Flags();
+    flags.add("suggester", "suggester class name");
+    flags.add("model_path", "model path for suggester's loadModel");
+    flags.add("config", "config string");
+    flags.addWithDefaultValue("host", "127.0.0.1", "address to listen on");
+    flags.addWithDefaultValue("port", "8080", "port to listen on");
+    flags.parseAndCheck(args);
+
+    Properties config = ConfigIO.configFromString(flags.getString("config"));
+    String suggesterClassName = flags.getString("suggester");
+    if (!suggesterClassName.startsWith("org.thunlp.tagsuggest.")) {
+      suggesterClassName = "org.thunlp.tagsuggest." + suggesterClassName;
+    }
+    int numThreads =
+      Integer.parseInt(config.getProperty("serve_threads", "1"));
+    List<TagSuggest> suggesters = Evaluator.createSuggesters(
+        suggesterClassName, config, flags.getString("model_path"), numThreads);
+    start(suggesters, config,
+        new InetSocketAddress(flags.getString("host"), flags.getInt("port")));
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        SuggestServer.this.stop();
+      }
+    }, "suggest-shutdown"));
+    for (Thread t : workers) {
+      t.join();
+    }
+  }
+
+  /**
+   * Start serving with one worker per suggester.
+   */
+  public void start(List<TagSuggest> suggesters, Properties config,
+      InetSocketAddress address) throws IOException {
+    Metrics.registerMBean();
+    queue = new ArrayBlockingQueue<Request>(
+        Integer.parseInt(config.getProperty("serve_queue", "1024")));
+    batchSize = Integer.parseInt(config.getProperty("serve_batch", "16"));
+    batchWaitMs = Long.parseLong(config.getProperty("serve_batch_wait", "2"));
+    timeoutMs = Long.parseLong(config.getProperty("serve_timeout", "1000"));
+    maxBodyBytes =
+      Integer.parseInt(config.getProperty("serve_max_body", "1048576"));
+    postClass = config.getProperty("dataType", "Post").equals("KeywordPost") ?
+        KeywordPost.class : Post.class;
+
+    for (int i = 0; i < suggesters.size(); i++) {
+      Thread t = new Thread(new Worker(suggesters.get(i)),
+          "suggest-worker-" + i);
+      t.setDaemon(true);
+      workers.add(t);
+      t.start();
+    }
+
+    server = HttpServer.create(address, 0);
+    server.createContext("/suggest", new SuggestHandler());
+    server.createContext("/health", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        reply(exchange, 200, "text/plain", "ok");
+      }
+    });
+    // The handlers only read the body and queue the post, but a slow client
+    // must not hold up the others.
+    server.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "suggest-http");
+        t.setDaemon(true);
+        return t;
+      }
+    }));
+    server.start();
+    LOG.info("Serving " + suggesters.get(0).getClass().getName() + " on "
+        + server.getAddress() + " with " + suggesters.size() + " workers");
+  }
+
+  public InetSocketAddress getAddress() {
+    return server.getAddress();
+  }
+
+  public void stop() {
+    stopped = true;
+    if (server != null) {
+      server.stop(0);
+      ((ExecutorService) server.getExecutor()).shutdown();
+    }
+    for (Thread t : workers) {
+      t.interrupt();
+    }
+  }
+
+  private class SuggestHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      if (!exchange.getRequestMethod().equals("POST")) {
+        reply(exchange, 405, "text/plain", "POST a post as JSON");
+        return;
+      }
+      Request request = new Request();
+      request.arrival = System.currentTimeMillis();
+      request.exchange = exchange;
+      request.topN = DEFAULT_TOP_N;
+      String query = exchange.getRequestURI().getQuery();
+      if (query != null) {
+        for (String param : query.split("&")) {
+          if (param.startsWith("n=")) {
+            try {
+              request.topN = Integer.parseInt(param.substring(2));
+            } catch (NumberFormatException e) {
+              reply(exchange, 400, "text/plain", "bad n: " + param);
+              return;
+            }
+          }
+        }
+      }
+      request.body = readBody(exchange.getRequestBody(), maxBodyBytes);
+      if (request.body == null) {
+        Metrics.count("serve.too_large", 1);
+        reply(exchange, 413, "text/plain",
+            "post longer than " + maxBodyBytes + " bytes");
+        return;
+      }
+      if (!queue.offer(request)) {
+        Metrics.count("serve.refused", 1);
+        reply(exchange, 503, "text/plain", "too many waiting posts");
+      }
+    }
+  }
+
+  private class Worker implements Runnable {
+    private TagSuggest ts;
+    private JsonUtil json = new JsonUtil();
+    private List<Request> batch = new ArrayList<Request>();
+
+    Worker(TagSuggest ts) {
+      this.ts = ts;
+    }
+
+    public void run() {
+      try {
+        while (!stopped) {
+          takeBatch();
+          for (Request request : batch) {
+            answer(request);
+          }
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        // Stopped.
+      }
+    }
+
+    /**
+     * Wait for a post, then gather up to batchSize of them for at most
+     * batchWaitMs more.
+     */
+    private void takeBatch() throws InterruptedException {
+      batch.add(queue.take());
+      queue.drainTo(batch, batchSize - batch.size());
+      long deadline = System.currentTimeMillis() + batchWaitMs;
+      while (batch.size() < batchSize) {
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) {
+          break;
+        }
+        Request request = queue.poll(wait, TimeUnit.MILLISECONDS);
+        if (request == null) {
+          break;
+        }
+        batch.add(request);
+        queue.drainTo(batch, batchSize - batch.size());
+      }
+    }
+
+    private void answer(Request request) {
+      try {
+        if (System.currentTimeMillis() - request.arrival > timeoutMs) {
+          Metrics.count("serve.timed_out", 1);
+          reply(request.exchange, 503, "text/plain", "timed out in queue");
+          return;
+        }
+        Post p;
+        try {
+          p = json.fromJson(new String(request.body, "UTF-8"), postClass);
+        } catch (IOException e) {
+          reply(request.exchange, 400, "text/plain", "bad post: "
+              + e.getMessage());
+          return;
+        }
+        if (p.getTitle() == null) {
+          p.setTitle("");
+        }
+        if (p.getContent() == null) {
+          p.setContent("");
+        }
+        if (p instanceof KeywordPost && ((KeywordPost) p).getSummary() == null) {
+          ((KeywordPost) p).setSummary("");
+        }
+        long start = System.nanoTime();
+        List<WeightString> tags = TopTags.suggest(ts, p, request.topN, null);
+        SUGGEST_LATENCY.recordSince(start);
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("id", p.getId());
+        result.put("tags", tags);
+        reply(request.exchange, 200, "application/json", json.toJson(result));
+      } catch (Throwable e) {
+        // Not only Exception: an Error would end the worker, and the posts
+        // queued behind it would never be answered.
+        LOG.warning("Cannot answer a post: " + e);
+        Metrics.count("serve.failed", 1);
+        try {
+          reply(request.exchange, 500, "text/plain", String.valueOf(e));
+        } catch (Throwable e1) {
+          // The client is gone.
+        }
+      }
+    }
+  }
+
+  /**
+   * Read the whole body, or return null as soon as it is longer than limit.
+   */
+  private static byte [] readBody(InputStream in, int limit)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte [] buffer = new byte[4096];
+    int n;
+    try {
+      while ((n = in.read(buffer)) > 0) {
+        if (out.size() + n > limit) {
+          return null;
+        }
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  private static void reply(HttpExchange exchange, int status,
+      String contentType, String body) throws IOException {
+    byte [] bytes = body.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type",
+        contentType + "; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+}
@@ -0,0 +1,39 @@
+package org.thunlp.tagsuggest.train;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+import org.thunlp.misc.Flags;
+import org.thunlp.tagsuggest.common.SMTModel;
+import org.thunlp.tool.GenericTool;
+
+/**
+ * Compile the text outputs of TrainWTM/TrainWAM in a model directory
+ * (book.vcb, bookTag.vcb, *.t1.5, *.ti.final and wordlex) into the single
+ * binary file that SMTTagSuggest and SMTKeywordTagSuggest memory-map at
+ * startup. By default the file is written into the model directory, where
+ * the suggesters pick it up in preference to the text files, so it has to be
+ * recompiled whenever the model is retrained.
+ */
+public class CompileSMTModel implements GenericTool {
+	private static Logger LOG = Logger.getAnonymousLogger();
+
+	@Override
+	public void run(String[] args) throws Exception {
+		Flags flags = new Flags();
+		flags.add("model_path", "model directory written by the trainer");
+		flags.addWithDefaultValue("output", "", "compiled model file");
+		flags.parseAndCheck(args);
+
+		String modelPath = flags.getString("model_path");
+		String output = flags.getString("output");
+		if (output.length() == 0) {
+			output = modelPath + File.separator + SMTModel.COMPILED_MODEL;
+		}
+		long start = System.currentTimeMillis();
+		SMTModel model = SMTModel.loadText(modelPath);
+		model.compile(new File(output));
+		LOG.info("compiled " + modelPath + " to " + output + " in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+}
@@ -0,0 +1,40 @@
+package org.thunlp.tagsuggest.train;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.logging.Logger;
+
+import org.thunlp.language.chinese.DictionaryRegistry;
+import org.thunlp.language.chinese.DoubleArrayTrie;
+import org.thunlp.misc.Flags;
+import org.thunlp.tool.GenericTool;
+
+/**
+ * Compile a segmentation automaton (book.model, or any file written by
+ * ForwardMaxWordSegment.buildAutomata) into the double-array file that
+ * DictionaryRegistry memory-maps. By default the file is written next to the
+ * automaton, where every segmenter of that automaton picks it up as long as
+ * it is not older than the automaton.
+ */
+public class CompileSegmentDictionary implements GenericTool {
+	private static Logger LOG = Logger.getAnonymousLogger();
+
+	@Override
+	public void run(String[] args) throws Exception {
+		Flags flags = new Flags();
+		flags.add("automata", "automaton file, e.g. model/book.model");
+		flags.addWithDefaultValue("output", "", "compiled dictionary file");
+		flags.parseAndCheck(args);
+
+		String automata = flags.getString("automata");
+		String output = flags.getString("output");
+		if (output.length() == 0) {
+			output = automata + DictionaryRegistry.COMPILED_SUFFIX;
+		}
+		long start = System.currentTimeMillis();
+		DoubleArrayTrie trie = DoubleArrayTrie.load(new FileInputStream(automata));
+		trie.save(new File(output));
+		LOG.info("compiled " + automata + " to " + output + " in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+}
@@ -0,0 +1,513 @@
+package org.thunlp.tagsuggest.train;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
+
+/**
+ * IBM Model 1 trained by EM in this JVM, in place of the mkcls, plain2snt and
+ * GIZA++ runs of the word trigger trainers. Both translation directions are
+ * trained in the same passes over the sentence pairs, and the E-step of each
+ * pass is split over threads that have their own count arrays. As the arrays
+ * are as large as the tables, fewer threads are used when they would not fit
+ * into half of the free heap.
+ *
+ * The sentences are kept as GIZA++ vocabulary ids (0 is the NULL word, words
+ * are numbered from 2 in order of appearance), and the translation tables are
+ * sparse rows over the words that occur together. save() writes the
+ * vocabularies and tables under the names SMTModel looks for: the
+ * source-to-target table as the older *.t1.5 file and the target-to-source
+ * table as the newer *.ti.final file.
+ */
+public class Model1Trainer {
+	private static Logger LOG = Logger.getAnonymousLogger();
+	private static final LatencyHistogram READ_LATENCY =
+			Metrics.histogram("train.Model1Trainer.read");
+	private static final LatencyHistogram WRITE_LATENCY =
+			Metrics.histogram("train.Model1Trainer.write");
+	private static final LatencyHistogram TABLES_LATENCY =
+			Metrics.histogram("train.Model1Trainer.tables");
+	private static final LatencyHistogram EXPECT_LATENCY =
+			Metrics.histogram("train.Model1Trainer.expect");
+	private static final LatencyHistogram MAXIMIZE_LATENCY =
+			Metrics.histogram("train.Model1Trainer.maximize");
+
+	public static String PREFIX = "model1";
+	private static int NULL_ID = 0;
+	private static int FIRST_ID = 2;
+	// GIZA++ drops smaller probabilities from its tables too.
+	private static double MIN_PROB = 1e-7;
+	// Each thread holds count arrays as large as both tables.
+	private static int DEFAULT_THREADS = 4;
+
+	private Vocabulary sourceVocab = new Vocabulary();
+	private Vocabulary targetVocab = new Vocabulary();
+	private List<int[]> sources = new ArrayList<int[]>();
+	private List<int[]> targets = new ArrayList<int[]>();
+	private int numThreads;
+	// t(target | source) and t(source | target).
+	private Table forward = null;
+	private Table backward = null;
+
+	public Model1Trainer(int numThreads) {
+		this.numThreads = Math.max(numThreads, 1);
+	}
+
+	/**
+	 * Train on the book (words) and bookTag (tags) files a trainer wrote to
+	 * modelDir, and save the model there. The config keys model1_iterations
+	 * (default 5, as the trainers ran GIZA++ with -m1 5) and model1_threads
+	 * (default 4, at most one per processor) control the training.
+	 */
+	public static void trainBook(File modelDir, Properties config)
+			throws IOException {
+		int iterations = Integer.parseInt(config.getProperty(
+				"model1_iterations", "5"));
+		int threads = Integer.parseInt(config.getProperty("model1_threads",
+				Integer.toString(Math.min(DEFAULT_THREADS, Runtime.getRuntime()
+						.availableProcessors()))));
+		Model1Trainer trainer = new Model1Trainer(threads);
+		long start = System.nanoTime();
+		trainer.readCorpus(new File(modelDir, "book"), new File(modelDir,
+				"bookTag"));
+		READ_LATENCY.recordSince(start);
+		trainer.train(iterations);
+		start = System.nanoTime();
+		trainer.save(modelDir, "book", "bookTag");
+		WRITE_LATENCY.recordSince(start);
+	}
+
+	/**
+	 * Read sentence pairs from two files with one space separated sentence
+	 * per line.
+	 */
+	public void readCorpus(File source, File target) throws IOException {
+		BufferedReader sourceReader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(source), "UTF-8"));
+		BufferedReader targetReader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(target), "UTF-8"));
+		String sourceLine;
+		String targetLine;
+		while ((sourceLine = sourceReader.readLine()) != null
+				&& (targetLine = targetReader.readLine()) != null) {
+			addPair(sourceLine.trim().split(" +"), targetLine.trim().split(" +"));
+		}
+		sourceReader.close();
+		targetReader.close();
+		LOG.info("read " + sources.size() + " sentence pairs, "
+				+ sourceVocab.size() + " source and " + targetVocab.size()
+				+ " target words");
+	}
+
+	/**
+	 * Add a sentence pair. Pairs with an empty side are skipped, as GIZA++
+	 * does.
+	 */
+	public void addPair(String[] source, String[] target) {
+		if (!hasWords(source) || !hasWords(target)) {
+			return;
+		}
+		sources.add(sourceVocab.encode(source));
+		targets.add(targetVocab.encode(target));
+	}
+
+	private static boolean hasWords(String[] sentence) {
+		for (String word : sentence) {
+			if (word.length() > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int numPairs() {
+		return sources.size();
+	}
+
+	public void train(int iterations) throws IOException {
+		int numSource = FIRST_ID + sourceVocab.size();
+		int numTarget = FIRST_ID + targetVocab.size();
+		long start = System.nanoTime();
+		forward = Table.cooccurrences(sources, targets, numSource, numTarget);
+		backward = Table.cooccurrences(targets, sources, numTarget, numSource);
+		TABLES_LATENCY.recordSince(start);
+		LOG.info("model 1 tables: " + forward.size() + " and "
+				+ backward.size() + " entries");
+
+		final int threads = threadsThatFit();
+		final double[][] forwardCounts = new double[threads][];
+		final double[][] backwardCounts = new double[threads][];
+		for (int i = 0; i < threads; i++) {
+			forwardCounts[i] = new double[forward.size()];
+			backwardCounts[i] = new double[backward.size()];
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int iter = 1; iter <= iterations; iter++) {
+				start = System.nanoTime();
+				List<Future<double[]>> futures = new ArrayList<Future<double[]>>();
+				int chunk = (sources.size() + threads - 1) / threads;
+				for (int i = 0; i < threads; i++) {
+					final int thread = i;
+					final int from = Math.min(i * chunk, sources.size());
+					final int to = Math.min(from + chunk, sources.size());
+					futures.add(executor.submit(new Callable<double[]>() {
+						public double[] call() {
+							return expect(from, to, forwardCounts[thread],
+									backwardCounts[thread]);
+						}
+					}));
+				}
+				double forwardLikelihood = 0;
+				double backwardLikelihood = 0;
+				long forwardWords = 0;
+				long backwardWords = 0;
+				for (Future<double[]> future : futures) {
+					double[] result = future.get();
+					forwardLikelihood += result[0];
+					backwardLikelihood += result[1];
+					forwardWords += (long) result[2];
+					backwardWords += (long) result[3];
+				}
+				EXPECT_LATENCY.recordSince(start);
+				start = System.nanoTime();
+				forward.maximize(forwardCounts);
+				backward.maximize(backwardCounts);
+				MAXIMIZE_LATENCY.recordSince(start);
+				LOG.info("model 1 iteration " + iter + ": perplexity "
+						+ perplexity(forwardLikelihood, forwardWords) + " / "
+						+ perplexity(backwardLikelihood, backwardWords));
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted");
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * numThreads, lowered so that the count arrays of all threads take at most
+	 * half of the heap that is still free.
+	 */
+	private int threadsThatFit() {
+		long perThread = 8L * (forward.size() + backward.size());
+		Runtime runtime = Runtime.getRuntime();
+		long free = runtime.maxMemory()
+				- (runtime.totalMemory() - runtime.freeMemory());
+		long byMemory = perThread == 0 ? numThreads : free / 2 / perThread;
+		if (byMemory < numThreads) {
+			LOG.info("count arrays of only " + byMemory
+					+ " threads fit into the heap, asked for " + numThreads);
+			return (int) Math.max(byMemory, 1);
+		}
+		return numThreads;
+	}
+
+	private static double perplexity(double logLikelihood, long numWords) {
+		return numWords == 0 ? 0 : Math.exp(-logLikelihood / numWords);
+	}
+
+	/**
+	 * The E-step over pairs [from, to) in both directions.
+	 *
+	 * @return the log-likelihood and number of target words of each
+	 *         direction.
+	 */
+	private double[] expect(int from, int to, double[] forwardCounts,
+			double[] backwardCounts) {
+		Arrays.fill(forwardCounts, 0);
+		Arrays.fill(backwardCounts, 0);
+		double[] result = new double[4];
+		int[] slots = new int[0];
+		for (int p = from; p < to; p++) {
+			int[] s = sources.get(p);
+			int[] t = targets.get(p);
+			if (slots.length < Math.max(s.length, t.length) + 1) {
+				slots = new int[Math.max(s.length, t.length) + 1];
+			}
+			result[0] += forward.expect(s, t, forwardCounts, slots);
+			result[1] += backward.expect(t, s, backwardCounts, slots);
+			result[2] += t.length;
+			result[3] += s.length;
+		}
+		return result;
+	}
+
+	/**
+	 * Write the vocabularies as sourceName.vcb and targetName.vcb, and the
+	 * tables of both directions, each with its inverse, as PREFIX.1.* and
+	 * PREFIX.2.*.
+	 */
+	public void save(File dir, String sourceName, String targetName)
+			throws IOException {
+		sourceVocab.save(new File(dir, sourceName + ".vcb"));
+		targetVocab.save(new File(dir, targetName + ".vcb"));
+		write(new File(dir, PREFIX + ".1.t1.5"), forward, null);
+		write(new File(dir, PREFIX + ".1.ti.final"), backward, forward);
+		write(new File(dir, PREFIX + ".2.t1.5"), backward, null);
+		write(new File(dir, PREFIX + ".2.ti.final"), forward, backward);
+	}
+
+	/**
+	 * Write "row column probability" lines for the entries of layout. Without
+	 * probs they are the probabilities of layout itself, otherwise those of
+	 * the transposed entry of probs.
+	 */
+	private static void write(File file, Table layout, Table probs)
+			throws IOException {
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), "UTF-8"));
+		for (int row = FIRST_ID; row < layout.numRows(); row++) {
+			for (int i = layout.rowStart[row]; i < layout.rowStart[row + 1]; i++) {
+				int column = layout.columns[i];
+				double prob = probs == null ? layout.probs[i] : probs.prob(
+						column, row);
+				if (prob < MIN_PROB) {
+					continue;
+				}
+				out.write(row + " " + column + " " + prob);
+				out.newLine();
+			}
+		}
+		out.close();
+	}
+
+	/**
+	 * Translation probabilities t(column | row) over the pairs that occur
+	 * together, in rows sorted by column. Row NULL_ID has every column.
+	 */
+	private static class Table {
+		int[] rowStart;
+		int[] columns;
+		double[] probs;
+
+		static Table cooccurrences(List<int[]> rowSentences,
+				List<int[]> columnSentences, int numRows, int numColumns) {
+			IntList[] rows = new IntList[numRows];
+			for (int p = 0; p < rowSentences.size(); p++) {
+				int[] columnIds = unique(columnSentences.get(p));
+				for (int row : unique(rowSentences.get(p))) {
+					if (rows[row] == null) {
+						rows[row] = new IntList();
+					}
+					rows[row].addAll(columnIds);
+				}
+			}
+			rows[NULL_ID] = new IntList();
+			for (int column = FIRST_ID; column < numColumns; column++) {
+				rows[NULL_ID].add(column);
+			}
+			Table table = new Table();
+			table.rowStart = new int[numRows + 1];
+			int size = 0;
+			for (int row = 0; row < numRows; row++) {
+				table.rowStart[row] = size;
+				if (rows[row] != null) {
+					rows[row].compact();
+					size += rows[row].size;
+				}
+			}
+			table.rowStart[numRows] = size;
+			table.columns = new int[size];
+			for (int row = 0; row < numRows; row++) {
+				if (rows[row] != null) {
+					System.arraycopy(rows[row].values, 0, table.columns,
+							table.rowStart[row], rows[row].size);
+					rows[row] = null;
+				}
+			}
+			// Start uniform over all columns, like GIZA++.
+			table.probs = new double[size];
+			Arrays.fill(table.probs, 1.0 / Math.max(numColumns - FIRST_ID, 1));
+			return table;
+		}
+
+		private static int[] unique(int[] ids) {
+			int[] sorted = ids.clone();
+			Arrays.sort(sorted);
+			int n = 0;
+			for (int i = 0; i < sorted.length; i++) {
+				if (n == 0 || sorted[n - 1] != sorted[i]) {
+					sorted[n++] = sorted[i];
+				}
+			}
+			return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+		}
+
+		int numRows() {
+			return rowStart.length - 1;
+		}
+
+		int size() {
+			return columns.length;
+		}
+
+		int find(int row, int column) {
+			int index = Arrays.binarySearch(columns, rowStart[row],
+					rowStart[row + 1], column);
+			return index < 0 ? -1 : index;
+		}
+
+		double prob(int row, int column) {
+			int index = find(row, column);
+			return index < 0 ? 0 : probs[index];
+		}
+
+		/**
+		 * Add the expected alignment counts of a sentence pair, where every
+		 * target word is generated by one of the source words or NULL.
+		 *
+		 * @return the log-likelihood of the target sentence.
+		 */
+		double expect(int[] source, int[] target, double[] counts, int[] slots) {
+			double logLikelihood = 0;
+			for (int column : target) {
+				slots[0] = find(NULL_ID, column);
+				double total = probs[slots[0]];
+				for (int i = 0; i < source.length; i++) {
+					slots[i + 1] = find(source[i], column);
+					total += probs[slots[i + 1]];
+				}
+				if (total <= 0) {
+					continue;
+				}
+				for (int i = 0; i <= source.length; i++) {
+					counts[slots[i]] += probs[slots[i]] / total;
+				}
+				logLikelihood += Math.log(total / (source.length + 1));
+			}
+			return logLikelihood;
+		}
+
+		/**
+		 * The M-step: normalize the summed counts of every row.
+		 */
+		void maximize(double[][] counts) {
+			for (int row = 0; row < numRows(); row++) {
+				double total = 0;
+				for (int i = rowStart[row]; i < rowStart[row + 1]; i++) {
+					double count = 0;
+					for (double[] c : counts) {
+						count += c[i];
+					}
+					probs[i] = count;
+					total += count;
+				}
+				if (total <= 0) {
+					continue;
+				}
+				for (int i = rowStart[row]; i < rowStart[row + 1]; i++) {
+					probs[i] /= total;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A growing int array that is sorted and deduplicated when it has doubled
+	 * since it last was.
+	 */
+	private static class IntList {
+		int[] values = new int[8];
+		int size = 0;
+		int compacted = 0;
+
+		void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		void addAll(int[] more) {
+			if (size + more.length > values.length) {
+				values = Arrays.copyOf(values, Math.max(size * 2, size
+						+ more.length));
+			}
+			System.arraycopy(more, 0, values, size, more.length);
+			size += more.length;
+			if (size > 2 * compacted + 64) {
+				compact();
+			}
+		}
+
+		void compact() {
+			Arrays.sort(values, 0, size);
+			int n = 0;
+			for (int i = 0; i < size; i++) {
+				if (n == 0 || values[n - 1] != values[i]) {
+					values[n++] = values[i];
+				}
+			}
+			size = n;
+			compacted = n;
+		}
+	}
+
+	/**
+	 * Words numbered from FIRST_ID in order of appearance, with their counts,
+	 * saved in the "id word count" format of GIZA++ .vcb files.
+	 */
+	private static class Vocabulary {
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		List<String> words = new ArrayList<String>();
+		List<Integer> counts = new ArrayList<Integer>();
+
+		int[] encode(String[] sentence) {
+			int[] encoded = new int[sentence.length];
+			int n = 0;
+			for (String word : sentence) {
+				if (word.length() == 0) {
+					continue;
+				}
+				Integer id = ids.get(word);
+				if (id == null) {
+					id = FIRST_ID + words.size();
+					ids.put(word, id);
+					words.add(word);
+					counts.add(0);
+				}
+				counts.set(id - FIRST_ID, counts.get(id - FIRST_ID) + 1);
+				encoded[n++] = id;
+			}
+			return n == encoded.length ? encoded : Arrays.copyOf(encoded, n);
+		}
+
+		int size() {
+			return words.size();
+		}
+
+		void save(File file) throws IOException {
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(file), "UTF-8"));
+			for (int i = 0; i < words.size(); i++) {
+				out.write((FIRST_ID + i) + " " + words.get(i) + " "
+						+ counts.get(i));
+				out.newLine();
+			}
+			out.close();
+		}
+	}
+}
@@ -12,7 +12,6 @@ import org.apache.lucene.analysis.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexWriter;
-import org.thunlp.io.JsonUtil;
 import org.thunlp.io.RecordReader;
 import org.thunlp.misc.Flags;
 import org.thunlp.misc.StringUtil;
@@ -21,6 +20,7 @@ import org.thunlp.tagsuggest.common.FeatureExtractor;
 import org.thunlp.tagsuggest.common.KeywordPost;
 import org.thunlp.tagsuggest.common.ModelTrainer;
 import org.thunlp.tagsuggest.common.Post;
+import org.thunlp.tagsuggest.common.PostDecoder;
 import org.thunlp.tagsuggest.common.TagFilter;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 import org.thunlp.text.Lexicon;
@@ -89,14 +89,16 @@ public class TrainExpandRank implements GenericTool, ModelTrainer {
     }
     
     WhitespaceAnalyzer analyzer = new WhitespaceAnalyzer();
-    JsonUtil J = new JsonUtil();    
+    PostDecoder decoder = new PostDecoder(
+        "id", "userId", "title", "summary", "content", "tags", "extras");
     IndexWriter docsIndex =
       new IndexWriter(new File(modelDir, "docs"), analyzer);
     
     RecordReader reader = new RecordReader(input);
+    KeywordPost post = new KeywordPost();
     while (reader.next()) {
       //Post p = J.fromJson(reader.value(), Post.class);
-    	KeywordPost p = J.fromJson(reader.value(), KeywordPost.class);
+    	KeywordPost p = decoder.decode(reader.value(), post);
       if (blacklist.contains(p.getUserId())) {
         continue;
       }
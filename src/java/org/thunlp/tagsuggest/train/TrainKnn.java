@@ -12,22 +12,35 @@ import org.apache.lucene.analysis.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexWriter;
-import org.thunlp.io.JsonUtil;
-import org.thunlp.io.RecordReader;
 import org.thunlp.misc.Flags;
 import org.thunlp.misc.StringUtil;
 import org.thunlp.tagsuggest.common.ConfigIO;
+import org.thunlp.tagsuggest.common.FeatureCache;
 import org.thunlp.tagsuggest.common.FeatureExtractor;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.ModelTrainer;
 import org.thunlp.tagsuggest.common.Post;
 import org.thunlp.tagsuggest.common.TagFilter;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
+import org.thunlp.tagsuggest.contentbase.DocsTable;
+import org.thunlp.tagsuggest.contentbase.KnnIndex;
 import org.thunlp.text.Lexicon;
 import org.thunlp.text.Lexicon.Word;
 import org.thunlp.tool.GenericTool;
 
+/**
+ * Index the training posts for KnnTagSuggest. knn_backend=lucene (the
+ * default) builds a Lucene index in the docs directory, knn_backend=native a
+ * KnnIndex file. The files of the other backend, left in the model directory
+ * by an earlier training, are deleted.
+ */
 public class TrainKnn implements GenericTool, ModelTrainer {
   private static Logger LOG = Logger.getAnonymousLogger();
+  private static final LatencyHistogram INDEX_LATENCY =
+      Metrics.histogram("train.TrainKnn.index");
+  private static final LatencyHistogram WRITE_LATENCY =
+      Metrics.histogram("train.TrainKnn.write");
   private FeatureExtractor extractor;
   private TagFilter tagFilter = null;
   private Properties config = null;
@@ -87,14 +100,27 @@ public class TrainKnn implements GenericTool, ModelTrainer {
           Arrays.asList(config.getProperty("blacklist", "").split(",")));
     }
     
-    WhitespaceAnalyzer analyzer = new WhitespaceAnalyzer();
-    JsonUtil J = new JsonUtil();    
-    IndexWriter docsIndex =
-      new IndexWriter(new File(modelDir, "docs"), analyzer);
+    boolean nativeIndex =
+      config.getProperty("knn_backend", "lucene").equals("native");
+    IndexWriter docsIndex = null;
+    KnnIndex.Builder index = null;
+    if (nativeIndex) {
+      delete(new File(modelDir, "docs"));
+      delete(new File(modelDir, DocsTable.TABLE_FILE));
+      index = new KnnIndex.Builder();
+    } else {
+      delete(new File(modelDir, KnnIndex.INDEX_FILE));
+      // Created afresh: the two argument constructor appends to an index
+      // already there.
+      docsIndex = new IndexWriter(new File(modelDir, "docs"),
+          new WhitespaceAnalyzer(), true);
+    }
     
-    RecordReader reader = new RecordReader(input);
+    long start = System.nanoTime();
+    FeatureCache.PostReader<Post> reader =
+      FeatureCache.open(input, config, Post.class);
     while (reader.next()) {
-      Post p = J.fromJson(reader.value(), Post.class);
+      Post p = reader.post();
       if (blacklist.contains(p.getUserId())) {
         continue;
       }
@@ -104,19 +130,41 @@ public class TrainKnn implements GenericTool, ModelTrainer {
       if (fold.length() > 0 && p.getExtras().equals(fold)) {
         continue;
       }
-      Document contentDoc = makeContentDoc(p);
-      docsIndex.addDocument(contentDoc);
+      if (nativeIndex) {
+        tagFilter.filter(p.getTags(), filtered);
+        index.addDocument(extractor.extract(p), filtered);
+      } else {
+        docsIndex.addDocument(makeContentDoc(p));
+      }
       if (reader.numRead() % 5000 == 0) {
         LOG.info("Added " + reader.numRead() + " documents.");
       }
     }
     reader.close();
+    INDEX_LATENCY.recordSince(start);
     
-    LOG.info("Optimizing docs index...");
-    docsIndex.optimize();
-    docsIndex.close();
+    start = System.nanoTime();
+    if (nativeIndex) {
+      LOG.info("Writing native index...");
+      index.write(new File(modelDir, KnnIndex.INDEX_FILE));
+    } else {
+      LOG.info("Optimizing docs index...");
+      docsIndex.optimize();
+      docsIndex.close();
+    }
+    WRITE_LATENCY.recordSince(start);
   }
   
+  private static void delete(File f) {
+    File [] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    f.delete();
+  }
+
   public Document makeContentDoc(Post p) {
     String [] words = extractor.extract(p);
     String docString = StringUtil.join(words, " ");
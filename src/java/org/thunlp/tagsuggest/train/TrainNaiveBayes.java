@@ -9,7 +9,6 @@ import java.util.Set;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
 
-import org.thunlp.io.JsonUtil;
 import org.thunlp.io.RecordReader;
 import org.thunlp.io.RecordWriter;
 import org.thunlp.misc.Counter;
@@ -18,6 +17,7 @@ import org.thunlp.misc.SlidingWindowCounter;
 import org.thunlp.tagsuggest.common.ConfigIO;
 import org.thunlp.tagsuggest.common.ModelTrainer;
 import org.thunlp.tagsuggest.common.Post;
+import org.thunlp.tagsuggest.common.PostDecoder;
 import org.thunlp.tagsuggest.common.TagFilter;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 import org.thunlp.text.Lexicon;
@@ -32,7 +32,7 @@ import org.thunlp.tool.GenericTool;
  */
 public class TrainNaiveBayes implements GenericTool, ModelTrainer {
   private static Logger LOG = Logger.getAnonymousLogger();
-  JsonUtil J = new JsonUtil();
+  PostDecoder decoder = new PostDecoder(PostDecoder.TEXT_FIELDS);
   Lexicon wordlex = new Lexicon();
   Lexicon taglex = new Lexicon();
   TagFilter tagFilter = null;
@@ -68,8 +68,9 @@ public class TrainNaiveBayes implements GenericTool, ModelTrainer {
     Map<String, Counter<String>> counts =
       new Hashtable<String, Counter<String>>();
 
+    Post post = new Post();
     while (reader.next()) {
-      Post p = J.fromJson(reader.value(), Post.class);
+      Post p = decoder.decode(reader.value(), post);
       if (p.getExtras().equals(fold)) {
         continue;
       }
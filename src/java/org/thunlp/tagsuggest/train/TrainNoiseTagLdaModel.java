@@ -12,12 +12,14 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.logging.Logger;
 
-import org.thunlp.io.JsonUtil;
 import org.thunlp.io.RecordReader;
 import org.thunlp.misc.Flags;
 import org.thunlp.tagsuggest.common.ConfigIO;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.ModelTrainer;
 import org.thunlp.tagsuggest.common.Post;
+import org.thunlp.tagsuggest.common.PostDecoder;
 import org.thunlp.tagsuggest.common.TagFilter;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 import org.thunlp.tagsuggest.contentbase.NoiseTagLdaModel;
@@ -27,11 +29,17 @@ import org.thunlp.tool.GenericTool;
 
 public class TrainNoiseTagLdaModel implements GenericTool, ModelTrainer {
   private static Logger LOG = Logger.getAnonymousLogger();
+  private static final LatencyHistogram LOAD_LATENCY =
+      Metrics.histogram("train.TrainNoiseTagLdaModel.load");
+  private static final LatencyHistogram TRAIN_LATENCY =
+      Metrics.histogram("train.TrainNoiseTagLdaModel.train");
+  private static final LatencyHistogram WRITE_LATENCY =
+      Metrics.histogram("train.TrainNoiseTagLdaModel.write");
   WordFeatureExtractor extractor = null;
   Lexicon wordlex = new Lexicon();
   Lexicon taglex = new Lexicon();
   TagFilter tagFilter = null;
-  JsonUtil J = new JsonUtil();
+  PostDecoder decoder = new PostDecoder(PostDecoder.TEXT_FIELDS);
   
   @Override
   public void run(String[] args) throws Exception {
@@ -54,16 +62,27 @@ public class TrainNoiseTagLdaModel implements GenericTool, ModelTrainer {
     extractor = new WordFeatureExtractor(config);
     extractor.setWordLexicon(wordlex);
     tagFilter = new TagFilter(config, taglex);
+    long start = System.nanoTime();
     List<Document> dataset = loadDocs(input, config.getProperty("fold", "-1"));
+    LOAD_LATENCY.recordSince(start);
     int numTopics = Integer.parseInt(config.getProperty("numtopics", "64"));
     int numIterations = Integer.parseInt(config.getProperty("niter", "40"));
+    // More than one thread trains with approximate (AD-LDA) sweeps.
+    int numThreads = Integer.parseInt(config.getProperty("lda_threads", "1"));
     NoiseTagLdaModel model = new NoiseTagLdaModel(numTopics);
-    model.train(dataset, numIterations);
+    // sampler=sparse draws topics with SparseLDA buckets, for many topics.
+    model.setSparseSampling(
+        config.getProperty("sampler", "dense").equals("sparse"));
+    start = System.nanoTime();
+    model.train(dataset, numIterations, numThreads);
+    TRAIN_LATENCY.recordSince(start);
+    start = System.nanoTime();
     BufferedOutputStream out = new BufferedOutputStream(
         new FileOutputStream(new File(output))
     );
     model.saveModel(out);
     out.close();
+    WRITE_LATENCY.recordSince(start);
   }
   
   public  List<Document> loadDocs(String input, String fold) throws IOException {
@@ -72,8 +91,9 @@ public class TrainNoiseTagLdaModel implements GenericTool, ModelTrainer {
     // Load all docs.
     RecordReader reader = new RecordReader(input);
     List<String> tokens = new ArrayList<String>();
+    Post post = new Post();
     while (reader.next()) {
-      Post p = J.fromJson(reader.value(), Post.class);
+      Post p = decoder.decode(reader.value(), post);
       tokens.clear();
       if (!p.getExtras().equals(fold)) {
         String [] words = extractor.extract(p);
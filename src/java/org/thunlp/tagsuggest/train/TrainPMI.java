@@ -20,10 +20,10 @@ import java.util.logging.Logger;
 import javax.swing.text.Position;
 
 import org.thunlp.io.JsonUtil;
-import org.thunlp.io.RecordReader;
 import org.thunlp.misc.Flags;
 import org.thunlp.tagsuggest.common.ConfigIO;
 import org.thunlp.tagsuggest.common.DoubanPost;
+import org.thunlp.tagsuggest.common.FeatureCache;
 import org.thunlp.tagsuggest.common.ModelTrainer;
 import org.thunlp.tagsuggest.common.TagFilter;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
@@ -103,7 +103,8 @@ public class TrainPMI implements GenericTool, ModelTrainer {
 			tagFilter = new TagFilter(config, taglex);
 			HashSet<String> filtered = new HashSet<String>();
 
-			RecordReader reader = new RecordReader(input);
+			FeatureCache.PostReader<DoubanPost> reader = FeatureCache.open(input,
+					config, DoubanPost.class);
 
 			// the first time : create wordlex and taglex to store the tf and df
 			// information
@@ -162,7 +163,7 @@ public class TrainPMI implements GenericTool, ModelTrainer {
 					wordSet.clear();
 					tagSet.clear();
 
-					DoubanPost p = J.fromJson(reader.value(), DoubanPost.class);
+					DoubanPost p = reader.post();
 					if (fold.length() > 0 && p.getExtras().equals(fold)) {
 						continue;
 					}
@@ -239,7 +240,7 @@ public class TrainPMI implements GenericTool, ModelTrainer {
 				localTaglex.saveToFile(tagLexFile);
 
 				reader.close();
-				reader = new RecordReader(input);
+				reader = FeatureCache.open(input, config, DoubanPost.class);
 			}
 
 			LOG.info("First Round Done!" + wordInverted.size() + ":"
@@ -281,7 +282,7 @@ public class TrainPMI implements GenericTool, ModelTrainer {
 							+ tagNullCounter + ":" + positionNullCounter + ":"
 							+ commonNullCounter + ":" + calBeforeCounter);
 
-				DoubanPost p = J.fromJson(reader.value(), DoubanPost.class);
+				DoubanPost p = reader.post();
 				if (fold.length() > 0 && p.getExtras().equals(fold)) {
 					continue;
 				}
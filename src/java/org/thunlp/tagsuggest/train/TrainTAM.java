@@ -11,7 +11,6 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.logging.Logger;
 
-import org.thunlp.io.JsonUtil;
 import org.thunlp.io.RecordReader;
 import org.thunlp.misc.Flags;
 import org.thunlp.tagsuggest.common.DataSource;
@@ -19,6 +18,7 @@ import org.thunlp.tagsuggest.common.ListDataSource;
 import org.thunlp.tagsuggest.common.ConfigIO;
 import org.thunlp.tagsuggest.common.ModelTrainer;
 import org.thunlp.tagsuggest.common.Post;
+import org.thunlp.tagsuggest.common.PostDecoder;
 import org.thunlp.tagsuggest.common.TagFilter;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 import org.thunlp.tagsuggest.contentbase.TagAllocationModel;
@@ -33,7 +33,7 @@ import org.thunlp.tool.GenericTool;
  */
 public class TrainTAM implements GenericTool, ModelTrainer {
   private static Logger LOG = Logger.getAnonymousLogger();
-  JsonUtil J = new JsonUtil();
+  PostDecoder decoder = new PostDecoder(PostDecoder.TEXT_FIELDS);
   WordFeatureExtractor fe = null;
   int minTagFreq = 1;
   TagFilter tagFilter = null;
@@ -75,8 +75,9 @@ public class TrainTAM implements GenericTool, ModelTrainer {
     }
     
      
+    Post post = new Post();
     while (reader.next()) {
-      Post p = J.fromJson(reader.value(), Post.class);
+      Post p = decoder.decode(reader.value(), post);
       if (!p.getExtras().equals(fold)) {        
         Document d = new Document();
         d.words = fe.extract(p);
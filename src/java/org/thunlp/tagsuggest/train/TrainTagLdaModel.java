@@ -12,9 +12,11 @@ import java.util.logging.Logger;
 
 import org.thunlp.hadooplda.LdaModel;
 import org.thunlp.io.JsonUtil;
-import org.thunlp.io.RecordReader;
 import org.thunlp.misc.Flags;
 import org.thunlp.tagsuggest.common.ConfigIO;
+import org.thunlp.tagsuggest.common.FeatureCache;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.ModelTrainer;
 import org.thunlp.tagsuggest.common.Post;
 import org.thunlp.tagsuggest.common.TagFilter;
@@ -24,6 +26,12 @@ import org.thunlp.tool.GenericTool;
 
 public class TrainTagLdaModel implements ModelTrainer, GenericTool {
   private static Logger LOG = Logger.getAnonymousLogger();
+  private static final LatencyHistogram LOAD_LATENCY =
+      Metrics.histogram("train.TrainTagLdaModel.load");
+  private static final LatencyHistogram TRAIN_LATENCY =
+      Metrics.histogram("train.TrainTagLdaModel.train");
+  private static final LatencyHistogram WRITE_LATENCY =
+      Metrics.histogram("train.TrainTagLdaModel.write");
   WordFeatureExtractor extractor = null;
   Lexicon wordlex = new Lexicon();
   Lexicon taglex = new Lexicon();
@@ -42,26 +50,34 @@ public class TrainTagLdaModel implements ModelTrainer, GenericTool {
     int numTopics = Integer.parseInt(config.getProperty("numtopics", "32"));
     int numIterations = Integer.parseInt(config.getProperty("niter", "40"));
 
-    List<String []> docs = loadDocs(inputPath, fold);
+    long start = System.nanoTime();
+    List<String []> docs = loadDocs(inputPath, fold, config);
+    LOAD_LATENCY.recordSince(start);
 
     LdaModel model = new LdaModel(numTopics);
     model.setAlpha(Double.parseDouble(config.getProperty("alpha", "-1")));
     model.setBeta(Double.parseDouble(config.getProperty("beta", "0.01")));
+    start = System.nanoTime();
     model.train(docs, numIterations);
+    TRAIN_LATENCY.recordSince(start);
+    start = System.nanoTime();
     FileOutputStream output = new FileOutputStream(modelPath);
     model.saveModel(output);
     output.close();
+    WRITE_LATENCY.recordSince(start);
   }
   
-  private List<String []> loadDocs(String path, String fold)
+  private List<String []> loadDocs(String path, String fold,
+      Properties config)
   throws IOException {
     List<String []> docs = new ArrayList<String []>();
     Set<String> filtered = new HashSet<String>();
     // Load all docs.
-    RecordReader reader = new RecordReader(path);
+    FeatureCache.PostReader<Post> reader =
+      FeatureCache.open(path, config, Post.class);
     List<String> tokens = new ArrayList<String>();
     while (reader.next()) {
-      Post p = J.fromJson(reader.value(), Post.class);
+      Post p = reader.post();
       tokens.clear();
       if (!p.getExtras().equals(fold)) {
         String [] words = extractor.extract(p);
@@ -11,12 +11,14 @@ import java.util.Set;
 import java.util.logging.Logger;
 
 import org.thunlp.hadooplda.LdaModel;
-import org.thunlp.io.JsonUtil;
 import org.thunlp.io.RecordReader;
 import org.thunlp.misc.Flags;
 import org.thunlp.tagsuggest.common.ConfigIO;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.ModelTrainer;
 import org.thunlp.tagsuggest.common.Post;
+import org.thunlp.tagsuggest.common.PostDecoder;
 import org.thunlp.tagsuggest.common.TagFilter;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
 import org.thunlp.tagsuggest.common.KeywordPost;
@@ -25,11 +27,17 @@ import org.thunlp.tool.GenericTool;
 
 public class TrainTopicPageRank implements ModelTrainer, GenericTool {
   private static Logger LOG = Logger.getAnonymousLogger();
+  private static final LatencyHistogram LOAD_LATENCY =
+      Metrics.histogram("train.TrainTopicPageRank.load");
+  private static final LatencyHistogram TRAIN_LATENCY =
+      Metrics.histogram("train.TrainTopicPageRank.train");
+  private static final LatencyHistogram WRITE_LATENCY =
+      Metrics.histogram("train.TrainTopicPageRank.write");
   WordFeatureExtractor extractor = null;
   Lexicon wordlex = new Lexicon();
   Lexicon taglex = new Lexicon();
   TagFilter tagFilter = null;
-  JsonUtil J = new JsonUtil();
+  PostDecoder decoder = new PostDecoder(PostDecoder.TEXT_FIELDS);
   
   @Override
   public void train(String inputPath, String modelPath, Properties config)
@@ -43,15 +51,21 @@ public class TrainTopicPageRank implements ModelTrainer, GenericTool {
     int numTopics = Integer.parseInt(config.getProperty("numtopics", "32"));
     int numIterations = Integer.parseInt(config.getProperty("niter", "40"));
 
+    long start = System.nanoTime();
     List<String []> docs = loadDocs(inputPath, fold);
+    LOAD_LATENCY.recordSince(start);
 
     LdaModel model = new LdaModel(numTopics);
     model.setAlpha(Double.parseDouble(config.getProperty("alpha", "-1")));
     model.setBeta(Double.parseDouble(config.getProperty("beta", "0.01")));
+    start = System.nanoTime();
     model.train(docs, numIterations);
+    TRAIN_LATENCY.recordSince(start);
+    start = System.nanoTime();
     FileOutputStream output = new FileOutputStream(modelPath);
     model.saveModel(output);
     output.close();
+    WRITE_LATENCY.recordSince(start);
   }
   
   private List<String []> loadDocs(String path, String fold)
@@ -61,8 +75,9 @@ public class TrainTopicPageRank implements ModelTrainer, GenericTool {
     // Load all docs.
     RecordReader reader = new RecordReader(path);
     List<String> tokens = new ArrayList<String>();
+    KeywordPost post = new KeywordPost();
     while (reader.next()) {
-      KeywordPost p = J.fromJson(reader.value(), KeywordPost.class);
+      KeywordPost p = decoder.decode(reader.value(), post);
       tokens.clear();
       if (!p.getExtras().equals(fold)) {
         String [] words =  extractor.extractKeyword(p,true,true,true);
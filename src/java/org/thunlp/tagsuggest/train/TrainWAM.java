@@ -21,7 +21,6 @@ import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import org.apache.hadoop.mapred.loadhistory_jsp;
-import org.thunlp.io.JsonUtil;
 import org.thunlp.io.RecordReader;
 import org.thunlp.language.chinese.ForwardMaxWordSegment;
 import org.thunlp.language.chinese.LangUtils;
@@ -31,8 +30,11 @@ import org.thunlp.misc.Flags;
 import org.thunlp.tagsuggest.common.ConfigIO;
 import org.thunlp.tagsuggest.common.DoubanPost;
 import org.thunlp.tagsuggest.common.KeywordPost;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.Post;
 import org.thunlp.tagsuggest.common.ModelTrainer;
+import org.thunlp.tagsuggest.common.PostDecoder;
 import org.thunlp.tagsuggest.common.RtuMain;
 import org.thunlp.tagsuggest.common.TagFilter;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
@@ -42,12 +44,18 @@ import org.thunlp.tool.GenericTool;
 
 public class TrainWAM implements GenericTool, ModelTrainer {
 	private static Logger LOG = Logger.getAnonymousLogger();
+	private static final LatencyHistogram LEXICON_LATENCY =
+			Metrics.histogram("train.TrainWAM.lexicon");
+	private static final LatencyHistogram BOOK_LATENCY =
+			Metrics.histogram("train.TrainWAM.book");
+	private static final LatencyHistogram GIZA_LATENCY =
+			Metrics.histogram("train.TrainWAM.giza");
 	private Properties config = null;
 	private String fold = "";
 	private String giza_path = null;
 	private RtuMain jar_path = new RtuMain();
 
-	JsonUtil J = new JsonUtil();
+	PostDecoder decoder = new PostDecoder(PostDecoder.TEXT_FIELDS);
 	WordFeatureExtractor extrator = null;
 	TagFilter tagFilter = null;
 	WordSegment ws = null;
@@ -87,6 +95,7 @@ public class TrainWAM implements GenericTool, ModelTrainer {
 			}
 
 			ws = new ForwardMaxWordSegment();
+			long start = System.nanoTime();
 			Lexicon wordlex = new Lexicon();
 			Lexicon taglex = new Lexicon();
 			WordFeatureExtractor.buildLexicons(input, wordlex, taglex, config);
@@ -110,8 +119,9 @@ public class TrainWAM implements GenericTool, ModelTrainer {
 				localWordlex.loadFromFile(wordLexFile);
 				localTaglex.loadFromFile(tagLexFile);
 			} else {
+				KeywordPost post = new KeywordPost();
 				while (reader.next()) {
-					KeywordPost p = J.fromJson(reader.value(), KeywordPost.class);
+					KeywordPost p = decoder.decode(reader.value(), post);
 					if (fold.length() > 0 && p.getExtras().equals(fold)) {
 						continue;
 					}
@@ -137,6 +147,9 @@ public class TrainWAM implements GenericTool, ModelTrainer {
 				reader = new RecordReader(input);
 			}
 
+			LEXICON_LATENCY.recordSince(start);
+
+			start = System.nanoTime();
 			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
 					new FileOutputStream(modelDir.getAbsolutePath() + "/book"),
 					"UTF-8"));
@@ -147,9 +160,10 @@ public class TrainWAM implements GenericTool, ModelTrainer {
 			
 			double scoreLimit = Double.parseDouble(config.getProperty("scoreLimit", "0.1"));
 			// the second time :
+			KeywordPost post = new KeywordPost();
 			while (reader.next()) {
 
-				KeywordPost p = J.fromJson(reader.value(), KeywordPost.class);
+				KeywordPost p = decoder.decode(reader.value(), post);
 				if (fold.length() > 0 && p.getExtras().equals(fold)) {
 					continue;
 				}
@@ -282,9 +296,16 @@ public class TrainWAM implements GenericTool, ModelTrainer {
 			out.close();
 			outTag.close();
 			
+			BOOK_LATENCY.recordSince(start);
 			LOG.info("source and target are prepared!");
 
 			// training
+			if (!config.getProperty("aligner", "model1").equals("giza")) {
+				// IBM model 1 in this JVM; aligner=giza runs the GIZA++ tools.
+				Model1Trainer.trainBook(modelDir, config);
+				return;
+			}
+			start = System.nanoTime();
 			Runtime rn = Runtime.getRuntime();
 			Process p = null;
 			p = rn
@@ -329,6 +350,7 @@ public class TrainWAM implements GenericTool, ModelTrainer {
 			outputGobbler.start();
 			p.waitFor();
 			LOG.info("GIZA++ tag to word Ok!");
+			GIZA_LATENCY.recordSince(start);
 
 		} catch (Exception e) {
 			LOG.info("Error exec!");
@@ -21,7 +21,6 @@ import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import org.apache.hadoop.mapred.loadhistory_jsp;
-import org.thunlp.io.JsonUtil;
 import org.thunlp.io.RecordReader;
 import org.thunlp.language.chinese.ForwardMaxWordSegment;
 import org.thunlp.language.chinese.LangUtils;
@@ -30,7 +29,10 @@ import org.thunlp.misc.Counter;
 import org.thunlp.misc.Flags;
 import org.thunlp.tagsuggest.common.ConfigIO;
 import org.thunlp.tagsuggest.common.KeywordPost;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.Post;
+import org.thunlp.tagsuggest.common.PostDecoder;
 import org.thunlp.tagsuggest.common.RtuMain;
 import org.thunlp.tagsuggest.common.ModelTrainer;
 import org.thunlp.tagsuggest.common.TagFilter;
@@ -41,12 +43,18 @@ import org.thunlp.tool.GenericTool;
 
 public class TrainWAMWithtitleInstead implements GenericTool, ModelTrainer {
 	private static Logger LOG = Logger.getAnonymousLogger();
+	private static final LatencyHistogram LEXICON_LATENCY =
+			Metrics.histogram("train.TrainWAMWithtitleInstead.lexicon");
+	private static final LatencyHistogram BOOK_LATENCY =
+			Metrics.histogram("train.TrainWAMWithtitleInstead.book");
+	private static final LatencyHistogram GIZA_LATENCY =
+			Metrics.histogram("train.TrainWAMWithtitleInstead.giza");
 	private Properties config = null;
 	private String fold = "";
 	private String giza_path = null;
 	private RtuMain jar_path = new RtuMain();
 	
-	JsonUtil J = new JsonUtil();
+	PostDecoder decoder = new PostDecoder(PostDecoder.TEXT_FIELDS);
 	WordFeatureExtractor fe = null;
 	TagFilter tagFilter = null;
 	WordSegment ws = null;
@@ -86,6 +94,7 @@ public class TrainWAMWithtitleInstead implements GenericTool, ModelTrainer {
 			}
 
 			ws = new ForwardMaxWordSegment();
+			long start = System.nanoTime();
 			Lexicon wordlex = new Lexicon();
 			Lexicon taglex = new Lexicon();
 			WordFeatureExtractor.buildLexicons(input, wordlex, taglex, config);
@@ -109,8 +118,9 @@ public class TrainWAMWithtitleInstead implements GenericTool, ModelTrainer {
 				localWordlex.loadFromFile(wordLexFile);
 				localTaglex.loadFromFile(tagLexFile);
 			} else {
+				KeywordPost post = new KeywordPost();
 				while (reader.next()) {
-					KeywordPost p = J.fromJson(reader.value(), KeywordPost.class);
+					KeywordPost p = decoder.decode(reader.value(), post);
 					if (fold.length() > 0 && p.getExtras().equals(fold)) {
 						continue;
 					}
@@ -136,6 +146,9 @@ public class TrainWAMWithtitleInstead implements GenericTool, ModelTrainer {
 				reader = new RecordReader(input);
 			}
 
+			LEXICON_LATENCY.recordSince(start);
+
+			start = System.nanoTime();
 			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
 					new FileOutputStream(modelDir.getAbsolutePath() + "/book"),
 					"UTF-8"));
@@ -146,9 +159,10 @@ public class TrainWAMWithtitleInstead implements GenericTool, ModelTrainer {
 			
 			double scoreLimit = Double.parseDouble(config.getProperty("scoreLimit", "0.1"));
 			// the second time :
+			KeywordPost post = new KeywordPost();
 			while (reader.next()) {
 				counter++;
-				KeywordPost p = J.fromJson(reader.value(), KeywordPost.class);
+				KeywordPost p = decoder.decode(reader.value(), post);
 				if (fold.length() > 0 && p.getExtras().equals(fold)) {
 					continue;
 				}				
@@ -286,9 +300,16 @@ public class TrainWAMWithtitleInstead implements GenericTool, ModelTrainer {
 			out.close();
 			outTag.close();
 
+			BOOK_LATENCY.recordSince(start);
 			LOG.info("source and target are prepared!");
 
 			// training
+			if (!config.getProperty("aligner", "model1").equals("giza")) {
+				// IBM model 1 in this JVM; aligner=giza runs the GIZA++ tools.
+				Model1Trainer.trainBook(modelDir, config);
+				return;
+			}
+			start = System.nanoTime();
 			Runtime rn = Runtime.getRuntime();
 			Process p = null;
 		
@@ -334,6 +355,7 @@ public class TrainWAMWithtitleInstead implements GenericTool, ModelTrainer {
 			outputGobbler.start();
 			p.waitFor();
 			LOG.info("GIZA++ tag to word Ok!");
+			GIZA_LATENCY.recordSince(start);
 
 		} catch (Exception e) {
 			LOG.info("Error exec!");
@@ -20,7 +20,6 @@ import java.util.Map.Entry;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
-import org.thunlp.io.JsonUtil;
 import org.thunlp.io.RecordReader;
 import org.thunlp.language.chinese.LangUtils;
 import org.thunlp.misc.Counter;
@@ -28,7 +27,10 @@ import org.thunlp.misc.Flags;
 import org.thunlp.tagsuggest.common.ConfigIO;
 import org.thunlp.tagsuggest.common.DoubanPost;
 import org.thunlp.tagsuggest.common.KeywordPost;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.ModelTrainer;
+import org.thunlp.tagsuggest.common.PostDecoder;
 import org.thunlp.tagsuggest.common.RtuMain;
 import org.thunlp.tagsuggest.common.TagFilter;
 import org.thunlp.tagsuggest.common.WordFeatureExtractor;
@@ -37,9 +39,15 @@ import org.thunlp.tool.GenericTool;
 
 public class TrainWAMsample implements GenericTool, ModelTrainer {
 	private static Logger LOG = Logger.getAnonymousLogger();
+	private static final LatencyHistogram LEXICON_LATENCY =
+			Metrics.histogram("train.TrainWAMsample.lexicon");
+	private static final LatencyHistogram BOOK_LATENCY =
+			Metrics.histogram("train.TrainWAMsample.book");
+	private static final LatencyHistogram GIZA_LATENCY =
+			Metrics.histogram("train.TrainWAMsample.giza");
 	private Properties config = null;
 	private String fold = "";
-	JsonUtil J = new JsonUtil();
+	PostDecoder decoder = new PostDecoder(PostDecoder.TEXT_FIELDS);
 	WordFeatureExtractor fe = null;
 	TagFilter tagFilter = null;
 	private String giza_path;
@@ -77,6 +85,7 @@ public class TrainWAMsample implements GenericTool, ModelTrainer {
 				modelDir.mkdir();
 			}
 
+			long start = System.nanoTime();
 			Lexicon wordlex = new Lexicon();
 			Lexicon taglex = new Lexicon();
 			WordFeatureExtractor.buildLexicons(input, wordlex, taglex, config);
@@ -100,8 +109,9 @@ public class TrainWAMsample implements GenericTool, ModelTrainer {
 				localWordlex.loadFromFile(wordLexFile);
 				localTaglex.loadFromFile(tagLexFile);
 			} else {
+				KeywordPost post = new KeywordPost();
 				while (reader.next()) {
-					KeywordPost p = J.fromJson(reader.value(), KeywordPost.class);
+					KeywordPost p = decoder.decode(reader.value(), post);
 					if (fold.length() > 0 && p.getExtras().equals(fold)) {
 						continue;
 					}
@@ -127,6 +137,9 @@ public class TrainWAMsample implements GenericTool, ModelTrainer {
 				reader = new RecordReader(input);
 			}
 
+			LEXICON_LATENCY.recordSince(start);
+
+			start = System.nanoTime();
 			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
 					new FileOutputStream(modelDir.getAbsolutePath() + "/book"),
 					"UTF-8"));
@@ -141,9 +154,10 @@ public class TrainWAMsample implements GenericTool, ModelTrainer {
 			Random random = new Random();
 			Pattern spaceRE = Pattern.compile(" +");
 			// the second time :
+			KeywordPost post = new KeywordPost();
 			while (reader.next()) {
 				counter++;
-				KeywordPost p = J.fromJson(reader.value(), KeywordPost.class);
+				KeywordPost p = decoder.decode(reader.value(), post);
 				if (fold.length() > 0 && p.getExtras().equals(fold)) {
 					continue;
 				}
@@ -256,9 +270,16 @@ public class TrainWAMsample implements GenericTool, ModelTrainer {
 			out.close();
 			outTag.close();
 
+			BOOK_LATENCY.recordSince(start);
 			LOG.info("source and target are prepared!");
 
 			// training
+			if (!config.getProperty("aligner", "model1").equals("giza")) {
+				// IBM model 1 in this JVM; aligner=giza runs the GIZA++ tools.
+				Model1Trainer.trainBook(modelDir, config);
+				return;
+			}
+			start = System.nanoTime();
 			Runtime rn = Runtime.getRuntime();
 			Process p = null;
 	
@@ -304,6 +325,7 @@ public class TrainWAMsample implements GenericTool, ModelTrainer {
 			outputGobbler.start();
 			p.waitFor();
 			LOG.info("GIZA++ tag to word Ok!");
+			GIZA_LATENCY.recordSince(start);
 
 		} catch (Exception e) {
 			LOG.info("Error exec!");
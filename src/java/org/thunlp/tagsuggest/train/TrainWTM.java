@@ -21,12 +21,14 @@ import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import org.thunlp.io.JsonUtil;
-import org.thunlp.io.RecordReader;
 import org.thunlp.language.chinese.LangUtils;
 import org.thunlp.misc.Counter;
 import org.thunlp.misc.Flags;
 import org.thunlp.tagsuggest.common.ConfigIO;
 import org.thunlp.tagsuggest.common.DoubanPost;
+import org.thunlp.tagsuggest.common.FeatureCache;
+import org.thunlp.tagsuggest.common.LatencyHistogram;
+import org.thunlp.tagsuggest.common.Metrics;
 import org.thunlp.tagsuggest.common.ModelTrainer;
 import org.thunlp.tagsuggest.common.RtuMain;
 import org.thunlp.tagsuggest.common.TagFilter;
@@ -37,6 +39,12 @@ import org.thunlp.tool.GenericTool;
 
 public class TrainWTM implements GenericTool, ModelTrainer {
 	private static Logger LOG = Logger.getAnonymousLogger();
+	private static final LatencyHistogram LEXICON_LATENCY =
+			Metrics.histogram("train.TrainWTM.lexicon");
+	private static final LatencyHistogram BOOK_LATENCY =
+			Metrics.histogram("train.TrainWTM.book");
+	private static final LatencyHistogram GIZA_LATENCY =
+			Metrics.histogram("train.TrainWTM.giza");
 	private Properties config = null;
 	private String fold = "";
 	private String giza_path = null;
@@ -84,6 +92,7 @@ public class TrainWTM implements GenericTool, ModelTrainer {
 				modelDir.mkdir();
 			}
 
+			long start = System.nanoTime();
 			Lexicon wordlex = new Lexicon();
 			Lexicon taglex = new Lexicon();
 			LOG.info("Start building");
@@ -97,7 +106,8 @@ public class TrainWTM implements GenericTool, ModelTrainer {
 			Set<String> filtered = new HashSet<String>();
 			HashSet<String> tagSet = new HashSet<String>();
 
-			RecordReader reader = new RecordReader(input);
+			FeatureCache.PostReader<DoubanPost> reader = FeatureCache.open(input,
+					config, DoubanPost.class);
 			// the first time : create wordlex and taglex to store the tf and df
 			// information.
 			Lexicon localWordlex = new Lexicon();
@@ -111,7 +121,7 @@ public class TrainWTM implements GenericTool, ModelTrainer {
 			} else {
 				LOG.info("Create lexicons");
 				while (reader.next()) {
-					DoubanPost p = J.fromJson(reader.value(), DoubanPost.class);
+					DoubanPost p = reader.post();
 					if (fold.length() > 0 && p.getExtras().equals(fold)) {
 						continue;
 					}
@@ -137,9 +147,12 @@ public class TrainWTM implements GenericTool, ModelTrainer {
 				localWordlex.saveToFile(wordLexFile);
 				localTaglex.saveToFile(tagLexFile);
 				reader.close();
-				reader = new RecordReader(input);
+				reader = FeatureCache.open(input, config, DoubanPost.class);
 			}
 
+			LEXICON_LATENCY.recordSince(start);
+
+			start = System.nanoTime();
 			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
 					new FileOutputStream(modelDir.getAbsolutePath() + "/book"),
 					"UTF-8"));
@@ -155,7 +168,7 @@ public class TrainWTM implements GenericTool, ModelTrainer {
 			Pattern spaceRE = Pattern.compile(" +");
 			// the second time :
 			while (reader.next()) {
-				DoubanPost p = J.fromJson(reader.value(), DoubanPost.class);
+				DoubanPost p = reader.post();
 				if (fold.length() > 0 && p.getExtras().equals(fold)) {
 					continue;
 				}
@@ -287,9 +300,16 @@ public class TrainWTM implements GenericTool, ModelTrainer {
 			out.close();
 			outTag.close();
 
+			BOOK_LATENCY.recordSince(start);
 			LOG.info("source and target are prepared!");
 
 			// training
+			if (!config.getProperty("aligner", "model1").equals("giza")) {
+				// IBM model 1 in this JVM; aligner=giza runs the GIZA++ tools.
+				Model1Trainer.trainBook(modelDir, config);
+				return;
+			}
+			start = System.nanoTime();
 			Runtime rn = Runtime.getRuntime();
 			Process p = null;
 	
@@ -335,6 +355,7 @@ public class TrainWTM implements GenericTool, ModelTrainer {
 			outputGobbler.start();
 			p.waitFor();
 			LOG.info("GIZA++ tag to word Ok!");
+			GIZA_LATENCY.recordSince(start);
 
 		} catch (Exception e) {
 			LOG.info("Error exec!");
@@ -29,7 +29,15 @@ public class EntryPoint {
     "demo", "org.thunlp.tagsuggest.evaluation.GuiFrontEnd",
     "samplepostperuser", "org.thunlp.tagsuggest.dataset.SamplePostPerUser",
     "cutfolds", "org.thunlp.tagsuggest.dataset.CutFolds",
-    "cx", "org.thunlp.tagsuggest.evaluation.CrossValidator"
+    "build-feature-cache", "org.thunlp.tagsuggest.dataset.BuildFeatureCache",
+    "cx", "org.thunlp.tagsuggest.evaluation.CrossValidator",
+    "benchmark-lda-sampler",
+    "org.thunlp.tagsuggest.evaluation.BenchmarkLdaSampler",
+    "benchmark", "org.thunlp.tagsuggest.evaluation.Benchmark",
+    "compile-smt-model", "org.thunlp.tagsuggest.train.CompileSMTModel",
+    "compile-segment-dictionary",
+    "org.thunlp.tagsuggest.train.CompileSegmentDictionary",
+    "serve", "org.thunlp.tagsuggest.evaluation.SuggestServer"
   };
   
   public static void main( String [] args ) throws Exception {